@@ -20,6 +20,7 @@ import static android.provider.Telephony.CarrierId;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -39,7 +40,9 @@ import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.LocalLog;
 import android.util.Log;
+import android.util.LruCache;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.metrics.CarrierIdMatchStats;
 import com.android.internal.telephony.metrics.TelephonyMetrics;
@@ -54,8 +57,11 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * CarrierResolver identifies the subscription carrier and returns a canonical carrier Id
@@ -85,6 +91,19 @@ public class CarrierResolver extends Handler {
     private Integer mCarrierListVersion;
     // cached matching rules based mccmnc to speed up resolution
     private List<CarrierMatchingRule> mCarrierMatchingRulesOnMccMnc = new ArrayList<>();
+    // mCarrierMatchingRulesOnMccMnc compiled for matching, null until first used
+    private CarrierMatcher mCarrierMatcher;
+
+    // Number of MCCMNCs whose compiled rules are cached for getCarrierIdFromIdentifier
+    private static final int MAX_CACHED_MATCHERS = 16;
+    // Compiled rules for getCarrierIdFromIdentifier by MCCMNC. Cleared when the carrier id
+    // database is updated.
+    @GuardedBy("sCarrierMatcherCache")
+    private static final LruCache<String, CarrierMatcher> sCarrierMatcherCache =
+            new LruCache<>(MAX_CACHED_MATCHERS);
+    // Content resolver the cached rules were queried from
+    @GuardedBy("sCarrierMatcherCache")
+    private static ContentResolver sCarrierMatcherCacheResolver;
     // cached carrier Id
     private int mCarrierId = TelephonyManager.UNKNOWN_CARRIER_ID;
     // cached specific carrier Id
@@ -242,6 +261,7 @@ public class CarrierResolver extends Handler {
 
     private void handleSimAbsent() {
         mCarrierMatchingRulesOnMccMnc.clear();
+        mCarrierMatcher = null;
         mSpn = null;
         mPreferApn = null;
         updateCarrierIdAndName(TelephonyManager.UNKNOWN_CARRIER_ID, null,
@@ -289,6 +309,7 @@ public class CarrierResolver extends Handler {
             case CARRIER_ID_DB_UPDATE_EVENT:
                 // clean the cached carrier list version, so that a new one will be queried.
                 mCarrierListVersion = null;
+                clearCarrierMatcherCache();
                 loadCarrierMatchingRulesOnMccMnc(true /* update carrier config*/, false);
                 break;
             case PREFER_APN_UPDATE_EVENT:
@@ -343,6 +364,7 @@ public class CarrierResolver extends Handler {
                     while (cursor.moveToNext()) {
                         mCarrierMatchingRulesOnMccMnc.add(makeCarrierMatchingRule(cursor));
                     }
+                    mCarrierMatcher = null;
                     matchSubscriptionCarrier(updateCarrierConfig, isSimOverride);
 
                     // Generate metrics related to carrier ID table version.
@@ -386,9 +408,12 @@ public class CarrierResolver extends Handler {
         return null;
     }
 
+    /**
+     * @return the matching rules of the mccmnc, or null if the carrier id database can't be read.
+     */
+    @Nullable
     private static List<CarrierMatchingRule> getCarrierMatchingRulesFromMccMnc(
             @NonNull Context context, String mccmnc) {
-        List<CarrierMatchingRule> rules = new ArrayList<>();
         try {
             Cursor cursor = context.getContentResolver().query(
                     CarrierId.All.CONTENT_URI,
@@ -401,10 +426,11 @@ public class CarrierResolver extends Handler {
                         logd("[loadCarrierMatchingRules]- " + cursor.getCount()
                                 + " Records(s) in DB" + " mccmnc: " + mccmnc);
                     }
-                    rules.clear();
+                    List<CarrierMatchingRule> rules = new ArrayList<>();
                     while (cursor.moveToNext()) {
                         rules.add(makeCarrierMatchingRule(cursor));
                     }
+                    return rules;
                 }
             } finally {
                 if (cursor != null) {
@@ -414,7 +440,7 @@ public class CarrierResolver extends Handler {
         } catch (Exception ex) {
             loge("[loadCarrierMatchingRules]- ex: " + ex);
         }
-        return rules;
+        return null;
     }
 
     private String getPreferApn() {
@@ -727,6 +753,12 @@ public class CarrierResolver extends Handler {
             }
         }
 
+        /** @return the score of the last {@link #match}. */
+        @VisibleForTesting
+        public int getScore() {
+            return mScore;
+        }
+
         private boolean imsiPrefixMatch(String imsi, String prefixXPattern) {
             if (TextUtils.isEmpty(prefixXPattern)) return true;
             if (TextUtils.isEmpty(imsi)) return false;
@@ -790,6 +822,185 @@ public class CarrierResolver extends Handler {
         }
     }
 
+    /**
+     * Carrier matching rules compiled into an index per attribute. Matching a subscription looks
+     * up each attribute of the subscription once and intersects the sets of rules satisfied by the
+     * lookups, instead of comparing every attribute of every rule. The result is the same as
+     * {@link CarrierMatchingRule#match} on each rule.
+     *
+     * Immutable once built, so it can be shared between threads.
+     */
+    @VisibleForTesting
+    public static final class CarrierMatcher {
+        /** Rules satisfied by each value of one attribute. */
+        private static final class AttributeIndex {
+            // Rules that don't specify the attribute
+            private final BitSet mWildcards = new BitSet();
+            private final Map<String, BitSet> mRules = new HashMap<>();
+            // Distinct key lengths, ascending, for prefix lookups
+            private int[] mKeyLengths = new int[0];
+
+            void add(int rule, @Nullable String key) {
+                if (key == null) {
+                    mWildcards.set(rule);
+                    return;
+                }
+                BitSet rules = mRules.get(key);
+                if (rules == null) {
+                    rules = new BitSet();
+                    mRules.put(key, rules);
+                    if (Arrays.binarySearch(mKeyLengths, key.length()) < 0) {
+                        mKeyLengths = Arrays.copyOf(mKeyLengths, mKeyLengths.length + 1);
+                        mKeyLengths[mKeyLengths.length - 1] = key.length();
+                        Arrays.sort(mKeyLengths);
+                    }
+                }
+                rules.set(rule);
+            }
+
+            /** Keep the candidates whose key equals one of the values. */
+            void retainEqual(@NonNull BitSet candidates, @Nullable String... values) {
+                BitSet satisfied = (BitSet) mWildcards.clone();
+                if (values != null) {
+                    for (String value : values) {
+                        BitSet rules = value != null ? mRules.get(value) : null;
+                        if (rules != null) satisfied.or(rules);
+                    }
+                }
+                candidates.and(satisfied);
+            }
+
+            /** Keep the candidates whose key is a prefix of the value. */
+            void retainPrefixOf(@NonNull BitSet candidates, @Nullable String value) {
+                BitSet satisfied = (BitSet) mWildcards.clone();
+                if (value != null) {
+                    for (int length : mKeyLengths) {
+                        if (length > value.length()) break;
+                        BitSet rules = mRules.get(value.substring(0, length));
+                        if (rules != null) satisfied.or(rules);
+                    }
+                }
+                candidates.and(satisfied);
+            }
+        }
+
+        private final List<CarrierMatchingRule> mRules;
+        // Score of each rule when all of its attributes match
+        private final int[] mScores;
+        // Rules with an imsi prefix pattern, which is matched rule by rule
+        private final BitSet mImsiRules = new BitSet();
+        private final AttributeIndex mMccMnc = new AttributeIndex();
+        private final AttributeIndex mIccid = new AttributeIndex();
+        private final AttributeIndex mGid1 = new AttributeIndex();
+        private final AttributeIndex mGid2 = new AttributeIndex();
+        private final AttributeIndex mPlmn = new AttributeIndex();
+        private final AttributeIndex mSpn = new AttributeIndex();
+        private final AttributeIndex mPrivilegeAccessRule = new AttributeIndex();
+        private final AttributeIndex mApn = new AttributeIndex();
+
+        public CarrierMatcher(@NonNull List<CarrierMatchingRule> rules) {
+            mRules = new ArrayList<>(rules);
+            mScores = new int[mRules.size()];
+            for (int i = 0; i < mRules.size(); i++) {
+                CarrierMatchingRule rule = mRules.get(i);
+                int score = 0;
+                if (rule.mccMnc != null) score += CarrierMatchingRule.SCORE_MCCMNC;
+                if (rule.imsiPrefixPattern != null) {
+                    score += CarrierMatchingRule.SCORE_IMSI_PREFIX;
+                    mImsiRules.set(i);
+                }
+                if (rule.iccidPrefix != null) score += CarrierMatchingRule.SCORE_ICCID_PREFIX;
+                if (rule.gid1 != null) score += CarrierMatchingRule.SCORE_GID1;
+                if (rule.gid2 != null) score += CarrierMatchingRule.SCORE_GID2;
+                if (rule.plmn != null) score += CarrierMatchingRule.SCORE_PLMN;
+                if (rule.spn != null) score += CarrierMatchingRule.SCORE_SPN;
+                if (rule.apn != null) score += CarrierMatchingRule.SCORE_APN;
+                mScores[i] = score;
+
+                mMccMnc.add(i, rule.mccMnc);
+                mIccid.add(i, rule.iccidPrefix);
+                mGid1.add(i, toLowerCase(rule.gid1));
+                mGid2.add(i, toLowerCase(rule.gid2));
+                mPlmn.add(i, foldCase(rule.plmn));
+                mSpn.add(i, foldCase(rule.spn));
+                mApn.add(i, foldCase(rule.apn));
+                if (rule.privilegeAccessRule == null || rule.privilegeAccessRule.isEmpty()) {
+                    mPrivilegeAccessRule.add(i, null);
+                } else {
+                    mScores[i] += CarrierMatchingRule.SCORE_PRIVILEGE_ACCESS_RULE;
+                    for (String cert : rule.privilegeAccessRule) {
+                        // Empty certs never match
+                        if (!TextUtils.isEmpty(cert)) {
+                            mPrivilegeAccessRule.add(i, foldCase(cert));
+                        }
+                    }
+                }
+            }
+        }
+
+        /** @return the rule at the index, in the order the rules were given. */
+        @NonNull
+        public CarrierMatchingRule getRule(int index) {
+            return mRules.get(index);
+        }
+
+        /**
+         * @param subscriptionRule the attributes of the subscription.
+         * @return the matching score of each rule, in the order the rules were given.
+         */
+        @NonNull
+        public int[] match(@NonNull CarrierMatchingRule subscriptionRule) {
+            BitSet candidates = new BitSet(mRules.size());
+            candidates.set(0, mRules.size());
+            mMccMnc.retainEqual(candidates, subscriptionRule.mccMnc);
+            mIccid.retainPrefixOf(candidates, subscriptionRule.iccidPrefix);
+            mGid1.retainPrefixOf(candidates, toLowerCase(subscriptionRule.gid1));
+            mGid2.retainPrefixOf(candidates, toLowerCase(subscriptionRule.gid2));
+            mPlmn.retainEqual(candidates, foldCase(subscriptionRule.plmn));
+            mSpn.retainEqual(candidates, foldCase(subscriptionRule.spn));
+            mApn.retainEqual(candidates, foldCase(subscriptionRule.apn));
+            List<String> certs = subscriptionRule.privilegeAccessRule;
+            String[] foldedCerts = null;
+            if (certs != null) {
+                foldedCerts = new String[certs.size()];
+                for (int i = 0; i < foldedCerts.length; i++) {
+                    foldedCerts[i] = foldCase(certs.get(i));
+                }
+            }
+            mPrivilegeAccessRule.retainEqual(candidates, foldedCerts);
+
+            int[] scores = new int[mRules.size()];
+            Arrays.fill(scores, CarrierMatchingRule.SCORE_INVALID);
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                CarrierMatchingRule rule = mRules.get(i);
+                if (mImsiRules.get(i) && !rule.imsiPrefixMatch(
+                        subscriptionRule.imsiPrefixPattern, rule.imsiPrefixPattern)) {
+                    continue;
+                }
+                scores[i] = mScores[i];
+            }
+            return scores;
+        }
+
+        // Same as the gid matching in CarrierMatchingRule
+        @Nullable
+        private static String toLowerCase(@Nullable String value) {
+            return value != null ? value.toLowerCase(Locale.ROOT) : null;
+        }
+
+        // Strings are equal ignoring case, as in String#equalsIgnoreCase, iff their folded
+        // strings are equal.
+        @Nullable
+        private static String foldCase(@Nullable String value) {
+            if (value == null) return null;
+            char[] chars = value.toCharArray();
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+            }
+            return new String(chars);
+        }
+    }
+
     private CarrierMatchingRule getSubscriptionMatchingRule() {
         final String mccmnc = mTelephonyMgr.getSimOperatorNumericForPhone(mPhone.getPhoneId());
         final String iccid = mPhone.getIccSerialNumber();
@@ -860,8 +1071,13 @@ public class CarrierResolver extends Handler {
         CarrierMatchingRule mnoRule = null;
         CarrierMatchingRule subscriptionRule = getSubscriptionMatchingRule();
 
-        for (CarrierMatchingRule rule : mCarrierMatchingRulesOnMccMnc) {
-            rule.match(subscriptionRule);
+        if (mCarrierMatcher == null) {
+            mCarrierMatcher = new CarrierMatcher(mCarrierMatchingRulesOnMccMnc);
+        }
+        int[] scores = mCarrierMatcher.match(subscriptionRule);
+        for (int i = 0; i < mCarrierMatchingRulesOnMccMnc.size(); i++) {
+            CarrierMatchingRule rule = mCarrierMatchingRulesOnMccMnc.get(i);
+            rule.mScore = scores[i];
             if (rule.mScore > maxScore) {
                 maxScore = rule.mScore;
                 maxRule = rule;
@@ -1039,18 +1255,55 @@ public class CarrierResolver extends Handler {
 
         int carrierId = TelephonyManager.UNKNOWN_CARRIER_ID;
         int maxScore = CarrierMatchingRule.SCORE_INVALID;
-        List<CarrierMatchingRule> rules = getCarrierMatchingRulesFromMccMnc(
-                context, targetRule.mccMnc);
-        for (CarrierMatchingRule rule : rules) {
-            rule.match(targetRule);
-            if (rule.mScore > maxScore) {
-                maxScore = rule.mScore;
-                carrierId = rule.mCid;
+        CarrierMatcher matcher = getCachedCarrierMatcher(context, targetRule.mccMnc);
+        int[] scores = matcher.match(targetRule);
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] > maxScore) {
+                maxScore = scores[i];
+                carrierId = matcher.getRule(i).mCid;
             }
         }
         return carrierId;
     }
 
+    /**
+     * @return the compiled matching rules of the mccmnc, queried from the carrier id database
+     * only if they are not cached yet.
+     */
+    private static CarrierMatcher getCachedCarrierMatcher(@NonNull Context context,
+            String mccmnc) {
+        ContentResolver resolver = context.getContentResolver();
+        String key = String.valueOf(mccmnc);
+        synchronized (sCarrierMatcherCache) {
+            if (sCarrierMatcherCacheResolver != resolver) {
+                sCarrierMatcherCache.evictAll();
+                sCarrierMatcherCacheResolver = resolver;
+            }
+            CarrierMatcher matcher = sCarrierMatcherCache.get(key);
+            if (matcher != null) {
+                return matcher;
+            }
+        }
+        List<CarrierMatchingRule> rules = getCarrierMatchingRulesFromMccMnc(context, mccmnc);
+        if (rules == null) {
+            // Don't cache the failure
+            return new CarrierMatcher(new ArrayList<>());
+        }
+        CarrierMatcher matcher = new CarrierMatcher(rules);
+        synchronized (sCarrierMatcherCache) {
+            if (sCarrierMatcherCacheResolver == resolver) {
+                sCarrierMatcherCache.put(key, matcher);
+            }
+        }
+        return matcher;
+    }
+
+    private static void clearCarrierMatcherCache() {
+        synchronized (sCarrierMatcherCache) {
+            sCarrierMatcherCache.evictAll();
+        }
+    }
+
     /**
      * a util function to convert {mccmnc, mvno_type, mvno_data} to all matching carrier ids.
      *
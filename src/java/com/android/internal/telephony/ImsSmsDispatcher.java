@@ -68,6 +68,9 @@ public class ImsSmsDispatcher extends SMSDispatcher {
     private static final String TAG = "ImsSmsDispatcher";
     private static final int CONNECT_DELAY_MS = 5000; // 5 seconds;
     public static final int MAX_SEND_RETRIES_OVER_IMS = MAX_SEND_RETRIES;
+    // Maximum number of parts of a multi-part SMS in flight at once over IMS
+    private static final String PROPERTY_IMS_SMS_MAX_PARTS_IN_FLIGHT =
+            "persist.radio.ims_sms_max_parts_in_flight";
 
     /**
      * Creates FeatureConnector instances for ImsManager, used during testing to inject mock
@@ -474,6 +477,11 @@ public class ImsSmsDispatcher extends SMSDispatcher {
         }
     }
 
+    @Override
+    protected String getMaxPartsInFlightProperty() {
+        return PROPERTY_IMS_SMS_MAX_PARTS_IN_FLIGHT;
+    }
+
     @Override
     protected String getFormat() {
         // This is called in the constructor before ImsSmsDispatcher has a chance to initialize
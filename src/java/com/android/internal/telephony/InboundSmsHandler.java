@@ -233,6 +233,9 @@ public abstract class InboundSmsHandler extends StateMachine {
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private final WapPushOverSms mWapPush;
 
+    /** Answers the multi-part completion and duplicate checks without querying the raw table. */
+    private final SmsReassemblyIndex mReassemblyIndex;
+
     /** Wake lock to ensure device stays awake while dispatching the SMS intents. */
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private final PowerManager.WakeLock mWakeLock;
@@ -306,6 +309,7 @@ public abstract class InboundSmsHandler extends StateMachine {
         mPhone = phone;
         mResolver = context.getContentResolver();
         mWapPush = new WapPushOverSms(context, mFeatureFlags);
+        mReassemblyIndex = new SmsReassemblyIndex(mResolver);
 
         boolean smsCapable = mContext.getResources().getBoolean(
                 com.android.internal.R.bool.config_sms_capable);
@@ -946,6 +950,13 @@ public abstract class InboundSmsHandler extends StateMachine {
             block = BlockChecker.isBlocked(mContext, tracker.getDisplayAddress(), null);
         } else {
             // multi-part message
+            if (!mReassemblyIndex.mayBeComplete(tracker)) {
+                // Wait for the other message parts to arrive, see below
+                log("processMessagePart: returning false. Not all " + messageCount
+                        + " segments have arrived. refNumber: " + tracker.getReferenceNumber(),
+                        tracker.getMessageId());
+                return false;
+            }
             Cursor cursor = null;
             try {
                 // used by several query selection arguments
@@ -1461,7 +1472,14 @@ public abstract class InboundSmsHandler extends StateMachine {
     private void deleteFromRawTable(String deleteWhere, String[] deleteWhereArgs,
                                     int deleteType) {
         Uri uri = deleteType == DELETE_PERMANENTLY ? sRawUriPermanentDelete : sRawUri;
-        int rows = mResolver.delete(uri, deleteWhere, deleteWhereArgs);
+        int rows;
+        SmsReassemblyIndex.onRawTableWriteStarted();
+        try {
+            rows = mResolver.delete(uri, deleteWhere, deleteWhereArgs);
+        } finally {
+            mReassemblyIndex.onRowsDeleted(deleteWhere, deleteWhereArgs,
+                    deleteType == DELETE_PERMANENTLY);
+        }
         if (rows == 0) {
             loge("No rows were deleted from raw table!");
         } else if (DBG) {
@@ -1573,9 +1591,12 @@ public abstract class InboundSmsHandler extends StateMachine {
 
         Cursor cursor = null;
         try {
-            // Check for duplicate message segments
-            cursor = mResolver.query(sRawUri, PDU_DELETED_FLAG_PROJECTION, exactMatchQuery.first,
-                    exactMatchQuery.second, null);
+            // Check for duplicate message segments. The index rules out most segments, which are
+            // not duplicates, without a query.
+            if (mReassemblyIndex.mayContainExactMatch(tracker)) {
+                cursor = mResolver.query(sRawUri, PDU_DELETED_FLAG_PROJECTION,
+                        exactMatchQuery.first, exactMatchQuery.second, null);
+            }
 
             // moveToNext() returns false if no duplicates were found
             if (cursor != null && cursor.moveToNext()) {
@@ -1615,7 +1636,7 @@ public abstract class InboundSmsHandler extends StateMachine {
         // The code above does an exact match. Multi-part message segments need an additional check
         // on top of that: if there is a message segment that conflicts this new one (may not be an
         // exact match), replace the old message segment with this one.
-        if (tracker.getMessageCount() > 1) {
+        if (tracker.getMessageCount() > 1 && mReassemblyIndex.mayContainSegment(tracker)) {
             Pair<String, String[]> inexactMatchQuery = tracker.getInexactMatchDupDetectQuery();
             cursor = null;
             try {
@@ -1692,7 +1713,17 @@ public abstract class InboundSmsHandler extends StateMachine {
             log("addTrackerToRawTable: adding content values to raw table: " + values.toString(),
                     tracker.getMessageId());
         }
-        Uri newUri = mResolver.insert(sRawUri, values);
+        Uri newUri = null;
+        SmsReassemblyIndex.onRawTableWriteStarted();
+        try {
+            newUri = mResolver.insert(sRawUri, values);
+        } finally {
+            if (newUri != null) {
+                mReassemblyIndex.onRowInserted(tracker);
+            } else {
+                SmsReassemblyIndex.onRawTableWriteFinished();
+            }
+        }
         if (DBG) log("addTrackerToRawTable: URI of new row: " + newUri, tracker.getMessageId());
 
         try {
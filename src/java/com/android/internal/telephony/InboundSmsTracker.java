@@ -354,6 +354,10 @@ public class InboundSmsTracker {
         return mIsClass0;
     }
 
+    public boolean is3gpp2WapPdu() {
+        return mIs3gpp2WapPdu;
+    }
+
     public int getSubId() {
         return mSubId;
     }
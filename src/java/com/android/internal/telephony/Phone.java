@@ -4173,6 +4173,9 @@ public abstract class Phone extends Handler implements PhoneInternalInterface {
 
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     public void dispose() {
+        if (mLinkBandwidthEstimator != null) {
+            mLinkBandwidthEstimator.dispose();
+        }
     }
 
     /**
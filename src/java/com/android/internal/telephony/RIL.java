@@ -100,6 +100,7 @@ import com.android.internal.telephony.flags.FeatureFlags;
 import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
 import com.android.internal.telephony.imsphone.ImsCallInfo;
 import com.android.internal.telephony.metrics.ModemRestartStats;
+import com.android.internal.telephony.metrics.RilLatencyStats;
 import com.android.internal.telephony.metrics.TelephonyMetrics;
 import com.android.internal.telephony.nano.TelephonyProto.SmsSession;
 import com.android.internal.telephony.uicc.IccCardApplicationStatus.PersoSubState;
@@ -121,6 +122,7 @@ import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -147,6 +149,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     private static final int DEFAULT_BLOCKING_MESSAGE_RESPONSE_TIMEOUT_MS = 2000;
 
+    // Requests outstanding for longer than this are flagged in dumpsys as possibly leaked
+    private static final long REQUEST_LEAK_THRESHOLD_MS = TimeUnit.MINUTES.toMillis(5);
+
     // Variables used to differentiate ack messages from request while calling clearWakeLock()
     public static final int INVALID_WAKELOCK = -1;
     public static final int FOR_WAKELOCK = 0;
@@ -205,9 +210,12 @@ public class RIL extends BaseCommands implements CommandsInterface {
     volatile int mWlSequenceNum = 0;
     volatile int mAckWlSequenceNum = 0;
 
-    @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
-    SparseArray<RILRequest> mRequestList = new SparseArray<>();
+    // This used to be a SparseArray<RILRequest> greylisted as @UnsupportedAppUsage for apps
+    // targeting R or lower (b/170729553). Reflective access to it from such apps no longer works.
+    final RilRequestTable mRequestList = new RilRequestTable();
     static SparseArray<TelephonyHistogram> sRilTimeHistograms = new SparseArray<>();
+    // Shared by all RIL instances so the statistics survive radio restarts
+    private final RilLatencyStats mLatencyStats = RilLatencyStats.getInstance();
 
     Object[] mLastNITZTimeInfo;
 
@@ -303,6 +311,15 @@ public class RIL extends BaseCommands implements CommandsInterface {
             Map.entry(PackageManager.FEATURE_TELEPHONY_IMS, HAL_SERVICE_IMS)
     );
 
+    /**
+     * @return Per HAL service and per request latency, queue depth and timeout statistics for all
+     * RIL instances.
+     */
+    @NonNull
+    public static RilLatencyStats getRilLatencyStats() {
+        return RilLatencyStats.getInstance();
+    }
+
     public static List<TelephonyHistogram> getTelephonyRILTimingHistograms() {
         List<TelephonyHistogram> list;
         synchronized (sRilTimeHistograms) {
@@ -337,19 +354,18 @@ public class RIL extends BaseCommands implements CommandsInterface {
                     // Note: Keep mRequestList so that delayed response
                     // can still be handled when response finally comes.
 
-                    synchronized (mRequestList) {
-                        if (msg.arg1 == mWlSequenceNum && clearWakeLock(FOR_WAKELOCK)) {
-                            if (mRadioBugDetector != null) {
-                                mRadioBugDetector.processWakelockTimeout();
-                            }
-                            if (RILJ_LOGD) {
-                                int count = mRequestList.size();
-                                riljLog("WAKE_LOCK_TIMEOUT mRequestList=" + count);
-                                for (int i = 0; i < count; i++) {
-                                    rr = mRequestList.valueAt(i);
-                                    riljLog(i + ": [" + rr.mSerial + "] "
-                                            + RILUtils.requestToString(rr.mRequest));
-                                }
+                    if (msg.arg1 == mWlSequenceNum && clearWakeLock(FOR_WAKELOCK)) {
+                        if (mRadioBugDetector != null) {
+                            mRadioBugDetector.processWakelockTimeout();
+                        }
+                        if (RILJ_LOGD) {
+                            List<RILRequest> requests = mRequestList.snapshot();
+                            int count = requests.size();
+                            riljLog("WAKE_LOCK_TIMEOUT mRequestList=" + count);
+                            for (int i = 0; i < count; i++) {
+                                rr = requests.get(i);
+                                riljLog(i + ": [" + rr.mSerial + "] "
+                                        + RILUtils.requestToString(rr.mRequest));
                             }
                         }
                     }
@@ -370,6 +386,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                     if (rr == null) {
                         break;
                     }
+                    mLatencyStats.onTimeout(rr.mService, rr.mRequest);
 
                     // Build a response if expected
                     if (rr.mResult != null) {
@@ -1348,10 +1365,8 @@ public class RIL extends BaseCommands implements CommandsInterface {
         Trace.asyncTraceForTrackBegin(
                 Trace.TRACE_TAG_NETWORK, "RIL", rr.mSerial + "> "
                 + RILUtils.requestToString(rr.mRequest), rr.mSerial);
-        synchronized (mRequestList) {
-            rr.mStartTimeMs = SystemClock.elapsedRealtime();
-            mRequestList.append(rr.mSerial, rr);
-        }
+        rr.mStartTimeMs = SystemClock.elapsedRealtime();
+        mRequestList.put(rr);
     }
 
     protected RILRequest obtainRequest(int request, Message result, WorkSource workSource) {
@@ -1382,6 +1397,8 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     private void radioServiceInvokeHelper(int service, RILRequest rr, String methodName,
             FunctionalUtils.ThrowingRunnable helper) {
+        rr.mService = service;
+        mLatencyStats.onRequestSent(service, rr.mRequest, mRequestList.size());
         try {
             helper.runOrThrow();
         } catch (RuntimeException e) {
@@ -5397,9 +5414,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     void processRequestAck(int serial) {
         RILRequest rr;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-        }
+        rr = mRequestList.get(serial);
         if (rr == null) {
             riljLogw("processRequestAck: Unexpected solicited ack response! serial: " + serial);
         } else {
@@ -5455,9 +5470,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr;
 
         if (type == RadioResponseType.SOLICITED_ACK) {
-            synchronized (mRequestList) {
-                rr = mRequestList.get(serial);
-            }
+            rr = mRequestList.get(serial);
             if (rr == null) {
                 riljLogw("Unexpected solicited ack response! sn: " + serial);
             } else {
@@ -5772,7 +5785,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     /** Returns the Ril request list. */
     @VisibleForTesting
-    public SparseArray<RILRequest> getRilRequestList() {
+    public RilRequestTable getRilRequestList() {
         return mRequestList;
     }
 
@@ -5839,38 +5852,30 @@ public class RIL extends BaseCommands implements CommandsInterface {
      */
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private void clearRequestList(int error, boolean loggable) {
-        RILRequest rr;
-        synchronized (mRequestList) {
-            int count = mRequestList.size();
+        List<RILRequest> requests = mRequestList.snapshot();
+        int count = requests.size();
+        if (RILJ_LOGD && loggable) {
+            riljLog("clearRequestList " + " mWakeLockCount=" + mWakeLockCount
+                    + " mRequestList=" + count);
+        }
+
+        for (int i = 0; i < count; i++) {
+            // A response may have completed the request since the snapshot was taken; only the
+            // caller that removes it from the table gets to finish it.
+            RILRequest rr = mRequestList.remove(requests.get(i).mSerial);
+            if (rr == null) continue;
             if (RILJ_LOGD && loggable) {
-                riljLog("clearRequestList " + " mWakeLockCount=" + mWakeLockCount
-                        + " mRequestList=" + count);
+                riljLog(i + ": [" + rr.mSerial + "] " + RILUtils.requestToString(rr.mRequest));
             }
-
-            for (int i = 0; i < count; i++) {
-                rr = mRequestList.valueAt(i);
-                if (RILJ_LOGD && loggable) {
-                    riljLog(i + ": [" + rr.mSerial + "] " + RILUtils.requestToString(rr.mRequest));
-                }
-                rr.onError(error, null);
-                decrementWakeLock(rr);
-                rr.release();
-            }
-            mRequestList.clear();
+            rr.onError(error, null);
+            decrementWakeLock(rr);
+            rr.release();
         }
     }
 
     @UnsupportedAppUsage
     private RILRequest findAndRemoveRequestFromList(int serial) {
-        RILRequest rr;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-            if (rr != null) {
-                mRequestList.remove(serial);
-            }
-        }
-
-        return rr;
+        return mRequestList.remove(serial);
     }
 
     private void addToRilHistogram(RILRequest rr) {
@@ -5887,6 +5892,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
             }
             entry.addTimeTaken(totalTime);
         }
+        mLatencyStats.onResponse(rr.mService, rr.mRequest, totalTime);
     }
 
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
@@ -6202,17 +6208,20 @@ public class RIL extends BaseCommands implements CommandsInterface {
         pw.println(" " + mServiceProxies.get(HAL_SERVICE_IMS));
         pw.println(" mWakeLock=" + mWakeLock);
         pw.println(" mWakeLockTimeout=" + mWakeLockTimeout);
-        synchronized (mRequestList) {
-            synchronized (mWakeLock) {
-                pw.println(" mWakeLockCount=" + mWakeLockCount);
-            }
-            int count = mRequestList.size();
-            pw.println(" mRequestList count=" + count);
-            for (int i = 0; i < count; i++) {
-                RILRequest rr = mRequestList.valueAt(i);
-                pw.println("  [" + rr.mSerial + "] " + RILUtils.requestToString(rr.mRequest));
-            }
-        }
+        synchronized (mWakeLock) {
+            pw.println(" mWakeLockCount=" + mWakeLockCount);
+        }
+        List<RILRequest> requests = mRequestList.snapshot();
+        pw.println(" mRequestList count=" + requests.size() + " " + mRequestList);
+        long now = SystemClock.elapsedRealtime();
+        for (RILRequest rr : requests) {
+            long ageMs = now - rr.mStartTimeMs;
+            pw.println("  [" + rr.mSerial + "] " + RILUtils.requestToString(rr.mRequest)
+                    + " age=" + ageMs + "ms"
+                    + (ageMs > REQUEST_LEAK_THRESHOLD_MS ? " (possibly leaked)" : ""));
+        }
+        RILRequest.dumpPoolStats(pw);
+        mLatencyStats.dump(pw);
         pw.println(" mLastNITZTimeInfo=" + Arrays.toString(mLastNITZTimeInfo));
         pw.println(" mLastRadioPowerResult=" + mLastRadioPowerResult);
         pw.println(" mTestingEmergencyCall=" + mTestingEmergencyCall.get());
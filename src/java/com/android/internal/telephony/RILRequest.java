@@ -22,9 +22,11 @@ import android.os.Message;
 import android.os.SystemClock;
 import android.os.WorkSource;
 import android.os.WorkSource.WorkChain;
+import android.telephony.TelephonyManager;
 
 import com.android.telephony.Rlog;
 
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -42,7 +44,14 @@ public class RILRequest {
     private static Object sPoolSync = new Object();
     private static RILRequest sPool = null;
     private static int sPoolSize = 0;
-    private static final int MAX_POOL_SIZE = 4;
+    private static final int MAX_POOL_SIZE = 32;
+
+    // Pool statistics, guarded by sPoolSync
+    private static long sObtainCount = 0;
+    private static long sAllocationCount = 0;
+    private static long sReleaseCount = 0;
+    private static long sDiscardCount = 0;
+    private static long sDoubleReleaseCount = 0;
 
     //***** Instance Variables
     @UnsupportedAppUsage
@@ -57,8 +66,12 @@ public class RILRequest {
     String mClientId;
     // time in ms when RIL request was made
     long mStartTimeMs;
+    // HAL_SERVICE_* the request was sent to
+    int mService;
     /** Argument list for radio HAL fallback method call */
     Object[] mArguments;
+    // true between obtain() and release(), guarded by sPoolSync
+    private boolean mInUse;
 
     public int getSerial() {
         return mSerial;
@@ -81,19 +94,24 @@ public class RILRequest {
      */
     @UnsupportedAppUsage
     private static RILRequest obtain(int request, Message result) {
-        RILRequest rr = null;
+        if (result != null && result.getTarget() == null) {
+            throw new NullPointerException("Message target must not be null");
+        }
+
+        RILRequest rr;
 
         synchronized (sPoolSync) {
+            sObtainCount++;
             if (sPool != null) {
                 rr = sPool;
                 sPool = rr.mNext;
                 rr.mNext = null;
                 sPoolSize--;
+            } else {
+                rr = new RILRequest();
+                sAllocationCount++;
             }
-        }
-
-        if (rr == null) {
-            rr = new RILRequest();
+            rr.mInUse = true;
         }
 
         // Increment serial number. Wrap to 0 when reaching Integer.MAX_VALUE.
@@ -104,10 +122,10 @@ public class RILRequest {
 
         rr.mWakeLockType = RIL.INVALID_WAKELOCK;
         rr.mWorkSource = null;
+        rr.mClientId = null;
+        rr.mArguments = null;
+        rr.mService = TelephonyManager.HAL_SERVICE_RADIO;
         rr.mStartTimeMs = SystemClock.elapsedRealtime();
-        if (result != null && result.getTarget() == null) {
-            throw new NullPointerException("Message target must not be null");
-        }
 
         return rr;
     }
@@ -184,23 +202,63 @@ public class RILRequest {
     @UnsupportedAppUsage
     void release() {
         synchronized (sPoolSync) {
+            if (!mInUse) {
+                // Putting the same instance in the pool twice would hand it out to two callers.
+                sDoubleReleaseCount++;
+                Rlog.e(LOG_TAG, "RILRequest released twice: " + serialString());
+                return;
+            }
+            mInUse = false;
+            sReleaseCount++;
+            if (mWakeLockType != RIL.INVALID_WAKELOCK) {
+                //This is OK for some wakelock types and not others
+                if (mWakeLockType == RIL.FOR_WAKELOCK) {
+                    Rlog.e(LOG_TAG, "RILRequest releasing with held wake lock: "
+                            + serialString());
+                }
+            }
+            // Drop references to caller objects so pooled requests do not keep them alive.
+            mResult = null;
+            mWorkSource = null;
+            mClientId = null;
+            mArguments = null;
             if (sPoolSize < MAX_POOL_SIZE) {
                 mNext = sPool;
                 sPool = this;
                 sPoolSize++;
-                mResult = null;
-                if (mWakeLockType != RIL.INVALID_WAKELOCK) {
-                    //This is OK for some wakelock types and not others
-                    if (mWakeLockType == RIL.FOR_WAKELOCK) {
-                        Rlog.e(LOG_TAG, "RILRequest releasing with held wake lock: "
-                                + serialString());
-                    }
-                }
-                mArguments = null;
+            } else {
+                sDiscardCount++;
             }
         }
     }
 
+    /**
+     * @return The number of requests that have been obtained but not yet released. A value that
+     * keeps growing while the RIL request list stays small indicates a request leak.
+     */
+    static long getOutstandingCount() {
+        synchronized (sPoolSync) {
+            return sObtainCount - sReleaseCount;
+        }
+    }
+
+    /**
+     * Dump the pool statistics.
+     *
+     * @param pw Print writer.
+     */
+    static void dumpPoolStats(PrintWriter pw) {
+        synchronized (sPoolSync) {
+            pw.println(" RILRequest pool: size=" + sPoolSize + "/" + MAX_POOL_SIZE
+                    + " obtained=" + sObtainCount
+                    + " allocated=" + sAllocationCount
+                    + " released=" + sReleaseCount
+                    + " discarded=" + sDiscardCount
+                    + " outstanding=" + (sObtainCount - sReleaseCount)
+                    + " doubleReleased=" + sDoubleReleaseCount);
+        }
+    }
+
     private RILRequest() {
     }
 
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of outstanding {@link RILRequest}s keyed by serial number.
+ *
+ * Serial numbers are handed out sequentially by {@link RILRequest}, so the low bits of the serial
+ * index directly into a preallocated ring of slots. Insert and remove are single CAS operations
+ * and never block. A slot that is still occupied when its index comes around again (more than
+ * {@link #getCapacity()} requests outstanding at once) spills into a concurrent overflow map, so
+ * correctness never depends on the ring being large enough.
+ *
+ * {@link #snapshot()} walks the ring without locking and is intended for wakelock timeout sweeps,
+ * error fan-out and dumps, where a weakly consistent view is sufficient.
+ *
+ * {@hide}
+ */
+public class RilRequestTable {
+    /** Default number of slots. Must be a power of two. */
+    @VisibleForTesting
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final Comparator<RILRequest> SERIAL_ORDER =
+            Comparator.comparingInt(rr -> rr.mSerial);
+
+    private final AtomicReferenceArray<RILRequest> mSlots;
+    private final int mMask;
+    private final ConcurrentHashMap<Integer, RILRequest> mOverflow = new ConcurrentHashMap<>();
+    private final AtomicInteger mSize = new AtomicInteger();
+
+    public RilRequestTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Number of preallocated slots. Must be a positive power of two.
+     */
+    public RilRequestTable(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mSlots = new AtomicReferenceArray<>(capacity);
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Add a request to the table. The request's serial must not already be present.
+     *
+     * @param rr The request to add.
+     */
+    public void put(@NonNull RILRequest rr) {
+        if (!mSlots.compareAndSet(rr.mSerial & mMask, null, rr)) {
+            mOverflow.put(rr.mSerial, rr);
+        }
+        mSize.incrementAndGet();
+    }
+
+    /**
+     * @param serial The serial of the request.
+     * @return The outstanding request with the given serial, or {@code null} if none.
+     */
+    @Nullable
+    public RILRequest get(int serial) {
+        RILRequest rr = mSlots.get(serial & mMask);
+        if (rr != null && rr.mSerial == serial) {
+            return rr;
+        }
+        return mOverflow.isEmpty() ? null : mOverflow.get(serial);
+    }
+
+    /**
+     * Remove the request with the given serial. At most one caller racing on the same serial
+     * observes a non-null result, so a request is completed exactly once.
+     *
+     * @param serial The serial of the request.
+     * @return The removed request, or {@code null} if it was not in the table.
+     */
+    @Nullable
+    public RILRequest remove(int serial) {
+        final int index = serial & mMask;
+        RILRequest rr = mSlots.get(index);
+        while (rr != null && rr.mSerial == serial) {
+            if (mSlots.compareAndSet(index, rr, null)) {
+                mSize.decrementAndGet();
+                return rr;
+            }
+            rr = mSlots.get(index);
+        }
+        if (mOverflow.isEmpty()) return null;
+        rr = mOverflow.remove(serial);
+        if (rr != null) {
+            mSize.decrementAndGet();
+        }
+        return rr;
+    }
+
+    /**
+     * @return A point-in-time copy of the outstanding requests ordered by serial. Requests added
+     * or removed concurrently may or may not be included.
+     */
+    @NonNull
+    public List<RILRequest> snapshot() {
+        List<RILRequest> list = new ArrayList<>(Math.max(mSize.get(), 0));
+        for (int i = 0; i < mSlots.length(); i++) {
+            RILRequest rr = mSlots.get(i);
+            if (rr != null) {
+                list.add(rr);
+            }
+        }
+        list.addAll(mOverflow.values());
+        list.sort(SERIAL_ORDER);
+        return list;
+    }
+
+    /** @return The number of outstanding requests. */
+    public int size() {
+        return mSize.get();
+    }
+
+    /** @return The number of preallocated slots. */
+    public int getCapacity() {
+        return mSlots.length();
+    }
+
+    /** @return The number of requests that did not fit in their slot. */
+    @VisibleForTesting
+    public int getOverflowCount() {
+        return mOverflow.size();
+    }
+
+    @Override
+    public String toString() {
+        return "RilRequestTable{size=" + size() + ", capacity=" + getCapacity()
+                + ", overflow=" + getOverflowCount() + "}";
+    }
+}
@@ -55,6 +55,7 @@ import android.os.Message;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.provider.Telephony;
@@ -92,6 +93,7 @@ import com.android.internal.telephony.analytics.TelephonyAnalytics.SmsMmsAnalyti
 import com.android.internal.telephony.SmsUsageMonitor.SmsAuthorizationCallback;
 import com.android.internal.telephony.cdma.sms.UserData;
 import com.android.internal.telephony.flags.Flags;
+import com.android.internal.telephony.metrics.LatencyHistogram;
 import com.android.internal.telephony.subscription.SubscriptionInfoInternal;
 import com.android.internal.telephony.subscription.SubscriptionManagerService;
 import com.android.internal.telephony.uicc.IccRecords;
@@ -122,6 +124,13 @@ public abstract class SMSDispatcher extends Handler {
     protected static final String MAP_KEY_DATA = "data";
     protected static final String MAP_KEY_TEXT = "text";
 
+    /**
+     * System property holding the maximum number of parts of a multi-part SMS in flight at once
+     * on the CS transport, or 0 to submit all parts at once.
+     */
+    private static final String PROPERTY_SMS_MAX_PARTS_IN_FLIGHT =
+            "persist.radio.sms_max_parts_in_flight";
+
     private static final int PREMIUM_RULE_USE_SIM = 1;
     private static final int PREMIUM_RULE_USE_NETWORK = 2;
     private static final int PREMIUM_RULE_USE_BOTH = 3;
@@ -237,6 +246,15 @@ public abstract class SMSDispatcher extends Handler {
     /** Used for storing last TP - Message Reference used*/
     private int mMessageRef = -1;
 
+    /**
+     * Override of the maximum number of parts of a multi-part SMS in flight at once, or -1 to use
+     * {@link #getMaxPartsInFlightProperty()}.
+     */
+    private int mMaxPartsInFlightOverride = -1;
+
+    /** Time from submitting a part to the transport to its final result, in milliseconds. */
+    private final LatencyHistogram mPartSendLatency = new LatencyHistogram();
+
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     protected static int getNextConcatenatedRef() {
         sConcatenatedRef += 1;
@@ -351,6 +369,40 @@ public abstract class SMSDispatcher extends Handler {
         return SEND_RETRY_DELAY;
     }
 
+    /**
+     * Gets the maximum number of parts of a multi-part SMS that are submitted to the transport and
+     * not yet sent or failed
+     *
+     * @return the maximum number of parts in flight, or 0 to submit all parts at once
+     */
+    protected int getMaxPartsInFlight() {
+        if (mMaxPartsInFlightOverride >= 0) {
+            return mMaxPartsInFlightOverride;
+        }
+        return Math.max(SystemProperties.getInt(getMaxPartsInFlightProperty(), 0), 0);
+    }
+
+    /**
+     * Gets the system property holding the maximum number of parts of a multi-part SMS in flight
+     * on the transport of this dispatcher
+     *
+     * @return the name of the system property
+     */
+    protected String getMaxPartsInFlightProperty() {
+        return PROPERTY_SMS_MAX_PARTS_IN_FLIGHT;
+    }
+
+    /**
+     * Overrides the maximum number of parts of a multi-part SMS in flight
+     *
+     * @param maxPartsInFlight the maximum number of parts in flight, 0 to submit all parts at
+     * once, or -1 to use the system property
+     */
+    @VisibleForTesting
+    public void setMaxPartsInFlightOverride(int maxPartsInFlight) {
+        mMaxPartsInFlightOverride = maxPartsInFlight;
+    }
+
     /**
      * Called when a status report is received. This should correspond to a previously successful
      * SEND.
@@ -394,9 +446,7 @@ public abstract class SMSDispatcher extends Handler {
 
             case EVENT_SEND_CONFIRMED_SMS: {
                 SmsTracker[] trackers = (SmsTracker[]) msg.obj;
-                for (SmsTracker tracker : trackers) {
-                    sendSms(tracker);
-                }
+                sendSmsParts(trackers);
                 mPendingTrackerCount--;
                 break;
             }
@@ -2121,8 +2171,8 @@ public abstract class SMSDispatcher extends Handler {
                 return;
             }
 
-            for (SmsTracker tracker : trackers) {
-                if (mSmsDispatchersController.getUsageMonitor().isSmsAuthorizationEnabled()) {
+            if (mSmsDispatchersController.getUsageMonitor().isSmsAuthorizationEnabled()) {
+                for (SmsTracker tracker : trackers) {
                     final SmsAuthorizationCallback callback = new SmsAuthorizationCallback() {
                         @Override
                         public void onAuthorizationResult(final boolean accepted) {
@@ -2136,9 +2186,9 @@ public abstract class SMSDispatcher extends Handler {
                     };
                    mSmsDispatchersController.getUsageMonitor().authorizeOutgoingSms(tracker.mAppInfo,
                             tracker.mDestAddress,tracker.mFullMessageText, callback, this);
-                } else {
-                    sendSms(tracker);
                 }
+            } else {
+                sendSmsParts(trackers);
             }
         }
 
@@ -2402,6 +2452,17 @@ public abstract class SMSDispatcher extends Handler {
     @UnsupportedAppUsage
     protected abstract void sendSms(SmsTracker tracker);
 
+    /**
+     * Send the parts of a single or multi-part message along to the radio in order, with at most
+     * {@link #getMaxPartsInFlight()} parts in flight at once.
+     *
+     * @param trackers holds the parts of the SMS message to send
+     */
+    private void sendSmsParts(SmsTracker[] trackers) {
+        new SmsPartSendWindow(trackers, trackers.length > 1 ? getMaxPartsInFlight() : 1,
+                this::post, this::sendSms, mPartSendLatency).start();
+    }
+
     /**
      * Retry the message along to the radio.
      *
@@ -2493,6 +2554,8 @@ public abstract class SMSDispatcher extends Handler {
         // Reference to states of a multipart message that this part belongs to
         private AtomicInteger mUnsentPartCount;
         private AtomicBoolean mAnyPartFailed;
+        // Window of parts this part is submitted in, notified when this part is done
+        private SmsPartSendWindow mSendWindow;
         // The full message content of a single part message
         // or a multipart message that this part belongs to
         private String mFullMessageText;
@@ -2662,6 +2725,10 @@ public abstract class SMSDispatcher extends Handler {
             return SystemClock.elapsedRealtime() - mTimestamp;
         }
 
+        void setSendWindow(SmsPartSendWindow sendWindow) {
+            mSendWindow = sendWindow;
+        }
+
         /**
          * Returns the flag specifying whether this {@link SmsTracker} is a single part or
          * the last part of multipart message.
@@ -2791,6 +2858,9 @@ public abstract class SMSDispatcher extends Handler {
                 }
             }
             reportAnomaly(error, errorCode);
+            if (mSendWindow != null) {
+                mSendWindow.onPartDone(this);
+            }
         }
 
         private void reportAnomaly(int error, int errorCode) {
@@ -2858,6 +2928,9 @@ public abstract class SMSDispatcher extends Handler {
                     Rlog.e(TAG, "Failed to send result");
                 }
             }
+            if (mSendWindow != null) {
+                mSendWindow.onPartDone(this);
+            }
         }
     }
 
@@ -3145,6 +3218,8 @@ public abstract class SMSDispatcher extends Handler {
         mSmsOutgoingErrorCodes.dump(fd, pw, args);
         pw.decreaseIndent();
 
+        pw.println("mPartSendLatency: " + mPartSendLatency);
+
         pw.decreaseIndent();
     }
 }
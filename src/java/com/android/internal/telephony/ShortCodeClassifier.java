@@ -0,0 +1,511 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.telephony.SmsManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.telephony.Rlog;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Classifies SMS destination addresses of one country into short code categories, using the
+ * short code, premium, free and standard rate regular expressions of the short code XML.
+ *
+ * The expressions are compiled together into one deterministic automaton over the digits and a
+ * single symbol for any other character, so an address is classified in one pass over its
+ * characters, without backtracking and without allocating. Expressions using syntax the compiler
+ * does not support, or whose automaton would be too large, are matched with
+ * {@link java.util.regex.Pattern} instead.
+ *
+ * This class is immutable and thread safe.
+ */
+public class ShortCodeClassifier {
+    private static final String TAG = "ShortCodeClassifier";
+
+    /** Symbols of the automaton: the ten digits, then any other character. */
+    private static final int SYMBOL_OTHER = 10;
+    private static final int NUM_SYMBOLS = 11;
+    private static final int MASK_DIGITS = (1 << SYMBOL_OTHER) - 1;
+    private static final int MASK_ALL = (1 << NUM_SYMBOLS) - 1;
+
+    /** Above these sizes, the expressions are matched with {@link Pattern}. */
+    @VisibleForTesting
+    public static final int MAX_NFA_STATES = 20000;
+    @VisibleForTesting
+    public static final int MAX_DFA_STATES = 4096;
+
+    private static final int DEAD_STATE = -1;
+
+    /** Categories in the order they are checked, like the original regex matcher. */
+    private static final int[] CATEGORY_PRIORITY = {
+            SmsManager.SMS_CATEGORY_FREE_SHORT_CODE,
+            SmsManager.SMS_CATEGORY_STANDARD_SHORT_CODE,
+            SmsManager.SMS_CATEGORY_PREMIUM_SHORT_CODE,
+            SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE,
+    };
+
+    // Compiled automaton: next state is mTransitions[state * NUM_SYMBOLS + symbol].
+    // null if the patterns are used instead.
+    @Nullable
+    private final int[] mTransitions;
+    @Nullable
+    private final int[] mCategories;
+
+    // Fallback, in the order of CATEGORY_PRIORITY.
+    @Nullable
+    private final Pattern[] mPatterns;
+
+    private ShortCodeClassifier(@NonNull int[] transitions, @NonNull int[] categories) {
+        mTransitions = transitions;
+        mCategories = categories;
+        mPatterns = null;
+    }
+
+    private ShortCodeClassifier(@NonNull Pattern[] patterns) {
+        mTransitions = null;
+        mCategories = null;
+        mPatterns = patterns;
+    }
+
+    /**
+     * Compile the short code expressions of a country. Each expression may be {@code null}.
+     *
+     * @param shortCodeRegex Any short code, possibly premium.
+     * @param premiumShortCodeRegex Premium short codes.
+     * @param freeShortCodeRegex Free short codes.
+     * @param standardShortCodeRegex Standard rate short codes.
+     * @return The classifier.
+     */
+    @NonNull
+    public static ShortCodeClassifier compile(@Nullable String shortCodeRegex,
+            @Nullable String premiumShortCodeRegex, @Nullable String freeShortCodeRegex,
+            @Nullable String standardShortCodeRegex) {
+        String[] regexes = {freeShortCodeRegex, standardShortCodeRegex, premiumShortCodeRegex,
+                shortCodeRegex};
+        try {
+            return compileAutomaton(regexes);
+        } catch (UnsupportedOperationException e) {
+            Rlog.d(TAG, "Using regex matcher: " + e.getMessage());
+        }
+        Pattern[] patterns = new Pattern[regexes.length];
+        for (int i = 0; i < regexes.length; i++) {
+            patterns[i] = regexes[i] != null ? Pattern.compile(regexes[i]) : null;
+        }
+        return new ShortCodeClassifier(patterns);
+    }
+
+    /** @return {@code true} if the expressions were compiled into an automaton. */
+    @VisibleForTesting
+    public boolean isCompiled() {
+        return mTransitions != null;
+    }
+
+    /**
+     * @param phoneNumber The destination address.
+     * @return The {@link SmsManager} short code category of the address.
+     */
+    public int getNumberCategory(@NonNull String phoneNumber) {
+        if (mTransitions == null) {
+            for (int i = 0; i < mPatterns.length; i++) {
+                if (mPatterns[i] != null && mPatterns[i].matcher(phoneNumber).matches()) {
+                    return CATEGORY_PRIORITY[i];
+                }
+            }
+            return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+        }
+        int state = 0;
+        for (int i = 0; i < phoneNumber.length(); i++) {
+            char c = phoneNumber.charAt(i);
+            int symbol = c >= '0' && c <= '9' ? c - '0' : SYMBOL_OTHER;
+            state = mTransitions[state * NUM_SYMBOLS + symbol];
+            if (state == DEAD_STATE) {
+                return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+            }
+        }
+        return mCategories[state];
+    }
+
+    /** NFA state, with an optional symbol transition and any number of empty transitions. */
+    private static final class NfaState {
+        final int mId;
+        int mSymbols;
+        NfaState mNext;
+        final List<NfaState> mEpsilons = new ArrayList<>(2);
+        // Index into CATEGORY_PRIORITY if accepting, or -1
+        int mAccept = -1;
+
+        NfaState(int id) {
+            mId = id;
+        }
+    }
+
+    /** Regular expression syntax tree. */
+    private abstract static class Node {
+    }
+
+    private static final class SymbolsNode extends Node {
+        final int mSymbols;
+
+        SymbolsNode(int symbols) {
+            mSymbols = symbols;
+        }
+    }
+
+    private static final class ListNode extends Node {
+        final boolean mAlternation;
+        final List<Node> mChildren = new ArrayList<>();
+
+        ListNode(boolean alternation) {
+            mAlternation = alternation;
+        }
+    }
+
+    private static final class RepeatNode extends Node {
+        final Node mChild;
+        final int mMin;
+        // -1 if unbounded
+        final int mMax;
+
+        RepeatNode(Node child, int min, int max) {
+            mChild = child;
+            mMin = min;
+            mMax = max;
+        }
+    }
+
+    private static ShortCodeClassifier compileAutomaton(String[] regexes) {
+        List<NfaState> nfa = new ArrayList<>();
+        NfaState start = newState(nfa);
+        for (int i = 0; i < regexes.length; i++) {
+            if (regexes[i] == null) continue;
+            Node node = new Parser(regexes[i]).parse();
+            NfaState[] fragment = build(node, nfa);
+            start.mEpsilons.add(fragment[0]);
+            fragment[1].mAccept = i;
+        }
+
+        // Subset construction
+        Map<BitSet, Integer> dfaIds = new HashMap<>();
+        List<BitSet> dfaStates = new ArrayList<>();
+        BitSet initial = new BitSet(nfa.size());
+        addClosure(start, initial);
+        dfaIds.put(initial, 0);
+        dfaStates.add(initial);
+        int[] transitions = new int[16 * NUM_SYMBOLS];
+        for (int d = 0; d < dfaStates.size(); d++) {
+            BitSet current = dfaStates.get(d);
+            for (int symbol = 0; symbol < NUM_SYMBOLS; symbol++) {
+                BitSet next = new BitSet(nfa.size());
+                for (int n = current.nextSetBit(0); n >= 0; n = current.nextSetBit(n + 1)) {
+                    NfaState state = nfa.get(n);
+                    if ((state.mSymbols & (1 << symbol)) != 0) {
+                        addClosure(state.mNext, next);
+                    }
+                }
+                int nextId = DEAD_STATE;
+                if (!next.isEmpty()) {
+                    Integer id = dfaIds.get(next);
+                    if (id == null) {
+                        if (dfaStates.size() == MAX_DFA_STATES) {
+                            throw new UnsupportedOperationException("too many DFA states");
+                        }
+                        id = dfaStates.size();
+                        dfaIds.put(next, id);
+                        dfaStates.add(next);
+                    }
+                    nextId = id;
+                }
+                int index = d * NUM_SYMBOLS + symbol;
+                if (index >= transitions.length) {
+                    transitions = Arrays.copyOf(transitions, transitions.length * 2);
+                }
+                transitions[index] = nextId;
+            }
+        }
+
+        int[] categories = new int[dfaStates.size()];
+        for (int d = 0; d < dfaStates.size(); d++) {
+            int best = CATEGORY_PRIORITY.length;
+            BitSet states = dfaStates.get(d);
+            for (int n = states.nextSetBit(0); n >= 0; n = states.nextSetBit(n + 1)) {
+                int accept = nfa.get(n).mAccept;
+                if (accept >= 0 && accept < best) best = accept;
+            }
+            categories[d] = best < CATEGORY_PRIORITY.length ? CATEGORY_PRIORITY[best]
+                    : SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+        }
+        return new ShortCodeClassifier(
+                Arrays.copyOf(transitions, dfaStates.size() * NUM_SYMBOLS), categories);
+    }
+
+    private static void addClosure(NfaState state, BitSet states) {
+        Deque<NfaState> pending = new ArrayDeque<>();
+        pending.push(state);
+        while (!pending.isEmpty()) {
+            NfaState current = pending.pop();
+            if (states.get(current.mId)) continue;
+            states.set(current.mId);
+            for (NfaState epsilon : current.mEpsilons) {
+                pending.push(epsilon);
+            }
+        }
+    }
+
+    private static NfaState newState(List<NfaState> nfa) {
+        if (nfa.size() == MAX_NFA_STATES) {
+            throw new UnsupportedOperationException("too many NFA states");
+        }
+        NfaState state = new NfaState(nfa.size());
+        nfa.add(state);
+        return state;
+    }
+
+    /** @return The start and end state of the fragment matching the node. */
+    private static NfaState[] build(Node node, List<NfaState> nfa) {
+        NfaState start = newState(nfa);
+        NfaState end = newState(nfa);
+        if (node instanceof SymbolsNode symbols) {
+            start.mSymbols = symbols.mSymbols;
+            start.mNext = end;
+        } else if (node instanceof ListNode list) {
+            if (list.mAlternation) {
+                for (Node child : list.mChildren) {
+                    NfaState[] fragment = build(child, nfa);
+                    start.mEpsilons.add(fragment[0]);
+                    fragment[1].mEpsilons.add(end);
+                }
+            } else {
+                NfaState last = start;
+                for (Node child : list.mChildren) {
+                    NfaState[] fragment = build(child, nfa);
+                    last.mEpsilons.add(fragment[0]);
+                    last = fragment[1];
+                }
+                last.mEpsilons.add(end);
+            }
+        } else {
+            RepeatNode repeat = (RepeatNode) node;
+            NfaState last = start;
+            for (int i = 0; i < repeat.mMin; i++) {
+                NfaState[] fragment = build(repeat.mChild, nfa);
+                last.mEpsilons.add(fragment[0]);
+                last = fragment[1];
+            }
+            if (repeat.mMax < 0) {
+                NfaState[] fragment = build(repeat.mChild, nfa);
+                last.mEpsilons.add(fragment[0]);
+                fragment[1].mEpsilons.add(fragment[0]);
+                fragment[1].mEpsilons.add(end);
+            } else {
+                for (int i = repeat.mMin; i < repeat.mMax; i++) {
+                    NfaState[] fragment = build(repeat.mChild, nfa);
+                    last.mEpsilons.add(fragment[0]);
+                    // Each optional copy may be skipped
+                    last.mEpsilons.add(end);
+                    last = fragment[1];
+                }
+            }
+            last.mEpsilons.add(end);
+        }
+        return new NfaState[] {start, end};
+    }
+
+    /**
+     * Parser for the subset of {@link Pattern} syntax used by the short code XML: digits, ".",
+     * "\d", "\D", character classes of digits, groups, alternation and greedy or reluctant
+     * quantifiers. Anything else throws {@link UnsupportedOperationException}.
+     */
+    private static final class Parser {
+        private final String mRegex;
+        private int mPos;
+
+        Parser(String regex) {
+            mRegex = regex;
+        }
+
+        Node parse() {
+            Node node = parseAlternation();
+            if (mPos != mRegex.length()) {
+                throw unsupported();
+            }
+            return node;
+        }
+
+        private UnsupportedOperationException unsupported() {
+            return new UnsupportedOperationException("unsupported syntax at " + mPos + " in "
+                    + mRegex);
+        }
+
+        private boolean atEnd() {
+            return mPos >= mRegex.length();
+        }
+
+        private char peek() {
+            return mRegex.charAt(mPos);
+        }
+
+        private Node parseAlternation() {
+            ListNode alternation = new ListNode(true);
+            alternation.mChildren.add(parseConcatenation());
+            while (!atEnd() && peek() == '|') {
+                mPos++;
+                alternation.mChildren.add(parseConcatenation());
+            }
+            return alternation.mChildren.size() == 1 ? alternation.mChildren.get(0)
+                    : alternation;
+        }
+
+        private Node parseConcatenation() {
+            ListNode concatenation = new ListNode(false);
+            while (!atEnd() && peek() != '|' && peek() != ')') {
+                concatenation.mChildren.add(parseQuantified(parseAtom()));
+            }
+            return concatenation;
+        }
+
+        private Node parseAtom() {
+            char c = mRegex.charAt(mPos++);
+            if (c >= '0' && c <= '9') {
+                return new SymbolsNode(1 << (c - '0'));
+            }
+            switch (c) {
+                case '.':
+                    return new SymbolsNode(MASK_ALL);
+                case '\\':
+                    return new SymbolsNode(parseEscape());
+                case '[':
+                    return new SymbolsNode(parseClass());
+                case '(':
+                    if (!atEnd() && peek() == '?') {
+                        if (!mRegex.startsWith("?:", mPos)) throw unsupported();
+                        mPos += 2;
+                    }
+                    Node group = parseAlternation();
+                    if (atEnd() || peek() != ')') throw unsupported();
+                    mPos++;
+                    return group;
+                default:
+                    // Other literals, anchors and quantifiers without an atom
+                    mPos--;
+                    throw unsupported();
+            }
+        }
+
+        private int parseEscape() {
+            if (atEnd()) throw unsupported();
+            char c = mRegex.charAt(mPos++);
+            if (c == 'd') return MASK_DIGITS;
+            if (c == 'D') return 1 << SYMBOL_OTHER;
+            mPos--;
+            throw unsupported();
+        }
+
+        private int parseClass() {
+            boolean negated = !atEnd() && peek() == '^';
+            if (negated) mPos++;
+            int symbols = 0;
+            boolean first = true;
+            while (true) {
+                if (atEnd()) throw unsupported();
+                char c = mRegex.charAt(mPos++);
+                if (c == ']' && !first) break;
+                first = false;
+                if (c == '\\') {
+                    symbols |= parseEscape();
+                } else if (c >= '0' && c <= '9') {
+                    char to = c;
+                    if (mPos + 1 < mRegex.length() && peek() == '-'
+                            && mRegex.charAt(mPos + 1) != ']') {
+                        to = mRegex.charAt(mPos + 1);
+                        if (to < c || to > '9') throw unsupported();
+                        mPos += 2;
+                    }
+                    for (char d = c; d <= to; d++) {
+                        symbols |= 1 << (d - '0');
+                    }
+                } else {
+                    mPos--;
+                    throw unsupported();
+                }
+            }
+            return negated ? ~symbols & MASK_ALL : symbols;
+        }
+
+        private Node parseQuantified(Node atom) {
+            while (!atEnd()) {
+                char c = peek();
+                int min;
+                int max;
+                if (c == '?') {
+                    min = 0;
+                    max = 1;
+                    mPos++;
+                } else if (c == '*') {
+                    min = 0;
+                    max = -1;
+                    mPos++;
+                } else if (c == '+') {
+                    min = 1;
+                    max = -1;
+                    mPos++;
+                } else if (c == '{') {
+                    mPos++;
+                    min = parseNumber();
+                    max = min;
+                    if (!atEnd() && peek() == ',') {
+                        mPos++;
+                        max = !atEnd() && peek() == '}' ? -1 : parseNumber();
+                    }
+                    if (atEnd() || peek() != '}' || (max >= 0 && max < min)) throw unsupported();
+                    mPos++;
+                } else {
+                    return atom;
+                }
+                if (!atEnd() && peek() == '?') {
+                    // Reluctant quantifiers match the same strings as a whole
+                    mPos++;
+                } else if (!atEnd() && peek() == '+') {
+                    // Possessive quantifiers don't
+                    throw unsupported();
+                }
+                atom = new RepeatNode(atom, min, max);
+            }
+            return atom;
+        }
+
+        private int parseNumber() {
+            int start = mPos;
+            while (!atEnd() && peek() >= '0' && peek() <= '9' && mPos - start < 4) {
+                mPos++;
+            }
+            if (mPos == start) throw unsupported();
+            return Integer.parseInt(mRegex.substring(start, mPos));
+        }
+    }
+}
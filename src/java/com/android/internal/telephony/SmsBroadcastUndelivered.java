@@ -18,6 +18,8 @@ package com.android.internal.telephony;
 
 import static java.util.Map.entry;
 
+import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.compat.annotation.UnsupportedAppUsage;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
@@ -26,6 +28,8 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.Cursor;
 import android.database.SQLException;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.PersistableBundle;
 import android.os.UserManager;
 import android.telephony.CarrierConfigManager;
@@ -40,8 +44,12 @@ import com.android.internal.telephony.metrics.TelephonyMetrics;
 import com.android.internal.telephony.subscription.SubscriptionManagerService;
 import com.android.telephony.Rlog;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -92,8 +100,75 @@ public class SmsBroadcastUndelivered {
                 entry(InboundSmsHandler.SUBID_COLUMN, 10));
 
 
+    /** Number of raw table rows read per query. */
+    @VisibleForTesting
+    public static final int PAGE_SIZE = 100;
+
+    /** Maximum number of messages deleted per statement, to stay below the SQL argument limit. */
+    private static final int MAX_MESSAGES_PER_DELETE = 100;
+
+    private static final String SELECT_PENDING_PAGE = "deleted = 0 AND _id > ? AND _id <= ?";
+    private static final String PAGE_SORT_ORDER = "_id ASC LIMIT " + PAGE_SIZE;
+    private static final String[] ID_PROJECTION = {"_id"};
+    private static final String MAX_ID_SORT_ORDER = "_id DESC LIMIT 1";
+
+    /**
+     * Progress and timing of a raw table scan. Written by the scanning thread only.
+     */
+    public static final class ScanProgress {
+        private final long mStartTimeNanos = System.nanoTime();
+        private volatile int mPages;
+        private volatile int mRows;
+        private volatile int mBroadcastMessages;
+        private volatile int mDeletedRows;
+        private volatile long mDurationMs = -1;
+        private volatile boolean mCancelled;
+
+        /** @return Number of raw table pages read. */
+        public int getPages() {
+            return mPages;
+        }
+
+        /** @return Number of undeleted raw table rows read. */
+        public int getRows() {
+            return mRows;
+        }
+
+        /** @return Number of complete messages sent to the inbound SMS handlers. */
+        public int getBroadcastMessages() {
+            return mBroadcastMessages;
+        }
+
+        /** @return Number of rows of old incomplete messages deleted. */
+        public int getDeletedRows() {
+            return mDeletedRows;
+        }
+
+        /** @return Duration of the scan in milliseconds, or -1 if it is still running. */
+        public long getDurationMs() {
+            return mDurationMs;
+        }
+
+        /** @return {@code true} if the scan was cancelled. */
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public String toString() {
+            return "pages=" + mPages + " rows=" + mRows + " broadcast=" + mBroadcastMessages
+                    + " deletedRows=" + mDeletedRows + " durationMs=" + mDurationMs
+                    + (mCancelled ? " cancelled" : "");
+        }
+    }
+
+    private static volatile ScanProgress sLastScanProgress;
+
     private static SmsBroadcastUndelivered instance;
 
+    /** Cancels the running raw table scan, if any. */
+    private CancellationSignal mScanCancellationSignal;
+
     /** Content resolver to use to access raw table from SmsProvider. */
     private final ContentResolver mResolver;
 
@@ -105,26 +180,44 @@ public class SmsBroadcastUndelivered {
         public void onReceive(final Context context, Intent intent) {
             Rlog.d(TAG, "Received broadcast " + intent.getAction());
             if (Intent.ACTION_USER_UNLOCKED.equals(intent.getAction())) {
-                new ScanRawTableThread(context).start();
+                startScan(context);
             }
         }
     };
 
     private class ScanRawTableThread extends Thread {
         private final Context context;
+        private final CancellationSignal mCancellationSignal;
 
-        private ScanRawTableThread(Context context) {
+        private ScanRawTableThread(Context context, CancellationSignal cancellationSignal) {
             this.context = context;
+            mCancellationSignal = cancellationSignal;
         }
 
         @Override
         public void run() {
             scanRawTable(context,
-                    System.currentTimeMillis() - getUndeliveredSmsExpirationTime(context));
+                    System.currentTimeMillis() - getUndeliveredSmsExpirationTime(context),
+                    mCancellationSignal);
             InboundSmsHandler.cancelNewMessageNotification(context);
         }
     }
 
+    /** Start a raw table scan, cancelling the previous one if it is still running. */
+    private synchronized void startScan(Context context) {
+        cancelScan();
+        mScanCancellationSignal = new CancellationSignal();
+        new ScanRawTableThread(context, mScanCancellationSignal).start();
+    }
+
+    /** Cancel the running raw table scan, if any. */
+    public synchronized void cancelScan() {
+        if (mScanCancellationSignal != null) {
+            mScanCancellationSignal.cancel();
+            mScanCancellationSignal = null;
+        }
+    }
+
     public static void initialize(Context context, GsmInboundSmsHandler gsmInboundSmsHandler,
         CdmaInboundSmsHandler cdmaInboundSmsHandler) {
         if (instance == null) {
@@ -149,7 +242,7 @@ public class SmsBroadcastUndelivered {
         UserManager userManager = (UserManager) context.getSystemService(Context.USER_SERVICE);
 
         if (userManager.isUserUnlocked()) {
-            new ScanRawTableThread(context).start();
+            startScan(context);
         } else {
             IntentFilter userFilter = new IntentFilter();
             userFilter.addAction(Intent.ACTION_USER_UNLOCKED);
@@ -161,111 +254,217 @@ public class SmsBroadcastUndelivered {
      * Scan the raw table for complete SMS messages to broadcast, and old PDUs to delete.
      */
     static void scanRawTable(Context context, long oldMessageTimestamp) {
+        scanRawTable(context, oldMessageTimestamp, new CancellationSignal());
+    }
+
+    /**
+     * Scan the raw table for complete SMS messages to broadcast, and old PDUs to delete.
+     *
+     * The raw table is read in pages of {@link #PAGE_SIZE} rows ordered by row id, so a large
+     * backlog never has to be held in memory at once, and the scan can be cancelled between rows.
+     * Complete messages are broadcast as soon as their last segment is read. Old incomplete
+     * messages are only known once the whole table has been read, and are then deleted in batches.
+     */
+    static void scanRawTable(Context context, long oldMessageTimestamp,
+            @NonNull CancellationSignal cancellationSignal) {
         if (DBG) Rlog.d(TAG, "scanning raw table for undelivered messages");
-        long startTime = System.nanoTime();
+        ScanProgress progress = new ScanProgress();
+        sLastScanProgress = progress;
         ContentResolver contentResolver = context.getContentResolver();
         HashMap<SmsReferenceKey, Integer> multiPartReceivedCount =
                 new HashMap<SmsReferenceKey, Integer>(4);
         HashSet<SmsReferenceKey> oldMultiPartMessages = new HashSet<SmsReferenceKey>(4);
-        Cursor cursor = null;
         try {
-            // query only non-deleted ones
-            cursor = contentResolver.query(InboundSmsHandler.sRawUri,
-                    PDU_PENDING_MESSAGE_PROJECTION, "deleted = 0", null, null);
-            if (cursor == null) {
-                Rlog.e(TAG, "error getting pending message cursor");
-                return;
-            }
-
             boolean isCurrentFormat3gpp2 = InboundSmsHandler.isCurrentFormat3gpp2();
-            while (cursor.moveToNext()) {
-                InboundSmsTracker tracker;
-                try {
-                    tracker = TelephonyComponentFactory.getInstance()
-                            .inject(InboundSmsTracker.class.getName()).makeInboundSmsTracker(
-                                    context,
-                                    cursor,
-                                    isCurrentFormat3gpp2);
-                } catch (IllegalArgumentException e) {
-                    Rlog.e(TAG, "error loading SmsTracker: " + e);
-                    continue;
-                }
-
-                if (tracker.getMessageCount() == 1) {
-                    // deliver single-part message
-                    broadcastSms(tracker);
-                } else {
-                    SmsReferenceKey reference = new SmsReferenceKey(tracker);
-                    Integer receivedCount = multiPartReceivedCount.get(reference);
-                    if (receivedCount == null) {
-                        multiPartReceivedCount.put(reference, 1);    // first segment seen
-                        if (tracker.getTimestamp() < oldMessageTimestamp) {
-                            // older than oldMessageTimestamp; delete if we don't find all the
-                            // segments
-                            oldMultiPartMessages.add(reference);
-                        }
-                    } else {
-                        int newCount = receivedCount + 1;
-                        if (newCount == tracker.getMessageCount()) {
-                            // looks like we've got all the pieces; send a single tracker
-                            // to state machine which will find the other pieces to broadcast
-                            if (DBG) Rlog.d(TAG, "found complete multi-part message");
-                            broadcastSms(tracker);
-                            // don't delete this old message until after we broadcast it
-                            oldMultiPartMessages.remove(reference);
-                        } else {
-                            multiPartReceivedCount.put(reference, newCount);
-                        }
-                    }
+            // Rows inserted while scanning are broadcast by the live reception path, so the scan
+            // stops at the last row present when it starts.
+            long maxId;
+            try (Cursor cursor = contentResolver.query(InboundSmsHandler.sRawUri, ID_PROJECTION,
+                    null, null, MAX_ID_SORT_ORDER, cancellationSignal)) {
+                if (cursor == null) {
+                    Rlog.e(TAG, "error getting pending message cursor");
+                    return;
                 }
+                if (!cursor.moveToFirst()) return;
+                maxId = cursor.getLong(0);
             }
-            // Retrieve the phone and phone id, required for metrics
-            // TODO don't hardcode to the first phone (phoneId = 0) but this is no worse than
-            //  earlier. Also phoneId for old messages may not be known (messages may be from an
-            //  inactive sub)
-            Phone phone = PhoneFactory.getPhone(0);
-            int phoneId = 0;
-
-            // Delete old incomplete message segments
-            for (SmsReferenceKey message : oldMultiPartMessages) {
-                // delete permanently
-                int rows = contentResolver.delete(InboundSmsHandler.sRawUriPermanentDelete,
-                        message.getDeleteWhere(), message.getDeleteWhereArgs());
-                if (rows == 0) {
-                    Rlog.e(TAG, "No rows were deleted from raw table!");
-                } else if (DBG) {
-                    Rlog.d(TAG, "Deleted " + rows + " rows from raw table for incomplete "
-                            + message.mMessageCount + " part message");
-                }
-                // Update metrics with dropped SMS
-                if (rows > 0) {
-                    TelephonyMetrics metrics = TelephonyMetrics.getInstance();
-                    metrics.writeDroppedIncomingMultipartSms(phoneId, message.mFormat, rows,
-                            message.mMessageCount);
-                    if (phone != null) {
-                        phone.getSmsStats().onDroppedIncomingMultipartSms(message.mIs3gpp2, rows,
-                                message.mMessageCount, TelephonyManager.from(context)
-                                        .isEmergencyNumber(message.mAddress));
-                        TelephonyAnalytics telephonyAnalytics = phone.getTelephonyAnalytics();
-                        if (telephonyAnalytics != null) {
-                            SmsMmsAnalytics smsMmsAnalytics =
-                                    telephonyAnalytics.getSmsMmsAnalytics();
-                            if (smsMmsAnalytics != null) {
-                                smsMmsAnalytics.onDroppedIncomingMultipartSms();
-                            }
-                        }
+            String maxIdArg = Long.toString(maxId);
+            long lastId = -1;
+            boolean morePages = true;
+            while (morePages) {
+                int rows = 0;
+                cancellationSignal.throwIfCanceled();
+                // query only non-deleted ones. The raw table provider drops QUERY_ARG_LIMIT and
+                // the cancellation signal, so the limit goes into the sort order.
+                try (Cursor cursor = contentResolver.query(InboundSmsHandler.sRawUri,
+                        PDU_PENDING_MESSAGE_PROJECTION, SELECT_PENDING_PAGE,
+                        new String[]{Long.toString(lastId), maxIdArg}, PAGE_SORT_ORDER,
+                        cancellationSignal)) {
+                    if (cursor == null) {
+                        Rlog.e(TAG, "error getting pending message cursor");
+                        return;
+                    }
+                    progress.mPages++;
+                    while (rows < PAGE_SIZE && cursor.moveToNext()) {
+                        cancellationSignal.throwIfCanceled();
+                        rows++;
+                        progress.mRows++;
+                        lastId = cursor.getLong(PDU_PENDING_MESSAGE_PROJECTION_INDEX_MAPPING
+                                .get(InboundSmsHandler.ID_COLUMN));
+                        processRow(context, cursor, isCurrentFormat3gpp2, oldMessageTimestamp,
+                                multiPartReceivedCount, oldMultiPartMessages, progress);
                     }
                 }
+                morePages = rows == PAGE_SIZE;
             }
+            deleteOldMultiPartMessages(context, oldMultiPartMessages, multiPartReceivedCount,
+                    progress);
+        } catch (OperationCanceledException e) {
+            Rlog.d(TAG, "scanning raw table cancelled");
+            progress.mCancelled = true;
         } catch (SQLException e) {
             Rlog.e(TAG, "error reading pending SMS messages", e);
         } finally {
-            if (cursor != null) {
-                cursor.close();
+            progress.mDurationMs = (System.nanoTime() - progress.mStartTimeNanos) / 1000000;
+            if (DBG) Rlog.d(TAG, "finished scanning raw table: " + progress);
+        }
+    }
+
+    private static void processRow(Context context, Cursor cursor, boolean isCurrentFormat3gpp2,
+            long oldMessageTimestamp, HashMap<SmsReferenceKey, Integer> multiPartReceivedCount,
+            HashSet<SmsReferenceKey> oldMultiPartMessages, ScanProgress progress) {
+        InboundSmsTracker tracker;
+        try {
+            tracker = TelephonyComponentFactory.getInstance()
+                    .inject(InboundSmsTracker.class.getName()).makeInboundSmsTracker(
+                            context,
+                            cursor,
+                            isCurrentFormat3gpp2);
+        } catch (IllegalArgumentException e) {
+            Rlog.e(TAG, "error loading SmsTracker: " + e);
+            return;
+        }
+
+        if (tracker.getMessageCount() == 1) {
+            // deliver single-part message
+            broadcastSms(tracker);
+            progress.mBroadcastMessages++;
+        } else {
+            SmsReferenceKey reference = new SmsReferenceKey(tracker);
+            Integer receivedCount = multiPartReceivedCount.get(reference);
+            if (receivedCount == null) {
+                multiPartReceivedCount.put(reference, 1);    // first segment seen
+                if (tracker.getTimestamp() < oldMessageTimestamp) {
+                    // older than oldMessageTimestamp; delete if we don't find all the
+                    // segments
+                    oldMultiPartMessages.add(reference);
+                }
+            } else {
+                int newCount = receivedCount + 1;
+                if (newCount == tracker.getMessageCount()) {
+                    // looks like we've got all the pieces; send a single tracker
+                    // to state machine which will find the other pieces to broadcast
+                    if (DBG) Rlog.d(TAG, "found complete multi-part message");
+                    broadcastSms(tracker);
+                    progress.mBroadcastMessages++;
+                    // don't delete this old message until after we broadcast it
+                    oldMultiPartMessages.remove(reference);
+                } else {
+                    multiPartReceivedCount.put(reference, newCount);
+                }
+            }
+        }
+    }
+
+    /** Delete old incomplete message segments, {@link #MAX_MESSAGES_PER_DELETE} at a time. */
+    private static void deleteOldMultiPartMessages(Context context,
+            HashSet<SmsReferenceKey> oldMultiPartMessages,
+            HashMap<SmsReferenceKey, Integer> multiPartReceivedCount, ScanProgress progress) {
+        List<SmsReferenceKey> batch = new ArrayList<>(MAX_MESSAGES_PER_DELETE);
+        for (SmsReferenceKey message : oldMultiPartMessages) {
+            batch.add(message);
+            if (batch.size() == MAX_MESSAGES_PER_DELETE) {
+                deleteOldMultiPartMessageBatch(context, batch, multiPartReceivedCount, progress);
+                batch.clear();
             }
-            if (DBG) Rlog.d(TAG, "finished scanning raw table in "
-                    + ((System.nanoTime() - startTime) / 1000000) + " ms");
         }
+        if (!batch.isEmpty()) {
+            deleteOldMultiPartMessageBatch(context, batch, multiPartReceivedCount, progress);
+        }
+    }
+
+    private static void deleteOldMultiPartMessageBatch(Context context,
+            List<SmsReferenceKey> messages,
+            HashMap<SmsReferenceKey, Integer> multiPartReceivedCount, ScanProgress progress) {
+        StringBuilder where = new StringBuilder();
+        List<String> whereArgs = new ArrayList<>(messages.size() * 3);
+        for (SmsReferenceKey message : messages) {
+            if (where.length() > 0) where.append(" OR ");
+            where.append('(').append(message.getDeleteWhere()).append(')');
+            Collections.addAll(whereArgs, message.getDeleteWhereArgs());
+        }
+        // delete permanently
+        int rows;
+        SmsReassemblyIndex.onRawTableWriteStarted();
+        try {
+            rows = context.getContentResolver().delete(InboundSmsHandler.sRawUriPermanentDelete,
+                    where.toString(), whereArgs.toArray(new String[0]));
+        } finally {
+            SmsReassemblyIndex.onRawTableWriteFinished();
+        }
+        if (rows == 0) {
+            Rlog.e(TAG, "No rows were deleted from raw table!");
+            return;
+        }
+        progress.mDeletedRows += rows;
+        if (DBG) {
+            Rlog.d(TAG, "Deleted " + rows + " rows from raw table for " + messages.size()
+                    + " incomplete multi-part messages");
+        }
+
+        // Retrieve the phone and phone id, required for metrics
+        // TODO don't hardcode to the first phone (phoneId = 0) but this is no worse than
+        //  earlier. Also phoneId for old messages may not be known (messages may be from an
+        //  inactive sub)
+        Phone phone = PhoneFactory.getPhone(0);
+        int phoneId = 0;
+
+        // Update metrics with dropped SMS. The rows of each message are the segments found by
+        // the scan.
+        for (SmsReferenceKey message : messages) {
+            int messageRows = multiPartReceivedCount.getOrDefault(message, 0);
+            TelephonyMetrics metrics = TelephonyMetrics.getInstance();
+            metrics.writeDroppedIncomingMultipartSms(phoneId, message.mFormat, messageRows,
+                    message.mMessageCount);
+            if (phone != null) {
+                phone.getSmsStats().onDroppedIncomingMultipartSms(message.mIs3gpp2, messageRows,
+                        message.mMessageCount, TelephonyManager.from(context)
+                                .isEmergencyNumber(message.mAddress));
+                TelephonyAnalytics telephonyAnalytics = phone.getTelephonyAnalytics();
+                if (telephonyAnalytics != null) {
+                    SmsMmsAnalytics smsMmsAnalytics =
+                            telephonyAnalytics.getSmsMmsAnalytics();
+                    if (smsMmsAnalytics != null) {
+                        smsMmsAnalytics.onDroppedIncomingMultipartSms();
+                    }
+                }
+            }
+        }
+    }
+
+    /** @return Progress of the current or last raw table scan, or {@code null} if none ran. */
+    @Nullable
+    public static ScanProgress getLastScanProgress() {
+        return sLastScanProgress;
+    }
+
+    /**
+     * Dump the progress of the current or last raw table scan.
+     *
+     * @param pw Print writer.
+     */
+    public static void dump(@NonNull PrintWriter pw) {
+        pw.println("SmsBroadcastUndelivered: last scan " + sLastScanProgress);
     }
 
     /**
@@ -1088,6 +1088,8 @@ public class SmsController extends ISmsImplBase {
             }
             indentingPW.decreaseIndent();
         }
+        WapPushCache.dump(indentingPW);
+        SmsBroadcastUndelivered.dump(indentingPW);
         indentingPW.flush();
     }
 
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.os.SystemClock;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+import com.android.internal.telephony.metrics.LatencyHistogram;
+
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Window of parts of a single or multi-part SMS submitted to the transport by
+ * {@link SMSDispatcher}.
+ *
+ * At most the window size of parts are in flight at once, i.e. submitted but not yet sent or
+ * failed. Parts are submitted in order, so they reach the transport in the order of their message
+ * references. A part keeps its slot while it is retried, also over another transport after a
+ * fallback, and frees it when it is finally sent or failed, which submits the next part. The time
+ * from submitting a part to its final result is recorded in a histogram.
+ *
+ * This class is thread safe.
+ */
+public class SmsPartSendWindow {
+    @NonNull
+    private final SmsTracker[] mTrackers;
+    private final int mWindowSize;
+    @NonNull
+    private final Executor mExecutor;
+    @NonNull
+    private final Consumer<SmsTracker> mSender;
+    @NonNull
+    private final LatencyHistogram mLatency;
+    // Submission time of each part, 0 once it is done
+    private final long[] mSubmitTimes;
+    private int mNextPart;
+    private int mInFlight;
+    // Whether start() is still submitting the first window
+    private boolean mStarting;
+
+    /**
+     * @param trackers The parts of the message, in order.
+     * @param windowSize The maximum number of parts in flight. 0 or less means all parts.
+     * @param executor Executor on which parts after the first window are submitted.
+     * @param sender Submits a part to the transport.
+     * @param latency Histogram of the time from submitting a part to its final result in millis.
+     */
+    public SmsPartSendWindow(@NonNull SmsTracker[] trackers, int windowSize,
+            @NonNull Executor executor, @NonNull Consumer<SmsTracker> sender,
+            @NonNull LatencyHistogram latency) {
+        mTrackers = trackers;
+        mWindowSize = windowSize > 0 ? windowSize : trackers.length;
+        mExecutor = executor;
+        mSender = sender;
+        mLatency = latency;
+        mSubmitTimes = new long[trackers.length];
+    }
+
+    /** Submit the first window of parts on the calling thread. */
+    public void start() {
+        for (SmsTracker tracker : mTrackers) {
+            tracker.setSendWindow(this);
+        }
+        synchronized (this) {
+            mStarting = true;
+        }
+        while (true) {
+            SmsTracker tracker;
+            synchronized (this) {
+                tracker = takeNextPart();
+                if (tracker == null) {
+                    mStarting = false;
+                    return;
+                }
+            }
+            // A part failing right away only frees its slot, which this loop fills in order
+            mSender.accept(tracker);
+        }
+    }
+
+    /**
+     * Called when a part is finally sent or failed. Submits the next part, if any, on the
+     * executor.
+     *
+     * @param tracker The part.
+     */
+    public synchronized void onPartDone(@NonNull SmsTracker tracker) {
+        int part = indexOf(tracker);
+        if (part < 0 || mSubmitTimes[part] == 0) return;
+        mLatency.record(SystemClock.elapsedRealtime() - mSubmitTimes[part]);
+        mSubmitTimes[part] = 0;
+        mInFlight--;
+        if (mStarting) return;
+        SmsTracker next = takeNextPart();
+        if (next != null) {
+            // Queued while holding the lock so that parts are submitted in order
+            mExecutor.execute(() -> mSender.accept(next));
+        }
+    }
+
+    /** @return The number of parts submitted but not yet sent or failed. */
+    public synchronized int getInFlightCount() {
+        return mInFlight;
+    }
+
+    /** @return The number of parts not yet submitted. */
+    public synchronized int getQueuedCount() {
+        return mTrackers.length - mNextPart;
+    }
+
+    private SmsTracker takeNextPart() {
+        if (mInFlight >= mWindowSize || mNextPart >= mTrackers.length) return null;
+        // Never 0, so that 0 can mark parts that are done
+        mSubmitTimes[mNextPart] = Math.max(SystemClock.elapsedRealtime(), 1);
+        mInFlight++;
+        return mTrackers[mNextPart++];
+    }
+
+    private int indexOf(@NonNull SmsTracker tracker) {
+        for (int i = 0; i < mTrackers.length; i++) {
+            if (mTrackers[i] == tracker) return i;
+        }
+        return -1;
+    }
+}
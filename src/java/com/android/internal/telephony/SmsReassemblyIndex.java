@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.telephony.Rlog;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of the SMS raw table used by {@link InboundSmsHandler} to answer the multi-part
+ * completion and duplicate checks without querying the provider for every segment.
+ *
+ * The raw table stays the source of truth. The index may over-report, in which case the caller
+ * falls back to the original provider query, but it must never under-report. To guarantee this,
+ * every writer of the raw table bumps a process wide counter before its write and another one
+ * after it, like a seqlock. No index is used while a write is in progress, and an index which
+ * missed a write is rebuilt from the raw table before it is used again. Rebuilds are rare: they
+ * happen the first time the index is used and when handlers of different phones or formats write
+ * to the raw table in between each other.
+ *
+ * This class is thread safe. It is mostly used from the state machine thread of the owning
+ * {@link InboundSmsHandler}, but message segments can also be dropped from filter callbacks.
+ */
+public class SmsReassemblyIndex {
+    private static final String TAG = "SmsReassemblyIndex";
+
+    /** Above this many raw table rows the index is disabled and every check hits the provider. */
+    @VisibleForTesting
+    public static final int MAX_ROWS = 5000;
+
+    private static final long INVALID_GENERATION = -1;
+
+    private static final String[] RAW_TABLE_PROJECTION = {
+            "address",
+            "reference_number",
+            "count",
+            "sequence",
+            "destination_port",
+            "date",
+            "message_body",
+            "deleted"
+    };
+
+    // Number of writes to the raw table started and finished. A write is in progress while they
+    // differ; the number of finished writes is the generation of the raw table.
+    private static final AtomicLong sWritesStarted = new AtomicLong();
+    private static final AtomicLong sWritesFinished = new AtomicLong();
+
+    /** Identifies a multi-part message, like {@link InboundSmsTracker#getQueryForSegments()}. */
+    private static final class MessageKey {
+        @Nullable
+        private final String mAddress;
+        private final int mReferenceNumber;
+        private final int mMessageCount;
+        private final boolean mIs3gpp2WapPdu;
+
+        MessageKey(@Nullable String address, int referenceNumber, int messageCount,
+                boolean is3gpp2WapPdu) {
+            mAddress = address;
+            mReferenceNumber = referenceNumber;
+            mMessageCount = messageCount;
+            mIs3gpp2WapPdu = is3gpp2WapPdu;
+        }
+
+        MessageKey(@NonNull InboundSmsTracker tracker) {
+            this(tracker.getAddress(), tracker.getReferenceNumber(), tracker.getMessageCount(),
+                    tracker.is3gpp2WapPdu());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MessageKey that
+                    && mReferenceNumber == that.mReferenceNumber
+                    && mMessageCount == that.mMessageCount
+                    && mIs3gpp2WapPdu == that.mIs3gpp2WapPdu
+                    && Objects.equals(mAddress, that.mAddress);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mAddress, mReferenceNumber, mMessageCount, mIs3gpp2WapPdu);
+        }
+    }
+
+    @NonNull
+    private final ContentResolver mResolver;
+
+    // Undeleted rows of multi-part messages: message -> (sequence -> number of rows)
+    private final Map<MessageKey, SparseIntArray> mSegments = new HashMap<>();
+    // Fingerprints of all rows, deleted or not, over the columns of the exact duplicate query
+    private final Set<Long> mFingerprints = new HashSet<>();
+    private long mGeneration = INVALID_GENERATION;
+    // Set while the raw table of mGeneration has more than MAX_ROWS rows
+    private boolean mDisabled;
+
+    /**
+     * @param resolver Content resolver used to rebuild the index from the raw table.
+     */
+    public SmsReassemblyIndex(@NonNull ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Called by every writer of the raw table before the write. Indexes are not used until the
+     * write is finished.
+     */
+    public static void onRawTableWriteStarted() {
+        sWritesStarted.incrementAndGet();
+    }
+
+    /**
+     * Called by writers of the raw table other than {@link InboundSmsHandler} after the write,
+     * even if it failed. Invalidates all indexes.
+     */
+    public static void onRawTableWriteFinished() {
+        sWritesFinished.incrementAndGet();
+    }
+
+    /**
+     * @param tracker A new message segment.
+     * @return {@code false} if the raw table has no row matching
+     * {@link InboundSmsTracker#getExactMatchDupDetectQuery()}; {@code true} if it may have one.
+     */
+    public synchronized boolean mayContainExactMatch(@NonNull InboundSmsTracker tracker) {
+        if (!ensureValid()) return true;
+        return mFingerprints.contains(fingerprint(tracker.getAddress(),
+                tracker.getReferenceNumber(), tracker.getMessageCount(),
+                tracker.getSequenceNumber(), tracker.getTimestamp(), tracker.getMessageBody(),
+                tracker.is3gpp2WapPdu()));
+    }
+
+    /**
+     * @param tracker A new segment of a multi-part message.
+     * @return {@code false} if the raw table has no row matching
+     * {@link InboundSmsTracker#getInexactMatchDupDetectQuery()}; {@code true} if it may have one.
+     */
+    public synchronized boolean mayContainSegment(@NonNull InboundSmsTracker tracker) {
+        if (!ensureValid()) return true;
+        SparseIntArray sequences = mSegments.get(new MessageKey(tracker));
+        return sequences != null && sequences.get(tracker.getSequenceNumber()) > 0;
+    }
+
+    /**
+     * @param tracker A segment of a multi-part message.
+     * @return {@code false} if the raw table has fewer undeleted segments of the message than its
+     * message count; {@code true} if all segments may have arrived.
+     */
+    public synchronized boolean mayBeComplete(@NonNull InboundSmsTracker tracker) {
+        if (!ensureValid()) return true;
+        SparseIntArray sequences = mSegments.get(new MessageKey(tracker));
+        if (sequences == null) return false;
+        int rows = 0;
+        for (int i = 0; i < sequences.size(); i++) {
+            rows += sequences.valueAt(i);
+        }
+        return rows >= tracker.getMessageCount();
+    }
+
+    /**
+     * Called after the tracker was inserted into the raw table. Finishes the write.
+     *
+     * @param tracker The inserted tracker.
+     */
+    public synchronized void onRowInserted(@NonNull InboundSmsTracker tracker) {
+        if (!finishUpdate()) return;
+        addRow(tracker.getAddress(), tracker.getReferenceNumber(), tracker.getMessageCount(),
+                tracker.getSequenceNumber(), tracker.getTimestamp(), tracker.getMessageBody(),
+                tracker.is3gpp2WapPdu(), false);
+    }
+
+    /**
+     * Called after rows were deleted or marked deleted in the raw table. Finishes the write.
+     *
+     * @param deleteWhere The selection of the deleted rows.
+     * @param deleteWhereArgs The selection arguments.
+     * @param permanently {@code true} if the rows were deleted, {@code false} if they were only
+     * marked deleted.
+     */
+    public synchronized void onRowsDeleted(@Nullable String deleteWhere,
+            @Nullable String[] deleteWhereArgs, boolean permanently) {
+        boolean inPlace = finishUpdate();
+        if (permanently) {
+            // Rebuild rather than keep the fingerprints of rows which are gone, which would make
+            // the index count rows the raw table does not have.
+            invalidate();
+            return;
+        }
+        if (!inPlace) return;
+        // Rows marked deleted with other selections are single-part messages, which have no
+        // segments. Their fingerprints stay, as marked rows are still exact duplicates.
+        boolean is3gpp2WapPdu = InboundSmsTracker.SELECT_BY_REFERENCE_3GPP2WAP.equals(deleteWhere);
+        if ((is3gpp2WapPdu || InboundSmsTracker.SELECT_BY_REFERENCE.equals(deleteWhere))
+                && deleteWhereArgs != null && deleteWhereArgs.length == 3) {
+            try {
+                mSegments.remove(new MessageKey(deleteWhereArgs[0],
+                        Integer.parseInt(deleteWhereArgs[1]), Integer.parseInt(deleteWhereArgs[2]),
+                        is3gpp2WapPdu));
+            } catch (NumberFormatException e) {
+                Rlog.e(TAG, "onRowsDeleted: invalid selection arguments", e);
+            }
+        }
+    }
+
+    /** @return {@code true} if the index applies the update in place. */
+    private boolean finishUpdate() {
+        long generation = sWritesFinished.incrementAndGet();
+        if (mGeneration == INVALID_GENERATION || generation != mGeneration + 1
+                || sWritesStarted.get() != generation) {
+            // Somebody else wrote to the raw table since the index was last in sync, or is
+            // writing to it now
+            invalidate();
+            return false;
+        }
+        mGeneration = generation;
+        return !mDisabled;
+    }
+
+    private void invalidate() {
+        mGeneration = INVALID_GENERATION;
+        mDisabled = false;
+        mSegments.clear();
+        mFingerprints.clear();
+    }
+
+    private void disable() {
+        mDisabled = true;
+        mSegments.clear();
+        mFingerprints.clear();
+    }
+
+    private boolean ensureValid() {
+        long generation = sWritesFinished.get();
+        if (sWritesStarted.get() != generation) {
+            // A write is in progress
+            return false;
+        }
+        if (mGeneration == generation) return !mDisabled;
+
+        invalidate();
+        try (Cursor cursor = mResolver.query(InboundSmsHandler.sRawUri, RAW_TABLE_PROJECTION,
+                null, null, null)) {
+            if (cursor == null) {
+                Rlog.e(TAG, "ensureValid: null cursor");
+                return false;
+            }
+            if (cursor.getCount() > MAX_ROWS) {
+                Rlog.e(TAG, "ensureValid: " + cursor.getCount() + " rows in raw table, disabled");
+                disable();
+            } else {
+                while (cursor.moveToNext()) {
+                    int destPort = cursor.isNull(4) ? 0 : cursor.getInt(4);
+                    addRow(cursor.getString(0), cursor.getInt(1), cursor.getInt(2),
+                            cursor.getInt(3), cursor.getLong(5), cursor.getString(6),
+                            (destPort & InboundSmsTracker.DEST_PORT_FLAG_3GPP2_WAP_PDU) != 0,
+                            cursor.getInt(7) == 1);
+                }
+            }
+        } catch (SQLException e) {
+            Rlog.e(TAG, "ensureValid: can't access raw table", e);
+            invalidate();
+            return false;
+        }
+        if (sWritesStarted.get() != generation) {
+            // The raw table was written while it was read
+            invalidate();
+            return false;
+        }
+        mGeneration = generation;
+        return !mDisabled;
+    }
+
+    private void addRow(@Nullable String address, int referenceNumber, int messageCount,
+            int sequenceNumber, long date, @Nullable String messageBody, boolean is3gpp2WapPdu,
+            boolean deleted) {
+        mFingerprints.add(fingerprint(address, referenceNumber, messageCount, sequenceNumber,
+                date, messageBody, is3gpp2WapPdu));
+        if (!deleted && messageCount > 1) {
+            SparseIntArray sequences = mSegments.computeIfAbsent(
+                    new MessageKey(address, referenceNumber, messageCount, is3gpp2WapPdu),
+                    k -> new SparseIntArray(messageCount));
+            sequences.put(sequenceNumber, sequences.get(sequenceNumber) + 1);
+        }
+        if (mFingerprints.size() > MAX_ROWS) {
+            // Only rows of the raw table are counted, as rows deleted permanently invalidate
+            // the index. It is enabled again once rows are deleted.
+            Rlog.e(TAG, "addRow: more than " + MAX_ROWS + " rows in raw table, disabled");
+            disable();
+        }
+    }
+
+    private static long fingerprint(@Nullable String address, int referenceNumber,
+            int messageCount, int sequenceNumber, long date, @Nullable String messageBody,
+            boolean is3gpp2WapPdu) {
+        long hash = mix(Objects.hashCode(address), referenceNumber);
+        hash = mix(hash, messageCount);
+        hash = mix(hash, sequenceNumber);
+        hash = mix(hash, date);
+        hash = mix(hash, Objects.hashCode(messageBody));
+        return mix(hash, is3gpp2WapPdu ? 1 : 0);
+    }
+
+    private static long mix(long hash, long value) {
+        hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 29);
+    }
+}
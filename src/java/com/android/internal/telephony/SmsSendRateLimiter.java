@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.annotation.NonNull;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sliding window limit on the number of SMS each app may send, used by {@link SmsUsageMonitor}.
+ *
+ * An app may send a batch of messages if the messages it sent in the last check period plus the
+ * batch do not exceed the maximum. Each app has a fixed-size ring of send times; all messages of
+ * a batch share one send time, so the ring never holds more than the maximum number of entries
+ * and a check only drops the expired entries at the head of the ring. Apps are locked
+ * independently of each other. At most {@link #MAX_TRACKED_APPS} apps are tracked: apps whose
+ * window expired are dropped first, then the least recently checked ones.
+ *
+ * This class is thread safe.
+ */
+public class SmsSendRateLimiter {
+    /** Maximum number of apps tracked. */
+    @VisibleForTesting
+    public static final int MAX_TRACKED_APPS = 512;
+
+    /** Send times of one app. */
+    private static final class SendWindow {
+        // Ring of send times, and number of messages sent at each time. Oldest first.
+        private final long[] mTimes;
+        private final int[] mCounts;
+        private int mHead;
+        private int mSize;
+        // Number of messages in the ring
+        private int mSent;
+        private volatile long mLastCheckTime;
+        // Set when the window is dropped from mWindows, under the window lock
+        private boolean mRemoved;
+
+        SendWindow(int capacity) {
+            mTimes = new long[capacity];
+            mCounts = new int[capacity];
+        }
+
+        void removeExpired(long beginCheckPeriod) {
+            while (mSize > 0 && mTimes[mHead] < beginCheckPeriod) {
+                mSent -= mCounts[mHead];
+                mHead = (mHead + 1) % mTimes.length;
+                mSize--;
+            }
+        }
+
+        void add(long time, int count) {
+            // mSent + count <= capacity, so there is room for one more entry
+            int index = (mHead + mSize) % mTimes.length;
+            mTimes[index] = time;
+            mCounts[index] = count;
+            mSize++;
+            mSent += count;
+        }
+
+        long newestTime() {
+            return mTimes[(mHead + mSize - 1) % mTimes.length];
+        }
+    }
+
+    private final ConcurrentHashMap<String, SendWindow> mWindows = new ConcurrentHashMap<>();
+    private final int mCheckPeriod;
+    private final int mMaxAllowed;
+
+    /**
+     * @param checkPeriod The length of the window in milliseconds.
+     * @param maxAllowed The maximum number of messages an app may send in the window.
+     */
+    public SmsSendRateLimiter(int checkPeriod, int maxAllowed) {
+        mCheckPeriod = checkPeriod;
+        mMaxAllowed = Math.max(maxAllowed, 0);
+    }
+
+    /**
+     * Check whether an app may send messages, and record them as sent if it may.
+     *
+     * @param appName The package name of the app.
+     * @param smsWaiting The number of messages the app wants to send.
+     * @param now The current time in milliseconds.
+     * @return {@code true} if the messages fit in the limit.
+     */
+    public boolean tryAcquire(@NonNull String appName, int smsWaiting, long now) {
+        if (smsWaiting > mMaxAllowed) return false;
+        while (true) {
+            SendWindow window = mWindows.get(appName);
+            if (window == null) {
+                window = mWindows.computeIfAbsent(appName, k -> new SendWindow(mMaxAllowed));
+                if (mWindows.size() > MAX_TRACKED_APPS) {
+                    trim(now, window);
+                }
+            }
+            window.mLastCheckTime = now;
+            synchronized (window) {
+                // Dropped by a concurrent trim, so sends recorded in it would not be counted
+                if (window.mRemoved) continue;
+                window.removeExpired(now - mCheckPeriod);
+                if (window.mSent + smsWaiting > mMaxAllowed) {
+                    return false;
+                }
+                if (smsWaiting > 0) {
+                    window.add(now, smsWaiting);
+                }
+                return true;
+            }
+        }
+    }
+
+    /** @return The number of messages the app sent in the window ending now. */
+    public int getSentCount(@NonNull String appName, long now) {
+        SendWindow window = mWindows.get(appName);
+        if (window == null) return 0;
+        synchronized (window) {
+            window.removeExpired(now - mCheckPeriod);
+            return window.mSent;
+        }
+    }
+
+    /** @return The number of apps tracked. */
+    public int getTrackedAppCount() {
+        return mWindows.size();
+    }
+
+    /** Forget all apps. */
+    public void clear() {
+        mWindows.clear();
+    }
+
+    /**
+     * Drop apps whose window expired, like uninstalled apps. If there are still too many apps,
+     * drop the least recently checked ones.
+     */
+    private void trim(long now, @NonNull SendWindow keep) {
+        long beginCheckPeriod = now - mCheckPeriod;
+        for (Map.Entry<String, SendWindow> entry : mWindows.entrySet()) {
+            SendWindow window = entry.getValue();
+            if (window == keep) continue;
+            synchronized (window) {
+                if (window.mSize == 0 || window.newestTime() < beginCheckPeriod) {
+                    remove(entry.getKey(), window);
+                }
+            }
+        }
+        while (mWindows.size() > MAX_TRACKED_APPS) {
+            Map.Entry<String, SendWindow> eldest = null;
+            for (Map.Entry<String, SendWindow> entry : mWindows.entrySet()) {
+                if (entry.getValue() != keep && (eldest == null
+                        || entry.getValue().mLastCheckTime < eldest.getValue().mLastCheckTime)) {
+                    eldest = entry;
+                }
+            }
+            if (eldest == null) break;
+            synchronized (eldest.getValue()) {
+                remove(eldest.getKey(), eldest.getValue());
+            }
+        }
+    }
+
+    /** Drop the window of an app. Must be called with the window locked. */
+    private void remove(@NonNull String appName, @NonNull SendWindow window) {
+        if (mWindows.remove(appName, window)) {
+            window.mRemoved = true;
+        }
+    }
+}
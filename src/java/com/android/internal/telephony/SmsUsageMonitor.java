@@ -52,13 +52,10 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.regex.Pattern;
 
 /**
  * Implement the per-application based SMS control, which limits the number of
@@ -108,20 +105,23 @@ public class SmsUsageMonitor {
     public static final int PREMIUM_SMS_PERMISSION_ALWAYS_ALLOW =
             SmsManager.PREMIUM_SMS_CONSENT_ALWAYS_ALLOW;
 
-    private final int mCheckPeriod;
-    private final int mMaxAllowed;
-
-    private final HashMap<String, ArrayList<Long>> mSmsStamp =
-            new HashMap<String, ArrayList<Long>>();
+    /** Per-app limit on the number of SMS sent in the check period. */
+    private final SmsSendRateLimiter mSendRateLimiter;
 
     /** Context for retrieving regexes from XML resource. */
     private final Context mContext;
 
-    /** Country code for the cached short code pattern matcher. */
+    /** Country code for the current short code classifier. */
     private String mCurrentCountry;
 
-    /** Cached short code pattern matcher for {@link #mCurrentCountry}. */
-    private ShortCodePatternMatcher mCurrentPatternMatcher;
+    /** Short code classifier for {@link #mCurrentCountry}, or null if there are no patterns. */
+    private ShortCodeClassifier mCurrentClassifier;
+
+    /**
+     * Short code classifiers by country code, compiled on first use of each country. A null value
+     * means the country has no patterns.
+     */
+    private final HashMap<String, ShortCodeClassifier> mShortCodeClassifiers = new HashMap<>();
 
     /** Notice when the enabled setting changes - can be changed through gservices */
     private final AtomicBoolean mCheckEnabled = new AtomicBoolean(true);
@@ -184,46 +184,6 @@ public class SmsUsageMonitor {
     /** XML attribute for the package's premium SMS permission (integer type). */
     private static final String ATTR_PACKAGE_SMS_POLICY = "sms-policy";
 
-    /**
-     * SMS short code regex pattern matcher for a specific country.
-     */
-    private static final class ShortCodePatternMatcher {
-        private final Pattern mShortCodePattern;
-        private final Pattern mPremiumShortCodePattern;
-        private final Pattern mFreeShortCodePattern;
-        private final Pattern mStandardShortCodePattern;
-
-        ShortCodePatternMatcher(String shortCodeRegex, String premiumShortCodeRegex,
-                String freeShortCodeRegex, String standardShortCodeRegex) {
-            mShortCodePattern = (shortCodeRegex != null ? Pattern.compile(shortCodeRegex) : null);
-            mPremiumShortCodePattern = (premiumShortCodeRegex != null ?
-                    Pattern.compile(premiumShortCodeRegex) : null);
-            mFreeShortCodePattern = (freeShortCodeRegex != null ?
-                    Pattern.compile(freeShortCodeRegex) : null);
-            mStandardShortCodePattern = (standardShortCodeRegex != null ?
-                    Pattern.compile(standardShortCodeRegex) : null);
-        }
-
-        int getNumberCategory(String phoneNumber) {
-            if (mFreeShortCodePattern != null && mFreeShortCodePattern.matcher(phoneNumber)
-                    .matches()) {
-                return SmsManager.SMS_CATEGORY_FREE_SHORT_CODE;
-            }
-            if (mStandardShortCodePattern != null && mStandardShortCodePattern.matcher(phoneNumber)
-                    .matches()) {
-                return SmsManager.SMS_CATEGORY_STANDARD_SHORT_CODE;
-            }
-            if (mPremiumShortCodePattern != null && mPremiumShortCodePattern.matcher(phoneNumber)
-                    .matches()) {
-                return SmsManager.SMS_CATEGORY_PREMIUM_SHORT_CODE;
-            }
-            if (mShortCodePattern != null && mShortCodePattern.matcher(phoneNumber).matches()) {
-                return SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
-            }
-            return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
-        }
-    }
-
     /**
      * Observe the secure setting for enable flag
      */
@@ -264,14 +224,20 @@ public class SmsUsageMonitor {
         ContentResolver resolver = context.getContentResolver();
         mRoleManager = (RoleManager) mContext.getSystemService(Context.ROLE_SERVICE);
 
-        mMaxAllowed = Settings.Global.getInt(resolver,
+        int maxAllowed = Settings.Global.getInt(resolver,
                 Settings.Global.SMS_OUTGOING_CHECK_MAX_COUNT,
                 DEFAULT_SMS_MAX_COUNT);
+        if (maxAllowed < 0) {
+            Rlog.w(TAG, "Invalid SMS max count " + maxAllowed + ", using the default");
+            maxAllowed = DEFAULT_SMS_MAX_COUNT;
+        }
 
-        mCheckPeriod = Settings.Global.getInt(resolver,
+        int checkPeriod = Settings.Global.getInt(resolver,
                 Settings.Global.SMS_OUTGOING_CHECK_INTERVAL_MS,
                 DEFAULT_SMS_CHECK_PERIOD);
 
+        mSendRateLimiter = new SmsSendRateLimiter(checkPeriod, maxAllowed);
+
         mSettingsObserverHandler = new SettingsObserverHandler(mContext, mCheckEnabled);
 
         loadPremiumSmsPolicyDb();
@@ -280,9 +246,9 @@ public class SmsUsageMonitor {
     /**
      * Return a pattern matcher object for the specified country.
      * @param country the country to search for
-     * @return a {@link ShortCodePatternMatcher} for the specified country, or null if not found
+     * @return a {@link ShortCodeClassifier} for the specified country, or null if not found
      */
-    private ShortCodePatternMatcher getPatternMatcherFromFile(String country) {
+    private ShortCodeClassifier getPatternMatcherFromFile(String country) {
         FileReader patternReader = null;
         XmlPullParser parser = null;
         try {
@@ -305,7 +271,7 @@ public class SmsUsageMonitor {
         return null;
     }
 
-    private ShortCodePatternMatcher getPatternMatcherFromResource(String country) {
+    private ShortCodeClassifier getPatternMatcherFromResource(String country) {
         int id = com.android.internal.R.xml.sms_short_codes;
         XmlResourceParser parser = null;
         try {
@@ -316,7 +282,7 @@ public class SmsUsageMonitor {
         }
     }
 
-    private ShortCodePatternMatcher getPatternMatcherFromXmlParser(XmlPullParser parser,
+    private ShortCodeClassifier getPatternMatcherFromXmlParser(XmlPullParser parser,
             String country) {
         try {
             XmlUtils.beginDocument(parser, TAG_SHORTCODES);
@@ -337,7 +303,7 @@ public class SmsUsageMonitor {
                         String premium = parser.getAttributeValue(null, ATTR_PREMIUM);
                         String free = parser.getAttributeValue(null, ATTR_FREE);
                         String standard = parser.getAttributeValue(null, ATTR_STANDARD);
-                        return new ShortCodePatternMatcher(pattern, premium, free, standard);
+                        return ShortCodeClassifier.compile(pattern, premium, free, standard);
                     }
                 } else {
                     Rlog.e(TAG, "Error: skipping unknown XML tag " + element);
@@ -354,7 +320,7 @@ public class SmsUsageMonitor {
 
     /** Clear the SMS application list for disposal. */
     void dispose() {
-        mSmsStamp.clear();
+        mSendRateLimiter.clear();
     }
 
     /**
@@ -369,22 +335,15 @@ public class SmsUsageMonitor {
      */
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     public boolean check(String appName, int smsWaiting) {
-        synchronized (mSmsStamp) {
-            removeExpiredTimestamps();
-
-            ArrayList<Long> sentList = mSmsStamp.get(appName);
-            if (sentList == null) {
-                sentList = new ArrayList<Long>();
-                mSmsStamp.put(appName, sentList);
-            }
-
-            List<String> defaultApp = mRoleManager.getRoleHolders(RoleManager.ROLE_SMS);
-            if (defaultApp.contains(appName)) {
-                return true;
-            } else {
-                return isUnderLimit(sentList, smsWaiting);
-            }
+        List<String> defaultApp = mRoleManager.getRoleHolders(RoleManager.ROLE_SMS);
+        if (defaultApp.contains(appName)) {
+            return true;
+        }
+        long ct = System.currentTimeMillis();
+        if (VDBG) {
+            log("SMS send size=" + mSendRateLimiter.getSentCount(appName, ct) + " time=" + ct);
         }
+        return mSendRateLimiter.tryAcquire(appName, smsWaiting, ct);
     }
 
     /**
@@ -419,23 +378,19 @@ public class SmsUsageMonitor {
             }
 
             if (countryIso != null) {
-                if (mCurrentCountry == null || !countryIso.equals(mCurrentCountry) ||
-                        mPatternFile.lastModified() != mPatternFileLastModified) {
-                    if (mPatternFile.exists()) {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
-                        mCurrentPatternMatcher = getPatternMatcherFromFile(countryIso);
-                        mPatternFileVersion = getPatternFileVersionFromFile();
-                    } else {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
-                        mCurrentPatternMatcher = getPatternMatcherFromResource(countryIso);
-                        mPatternFileVersion = -1;
-                    }
+                if (mPatternFile.lastModified() != mPatternFileLastModified) {
+                    // The patterns were updated; compile them again on use
+                    mShortCodeClassifiers.clear();
+                    mCurrentCountry = null;
+                }
+                if (mCurrentCountry == null || !countryIso.equals(mCurrentCountry)) {
+                    mCurrentClassifier = getShortCodeClassifier(countryIso);
                     mCurrentCountry = countryIso;
                 }
             }
 
-            if (mCurrentPatternMatcher != null) {
-                return mCurrentPatternMatcher.getNumberCategory(destAddress);
+            if (mCurrentClassifier != null) {
+                return mCurrentClassifier.getNumberCategory(destAddress);
             } else {
                 // Generic rule: numbers of 5 digits or less are considered potential short codes
                 Rlog.e(TAG, "No patterns for \"" + countryIso + "\": using generic short code rule");
@@ -448,6 +403,32 @@ public class SmsUsageMonitor {
         }
     }
 
+    /**
+     * Return the cached short code classifier for a country, loading it from the short code file
+     * or resource on first use.
+     *
+     * @param countryIso the country to search for
+     * @return the classifier, or null if the country has no patterns
+     */
+    private ShortCodeClassifier getShortCodeClassifier(String countryIso) {
+        if (mShortCodeClassifiers.containsKey(countryIso)) {
+            return mShortCodeClassifiers.get(countryIso);
+        }
+        ShortCodeClassifier classifier;
+        if (mPatternFile.exists()) {
+            if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
+            classifier = getPatternMatcherFromFile(countryIso);
+            mPatternFileVersion = getPatternFileVersionFromFile();
+        } else {
+            if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
+            classifier = getPatternMatcherFromResource(countryIso);
+            mPatternFileVersion = -1;
+            mPatternFileLastModified = 0;
+        }
+        mShortCodeClassifiers.put(countryIso, classifier);
+        return classifier;
+    }
+
     /**
      * Load the premium SMS policy from an XML file.
      * Based on code from NotificationManagerService.
@@ -645,44 +626,6 @@ public class SmsUsageMonitor {
         throw new SecurityException("Disallowed call for uid " + uid);
     }
 
-    /**
-     * Remove keys containing only old timestamps. This can happen if an SMS app is used
-     * to send messages and then uninstalled.
-     */
-    private void removeExpiredTimestamps() {
-        long beginCheckPeriod = System.currentTimeMillis() - mCheckPeriod;
-
-        synchronized (mSmsStamp) {
-            Iterator<Map.Entry<String, ArrayList<Long>>> iter = mSmsStamp.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<String, ArrayList<Long>> entry = iter.next();
-                ArrayList<Long> oldList = entry.getValue();
-                if (oldList.isEmpty() || oldList.get(oldList.size() - 1) < beginCheckPeriod) {
-                    iter.remove();
-                }
-            }
-        }
-    }
-
-    private boolean isUnderLimit(ArrayList<Long> sent, int smsWaiting) {
-        Long ct = System.currentTimeMillis();
-        long beginCheckPeriod = ct - mCheckPeriod;
-
-        if (VDBG) log("SMS send size=" + sent.size() + " time=" + ct);
-
-        while (!sent.isEmpty() && sent.get(0) < beginCheckPeriod) {
-            sent.remove(0);
-        }
-
-        if ((sent.size() + smsWaiting) <= mMaxAllowed) {
-            for (int i = 0; i < smsWaiting; i++ ) {
-                sent.add(ct);
-            }
-            return true;
-        }
-        return false;
-    }
-
     private int getPatternFileVersionFromFile() {
         File versionFile = new File(SHORT_CODE_VERSION_PATH);
         if (versionFile.exists()) {
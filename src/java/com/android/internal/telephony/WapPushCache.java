@@ -21,13 +21,13 @@ import android.telephony.Rlog;
 
 import com.android.internal.annotations.VisibleForTesting;
 
-import java.nio.ByteBuffer;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Caches WAP push PDU data for retrieval during MMS downloading.
@@ -37,26 +37,35 @@ import java.util.concurrent.TimeUnit;
  * The cache uses a circular buffer and will start invalidating the oldest entries after 250
  * message sizes have been inserted.
  * The cache also invalidates entries that have been in the cache for over 14 days.
+ *
+ * Lookups do not take the lock that insertions hold, so they stay cheap while WAP pushes are
+ * being received.
  */
 public class WapPushCache {
     private static final String TAG = "WAP PUSH CACHE";
 
-    // Because we store each size twice, this represents 250 messages. That limit is chosen so
+    // Each message is stored under two keys, so this represents 500 keys. That limit is chosen so
     // that the memory footprint of the cache stays reasonably small while still supporting what
     // we guess will be the vast majority of real use cases.
-    private static final int MAX_CACHE_SIZE = 500;
+    private static final int MAX_CACHE_MESSAGES = 250;
 
     // WAP push PDUs have an expiry property, but we can't be certain that it is set accurately
     // by the carrier. We will use our own expiry for this cache to keep it small. One example
     // carrier has an expiry of 7 days so 14 will give us room for those with longer times as well.
     private static final long CACHE_EXPIRY_TIME = TimeUnit.DAYS.toMillis(14);
 
-    private static final HashMap<String, CacheEntry> sMessageSizes = new LinkedHashMap<>() {
-        @Override
-        protected boolean removeEldestEntry(Entry<String, CacheEntry> eldest) {
-            return size() > MAX_CACHE_SIZE;
-        }
-    };
+    private static final ConcurrentHashMap<ByteKey, CacheEntry> sMessageSizes =
+            new ConcurrentHashMap<>();
+
+    // Entries in order of insertion. All entries live for CACHE_EXPIRY_TIME, so this is also the
+    // order of expiry and the oldest entry is always at the head. Guarded by itself, which also
+    // serializes writers of sMessageSizes.
+    private static final ArrayDeque<CacheEntry> sEntries = new ArrayDeque<>();
+
+    private static final AtomicLong sHitCount = new AtomicLong();
+    private static final AtomicLong sMissCount = new AtomicLong();
+    private static final AtomicLong sEvictedCount = new AtomicLong();
+    private static final AtomicLong sExpiredCount = new AtomicLong();
 
     @VisibleForTesting
     public static TelephonyFacade sTelephonyFacade = new TelephonyFacade();
@@ -64,11 +73,10 @@ public class WapPushCache {
     /**
      * Puts a WAP push PDU's messageSize in the cache.
      *
-     * The data is stored twice, once using just locationUrl as the key and once
-     * using transactionId appended to the locationUrl. For some carriers, xMS apps
-     * append the transactionId to the location and we need to support lookup using either the
-     * original location or one modified in this way.
-
+     * The data is stored under two keys, one using just locationUrl and one using transactionId
+     * appended to the locationUrl. For some carriers, xMS apps append the transactionId to the
+     * location and we need to support lookup using either the original location or one modified
+     * in this way.
      *
      * @param locationUrl location of the message used as part of the cache key.
      * @param transactionId message transaction ID used as part of the cache key.
@@ -79,43 +87,53 @@ public class WapPushCache {
             @NonNull byte[] transactionId,
             long messageSize
     ) {
-        long expiry = sTelephonyFacade.getElapsedSinceBootMillis() + CACHE_EXPIRY_TIME;
+        long currentTime = sTelephonyFacade.getElapsedSinceBootMillis();
         if (messageSize <= 0) {
             Rlog.e(TAG, "Invalid message size of " + messageSize + ". Not inserting.");
             return;
         }
-        synchronized (sMessageSizes) {
-            sMessageSizes.put(Arrays.toString(locationUrl), new CacheEntry(messageSize, expiry));
-
-            // concatenate the locationUrl and transactionId
-            byte[] joinedKey = ByteBuffer
-                    .allocate(locationUrl.length + transactionId.length)
-                    .put(locationUrl)
-                    .put(transactionId)
-                    .array();
-            sMessageSizes.put(Arrays.toString(joinedKey), new CacheEntry(messageSize, expiry));
-            invalidateOldEntries();
+        // concatenate the locationUrl and transactionId
+        byte[] joinedKey = Arrays.copyOf(locationUrl, locationUrl.length + transactionId.length);
+        System.arraycopy(transactionId, 0, joinedKey, locationUrl.length, transactionId.length);
+
+        CacheEntry entry = new CacheEntry(messageSize, currentTime + CACHE_EXPIRY_TIME,
+                new ByteKey(locationUrl.clone()), new ByteKey(joinedKey));
+        synchronized (sEntries) {
+            invalidateOldEntries(currentTime);
+            // A message pushed again replaces its entry, so it does not take a second slot
+            CacheEntry existing = sMessageSizes.get(entry.mJoinedKey);
+            if (existing != null && existing.mJoinedKey.equals(entry.mJoinedKey)) {
+                sEntries.remove(existing);
+                remove(existing);
+            }
+            if (sEntries.size() >= MAX_CACHE_MESSAGES) {
+                remove(sEntries.poll());
+                sEvictedCount.incrementAndGet();
+            }
+            sEntries.add(entry);
+            sMessageSizes.put(entry.mLocationKey, entry);
+            sMessageSizes.put(entry.mJoinedKey, entry);
         }
     }
 
     /**
      * Remove entries from the cache that are older than CACHE_EXPIRY_TIME
      */
-    private static void invalidateOldEntries() {
-        long currentTime = sTelephonyFacade.getElapsedSinceBootMillis();
-
-        // We can just remove elements from the start until one is found that does not exceed the
-        // expiry since the elements are in order of insertion.
-        for (Iterator<CacheEntry> it = sMessageSizes.values().iterator(); it.hasNext(); ) {
-            CacheEntry entry = it.next();
-            if (entry.mExpiry < currentTime) {
-                it.remove();
-            } else {
-                break;
-            }
+    private static void invalidateOldEntries(long currentTime) {
+        // Only the head of the queue needs to be checked since entries expire in insertion order.
+        CacheEntry entry;
+        while ((entry = sEntries.peek()) != null && entry.mExpiry < currentTime) {
+            remove(sEntries.poll());
+            sExpiredCount.incrementAndGet();
         }
     }
 
+    private static void remove(@NonNull CacheEntry entry) {
+        // The keys may have been taken over by a newer entry for the same message
+        sMessageSizes.remove(entry.mLocationKey, entry);
+        sMessageSizes.remove(entry.mJoinedKey, entry);
+    }
+
     /**
      * Gets the message size of a WAP from the cache.
      *
@@ -133,12 +151,15 @@ public class WapPushCache {
         if (locationUrl.length == 0) {
             throw new IllegalArgumentException("Found empty locationUrl");
         }
-        CacheEntry entry = sMessageSizes.get(Arrays.toString(locationUrl));
-        if (entry == null) {
+        CacheEntry entry = sMessageSizes.get(new ByteKey(locationUrl));
+        if (entry == null
+                || entry.mExpiry < sTelephonyFacade.getElapsedSinceBootMillis()) {
+            sMissCount.incrementAndGet();
             throw new NoSuchElementException(
                 "No cached WAP size for locationUrl " + Arrays.toString(locationUrl)
             );
         }
+        sHitCount.incrementAndGet();
         return entry.mSize;
     }
 
@@ -147,7 +168,14 @@ public class WapPushCache {
      */
     @VisibleForTesting
     public static void clear() {
-        sMessageSizes.clear();
+        synchronized (sEntries) {
+            sEntries.clear();
+            sMessageSizes.clear();
+        }
+        sHitCount.set(0);
+        sMissCount.set(0);
+        sEvictedCount.set(0);
+        sExpiredCount.set(0);
     }
 
     /**
@@ -159,14 +187,66 @@ public class WapPushCache {
         return sMessageSizes.size();
     }
 
+    /** @return The number of lookups that found a message size. */
+    @VisibleForTesting
+    public static long getHitCount() {
+        return sHitCount.get();
+    }
 
+    /** @return The number of lookups that did not find a message size. */
+    @VisibleForTesting
+    public static long getMissCount() {
+        return sMissCount.get();
+    }
+
+    /**
+     * Dump the cache statistics.
+     *
+     * @param pw Print writer.
+     */
+    public static void dump(@NonNull PrintWriter pw) {
+        int messages;
+        synchronized (sEntries) {
+            messages = sEntries.size();
+        }
+        pw.println("WapPushCache: messages=" + messages + "/" + MAX_CACHE_MESSAGES
+                + " hits=" + sHitCount.get() + " misses=" + sMissCount.get()
+                + " evicted=" + sEvictedCount.get() + " expired=" + sExpiredCount.get());
+    }
+
+    /** A byte sequence usable as a map key, with its hash computed once. */
+    private static final class ByteKey {
+        private final byte[] mBytes;
+        private final int mHashCode;
+
+        ByteKey(@NonNull byte[] bytes) {
+            mBytes = bytes;
+            mHashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ByteKey that && mHashCode == that.mHashCode
+                    && Arrays.equals(mBytes, that.mBytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
 
     private static class CacheEntry {
-        CacheEntry(long size, long expiry) {
+        CacheEntry(long size, long expiry, @NonNull ByteKey locationKey,
+                @NonNull ByteKey joinedKey) {
             mSize = size;
             mExpiry = expiry;
+            mLocationKey = locationKey;
+            mJoinedKey = joinedKey;
         }
         private final long mSize;
         private final long mExpiry;
+        private final ByteKey mLocationKey;
+        private final ByteKey mJoinedKey;
     }
 }
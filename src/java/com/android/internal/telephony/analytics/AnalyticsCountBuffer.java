@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.analytics;
+
+import android.content.ContentValues;
+import android.provider.BaseColumns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory aggregation of analytics events which are not yet written to the database.
+ *
+ * Events with the same values in the key columns are merged into one pending row, whose count is
+ * the number of merged events and whose other columns hold the values of the latest event. The
+ * pending rows are written by {@link TelephonyAnalyticsUtil#flush(AnalyticsCountBuffer)}, which
+ * adds each count to the matching row of the table or inserts a new row.
+ *
+ * Not thread safe; the owning provider serializes access.
+ */
+public class AnalyticsCountBuffer {
+    /** A pending row. */
+    public static final class Row {
+        private final String[] mKeyValues;
+        private String[] mValues;
+        private long mCount;
+
+        private Row(String[] keyValues) {
+            mKeyValues = keyValues;
+        }
+
+        /** @return The values of the key columns. */
+        public String[] getKeyValues() {
+            return mKeyValues;
+        }
+
+        /** @return The latest values of the value columns. */
+        public String[] getValues() {
+            return mValues;
+        }
+
+        /** @return The amount to add to the count column. */
+        public long getCount() {
+            return mCount;
+        }
+    }
+
+    private final String mTableName;
+    private final String[] mKeyColumns;
+    private final String[] mValueColumns;
+    private final String mCountColumn;
+    private final String mUpdateSql;
+    private final String mInsertSql;
+    private final Map<List<String>, Row> mRows = new LinkedHashMap<>();
+    private long mPendingEvents;
+
+    /**
+     * @param tableName The table the rows are written to.
+     * @param keyColumns Columns identifying a row.
+     * @param valueColumns Columns overwritten with the latest value when a row is updated.
+     * @param countColumn Column holding the number of events aggregated in a row.
+     */
+    public AnalyticsCountBuffer(String tableName, String[] keyColumns, String[] valueColumns,
+            String countColumn) {
+        mTableName = tableName;
+        mKeyColumns = keyColumns;
+        mValueColumns = valueColumns;
+        mCountColumn = countColumn;
+        mUpdateSql = buildUpdateSql();
+        mInsertSql = buildInsertSql();
+    }
+
+    // UPDATE table SET count = count + ?, value = ? WHERE _id = (SELECT _id FROM table
+    // WHERE key IS ? LIMIT 1). Only the first matching row is updated, as the previous
+    // query-then-update did, and IS lets null keys match.
+    private String buildUpdateSql() {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(mTableName)
+                .append(" SET ").append(mCountColumn).append(" = ").append(mCountColumn)
+                .append(" + ?");
+        for (String column : mValueColumns) {
+            sql.append(", ").append(column).append(" = ?");
+        }
+        sql.append(" WHERE ").append(BaseColumns._ID).append(" = (SELECT ")
+                .append(BaseColumns._ID).append(" FROM ").append(mTableName).append(" WHERE ");
+        for (int i = 0; i < mKeyColumns.length; i++) {
+            if (i > 0) sql.append(" AND ");
+            sql.append(mKeyColumns[i]).append(" IS ?");
+        }
+        return sql.append(" LIMIT 1)").toString();
+    }
+
+    // INSERT INTO table (key..., value..., count) VALUES (?, ...)
+    private String buildInsertSql() {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(mTableName).append(" (");
+        for (String column : mKeyColumns) {
+            sql.append(column).append(", ");
+        }
+        for (String column : mValueColumns) {
+            sql.append(column).append(", ");
+        }
+        sql.append(mCountColumn).append(") VALUES (");
+        int columns = mKeyColumns.length + mValueColumns.length + 1;
+        for (int i = 0; i < columns; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(")").toString();
+    }
+
+    /**
+     * Aggregate an event.
+     *
+     * @param values The columns of the event. Must contain all key and value columns.
+     * @param count The amount to add to the count column.
+     * @return The number of events aggregated since the last {@link #drain()}.
+     */
+    public long add(ContentValues values, long count) {
+        String[] keyValues = getAsStrings(values, mKeyColumns);
+        Row row = mRows.computeIfAbsent(Arrays.asList(keyValues), k -> new Row(keyValues));
+        row.mValues = getAsStrings(values, mValueColumns);
+        row.mCount += count;
+        return ++mPendingEvents;
+    }
+
+    private static String[] getAsStrings(ContentValues values, String[] columns) {
+        String[] strings = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            strings[i] = values.getAsString(columns[i]);
+        }
+        return strings;
+    }
+
+    /** @return {@code true} if there is no pending row. */
+    public boolean isEmpty() {
+        return mRows.isEmpty();
+    }
+
+    /** @return The pending rows, and clear them. */
+    public Collection<Row> drain() {
+        List<Row> rows = new ArrayList<>(mRows.values());
+        mRows.clear();
+        mPendingEvents = 0;
+        return rows;
+    }
+
+    /** @return The table the rows are written to. */
+    public String getTableName() {
+        return mTableName;
+    }
+
+    /**
+     * @return Statement adding the count of a row to the matching row of the table. Binds the
+     * count, then the value columns, then the key columns.
+     */
+    public String getUpdateSql() {
+        return mUpdateSql;
+    }
+
+    /**
+     * @return Statement inserting a row. Binds the key columns, then the value columns, then the
+     * count.
+     */
+    public String getInsertSql() {
+        return mInsertSql;
+    }
+}
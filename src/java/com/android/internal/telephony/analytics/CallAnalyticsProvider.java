@@ -67,35 +67,34 @@ public class CallAnalyticsProvider implements TelephonyAnalyticsProvider {
                     + " INTEGER DEFAULT 1 "
                     + ");";
 
-    private static final String[] CALL_INSERTION_PROJECTION = {
-        CallAnalyticsTable._ID, CallAnalyticsTable.COUNT
+    /** Successful calls are aggregated per day, call type and slot. */
+    private static final String[] CALL_SUCCESS_KEY_COLUMNS = {
+        CallAnalyticsTable.CALL_TYPE,
+        CallAnalyticsTable.LOG_DATE,
+        CallAnalyticsTable.CALL_STATUS,
+        CallAnalyticsTable.SLOT_ID
     };
 
-    private static final String CALL_SUCCESS_INSERTION_SELECTION =
-            CallAnalyticsTable.CALL_TYPE
-                    + " = ? AND "
-                    + CallAnalyticsTable.LOG_DATE
-                    + " = ? AND "
-                    + CallAnalyticsTable.CALL_STATUS
-                    + " = ? AND "
-                    + CallAnalyticsTable.SLOT_ID
-                    + " = ? ";
+    private static final String[] CALL_SUCCESS_VALUE_COLUMNS = {
+        CallAnalyticsTable.RAT,
+        CallAnalyticsTable.FAILURE_REASON,
+        CallAnalyticsTable.RELEASE_VERSION
+    };
 
-    private static final String CALL_FAILED_INSERTION_SELECTION =
-            CallAnalyticsTable.LOG_DATE
-                    + " = ? AND "
-                    + CallAnalyticsTable.CALL_STATUS
-                    + " = ? AND "
-                    + CallAnalyticsTable.CALL_TYPE
-                    + " = ? AND "
-                    + CallAnalyticsTable.SLOT_ID
-                    + " = ? AND "
-                    + CallAnalyticsTable.RAT
-                    + " = ? AND "
-                    + CallAnalyticsTable.FAILURE_REASON
-                    + " = ? AND "
-                    + CallAnalyticsTable.RELEASE_VERSION
-                    + " = ? ";
+    /** Failed calls are aggregated per day, call type, slot, RAT, reason and version. */
+    private static final String[] CALL_FAILURE_KEY_COLUMNS = {
+        CallAnalyticsTable.LOG_DATE,
+        CallAnalyticsTable.CALL_STATUS,
+        CallAnalyticsTable.CALL_TYPE,
+        CallAnalyticsTable.SLOT_ID,
+        CallAnalyticsTable.RAT,
+        CallAnalyticsTable.FAILURE_REASON,
+        CallAnalyticsTable.RELEASE_VERSION
+    };
+
+    /** Number of calls buffered in memory before they are written to the database. */
+    @VisibleForTesting
+    public static final int MAX_PENDING_CALLS = 20;
 
     private static final String CALL_OLD_DATA_DELETION_SELECTION =
             CallAnalyticsTable.LOG_DATE + " < ? ";
@@ -133,6 +132,22 @@ public class CallAnalyticsProvider implements TelephonyAnalyticsProvider {
 
     private final int mSlotIndex;
 
+    private final AnalyticsCountBuffer mPendingSuccessCalls =
+            new AnalyticsCountBuffer(
+                    CallAnalyticsTable.TABLE_NAME,
+                    CALL_SUCCESS_KEY_COLUMNS,
+                    CALL_SUCCESS_VALUE_COLUMNS,
+                    CallAnalyticsTable.COUNT);
+
+    private final AnalyticsCountBuffer mPendingFailedCalls =
+            new AnalyticsCountBuffer(
+                    CallAnalyticsTable.TABLE_NAME,
+                    CALL_FAILURE_KEY_COLUMNS,
+                    new String[0],
+                    CallAnalyticsTable.COUNT);
+
+    private int mPendingCallCount;
+
     /**
      * Initializes the CallAnalyticsProvider object and creates a table in the DB to log the
      * information related to Calls.
@@ -160,30 +175,9 @@ public class CallAnalyticsProvider implements TelephonyAnalyticsProvider {
         return values;
     }
 
-    private String[] getSuccessfulCallSelectionArgs(ContentValues values) {
-        return new String[] {
-            values.getAsString(CallAnalyticsTable.CALL_TYPE),
-            values.getAsString(CallAnalyticsTable.LOG_DATE),
-            CallStatus.SUCCESS.value,
-            values.getAsString(CallAnalyticsTable.SLOT_ID)
-        };
-    }
-
-    private String[] getFailedCallSelectionArgs(ContentValues values) {
-
-        return new String[] {
-            values.getAsString(CallAnalyticsTable.LOG_DATE),
-            values.getAsString(CallAnalyticsTable.CALL_STATUS),
-            values.getAsString(CallAnalyticsTable.CALL_TYPE),
-            values.getAsString(CallAnalyticsTable.SLOT_ID),
-            values.getAsString(CallAnalyticsTable.RAT),
-            values.getAsString(CallAnalyticsTable.FAILURE_REASON),
-            values.getAsString(CallAnalyticsTable.RELEASE_VERSION)
-        };
-    }
-
     /**
-     * Receives data, processes it and sends for insertion to db.
+     * Receives data, processes it and buffers it for insertion to db. Buffered calls are written
+     * by {@link #flush()}, which runs once {@link #MAX_PENDING_CALLS} calls are buffered.
      *
      * @param callType : Type of the Call , i.e. Normal or Sos
      * @param callStatus : Defines call was success or failure
@@ -191,74 +185,31 @@ public class CallAnalyticsProvider implements TelephonyAnalyticsProvider {
      * @param rat : Radio Access Technology on which call ended.
      * @param failureReason : Failure Reason of the call.
      */
-    public void insertDataToDb(
+    public synchronized void insertDataToDb(
             String callType, String callStatus, int slotId, String rat, String failureReason) {
         ContentValues values = getContentValues(callType, callStatus, slotId, rat, failureReason);
-        Cursor cursor = null;
-        try {
-            if (values.getAsString(CallAnalyticsTable.CALL_STATUS)
-                    .equals(CallStatus.SUCCESS.value)) {
-                Rlog.d(TAG, "Insertion for Success Call");
-                String[] selectionArgs = getSuccessfulCallSelectionArgs(values);
-                cursor =
-                        mTelephonyAnalyticsUtil.getCursor(
-                                CallAnalyticsTable.TABLE_NAME,
-                                CALL_INSERTION_PROJECTION,
-                                CALL_SUCCESS_INSERTION_SELECTION,
-                                selectionArgs,
-                                null,
-                                null,
-                                null,
-                                null);
-            } else {
-
-                String[] selectionArgs = getFailedCallSelectionArgs(values);
-                cursor =
-                        mTelephonyAnalyticsUtil.getCursor(
-                                CallAnalyticsTable.TABLE_NAME,
-                                CALL_INSERTION_PROJECTION,
-                                CALL_FAILED_INSERTION_SELECTION,
-                                selectionArgs,
-                                null,
-                                null,
-                                null,
-                                null);
-            }
-            updateEntryIfExistsOrInsert(cursor, values);
-            deleteOldAndOverflowData();
-        } catch (Exception e) {
-            Rlog.e(TAG, "Error caught in insertDataToDb while insertion.");
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+        if (CallStatus.SUCCESS.value.equals(callStatus)) {
+            mPendingSuccessCalls.add(values, 1);
+        } else {
+            mPendingFailedCalls.add(values, 1);
+        }
+        if (++mPendingCallCount >= MAX_PENDING_CALLS) {
+            flush();
         }
     }
 
-    private void updateEntryIfExistsOrInsert(Cursor cursor, ContentValues values) {
-        if (cursor != null && cursor.moveToFirst()) {
-            int idColumnIndex = cursor.getColumnIndex(CallAnalyticsTable._ID);
-            int countColumnIndex = cursor.getColumnIndex(CallAnalyticsTable.COUNT);
-            if (idColumnIndex != -1 && countColumnIndex != -1) {
-                int id = cursor.getInt(idColumnIndex);
-                int count = cursor.getInt(countColumnIndex);
-                int newCount = count + 1;
-
-                values.put(CallAnalyticsTable.COUNT, newCount);
-
-                String updateSelection = CallAnalyticsTable._ID + " = ? ";
-                String[] updateSelectionArgs = {String.valueOf(id)};
-                Rlog.d(TAG, "Updated Count = " + values.getAsString(CallAnalyticsTable.COUNT));
-
-                mTelephonyAnalyticsUtil.update(
-                        CallAnalyticsTable.TABLE_NAME,
-                        values,
-                        updateSelection,
-                        updateSelectionArgs);
-            }
-        } else {
-            Rlog.d(TAG, "Simple Insertion");
-            mTelephonyAnalyticsUtil.insert(CallAnalyticsTable.TABLE_NAME, values);
+    /**
+     * Writes the buffered calls to the db in one transaction, then deletes old and overflow data
+     * if it was not done today.
+     */
+    public synchronized void flush() {
+        mPendingCallCount = 0;
+        try {
+            mTelephonyAnalyticsUtil.flush(mPendingSuccessCalls);
+            mTelephonyAnalyticsUtil.flush(mPendingFailedCalls);
+            deleteOldAndOverflowData();
+        } catch (Exception e) {
+            Rlog.e(TAG, "Error caught in flush while insertion.");
         }
     }
 
@@ -622,6 +573,7 @@ public class CallAnalyticsProvider implements TelephonyAnalyticsProvider {
      * @return List which contains all the Calls related information
      */
     public ArrayList<String> aggregate() {
+        flush();
         long totalCalls = countTotalCalls();
         long failedCalls = countFailedCalls();
         double percentageFailedCalls = (double) failedCalls / (double) totalCalls * 100.0;
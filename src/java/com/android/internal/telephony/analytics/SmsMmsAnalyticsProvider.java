@@ -102,44 +102,59 @@ public class SmsMmsAnalyticsProvider implements TelephonyAnalyticsProvider {
         }
     }
 
+    /** Successful SMS/MMS are aggregated per day, type and slot. */
+    private static final String[] SMS_MMS_SUCCESS_KEY_COLUMNS = {
+            SmsMmsAnalyticsTable.LOG_DATE,
+            SmsMmsAnalyticsTable.SMS_MMS_TYPE,
+            SmsMmsAnalyticsTable.SMS_MMS_STATUS,
+            SmsMmsAnalyticsTable.SLOT_ID
+    };
+
+    private static final String[] SMS_MMS_SUCCESS_VALUE_COLUMNS = {
+            SmsMmsAnalyticsTable.RAT,
+            SmsMmsAnalyticsTable.FAILURE_REASON,
+            SmsMmsAnalyticsTable.RELEASE_VERSION
+    };
+
+    /** Failed SMS/MMS are aggregated per day, type, RAT, slot, reason and version. */
+    private static final String[] SMS_MMS_FAILURE_KEY_COLUMNS = {
+            SmsMmsAnalyticsTable.LOG_DATE,
+            SmsMmsAnalyticsTable.SMS_MMS_STATUS,
+            SmsMmsAnalyticsTable.SMS_MMS_TYPE,
+            SmsMmsAnalyticsTable.RAT,
+            SmsMmsAnalyticsTable.SLOT_ID,
+            SmsMmsAnalyticsTable.FAILURE_REASON,
+            SmsMmsAnalyticsTable.RELEASE_VERSION
+    };
+
+    /** Number of SMS/MMS buffered in memory before they are written to the database. */
+    @VisibleForTesting
+    public static final int MAX_PENDING_SMS_MMS = 20;
+
     private final int mSlotIndex;
 
+    private final AnalyticsCountBuffer mPendingSuccessSmsMms =
+            new AnalyticsCountBuffer(
+                    SmsMmsAnalyticsTable.TABLE_NAME,
+                    SMS_MMS_SUCCESS_KEY_COLUMNS,
+                    SMS_MMS_SUCCESS_VALUE_COLUMNS,
+                    SmsMmsAnalyticsTable.COUNT);
+
+    private final AnalyticsCountBuffer mPendingFailedSmsMms =
+            new AnalyticsCountBuffer(
+                    SmsMmsAnalyticsTable.TABLE_NAME,
+                    SMS_MMS_FAILURE_KEY_COLUMNS,
+                    new String[0],
+                    SmsMmsAnalyticsTable.COUNT);
+
+    private int mPendingSmsMmsCount;
+
     public SmsMmsAnalyticsProvider(TelephonyAnalyticsUtil databaseUtil, int slotIndex) {
         mTelephonyAnalyticsUtil = databaseUtil;
         mSlotIndex = slotIndex;
         mTelephonyAnalyticsUtil.createTable(CREATE_SMS_MMS_ANALYTICS_TABLE);
     }
 
-    private static final String[] SMS_MMS_INSERTION_PROJECTION = {
-            SmsMmsAnalyticsTable._ID, SmsMmsAnalyticsTable.COUNT
-    };
-
-    private static final String SMS_MMS_INSERTION_SUCCESS_SELECTION =
-            SmsMmsAnalyticsTable.LOG_DATE
-                    + " = ? AND "
-                    + SmsMmsAnalyticsTable.SMS_MMS_TYPE
-                    + " = ? AND "
-                    + SmsMmsAnalyticsTable.SMS_MMS_STATUS
-                    + " = ? AND "
-                    + SmsMmsAnalyticsTable.SLOT_ID
-                    + " = ? ";
-
-    private static final String SMS_MMS_INSERTION_FAILURE_SELECTION =
-            SmsMmsAnalyticsTable.LOG_DATE
-                    + " = ? AND "
-                    + SmsMmsAnalyticsTable.SMS_MMS_STATUS
-                    + " = ? AND "
-                    + SmsMmsAnalyticsTable.SMS_MMS_TYPE
-                    + " = ? AND "
-                    + SmsMmsAnalyticsTable.RAT
-                    + " = ? AND "
-                    + SmsMmsAnalyticsTable.SLOT_ID
-                    + " = ? AND "
-                    + SmsMmsAnalyticsTable.FAILURE_REASON
-                    + " = ? AND "
-                    + SmsMmsAnalyticsTable.RELEASE_VERSION
-                    + " = ? ";
-
     private ContentValues getContentValues(
             String status, String smsMmsType, String rat, String failureReason) {
         ContentValues values = new ContentValues();
@@ -155,7 +170,9 @@ public class SmsMmsAnalyticsProvider implements TelephonyAnalyticsProvider {
     }
 
     /**
-     * Processes the received data for insertion to the database.
+     * Processes the received data and buffers it for insertion to the database. Buffered entries
+     * are written by {@link #flush()}, which runs once {@link #MAX_PENDING_SMS_MMS} entries are
+     * buffered.
      *
      * @param status : SMS Status ,i.e. Success or Failure
      * @param smsMmsType : Type ,i.e. outgoing/incoming
@@ -163,95 +180,32 @@ public class SmsMmsAnalyticsProvider implements TelephonyAnalyticsProvider {
      * @param failureReason : Reason for failure
      */
     @VisibleForTesting
-    public void insertDataToDb(String status, String smsMmsType, String rat, String failureReason) {
+    public synchronized void insertDataToDb(
+            String status, String smsMmsType, String rat, String failureReason) {
         ContentValues values = getContentValues(status, smsMmsType, rat, failureReason);
         Rlog.d(TAG, values.toString());
-        Cursor cursor = null;
-        String[] selectionArgs;
-        try {
-            if (values.getAsString(SmsMmsAnalyticsTable.SMS_MMS_STATUS)
-                    .equals(SmsMmsStatus.SUCCESS.value)) {
-                Rlog.d(TAG, "Success Entry Data for Sms/Mms: " + values.toString());
-                selectionArgs =
-                        new String[] {
-                                values.getAsString(SmsMmsAnalyticsTable.LOG_DATE),
-                                values.getAsString(SmsMmsAnalyticsTable.SMS_MMS_TYPE),
-                                values.getAsString(SmsMmsAnalyticsTable.SMS_MMS_STATUS),
-                                values.getAsString(SmsMmsAnalyticsTable.SLOT_ID)
-                        };
-                cursor =
-                        mTelephonyAnalyticsUtil.getCursor(
-                                SmsMmsAnalyticsTable.TABLE_NAME,
-                                SMS_MMS_INSERTION_PROJECTION,
-                                SMS_MMS_INSERTION_SUCCESS_SELECTION,
-                                selectionArgs,
-                                null,
-                                null,
-                                null,
-                                null);
-
-            } else {
-                selectionArgs =
-                        new String[] {
-                                values.getAsString(SmsMmsAnalyticsTable.LOG_DATE),
-                                values.getAsString(SmsMmsAnalyticsTable.SMS_MMS_STATUS),
-                                values.getAsString(SmsMmsAnalyticsTable.SMS_MMS_TYPE),
-                                values.getAsString(SmsMmsAnalyticsTable.RAT),
-                                values.getAsString(SmsMmsAnalyticsTable.SLOT_ID),
-                                values.getAsString(SmsMmsAnalyticsTable.FAILURE_REASON),
-                                values.getAsString(SmsMmsAnalyticsTable.RELEASE_VERSION)
-                        };
-                cursor =
-                        mTelephonyAnalyticsUtil.getCursor(
-                                SmsMmsAnalyticsTable.TABLE_NAME,
-                                SMS_MMS_INSERTION_PROJECTION,
-                                SMS_MMS_INSERTION_FAILURE_SELECTION,
-                                selectionArgs,
-                                null,
-                                null,
-                                null,
-                                null);
-            }
-            updateIfEntryExistsOtherwiseInsert(cursor, values);
-            deleteOldAndOverflowData();
-        } catch (Exception e) {
-            Rlog.e(TAG, "Exception during Sms/Mms Insertion [insertDataToDb()] " + e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+        if (SmsMmsStatus.SUCCESS.value.equals(status)) {
+            mPendingSuccessSmsMms.add(values, 1);
+        } else {
+            mPendingFailedSmsMms.add(values, 1);
+        }
+        if (++mPendingSmsMmsCount >= MAX_PENDING_SMS_MMS) {
+            flush();
         }
-
     }
 
     /**
-     * Checks if a similar entry exists and updates the existing entry. Otherwise, inserts a new
-     * entry.
+     * Writes the buffered entries to the database in one transaction, then deletes old and
+     * overflow data if it was not done today.
      */
-    @VisibleForTesting
-    public void updateIfEntryExistsOtherwiseInsert(Cursor cursor, ContentValues values) {
-        if (cursor != null && cursor.moveToFirst()) {
-            int idColumnIndex = cursor.getColumnIndex(SmsMmsAnalyticsTable._ID);
-            int countColumnIndex = cursor.getColumnIndex(SmsMmsAnalyticsTable.COUNT);
-            if (idColumnIndex != -1 && countColumnIndex != -1) {
-                int id = cursor.getInt(idColumnIndex);
-                int count = cursor.getInt(countColumnIndex);
-                int newCount = count + 1;
-
-                values.put(SmsMmsAnalyticsTable.COUNT, newCount);
-
-                String updateSelection = SmsMmsAnalyticsTable._ID + " = ? ";
-                String[] updateSelectionArgs = {String.valueOf(id)};
-                Rlog.d(TAG, "Updated Count = " + values.getAsString(SmsMmsAnalyticsTable.COUNT));
-
-                mTelephonyAnalyticsUtil.update(
-                        SmsMmsAnalyticsTable.TABLE_NAME,
-                        values,
-                        updateSelection,
-                        updateSelectionArgs);
-            }
-        } else {
-            mTelephonyAnalyticsUtil.insert(SmsMmsAnalyticsTable.TABLE_NAME, values);
+    public synchronized void flush() {
+        mPendingSmsMmsCount = 0;
+        try {
+            mTelephonyAnalyticsUtil.flush(mPendingSuccessSmsMms);
+            mTelephonyAnalyticsUtil.flush(mPendingFailedSmsMms);
+            deleteOldAndOverflowData();
+        } catch (Exception e) {
+            Rlog.e(TAG, "Exception during Sms/Mms Insertion [flush()] " + e);
         }
     }
 
@@ -482,6 +436,7 @@ public class SmsMmsAnalyticsProvider implements TelephonyAnalyticsProvider {
      * @return List of SmsMms analytics information.
      */
     public ArrayList<String> aggregate() {
+        flush();
         long totalOutgoingSms = getSmsOutgoingCount();
         long totalIncomingSms = getSmsIncomingCount();
         long totalOutgoingMms = getMmsOutgoingCount();
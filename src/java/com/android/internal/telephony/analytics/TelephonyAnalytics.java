@@ -62,6 +62,7 @@ import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -72,6 +73,8 @@ import java.util.concurrent.atomic.AtomicReference;
 public class TelephonyAnalytics {
     private static final String TAG = TelephonyAnalytics.class.getSimpleName();
     protected static final int INVALID_SUB_ID = -1;
+    /** Delay before data buffered by the providers is written to the database. */
+    private static final long FLUSH_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
     private final int mSlotIndex;
     private final HandlerThread mHandlerThread;
     private final Handler mHandler;
@@ -108,6 +111,22 @@ public class TelephonyAnalytics {
     protected SmsMmsAnalytics mSmsMmsAnalytics;
     protected CallAnalytics mCallAnalytics;
     protected Phone mPhone;
+    private final Runnable mFlushRunnable = () -> mExecutorService.execute(() -> {
+        mCallAnalyticsProvider.flush();
+        mSmsMmsAnalyticsProvider.flush();
+    });
+
+    /** Writes the buffered data before shutdown, as it would be lost otherwise. */
+    private final BroadcastReceiver mShutdownReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_SHUTDOWN.equals(intent.getAction())) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mCallAnalyticsProvider.flush();
+                mSmsMmsAnalyticsProvider.flush();
+            }
+        }
+    };
 
     public TelephonyAnalytics(Phone phone) {
         mPhone = phone;
@@ -128,6 +147,8 @@ public class TelephonyAnalytics {
                 new ServiceStateAnalyticsProvider(mTelephonyAnalyticsUtil, mSlotIndex);
 
         startAnalytics(mSubId);
+        mContext.registerReceiver(
+                mShutdownReceiver, new IntentFilter(Intent.ACTION_SHUTDOWN), null, mHandler);
 
         if (mSubscriptionManager != null) {
             mSubscriptionManager.addOnSubscriptionsChangedListener(
@@ -181,6 +202,17 @@ public class TelephonyAnalytics {
         return mCallAnalytics;
     }
 
+    /**
+     * Schedules writing the data buffered by the providers to the database, unless a write is
+     * already scheduled. The providers also write once enough data is buffered, and before
+     * aggregating a report.
+     */
+    private void scheduleFlush() {
+        if (!mHandler.hasCallbacks(mFlushRunnable)) {
+            mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MILLIS);
+        }
+    }
+
     /**
      * Uses the provider class objects,collects the aggregated report from the respective provider
      * classes. Dumps the collected stats in the bugreport.
@@ -306,6 +338,7 @@ public class TelephonyAnalytics {
                                         Integer.toString(simSlotIndex)));
                 Rlog.d(TAG, data.toString());
             });
+            scheduleFlush();
         }
 
         private static final Map<Integer, String> sImsCodeMap;
@@ -988,6 +1021,7 @@ public class TelephonyAnalytics {
             mExecutorService.execute(() -> {
                 mSmsMmsAnalyticsProvider.insertDataToDb(status, type, rat, failureReason);
             });
+            scheduleFlush();
         }
 
         private static int getIncomingError(int result) {
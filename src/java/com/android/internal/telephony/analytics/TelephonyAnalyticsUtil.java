@@ -24,11 +24,13 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.telephony.Rlog;
 
 import java.util.Calendar;
+import java.util.Collection;
 
 /**
  * Singleton Utility class to support TelephonyAnalytics Extends SQLiteOpenHelper class. Supports db
@@ -107,6 +109,74 @@ public class TelephonyAnalyticsUtil extends SQLiteOpenHelper {
         return rowsAffected;
     }
 
+    /**
+     * Writes the pending rows of the buffer to its table in a single transaction, adding the count
+     * of each row to the matching row of the table or inserting it if there is none. The buffer
+     * is drained even if the write fails.
+     *
+     * @param buffer The rows to write.
+     */
+    public synchronized void flush(AnalyticsCountBuffer buffer) {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        try {
+            flush(getWritableDatabase(), buffer);
+        } catch (SQLException e) {
+            Rlog.e(TAG, "Error during flush of " + buffer.getTableName() + " : " + e);
+        } finally {
+            buffer.drain();
+        }
+    }
+
+    /**
+     * Writes the pending rows of the buffer to the given database in a single transaction.
+     *
+     * @param db The database holding the table of the buffer.
+     * @param buffer The rows to write. Drained even if the write fails.
+     * @throws SQLException if the write fails, in which case nothing is written.
+     */
+    @VisibleForTesting
+    public static void flush(SQLiteDatabase db, AnalyticsCountBuffer buffer) {
+        Collection<AnalyticsCountBuffer.Row> rows = buffer.drain();
+        db.beginTransaction();
+        try (SQLiteStatement update = db.compileStatement(buffer.getUpdateSql());
+                SQLiteStatement insert = db.compileStatement(buffer.getInsertSql())) {
+            for (AnalyticsCountBuffer.Row row : rows) {
+                String[] keyValues = row.getKeyValues();
+                String[] values = row.getValues();
+
+                update.clearBindings();
+                int index = 1;
+                update.bindLong(index++, row.getCount());
+                index = bindStrings(update, index, values);
+                bindStrings(update, index, keyValues);
+                if (update.executeUpdateDelete() == 0) {
+                    insert.clearBindings();
+                    index = bindStrings(insert, 1, keyValues);
+                    index = bindStrings(insert, index, values);
+                    insert.bindLong(index, row.getCount());
+                    insert.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Rlog.d(TAG, "Flushed " + rows.size() + " rows to " + buffer.getTableName());
+    }
+
+    private static int bindStrings(SQLiteStatement statement, int index, String[] values) {
+        for (String value : values) {
+            if (value == null) {
+                statement.bindNull(index++);
+            } else {
+                statement.bindString(index++, value);
+            }
+        }
+        return index;
+    }
+
     /**
      * @Return the cursor object obtained from running a query based on given parameters.
      */
@@ -127,6 +127,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -372,6 +373,38 @@ public class DataNetworkController extends Handler {
     /** Indicates if packet switch data is restricted by the cellular network. */
     private boolean mPsRestricted = false;
 
+    /**
+     * Reasons of the unsatisfied network request re-evaluations queued without delay. Another
+     * trigger with a queued reason is merged into the queued re-evaluation.
+     */
+    @NonNull
+    private final Set<DataEvaluationReason> mQueuedUnsatisfiedReevaluationReasons =
+            EnumSet.noneOf(DataEvaluationReason.class);
+
+    /**
+     * Reasons of the existing data network re-evaluations queued without delay. Another trigger
+     * with a queued reason is merged into the queued re-evaluation.
+     */
+    @NonNull
+    private final Set<DataEvaluationReason> mQueuedExistingReevaluationReasons =
+            EnumSet.noneOf(DataEvaluationReason.class);
+
+    /**
+     * The data disallowed reasons of the device and transport rules by transport, cached while
+     * re-evaluating the unsatisfied network requests. {@code null} when not re-evaluating.
+     */
+    @Nullable
+    private SparseArray<List<DataDisallowedReason>> mCachedDeviceDisallowedReasons = null;
+
+    /** The number of re-evaluation triggers merged into an already queued re-evaluation. */
+    private long mCoalescedReevaluationCount = 0;
+
+    /** The number of times the device and transport rules were evaluated. */
+    private long mDeviceRulesEvaluatedCount = 0;
+
+    /** The number of times the cached result of the device and transport rules was used. */
+    private long mDeviceRulesSkippedCount = 0;
+
     /** Indicates if NR advanced is allowed by PCO. */
     private boolean mNrAdvancedCapableByPco = false;
 
@@ -905,10 +938,10 @@ public class DataNetworkController extends Handler {
         // If mobile data is disabled, evaluate the existing data networks and
         // see if they need to be torn down.
         logl("onDataEnabledChanged: enabled=" + enabled + " reason="+reason);
-        sendMessage(obtainMessage(enabled
+        sendReevaluationMessage(enabled
                         ? EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS
                         : EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
-                DataEvaluationReason.DATA_ENABLED_CHANGED));
+                DataEvaluationReason.DATA_ENABLED_CHANGED);
     }
 
     protected void onDataRoamingEnabledChanged(boolean enabled) {
@@ -917,10 +950,10 @@ public class DataNetworkController extends Handler {
         // If data roaming is disabled, evaluate the existing data networks and
         // see if they need to be torn down.
         logl("onDataRoamingEnabledChanged: enabled=" + enabled);
-        sendMessage(obtainMessage(enabled
+        sendReevaluationMessage(enabled
                         ? EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS
                         : EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
-                DataEvaluationReason.ROAMING_ENABLED_CHANGED));
+                DataEvaluationReason.ROAMING_ENABLED_CHANGED);
     }
 
     /**
@@ -991,10 +1024,10 @@ public class DataNetworkController extends Handler {
                                 // evaluate the existing data networks and see if they need to be
                                 // torn down.
                                 logl("onDataEnabledOverrideChanged: enabled=" + enabled);
-                                sendMessage(obtainMessage(enabled
+                                sendReevaluationMessage(enabled
                                                 ? EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS
                                                 : EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
-                                        DataEvaluationReason.DATA_ENABLED_OVERRIDE_CHANGED));
+                                        DataEvaluationReason.DATA_ENABLED_OVERRIDE_CHANGED);
 
                                 // Attempt to evaluate if smart temporay DDS switch needs to work.
                                 if (policy == TelephonyManager
@@ -1015,12 +1048,12 @@ public class DataNetworkController extends Handler {
                         new DataProfileManagerCallback(this::post) {
                             @Override
                             public void onDataProfilesChanged() {
-                                sendMessage(
-                                        obtainMessage(EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
-                                        DataEvaluationReason.DATA_PROFILES_CHANGED));
-                                sendMessage(
-                                        obtainMessage(EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS,
-                                        DataEvaluationReason.DATA_PROFILES_CHANGED));
+                                sendReevaluationMessage(
+                                        EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
+                                        DataEvaluationReason.DATA_PROFILES_CHANGED);
+                                sendReevaluationMessage(
+                                        EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS,
+                                        DataEvaluationReason.DATA_PROFILES_CHANGED);
                                 initiateInternetDataConnectionState();
                             }
                         });
@@ -1193,10 +1226,12 @@ public class DataNetworkController extends Handler {
                 break;
             case EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS:
                 DataEvaluationReason reason = (DataEvaluationReason) msg.obj;
+                mQueuedUnsatisfiedReevaluationReasons.remove(reason);
                 onReevaluateUnsatisfiedNetworkRequests(reason);
                 break;
             case EVENT_REEVALUATE_EXISTING_DATA_NETWORKS:
                 reason = (DataEvaluationReason) msg.obj;
+                mQueuedExistingReevaluationReasons.remove(reason);
                 onReevaluateExistingDataNetworks(reason);
                 break;
             case EVENT_REMOVE_NETWORK_REQUEST:
@@ -1205,8 +1240,8 @@ public class DataNetworkController extends Handler {
             case EVENT_VOICE_CALL_ENDED:
                 // In some cases we need to tear down network after call ends. For example, when
                 // delay IMS tear down until call ends is turned on.
-                sendMessage(obtainMessage(EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
-                        DataEvaluationReason.VOICE_CALL_ENDED));
+                sendReevaluationMessage(EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
+                        DataEvaluationReason.VOICE_CALL_ENDED);
                 // Delay evaluating unsatisfied network requests. In temporary DDS switch case, it
                 // takes some time to switch DDS after call end. We do not want to bring up network
                 // before switch completes.
@@ -1215,8 +1250,8 @@ public class DataNetworkController extends Handler {
                         REEVALUATE_UNSATISFIED_NETWORK_REQUESTS_AFTER_CALL_END_DELAY_MILLIS);
                 break;
             case EVENT_SLICE_CONFIG_CHANGED:
-                sendMessage(obtainMessage(EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS,
-                        DataEvaluationReason.SLICE_CONFIG_CHANGED));
+                sendReevaluationMessage(EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS,
+                        DataEvaluationReason.SLICE_CONFIG_CHANGED);
                 break;
             case EVENT_SRVCC_STATE_CHANGED:
                 ar = (AsyncResult) msg.obj;
@@ -1229,8 +1264,8 @@ public class DataNetworkController extends Handler {
                 break;
             case EVENT_PS_RESTRICT_DISABLED:
                 mPsRestricted = false;
-                sendMessage(obtainMessage(EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS,
-                        DataEvaluationReason.DATA_RESTRICTED_CHANGED));
+                sendReevaluationMessage(EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS,
+                        DataEvaluationReason.DATA_RESTRICTED_CHANGED);
                 break;
             case EVENT_TAC_CHANGED:
                 // Re-evaluate unsatisfied network requests with some delays to let DataRetryManager
@@ -1272,11 +1307,11 @@ public class DataNetworkController extends Handler {
                 break;
             case EVENT_EMERGENCY_CALL_CHANGED:
                 if (mPhone.isInEcm()) {
-                    sendMessage(obtainMessage(EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
-                            DataEvaluationReason.EMERGENCY_CALL_CHANGED));
+                    sendReevaluationMessage(EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
+                            DataEvaluationReason.EMERGENCY_CALL_CHANGED);
                 } else {
-                    sendMessage(obtainMessage(EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS,
-                            DataEvaluationReason.EMERGENCY_CALL_CHANGED));
+                    sendReevaluationMessage(EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS,
+                            DataEvaluationReason.EMERGENCY_CALL_CHANGED);
                 }
                 break;
             case EVENT_EVALUATE_PREFERRED_TRANSPORT:
@@ -1329,14 +1364,35 @@ public class DataNetworkController extends Handler {
                 break;
             case EVENT_ACTIVE_PHONE_SWITCH:
                 log("EVENT_ACTIVE_PHONE_SWITCH");
-                sendMessage(obtainMessage(EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS,
-                        DataEvaluationReason.DDS_SWITCHED));
+                sendReevaluationMessage(EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS,
+                        DataEvaluationReason.DDS_SWITCHED);
                 break;
             default:
                 loge("Unexpected event " + msg.what);
         }
     }
 
+    /**
+     * Queue a re-evaluation without delay. If a re-evaluation of the same kind and for the same
+     * reason is already queued, the trigger is merged into it, so that a burst of triggers results
+     * in one re-evaluation.
+     *
+     * @param what {@link #EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS} or
+     * {@link #EVENT_REEVALUATE_EXISTING_DATA_NETWORKS}.
+     * @param reason The reason for evaluation.
+     */
+    private void sendReevaluationMessage(int what, @NonNull DataEvaluationReason reason) {
+        Set<DataEvaluationReason> queuedReasons =
+                what == EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS
+                        ? mQueuedUnsatisfiedReevaluationReasons
+                        : mQueuedExistingReevaluationReasons;
+        if (!queuedReasons.add(reason)) {
+            mCoalescedReevaluationCount++;
+            return;
+        }
+        sendMessage(obtainMessage(what, reason));
+    }
+
     /**
      * Add a network request, which is originated from the apps. Note that add a network request
      * is not necessarily setting up a {@link DataNetwork}.
@@ -1413,8 +1469,8 @@ public class DataNetworkController extends Handler {
             // Re-evaluate the existing data networks. If this request's priority is higher than
             // the existing data network, the data network will be torn down so this request will
             // get a chance to be satisfied.
-            sendMessage(obtainMessage(EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
-                    DataEvaluationReason.SINGLE_DATA_NETWORK_ARBITRATION));
+            sendReevaluationMessage(EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
+                    DataEvaluationReason.SINGLE_DATA_NETWORK_ARBITRATION);
         }
     }
 
@@ -1690,27 +1746,8 @@ public class DataNetworkController extends Handler {
             return evaluation;
         }
 
-        if (!serviceStateAllowsPSAttach(mServiceState, transport)) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.NOT_IN_SERVICE);
-        }
-
-        // Add data disallowed reason when in Secure Mode
-        addDataDisallowedReasonWhenInSecureMode(evaluation);
-
-        // Check SIM state
-        checkSimStateForDataEvaluation(evaluation);
-
-        // Check if carrier specific config is loaded or not.
-        if (!mDataConfigManager.isConfigCarrierSpecific()) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.DATA_CONFIG_NOT_READY);
-        }
-
-        // Check CS call state and see if concurrent voice/data is allowed.
-        if (hasCalling() && mPhone.getCallTracker().getState() != PhoneConstants.State.IDLE
-                && !mPhone.getServiceStateTracker().isConcurrentVoiceAndDataAllowed()) {
-            evaluation.addDataDisallowedReason(
-                    DataDisallowedReason.CONCURRENT_VOICE_DATA_NOT_ALLOWED);
-        }
+        // Check the rules which do not depend on the network request
+        addDeviceAndTransportDisallowedReasons(evaluation, transport, reason);
 
         // Check VoPS support
         if (transport == AccessNetworkConstants.TRANSPORT_TYPE_WWAN
@@ -1728,53 +1765,6 @@ public class DataNetworkController extends Handler {
             }
         }
 
-        // Check if default data is selected.
-        if (!SubscriptionManager.isValidSubscriptionId(
-                SubscriptionManager.getDefaultDataSubscriptionId())) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.DEFAULT_DATA_UNSELECTED);
-        }
-
-        // Check if data roaming is disabled.
-        if (mServiceState.getDataRoaming() && !mDataSettingsManager.isDataRoamingEnabled()) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.ROAMING_DISABLED);
-        }
-
-        // Check if data is restricted by the cellular network.
-        if (mPsRestricted && transport == AccessNetworkConstants.TRANSPORT_TYPE_WWAN) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.DATA_RESTRICTED_BY_NETWORK);
-        }
-
-        // Check if there are pending tear down all networks request.
-        if (mPhone.getServiceStateTracker().isPendingRadioPowerOffAfterDataOff()) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.PENDING_TEAR_DOWN_ALL);
-        }
-
-        // Check if the request is preferred on cellular and radio is/will be turned off.
-        // We are using getDesiredPowerState() instead of isRadioOn() because we also don't want
-        // to setup data network when radio power is about to be turned off.
-        // Besides, in legacy IWLAN mode, data should be allowed.
-        if (transport == AccessNetworkConstants.TRANSPORT_TYPE_WWAN
-                && getDataNetworkType(transport) != TelephonyManager.NETWORK_TYPE_IWLAN
-                && (!mPhone.getServiceStateTracker().getDesiredPowerState()
-                || mPhone.mCi.getRadioState() != TelephonyManager.RADIO_POWER_ON)) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.RADIO_POWER_OFF);
-        }
-
-        // Check if radio is/will be turned off by carrier.
-        if (!mPhone.getServiceStateTracker().getPowerStateFromCarrier()) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.RADIO_DISABLED_BY_CARRIER);
-        }
-
-        // Check if the underlying data service is bound.
-        if (!mDataServiceBound.get(transport)) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.DATA_SERVICE_NOT_READY);
-        }
-
-        // Check if device is in CDMA ECBM
-        if (mPhone.isInCdmaEcm()) {
-            evaluation.addDataDisallowedReason(DataDisallowedReason.CDMA_EMERGENCY_CALLBACK_MODE);
-        }
-
         // Check if only one data network is allowed.
         if (isOnlySingleDataNetworkAllowed(transport)
                 && !hasCapabilityExemptsFromSinglePdnRule(networkRequest.getCapabilities())) {
@@ -1886,6 +1876,113 @@ public class DataNetworkController extends Handler {
         return evaluation;
     }
 
+    /**
+     * Add the data disallowed reasons of the rules which only depend on the device state and the
+     * transport. While re-evaluating the unsatisfied network requests, the result is cached per
+     * transport, so the rules are evaluated once per re-evaluation instead of once for each group
+     * of network requests.
+     *
+     * @param evaluation The evaluation result from
+     * {@link #evaluateNetworkRequest(TelephonyNetworkRequest, DataEvaluationReason)}
+     * @param transport The preferred transport of the network request.
+     * @param reason The reason for evaluation.
+     */
+    private void addDeviceAndTransportDisallowedReasons(@NonNull DataEvaluation evaluation,
+            @TransportType int transport, @NonNull DataEvaluationReason reason) {
+        List<DataDisallowedReason> reasons = mCachedDeviceDisallowedReasons != null
+                ? mCachedDeviceDisallowedReasons.get(transport) : null;
+        if (reasons == null) {
+            DataEvaluation deviceEvaluation = new DataEvaluation(reason);
+            evaluateDeviceAndTransportRules(deviceEvaluation, transport);
+            mDeviceRulesEvaluatedCount++;
+            reasons = deviceEvaluation.getDataDisallowedReasons();
+            if (mCachedDeviceDisallowedReasons != null) {
+                mCachedDeviceDisallowedReasons.put(transport, reasons);
+            }
+        } else {
+            mDeviceRulesSkippedCount++;
+        }
+        reasons.forEach(evaluation::addDataDisallowedReason);
+    }
+
+    /**
+     * Evaluate the rules which only depend on the device state and the transport.
+     *
+     * @param evaluation The evaluation to add the data disallowed reasons to.
+     * @param transport The transport.
+     */
+    private void evaluateDeviceAndTransportRules(@NonNull DataEvaluation evaluation,
+            @TransportType int transport) {
+        if (!serviceStateAllowsPSAttach(mServiceState, transport)) {
+            evaluation.addDataDisallowedReason(DataDisallowedReason.NOT_IN_SERVICE);
+        }
+
+        // Add data disallowed reason when in Secure Mode
+        addDataDisallowedReasonWhenInSecureMode(evaluation);
+
+        // Check SIM state
+        checkSimStateForDataEvaluation(evaluation);
+
+        // Check if carrier specific config is loaded or not.
+        if (!mDataConfigManager.isConfigCarrierSpecific()) {
+            evaluation.addDataDisallowedReason(DataDisallowedReason.DATA_CONFIG_NOT_READY);
+        }
+
+        // Check CS call state and see if concurrent voice/data is allowed.
+        if (hasCalling() && mPhone.getCallTracker().getState() != PhoneConstants.State.IDLE
+                && !mPhone.getServiceStateTracker().isConcurrentVoiceAndDataAllowed()) {
+            evaluation.addDataDisallowedReason(
+                    DataDisallowedReason.CONCURRENT_VOICE_DATA_NOT_ALLOWED);
+        }
+
+        // Check if default data is selected.
+        if (!SubscriptionManager.isValidSubscriptionId(
+                SubscriptionManager.getDefaultDataSubscriptionId())) {
+            evaluation.addDataDisallowedReason(DataDisallowedReason.DEFAULT_DATA_UNSELECTED);
+        }
+
+        // Check if data roaming is disabled.
+        if (mServiceState.getDataRoaming() && !mDataSettingsManager.isDataRoamingEnabled()) {
+            evaluation.addDataDisallowedReason(DataDisallowedReason.ROAMING_DISABLED);
+        }
+
+        // Check if data is restricted by the cellular network.
+        if (mPsRestricted && transport == AccessNetworkConstants.TRANSPORT_TYPE_WWAN) {
+            evaluation.addDataDisallowedReason(DataDisallowedReason.DATA_RESTRICTED_BY_NETWORK);
+        }
+
+        // Check if there are pending tear down all networks request.
+        if (mPhone.getServiceStateTracker().isPendingRadioPowerOffAfterDataOff()) {
+            evaluation.addDataDisallowedReason(DataDisallowedReason.PENDING_TEAR_DOWN_ALL);
+        }
+
+        // Check if the request is preferred on cellular and radio is/will be turned off.
+        // We are using getDesiredPowerState() instead of isRadioOn() because we also don't want
+        // to setup data network when radio power is about to be turned off.
+        // Besides, in legacy IWLAN mode, data should be allowed.
+        if (transport == AccessNetworkConstants.TRANSPORT_TYPE_WWAN
+                && getDataNetworkType(transport) != TelephonyManager.NETWORK_TYPE_IWLAN
+                && (!mPhone.getServiceStateTracker().getDesiredPowerState()
+                || mPhone.mCi.getRadioState() != TelephonyManager.RADIO_POWER_ON)) {
+            evaluation.addDataDisallowedReason(DataDisallowedReason.RADIO_POWER_OFF);
+        }
+
+        // Check if radio is/will be turned off by carrier.
+        if (!mPhone.getServiceStateTracker().getPowerStateFromCarrier()) {
+            evaluation.addDataDisallowedReason(DataDisallowedReason.RADIO_DISABLED_BY_CARRIER);
+        }
+
+        // Check if the underlying data service is bound.
+        if (!mDataServiceBound.get(transport)) {
+            evaluation.addDataDisallowedReason(DataDisallowedReason.DATA_SERVICE_NOT_READY);
+        }
+
+        // Check if device is in CDMA ECBM
+        if (mPhone.isInCdmaEcm()) {
+            evaluation.addDataDisallowedReason(DataDisallowedReason.CDMA_EMERGENCY_CALLBACK_MODE);
+        }
+    }
+
     /**
      * Add data disallow reason when device is in Secure Mode.
      *
@@ -1990,6 +2087,22 @@ public class DataNetworkController extends Handler {
      * @param reason The reason for evaluation.
      */
     private void onReevaluateUnsatisfiedNetworkRequests(@NonNull DataEvaluationReason reason) {
+        // The device state does not change while the network requests are evaluated, so the
+        // rules which only depend on it are evaluated once.
+        mCachedDeviceDisallowedReasons = new SparseArray<>();
+        try {
+            reevaluateUnsatisfiedNetworkRequests(reason);
+        } finally {
+            mCachedDeviceDisallowedReasons = null;
+        }
+    }
+
+    /**
+     * Evaluate all unsatisfied network requests and setup data networks for them if allowed.
+     *
+     * @param reason The reason for evaluation.
+     */
+    private void reevaluateUnsatisfiedNetworkRequests(@NonNull DataEvaluationReason reason) {
         // First, try to group similar network request together.
         List<NetworkRequestList> networkRequestLists = getGroupedUnsatisfiedNetworkRequests();
         log("Re-evaluating " + networkRequestLists.stream().mapToInt(List::size).sum()
@@ -3313,8 +3426,8 @@ public class DataNetworkController extends Handler {
             // re-evaluate the unsatisfied network requests again so the new network can be brought
             // up on the new target transport later.
             dataSetupRetryEntry.setState(DataRetryEntry.RETRY_STATE_CANCELLED);
-            sendMessage(obtainMessage(EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS,
-                    DataEvaluationReason.PREFERRED_TRANSPORT_CHANGED));
+            sendReevaluationMessage(EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS,
+                    DataEvaluationReason.PREFERRED_TRANSPORT_CHANGED);
             return;
         }
 
@@ -3527,8 +3640,8 @@ public class DataNetworkController extends Handler {
 
         // There might be network we didn't tear down in the last evaluation due to handover in
         // progress. We should evaluate again.
-        sendMessage(obtainMessage(EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
-                DataEvaluationReason.DATA_HANDOVER));
+        sendReevaluationMessage(EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
+                DataEvaluationReason.DATA_HANDOVER);
     }
 
     /**
@@ -3551,8 +3664,8 @@ public class DataNetworkController extends Handler {
                 + DataCallResponse.failureModeToString(handoverFailureMode));
         // There might be network we didn't tear down in the last evaluation due to handover in
         // progress. We should evaluate again.
-        sendMessage(obtainMessage(EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
-                DataEvaluationReason.DATA_HANDOVER));
+        sendReevaluationMessage(EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
+                DataEvaluationReason.DATA_HANDOVER);
 
         if (dataNetwork.getAttachedNetworkRequestList().isEmpty()) {
             log("onDataNetworkHandoverFailed: No network requests attached to " + dataNetwork
@@ -3675,8 +3788,8 @@ public class DataNetworkController extends Handler {
      */
     private void onSimAbsent() {
         log("onSimAbsent");
-        sendMessage(obtainMessage(EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
-                DataEvaluationReason.SIM_REMOVAL));
+        sendReevaluationMessage(EVENT_REEVALUATE_EXISTING_DATA_NETWORKS,
+                DataEvaluationReason.SIM_REMOVAL);
     }
 
     /**
@@ -3691,8 +3804,8 @@ public class DataNetworkController extends Handler {
             if (simState == TelephonyManager.SIM_STATE_ABSENT) {
                 onSimAbsent();
             } else if (simState == TelephonyManager.SIM_STATE_LOADED) {
-                sendMessage(obtainMessage(EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS,
-                        DataEvaluationReason.SIM_LOADED));
+                sendReevaluationMessage(EVENT_REEVALUATE_UNSATISFIED_NETWORK_REQUESTS,
+                        DataEvaluationReason.SIM_LOADED);
             }
             mDataNetworkControllerCallbacks.forEach(callback -> callback.invokeFromExecutor(
                     () -> callback.onSimStateChanged(mSimState)));
@@ -4489,6 +4602,9 @@ public class DataNetworkController extends Handler {
                 ? "registered" : "not registered"));
         pw.println("mServiceState=" + mServiceState);
         pw.println("mPsRestricted=" + mPsRestricted);
+        pw.println("mCoalescedReevaluationCount=" + mCoalescedReevaluationCount);
+        pw.println("mDeviceRulesEvaluatedCount=" + mDeviceRulesEvaluatedCount
+                + ", mDeviceRulesSkippedCount=" + mDeviceRulesSkippedCount);
         pw.println("mAnyDataNetworkExisting=" + mAnyDataNetworkExisting);
         pw.println("mInternetDataNetworkState="
                 + TelephonyUtils.dataStateToString(mInternetDataNetworkState));
@@ -56,8 +56,11 @@ import com.android.telephony.Rlog;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
@@ -101,6 +104,16 @@ public class DataProfileManager extends Handler {
     @NonNull
     private final List<DataProfile> mAllDataProfiles = new ArrayList<>();
 
+    /**
+     * The data profiles which can be used on a network and match the preferred data profile set
+     * id, keyed by {@link #getCandidateDataProfilesKey}, in the order of {@link #mAllDataProfiles}.
+     * Rebuilt on the handler thread whenever the data profiles or the preferred set id change, and
+     * published as an immutable map, since it is also read from binder threads.
+     */
+    @NonNull
+    private volatile Map<Integer, List<DataProfile>> mCandidateDataProfiles =
+            Collections.emptyMap();
+
     /** The data profile used for initial attach. */
     @Nullable
     private DataProfile mInitialAttachDataProfile = null;
@@ -394,6 +407,10 @@ public class DataProfileManager extends Handler {
             profilesChanged = true;
         }
 
+        if (profilesChanged) {
+            updateCandidateDataProfiles();
+        }
+
         updateDataProfilesAtModem();
         updateInitialAttachDataProfileAtModem(forceUpdateIa);
 
@@ -820,41 +837,153 @@ public class DataProfileManager extends Handler {
             }
         }
 
-        // Filter out the data profile that can't satisfy the request.
-        // Preferred data profile should be returned in the top of the list.
+        // Of the data profiles that can satisfy the request, the one that hasn't been used for the
+        // longest time is returned, so all the data profiles can be tried.
+        DataProfile selected = null;
+        for (DataProfile dp : getCandidateDataProfiles(networkType, isNtn,
+                isEsimBootStrapProvisioning)) {
+            if (!networkRequest.canBeSatisfiedBy(dp)) continue;
+            if (!ignorePermanentFailure && dp.getApnSetting().getPermanentFailed()) continue;
+            if (selected == null
+                    || dp.getLastSetupTimestamp() < selected.getLastSetupTimestamp()) {
+                selected = dp;
+            }
+        }
+        if (selected == null) {
+            logNoDataProfileForNetworkRequest(networkRequest, networkType, isNtn,
+                    isEsimBootStrapProvisioning);
+            return null;
+        }
+
+        if (isEsimBootStrapProvisioning) {
+            log("Found esim bootstrap provisioning data profile for network request: "
+                    + selected.getApnSetting());
+        }
+        return selected.getApnSetting();
+    }
+
+    /**
+     * Get the data profiles that can be used on the network and match the preferred data profile
+     * set id. Which of them can satisfy a network request is left to the caller.
+     *
+     * @param networkType The current data network type.
+     * @param isNtn {@code true} if the device is currently attached to non-terrestrial network.
+     * @param isEsimBootStrapProvisioning {@code true} if esim bootstrap provisioning is in
+     * progress.
+     * @return The data profiles, in the order of {@link #mAllDataProfiles}.
+     */
+    @NonNull
+    private List<DataProfile> getCandidateDataProfiles(@NetworkType int networkType,
+            boolean isNtn, boolean isEsimBootStrapProvisioning) {
+        List<DataProfile> dataProfiles = mCandidateDataProfiles.get(
+                getCandidateDataProfilesKey(networkType, isNtn, isEsimBootStrapProvisioning));
+        if (dataProfiles == null) {
+            // Not indexed, e.g. the satellite feature flag changed since the last update.
+            dataProfiles = buildCandidateDataProfiles(networkType, isNtn,
+                    isEsimBootStrapProvisioning);
+        }
+        return dataProfiles;
+    }
+
+    /**
+     * Rebuild {@link #mCandidateDataProfiles} for all network types. Must be called on the handler
+     * thread after the data profiles or the preferred data profile set id changed.
+     */
+    private void updateCandidateDataProfiles() {
+        Map<Integer, List<DataProfile>> candidates = new HashMap<>();
+        List<Integer> networkTypes = new ArrayList<>();
+        networkTypes.add(TelephonyManager.NETWORK_TYPE_UNKNOWN);
+        for (int networkType : TelephonyManager.getAllNetworkTypes()) {
+            networkTypes.add(networkType);
+        }
+        for (int networkType : networkTypes) {
+            for (boolean isNtn : new boolean[] {false, true}) {
+                for (boolean isEsimBootStrapProvisioning : new boolean[] {false, true}) {
+                    candidates.put(getCandidateDataProfilesKey(networkType, isNtn,
+                            isEsimBootStrapProvisioning), buildCandidateDataProfiles(
+                            networkType, isNtn, isEsimBootStrapProvisioning));
+                }
+            }
+        }
+        mCandidateDataProfiles = Collections.unmodifiableMap(candidates);
+    }
+
+    /**
+     * @return The data profiles that can be used on the network and match the preferred data
+     * profile set id, in the order of {@link #mAllDataProfiles}.
+     */
+    @NonNull
+    private List<DataProfile> buildCandidateDataProfiles(@NetworkType int networkType,
+            boolean isNtn, boolean isEsimBootStrapProvisioning) {
+        List<DataProfile> dataProfiles = new ArrayList<>();
+        for (DataProfile dp : mAllDataProfiles) {
+            if (canBeUsedOnNetwork(dp, networkType, isNtn, isEsimBootStrapProvisioning)
+                    && isInPreferredDataProfileSet(dp)) {
+                dataProfiles.add(dp);
+            }
+        }
+        return Collections.unmodifiableList(dataProfiles);
+    }
+
+    /**
+     * @return The key of the candidate data profiles in {@link #mCandidateDataProfiles}. The
+     * satellite feature flag is part of the key, since it decides whether the infrastructure of
+     * the data profile is checked.
+     */
+    private int getCandidateDataProfilesKey(@NetworkType int networkType, boolean isNtn,
+            boolean isEsimBootStrapProvisioning) {
+        return (networkType << 3) | (mFeatureFlags.carrierEnabledSatelliteFlag() ? 4 : 0)
+                | (isNtn ? 2 : 0) | (isEsimBootStrapProvisioning ? 1 : 0);
+    }
+
+    /**
+     * @return {@code true} if the data profile can be used on the network.
+     */
+    private boolean canBeUsedOnNetwork(@NonNull DataProfile dp, @NetworkType int networkType,
+            boolean isNtn, boolean isEsimBootStrapProvisioning) {
+        if (dp.getApnSetting() == null) return false;
+        if (!dp.getApnSetting().canSupportNetworkType(networkType)) return false;
+        if (isEsimBootStrapProvisioning
+                != dp.getApnSetting().isEsimBootstrapProvisioning()) return false;
+        if (mFeatureFlags.carrierEnabledSatelliteFlag()) {
+            if (isNtn && !dp.getApnSetting().isForInfrastructure(
+                    ApnSetting.INFRASTRUCTURE_SATELLITE)) {
+                return false;
+            }
+            return isNtn || dp.getApnSetting().isForInfrastructure(
+                    ApnSetting.INFRASTRUCTURE_CELLULAR);
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} if the data profile matches the preferred data profile set id.
+     */
+    private boolean isInPreferredDataProfileSet(@NonNull DataProfile dp) {
+        return dp.getApnSetting() != null
+                && (dp.getApnSetting().getApnSetId() == Telephony.Carriers.MATCH_ALL_APN_SET_ID
+                || dp.getApnSetting().getApnSetId() == mPreferredDataProfileSetId);
+    }
+
+    /**
+     * Log why no data profile can be used for the network request. Only called when the lookup
+     * failed, so the checks are repeated one by one to find the one that ruled out the last data
+     * profile.
+     */
+    private void logNoDataProfileForNetworkRequest(
+            @NonNull TelephonyNetworkRequest networkRequest, @NetworkType int networkType,
+            boolean isNtn, boolean isEsimBootStrapProvisioning) {
         List<DataProfile> dataProfiles = mAllDataProfiles.stream()
                 .filter(networkRequest::canBeSatisfiedBy)
-                // The longest time hasn't used data profile will be in the front so all the data
-                // profiles can be tried.
-                .sorted(Comparator.comparing(DataProfile::getLastSetupTimestamp))
                 .collect(Collectors.toList());
-        for (DataProfile dataProfile : dataProfiles) {
-            logv("Satisfied profile: " + dataProfile + ", last setup="
-                    + DataUtils.elapsedTimeToString(dataProfile.getLastSetupTimestamp()));
-        }
         if (dataProfiles.isEmpty()) {
             log("Can't find any data profile that can satisfy " + networkRequest);
-            return null;
+            return;
         }
 
-        // Check if the remaining data profiles can used in current data network type.
         dataProfiles = dataProfiles.stream()
-                .filter((dp) -> {
-                    if (dp.getApnSetting() == null) return false;
-                    if (!dp.getApnSetting().canSupportNetworkType(networkType)) return false;
-                    if (isEsimBootStrapProvisioning
-                            != dp.getApnSetting().isEsimBootstrapProvisioning()) return false;
-                    if (mFeatureFlags.carrierEnabledSatelliteFlag()) {
-                        if (isNtn && !dp.getApnSetting().isForInfrastructure(
-                                ApnSetting.INFRASTRUCTURE_SATELLITE)) {
-                            return false;
-                        }
-                        return isNtn || dp.getApnSetting().isForInfrastructure(
-                                ApnSetting.INFRASTRUCTURE_CELLULAR);
-                    }
-
-                    return true;
-                })
+                .filter(dp -> canBeUsedOnNetwork(dp, networkType, isNtn,
+                        isEsimBootStrapProvisioning))
                 .collect(Collectors.toList());
         if (dataProfiles.isEmpty()) {
             String ntnReason = "";
@@ -864,37 +993,16 @@ public class DataProfileManager extends Handler {
             }
             log("Can't find any data profile for network type "
                     + TelephonyManager.getNetworkTypeName(networkType) + ntnReason);
-            return null;
+            return;
         }
 
-        // Check if preferred data profile set id matches.
-        dataProfiles = dataProfiles.stream()
-                .filter(dp -> dp.getApnSetting() != null
-                        && (dp.getApnSetting().getApnSetId()
-                        == Telephony.Carriers.MATCH_ALL_APN_SET_ID
-                        || dp.getApnSetting().getApnSetId() == mPreferredDataProfileSetId))
-                .collect(Collectors.toList());
-        if (dataProfiles.isEmpty()) {
+        if (dataProfiles.stream().noneMatch(this::isInPreferredDataProfileSet)) {
             log("Can't find any data profile has APN set id matched. mPreferredDataProfileSetId="
                     + mPreferredDataProfileSetId);
-            return null;
-        }
-
-        // Check if data profiles are permanently failed.
-        dataProfiles = dataProfiles.stream()
-                .filter(dp -> ignorePermanentFailure || (dp.getApnSetting() != null
-                        && !dp.getApnSetting().getPermanentFailed()))
-                .collect(Collectors.toList());
-        if (dataProfiles.isEmpty()) {
-            log("The suitable data profiles are all in permanent failed state.");
-            return null;
+            return;
         }
 
-        if (isEsimBootStrapProvisioning) {
-            log("Found esim bootstrap provisioning data profile for network request: "
-                    + dataProfiles.get(0).getApnSetting());
-        }
-        return dataProfiles.get(0).getApnSetting();
+        log("The suitable data profiles are all in permanent failed state.");
     }
 
     /**
@@ -53,6 +53,7 @@ import android.text.TextUtils;
 import android.util.ArraySet;
 import android.util.IndentingPrintWriter;
 import android.util.LocalLog;
+import android.util.Pair;
 import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -69,13 +70,17 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -225,6 +230,20 @@ public class DataRetryManager extends Handler {
     @NonNull
     private final List<DataThrottlingEntry> mDataThrottlingEntries = new ArrayList<>();
 
+    /** {@link #mDataThrottlingEntries} indexed by data profile. */
+    @NonNull
+    private final Map<DataProfile, List<DataThrottlingEntry>> mDataThrottlingEntriesByProfile =
+            new HashMap<>();
+
+    /**
+     * Data setup retry entries for network requests which may still be pending, indexed by the
+     * highest priority network capability of the network requests and the transport. Entries
+     * which are not pending anymore are removed lazily when the index is queried.
+     */
+    @NonNull
+    private final Map<Pair<Integer, Integer>, List<DataSetupRetryEntry>>
+            mPendingNetworkRequestRetryEntries = new HashMap<>();
+
     /**
      * Represent a single data setup/handover throttling reported by networks.
      */
@@ -1441,6 +1460,7 @@ public class DataRetryManager extends Handler {
         mDataRetryEntries.stream()
                 .filter(entry -> entry.getState() == DataRetryEntry.RETRY_STATE_NOT_RETRIED)
                 .forEach(entry -> entry.setState(DataRetryEntry.RETRY_STATE_CANCELLED));
+        mPendingNetworkRequestRetryEntries.clear();
 
         for (DataThrottlingEntry dataThrottlingEntry : mDataThrottlingEntries) {
             DataProfile dataProfile = dataThrottlingEntry.dataProfile;
@@ -1450,6 +1470,7 @@ public class DataRetryManager extends Handler {
         }
 
         mDataThrottlingEntries.clear();
+        mDataThrottlingEntriesByProfile.clear();
     }
 
     /**
@@ -1531,9 +1552,10 @@ public class DataRetryManager extends Handler {
     private void schedule(@NonNull DataRetryEntry dataRetryEntry) {
         logl("Scheduled data retry " + dataRetryEntry + " hashcode=" + dataRetryEntry.hashCode());
         mDataRetryEntries.add(dataRetryEntry);
+        addToPendingRetryIndex(dataRetryEntry);
         if (mDataRetryEntries.size() >= MAXIMUM_HISTORICAL_ENTRIES) {
             // Discard the oldest retry entry.
-            mDataRetryEntries.remove(0);
+            removeFromPendingRetryIndex(mDataRetryEntries.remove(0));
         }
 
         // When the device is in doze mode, the handler message might be extremely delayed because
@@ -1572,6 +1594,51 @@ public class DataRetryManager extends Handler {
         }
     }
 
+    /**
+     * Add a newly scheduled data setup retry for network requests to
+     * {@link #mPendingNetworkRequestRetryEntries}.
+     *
+     * @param dataRetryEntry The data retry entry.
+     */
+    private void addToPendingRetryIndex(@NonNull DataRetryEntry dataRetryEntry) {
+        if (!(dataRetryEntry instanceof DataSetupRetryEntry)) return;
+        DataSetupRetryEntry entry = (DataSetupRetryEntry) dataRetryEntry;
+        if (entry.setupRetryType != DataSetupRetryEntry.RETRY_TYPE_NETWORK_REQUESTS) return;
+        if (entry.networkRequestList.isEmpty()) {
+            String msg = "Invalid data retry entry detected";
+            logl(msg);
+            loge("mDataRetryEntries=" + mDataRetryEntries);
+            AnomalyReporter.reportAnomaly(
+                    UUID.fromString("781af571-f55d-476d-b510-7a5381f633dc"),
+                    msg,
+                    mPhone.getCarrierId());
+            return;
+        }
+        mPendingNetworkRequestRetryEntries.computeIfAbsent(getPendingRetryKey(
+                entry.networkRequestList.get(0).getHighestPrioritySupportedNetworkCapability(),
+                entry.transport), k -> new ArrayList<>(1)).add(entry);
+    }
+
+    /**
+     * Remove a data retry entry discarded from the history from
+     * {@link #mPendingNetworkRequestRetryEntries}.
+     *
+     * @param dataRetryEntry The data retry entry.
+     */
+    private void removeFromPendingRetryIndex(@NonNull DataRetryEntry dataRetryEntry) {
+        if (!(dataRetryEntry instanceof DataSetupRetryEntry)) return;
+        mPendingNetworkRequestRetryEntries.values().removeIf(entries -> {
+            entries.remove(dataRetryEntry);
+            return entries.isEmpty();
+        });
+    }
+
+    @NonNull
+    private static Pair<Integer, Integer> getPendingRetryKey(@NetCapability int networkCapability,
+            @TransportType int transport) {
+        return new Pair<>(networkCapability, transport);
+    }
+
     /**
      * Called when it's time to retry scheduled by Alarm Manager.
      * @param retryHashcode The hashcode is the unique identifier of which retry entry to retry.
@@ -1611,7 +1678,7 @@ public class DataRetryManager extends Handler {
         // Remove previous entry that contains the same data profile. Therefore it should always
         // contain at maximu all the distinct data profiles of the current subscription times each
         // transport.
-        mDataThrottlingEntries.removeIf(
+        removeDataThrottlingEntries(
                 throttlingEntry -> dataProfile.equals(throttlingEntry.dataProfile)
                         && (!mFlags.unthrottleCheckTransport()
                         || throttlingEntry.transport == transport));
@@ -1623,10 +1690,12 @@ public class DataRetryManager extends Handler {
                     UUID.fromString("24fd4d46-1d0f-4b13-b7d6-7bad70b8289b"),
                     "DataRetryManager throttling more than 100 data profiles",
                     mPhone.getCarrierId());
-            mDataThrottlingEntries.remove(0);
+            removeFromThrottlingIndex(mDataThrottlingEntries.remove(0));
         }
         logl("Add throttling entry " + entry);
         mDataThrottlingEntries.add(entry);
+        mDataThrottlingEntriesByProfile.computeIfAbsent(entry.dataProfile,
+                k -> new ArrayList<>(1)).add(entry);
 
         // For backwards compatibility, we use RETRY_TYPE_NONE if network suggests never retry.
         final int dataRetryType = expirationTime == Long.MAX_VALUE
@@ -1636,6 +1705,29 @@ public class DataRetryManager extends Handler {
         notifyThrottleStatus(dataProfile, expirationTime, dataRetryType, transport);
     }
 
+    /**
+     * Remove the data throttling entries matching the filter.
+     *
+     * @param filter The filter of the entries to remove.
+     */
+    private void removeDataThrottlingEntries(@NonNull Predicate<DataThrottlingEntry> filter) {
+        Iterator<DataThrottlingEntry> iterator = mDataThrottlingEntries.iterator();
+        while (iterator.hasNext()) {
+            DataThrottlingEntry entry = iterator.next();
+            if (filter.test(entry)) {
+                iterator.remove();
+                removeFromThrottlingIndex(entry);
+            }
+        }
+    }
+
+    private void removeFromThrottlingIndex(@NonNull DataThrottlingEntry entry) {
+        List<DataThrottlingEntry> entries = mDataThrottlingEntriesByProfile.get(entry.dataProfile);
+        if (entries != null && entries.remove(entry) && entries.isEmpty()) {
+            mDataThrottlingEntriesByProfile.remove(entry.dataProfile);
+        }
+    }
+
     /**
      * Called when network/modem informed to cancelling the previous throttling request.
      *
@@ -1733,7 +1825,7 @@ public class DataRetryManager extends Handler {
             }
         }
         if (remove) {
-            mDataThrottlingEntries.removeAll(dataUnthrottlingEntries);
+            removeDataThrottlingEntries(dataUnthrottlingEntries::contains);
         }
     }
 
@@ -1775,34 +1867,20 @@ public class DataRetryManager extends Handler {
      */
     public boolean isSimilarNetworkRequestRetryScheduled(
             @NonNull TelephonyNetworkRequest networkRequest, @TransportType int transport) {
+        Pair<Integer, Integer> key = getPendingRetryKey(
+                networkRequest.getHighestPrioritySupportedNetworkCapability(), transport);
+        List<DataSetupRetryEntry> entries = mPendingNetworkRequestRetryEntries.get(key);
+        if (entries == null) return false;
+
         long now = SystemClock.elapsedRealtime();
-        for (int i = mDataRetryEntries.size() - 1; i >= 0; i--) {
-            if (mDataRetryEntries.get(i) instanceof DataSetupRetryEntry) {
-                DataSetupRetryEntry entry = (DataSetupRetryEntry) mDataRetryEntries.get(i);
-                if (entry.getState() == DataRetryEntry.RETRY_STATE_NOT_RETRIED
-                        && entry.setupRetryType
-                        == DataSetupRetryEntry.RETRY_TYPE_NETWORK_REQUESTS
-                        && entry.retryElapsedTime > now) {
-                    if (entry.networkRequestList.isEmpty()) {
-                        String msg = "Invalid data retry entry detected";
-                        logl(msg);
-                        loge("mDataRetryEntries=" + mDataRetryEntries);
-                        AnomalyReporter.reportAnomaly(
-                                UUID.fromString("781af571-f55d-476d-b510-7a5381f633dc"),
-                                msg,
-                                mPhone.getCarrierId());
-                        continue;
-                    }
-                    if (entry.networkRequestList.get(0)
-                            .getHighestPrioritySupportedNetworkCapability()
-                            == networkRequest.getHighestPrioritySupportedNetworkCapability()
-                            && entry.transport == transport) {
-                        return true;
-                    }
-                }
-            }
+        // An entry which is retried, cancelled or due never becomes pending again.
+        entries.removeIf(entry -> entry.getState() != DataRetryEntry.RETRY_STATE_NOT_RETRIED
+                || entry.retryElapsedTime <= now);
+        if (entries.isEmpty()) {
+            mPendingNetworkRequestRetryEntries.remove(key);
+            return false;
         }
-        return false;
+        return true;
     }
 
     /**
@@ -1814,10 +1892,15 @@ public class DataRetryManager extends Handler {
      */
     public boolean isDataProfileThrottled(@NonNull DataProfile dataProfile,
             @TransportType int transport) {
+        List<DataThrottlingEntry> entries = mDataThrottlingEntriesByProfile.get(dataProfile);
+        if (entries == null) return false;
         long now = SystemClock.elapsedRealtime();
-        return mDataThrottlingEntries.stream().anyMatch(
-                entry -> entry.dataProfile.equals(dataProfile) && entry.expirationTimeMillis > now
-                        && entry.transport == transport);
+        for (DataThrottlingEntry entry : entries) {
+            if (entry.expirationTimeMillis > now && entry.transport == transport) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -1855,7 +1938,7 @@ public class DataRetryManager extends Handler {
 
         notifyThrottleStatus(unThrottledProfile, ThrottleStatus.Builder.NO_THROTTLE_EXPIRY_TIME,
                 ThrottleStatus.RETRY_TYPE_HANDOVER, transport);
-        mDataThrottlingEntries.removeIf(entry -> dataNetwork == entry.dataNetwork);
+        removeDataThrottlingEntries(entry -> dataNetwork == entry.dataNetwork);
     }
 
     /**
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.data;
+
+import android.annotation.IntDef;
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.telephony.SubscriptionManager;
+import android.util.IndentingPrintWriter;
+import android.util.SparseLongArray;
+
+import com.android.internal.telephony.metrics.LatencyHistogram;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Trace of the preferred data phone switches decided by {@link PhoneSwitcher}.
+ *
+ * Each decision is kept together with the inputs it was made from, in a log bounded to the last
+ * {@link #MAX_DECISIONS} decisions. The time spent in each stage of a switch is recorded in a
+ * histogram per stage, see {@link LatencyHistogram}, so the switch latency can be read from a
+ * bugreport.
+ *
+ * This class is thread safe.
+ */
+public class DataSwitchTrace {
+    /** The number of decisions kept in the log. */
+    public static final int MAX_DECISIONS = 32;
+
+    /** Evaluating the inputs until the decision is made, in microseconds. */
+    public static final int STAGE_DECISION = 0;
+    /** Sending a command to the modem until its response, in milliseconds. */
+    public static final int STAGE_MODEM_COMMAND = 1;
+    /** Starting validation of a subscription until its result, in milliseconds. */
+    public static final int STAGE_VALIDATION = 2;
+    /** Starting validation of a subscription until its network is available, in milliseconds. */
+    public static final int STAGE_NETWORK_AVAILABLE = 3;
+    /** The decision until the modem accepted the new preferred data phone, in milliseconds. */
+    public static final int STAGE_SWITCH = 4;
+
+    private static final int STAGE_COUNT = 5;
+
+    @IntDef(prefix = {"STAGE_"}, value = {
+            STAGE_DECISION,
+            STAGE_MODEM_COMMAND,
+            STAGE_VALIDATION,
+            STAGE_NETWORK_AVAILABLE,
+            STAGE_SWITCH,
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Stage {}
+
+    /** A switch decision and the inputs it was made from. */
+    public static final class Decision {
+        private final long mTimeMillis = System.currentTimeMillis();
+        private final long mElapsedRealtime = SystemClock.elapsedRealtime();
+        @NonNull
+        private final String mReason;
+        private final int mFromPhoneId;
+        private final int mToPhoneId;
+        private final int mPrimaryDataSubId;
+        private final int mAutoSelectedDataSubId;
+        private final int mPhoneIdInVoiceCall;
+        private final int mEmergencyOverridePhoneId;
+        private final int mImsRegistrationTech;
+        @NonNull
+        private final String mSwitchReason;
+        private long mDecisionTimeUs;
+        // Time until the modem accepted the new preferred data phone, -1 until then
+        private long mSwitchTimeMs = -1;
+
+        /**
+         * @param reason The reasons for the evaluation, including the inputs that changed.
+         * @param fromPhoneId The preferred data phone before the decision.
+         * @param toPhoneId The preferred data phone after the decision.
+         * @param primaryDataSubId The default data subscription chosen by the user.
+         * @param autoSelectedDataSubId The subscription selected by auto data switch or
+         * opportunistic data.
+         * @param phoneIdInVoiceCall The phone in voice call.
+         * @param emergencyOverridePhoneId The phone the preferred data phone is overridden to for
+         * emergency.
+         * @param imsRegistrationTech The IMS registration tech of the phone in voice call.
+         * @param switchReason The reason of the last switch of the preferred data subscription.
+         */
+        public Decision(@NonNull String reason, int fromPhoneId, int toPhoneId,
+                int primaryDataSubId, int autoSelectedDataSubId, int phoneIdInVoiceCall,
+                int emergencyOverridePhoneId, int imsRegistrationTech,
+                @NonNull String switchReason) {
+            mReason = reason;
+            mFromPhoneId = fromPhoneId;
+            mToPhoneId = toPhoneId;
+            mPrimaryDataSubId = primaryDataSubId;
+            mAutoSelectedDataSubId = autoSelectedDataSubId;
+            mPhoneIdInVoiceCall = phoneIdInVoiceCall;
+            mEmergencyOverridePhoneId = emergencyOverridePhoneId;
+            mImsRegistrationTech = imsRegistrationTech;
+            mSwitchReason = switchReason;
+        }
+
+        /** @return The reasons for the evaluation. */
+        @NonNull
+        public String getReason() {
+            return mReason;
+        }
+
+        /** @return The preferred data phone before the decision. */
+        public int getFromPhoneId() {
+            return mFromPhoneId;
+        }
+
+        /** @return The preferred data phone after the decision. */
+        public int getToPhoneId() {
+            return mToPhoneId;
+        }
+
+        /** @return The time to make the decision in microseconds. */
+        public synchronized long getDecisionTimeUs() {
+            return mDecisionTimeUs;
+        }
+
+        /**
+         * @return The time until the modem accepted the new preferred data phone in milliseconds,
+         * or -1 if it has not yet.
+         */
+        public synchronized long getSwitchTimeMs() {
+            return mSwitchTimeMs;
+        }
+
+        private synchronized void setDecisionTimeUs(long decisionTimeUs) {
+            mDecisionTimeUs = decisionTimeUs;
+        }
+
+        private synchronized void setSwitchTimeMs(long switchTimeMs) {
+            mSwitchTimeMs = switchTimeMs;
+        }
+
+        @Override
+        public String toString() {
+            Calendar c = Calendar.getInstance();
+            c.setTimeInMillis(mTimeMillis);
+            long switchTimeMs = getSwitchTimeMs();
+            return String.format("%tm-%td %tH:%tM:%tS.%tL", c, c, c, c, c, c)
+                    + " phone " + mFromPhoneId + "->" + mToPhoneId
+                    + " reason=\"" + mReason + "\""
+                    + " primaryDataSubId=" + mPrimaryDataSubId
+                    + " autoSelectedDataSubId=" + mAutoSelectedDataSubId
+                    + " phoneIdInVoiceCall=" + mPhoneIdInVoiceCall
+                    + " emergencyOverridePhoneId=" + mEmergencyOverridePhoneId
+                    + " imsRegistrationTech=" + mImsRegistrationTech
+                    + " switchReason=" + mSwitchReason
+                    + " decisionUs=" + getDecisionTimeUs()
+                    + " switchMs=" + (switchTimeMs < 0 ? "pending" : switchTimeMs);
+        }
+    }
+
+    private final LatencyHistogram[] mLatencies = new LatencyHistogram[STAGE_COUNT];
+    private final ArrayDeque<Decision> mDecisions = new ArrayDeque<>(MAX_DECISIONS);
+    // The decision waiting for the modem to accept its preferred data phone
+    @Nullable
+    private Decision mPendingDecision;
+    // Elapsed realtime at which the outstanding modem command was sent, by phone id
+    private final SparseLongArray mModemCommandSentTimes = new SparseLongArray();
+    private int mValidatingSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+    private long mValidationStartTime;
+    private boolean mNetworkAvailableRecorded;
+
+    public DataSwitchTrace() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Called when a switch is decided, before the modem commands are sent.
+     *
+     * @param decision The decision.
+     * @param evaluationStartNanos The {@link SystemClock#elapsedRealtimeNanos()} at which the
+     * evaluation started.
+     */
+    public synchronized void onDecision(@NonNull Decision decision, long evaluationStartNanos) {
+        long decisionTimeUs = (SystemClock.elapsedRealtimeNanos() - evaluationStartNanos) / 1000;
+        decision.setDecisionTimeUs(decisionTimeUs);
+        mLatencies[STAGE_DECISION].record(decisionTimeUs);
+        if (mDecisions.size() >= MAX_DECISIONS) {
+            mDecisions.removeFirst();
+        }
+        mDecisions.addLast(decision);
+        // A decision that doesn't change the preferred data phone only re-sends the commands
+        mPendingDecision = decision.getFromPhoneId() != decision.getToPhoneId() ? decision : null;
+    }
+
+    /**
+     * Called when a command to switch data is sent to the modem.
+     *
+     * @param phoneId The phone the command is for.
+     */
+    public synchronized void onModemCommandSent(int phoneId) {
+        mModemCommandSentTimes.put(phoneId, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Called when the modem responded to a command to switch data.
+     *
+     * @param phoneId The phone the command was for.
+     * @param success {@code true} if the command succeeded.
+     */
+    public synchronized void onModemCommandDone(int phoneId, boolean success) {
+        long now = SystemClock.elapsedRealtime();
+        int index = mModemCommandSentTimes.indexOfKey(phoneId);
+        if (index >= 0) {
+            mLatencies[STAGE_MODEM_COMMAND].record(now - mModemCommandSentTimes.valueAt(index));
+            mModemCommandSentTimes.removeAt(index);
+        }
+        if (success && mPendingDecision != null && mPendingDecision.getToPhoneId() == phoneId) {
+            long switchTimeMs = now - mPendingDecision.mElapsedRealtime;
+            mPendingDecision.setSwitchTimeMs(switchTimeMs);
+            mLatencies[STAGE_SWITCH].record(switchTimeMs);
+            mPendingDecision = null;
+        }
+    }
+
+    /**
+     * Called when validation of a subscription starts, before switching data to it. Replaces
+     * the validation in progress, if any.
+     *
+     * @param subId The subscription.
+     */
+    public synchronized void onValidationStarted(int subId) {
+        mValidatingSubId = subId;
+        mValidationStartTime = SystemClock.elapsedRealtime();
+        mNetworkAvailableRecorded = false;
+    }
+
+    /**
+     * Called when the network of the subscription in validation is available.
+     *
+     * @param subId The subscription.
+     */
+    public synchronized void onNetworkAvailable(int subId) {
+        if (subId != mValidatingSubId || mNetworkAvailableRecorded) return;
+        mLatencies[STAGE_NETWORK_AVAILABLE].record(
+                SystemClock.elapsedRealtime() - mValidationStartTime);
+        mNetworkAvailableRecorded = true;
+    }
+
+    /**
+     * Called when the validation of the subscription is done.
+     *
+     * @param subId The subscription.
+     */
+    public synchronized void onValidationDone(int subId) {
+        if (subId != mValidatingSubId) return;
+        mLatencies[STAGE_VALIDATION].record(SystemClock.elapsedRealtime() - mValidationStartTime);
+        mValidatingSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+    }
+
+    /** Called when the validation in progress, if any, is cancelled. */
+    public synchronized void onValidationCancelled() {
+        mValidatingSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+    }
+
+    /**
+     * @param stage The stage of the switch.
+     * @return The histogram of the time spent in the stage.
+     */
+    @NonNull
+    public LatencyHistogram getLatency(@Stage int stage) {
+        return mLatencies[stage];
+    }
+
+    /** @return The logged decisions, oldest first. */
+    @NonNull
+    public synchronized List<Decision> getDecisions() {
+        return new ArrayList<>(mDecisions);
+    }
+
+    private static String stageToString(@Stage int stage) {
+        switch (stage) {
+            case STAGE_DECISION: return "decisionUs";
+            case STAGE_MODEM_COMMAND: return "modemCommandMs";
+            case STAGE_VALIDATION: return "validationMs";
+            case STAGE_NETWORK_AVAILABLE: return "networkAvailableMs";
+            case STAGE_SWITCH: return "switchMs";
+            default: return "UNKNOWN(" + stage + ")";
+        }
+    }
+
+    /**
+     * Dump the trace.
+     *
+     * @param printWriter Print writer.
+     */
+    public void dump(@NonNull PrintWriter printWriter) {
+        IndentingPrintWriter pw = new IndentingPrintWriter(printWriter, "  ");
+        pw.println("DataSwitchTrace:");
+        pw.increaseIndent();
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            pw.println(stageToString(i) + ": " + mLatencies[i]);
+        }
+        pw.println("Decisions:");
+        pw.increaseIndent();
+        for (Decision decision : getDecisions()) {
+            pw.println(decision);
+        }
+        pw.decreaseIndent();
+        pw.decreaseIndent();
+    }
+}
@@ -20,9 +20,10 @@ import static android.net.NetworkCapabilities.TRANSPORT_CELLULAR;
 
 import android.annotation.CallbackExecutor;
 import android.annotation.NonNull;
-import android.annotation.Nullable;
+import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.hardware.display.DisplayManager;
 import android.net.ConnectivityManager;
 import android.net.Network;
@@ -71,7 +72,6 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.Executor;
 
@@ -100,12 +100,16 @@ public class LinkBandwidthEstimator extends Handler {
     static final int MSG_ACTIVE_PHONE_CHANGED = 8;
     @VisibleForTesting
     static final int MSG_DATA_REG_STATE_OR_RAT_CHANGED = 9;
+    @VisibleForTesting
+    static final int MSG_SAVE_BANDWIDTH_STATS = 10;
 
     @VisibleForTesting
     static final int UNKNOWN_TAC = CellInfo.UNAVAILABLE;
 
     // TODO: move the following parameters to xml file
     private static final int TRAFFIC_STATS_POLL_INTERVAL_MS = 1_000;
+    // Delay between the first unsaved bandwidth sample and saving the bandwidth stats
+    private static final int BANDWIDTH_STATS_SAVE_DELAY_MS = 10 * 60 * 1_000;
     private static final int MODEM_POLL_MIN_INTERVAL_MS = 5_000;
     private static final int TRAFFIC_MODEM_POLL_BYTE_RATIO = 8;
     private static final int TRAFFIC_POLL_BYTE_THRESHOLD_MAX = 20_000;
@@ -194,6 +198,11 @@ public class LinkBandwidthEstimator extends Handler {
     @NonNull private String mPlmn = UNKNOWN_PLMN;
     private NetworkCapabilities mNetworkCapabilities;
     private final NetworkBandwidth mPlaceholderNetwork;
+    // Long term bandwidth stats of all networks visited, shared by all phones
+    private final LinkBandwidthStatsStore mStatsStore;
+    // The networks returned by the last lookups, to avoid allocating on every sample
+    private NetworkBandwidth mLastTacNetwork;
+    private NetworkBandwidth mLastAllTacNetwork;
     private long mFilterUpdateTimeMs;
 
     private int mBandwidthUpdateSignalDbm = -1;
@@ -292,6 +301,15 @@ public class LinkBandwidthEstimator extends Handler {
                 }
             };
 
+    private final BroadcastReceiver mShutdownReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_SHUTDOWN.equals(intent.getAction())) {
+                saveBandwidthStats();
+            }
+        }
+    };
+
     private final ConnectivityManager.NetworkCallback mDefaultNetworkCallback =
             new ConnectivityManager.NetworkCallback() {
                 @Override
@@ -326,7 +344,15 @@ public class LinkBandwidthEstimator extends Handler {
             cm.registerDefaultNetworkCallback(mDefaultNetworkCallback, this);
         }
         mTelephonyManager.registerTelephonyCallback(new HandlerExecutor(this), mTelephonyCallback);
-        mPlaceholderNetwork = new NetworkBandwidth(UNKNOWN_PLMN);
+        mStatsStore = LinkBandwidthStatsStore.getInstance(phone.getContext());
+        // Load on the handler thread, before any sample is processed
+        post(() -> mStatsStore.initialize(
+                PreferenceManager.getDefaultSharedPreferences(mPhone.getContext())));
+        phone.getContext().registerReceiver(mShutdownReceiver,
+                new IntentFilter(Intent.ACTION_SHUTDOWN), null, this);
+        mPlaceholderNetwork = new NetworkBandwidth(new LinkBandwidthStatsStore.NetworkKey(
+                UNKNOWN_PLMN, UNKNOWN_TAC, TelephonyManager.getNetworkTypeName(
+                        TelephonyManager.NETWORK_TYPE_UNKNOWN)));
         initAvgBwPerRatTable();
         registerNrStateFrequencyChange();
         mPhone.getServiceStateTracker().registerForDataRegStateOrRatChanged(AccessNetworkConstants
@@ -336,6 +362,15 @@ public class LinkBandwidthEstimator extends Handler {
         mDataNetworkController = mPhone.getDataNetworkController();
     }
 
+    /**
+     * Stop listening for shutdown and save the bandwidth stats. Called when the phone is torn
+     * down.
+     */
+    public void dispose() {
+        mPhone.getContext().unregisterReceiver(mShutdownReceiver);
+        post(this::saveBandwidthStats);
+    }
+
     @Override
     public void handleMessage(Message msg) {
         switch (msg.what) {
@@ -369,6 +404,9 @@ public class LinkBandwidthEstimator extends Handler {
             case MSG_DATA_REG_STATE_OR_RAT_CHANGED:
                 handleDrsOrRatChanged((AsyncResult) msg.obj);
                 break;
+            case MSG_SAVE_BANDWIDTH_STATS:
+                saveBandwidthStats();
+                break;
             default:
                 Rlog.e(TAG, "invalid message " + msg.what);
                 break;
@@ -1160,47 +1198,6 @@ public class LinkBandwidthEstimator extends Handler {
         mLocalLog.log(msg);
     }
 
-    // Map with NetworkKey as the key and NetworkBandwidth as the value.
-    // NetworkKey is specified by the PLMN, data RAT and TAC of network.
-    // NetworkBandwidth represents the bandwidth related stats of each network.
-    private final Map<NetworkKey, NetworkBandwidth> mNetworkMap = new ArrayMap<>();
-
-    private static class NetworkKey {
-
-        private final String mPlmn;
-        private final String mDataRat;
-        private final int mTac;
-
-        NetworkKey(String plmn, int tac, String dataRat) {
-            mPlmn = plmn;
-            mTac = tac;
-            mDataRat = dataRat;
-        }
-        @Override
-        public boolean equals(@Nullable Object o) {
-            if (!(o instanceof NetworkKey that) || hashCode() != o.hashCode()) {
-                return false;
-            }
-
-            if (this == o) {
-                return true;
-            }
-
-            return mPlmn.equals(that.mPlmn)
-                    && mTac == that.mTac
-                    && mDataRat.equals(that.mDataRat);
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(mPlmn, mDataRat, mTac);
-        }
-        @Override
-        public String toString() {
-            return "Plmn" + mPlmn + "Rat" + mDataRat + "Tac" + mTac;
-        }
-    }
-
     @NonNull
     private NetworkBandwidth lookupNetwork(@NonNull String plmn, String dataRat) {
         return lookupNetwork(plmn, UNKNOWN_TAC, dataRat);
@@ -1214,65 +1211,50 @@ public class LinkBandwidthEstimator extends Handler {
                 TelephonyManager.getNetworkTypeName(TelephonyManager.NETWORK_TYPE_UNKNOWN))) {
             return mPlaceholderNetwork;
         }
-        NetworkKey key = new NetworkKey(plmn, tac, dataRat);
-        NetworkBandwidth ans = mNetworkMap.get(key);
-        if (ans == null) {
-            ans = new NetworkBandwidth(key.toString());
-            mNetworkMap.put(key, ans);
+        NetworkBandwidth network = tac == UNKNOWN_TAC ? mLastAllTacNetwork : mLastTacNetwork;
+        if (network != null && network.mKey.matches(plmn, tac, dataRat)) {
+            return network;
+        }
+        network = new NetworkBandwidth(new LinkBandwidthStatsStore.NetworkKey(plmn, tac, dataRat));
+        if (tac == UNKNOWN_TAC) {
+            mLastAllTacNetwork = network;
+        } else {
+            mLastTacNetwork = network;
         }
-        return ans;
+        return network;
+    }
+
+    private void saveBandwidthStats() {
+        removeMessages(MSG_SAVE_BANDWIDTH_STATS);
+        mStatsStore.save();
     }
 
     /** A class holding link bandwidth related stats */
     @VisibleForTesting
     public class NetworkBandwidth {
 
-        private final String mKey;
+        private final LinkBandwidthStatsStore.NetworkKey mKey;
 
-        NetworkBandwidth(String key) {
+        NetworkBandwidth(LinkBandwidthStatsStore.NetworkKey key) {
             mKey = key;
         }
 
         /** Update link bandwidth stats */
         public void update(long value, int link, int level) {
-            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(
-                    mPhone.getContext());
-            String valueKey = getValueKey(link, level);
-            String countKey = getCountKey(link, level);
-            SharedPreferences.Editor editor = sp.edit();
-            long currValue = sp.getLong(valueKey, 0);
-            int currCount = sp.getInt(countKey, 0);
-            editor.putLong(valueKey, currValue + value);
-            editor.putInt(countKey, currCount + 1);
-            editor.apply();
-        }
-
-        private String getValueKey(int link, int level) {
-            return getDataKey(link, level) + "Data";
-        }
-
-        private String getCountKey(int link, int level) {
-            return getDataKey(link, level) + "Count";
-        }
-
-        private String getDataKey(int link, int level) {
-            return mKey + "Link" + link + "Level" + level;
+            mStatsStore.update(mKey, value, link, level);
+            if (!hasMessages(MSG_SAVE_BANDWIDTH_STATS)) {
+                sendEmptyMessageDelayed(MSG_SAVE_BANDWIDTH_STATS, BANDWIDTH_STATS_SAVE_DELAY_MS);
+            }
         }
 
         /** Get the accumulated bandwidth value */
         public long getValue(int link, int level) {
-            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(
-                    mPhone.getContext());
-            String valueKey = getValueKey(link, level);
-            return sp.getLong(valueKey, 0);
+            return mStatsStore.getValue(mKey, link, level);
         }
 
         /** Get the accumulated bandwidth count */
         public int getCount(int link, int level) {
-            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(
-                    mPhone.getContext());
-            String countKey = getCountKey(link, level);
-            return sp.getInt(countKey, 0);
+            return mStatsStore.getCount(mKey, link, level);
         }
 
         @Override
@@ -1306,9 +1288,9 @@ public class LinkBandwidthEstimator extends Handler {
         IndentingPrintWriter pw = new IndentingPrintWriter(printWriter, " ");
         pw.increaseIndent();
         pw.println("current PLMN " + mPlmn + " TAC " + mTac + " RAT " + getDataRatName(mDataRat));
-        pw.println("all networks visited since device boot");
-        for (NetworkBandwidth network : mNetworkMap.values()) {
-            pw.println(network.toString());
+        pw.println("all networks tracked");
+        for (LinkBandwidthStatsStore.NetworkKey key : mStatsStore.getNetworks()) {
+            pw.println(new NetworkBandwidth(key).toString());
         }
 
         try {
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.data;
+
+import static com.android.internal.telephony.data.LinkBandwidthEstimator.NUM_LINK_DIRECTION;
+import static com.android.internal.telephony.data.LinkBandwidthEstimator.NUM_SIGNAL_LEVEL;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.AtomicFile;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.telephony.Rlog;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory store of the long term link bandwidth accumulators of {@link LinkBandwidthEstimator}.
+ *
+ * Each network, identified by a {@link NetworkKey}, is given a compact id which indexes primitive
+ * arrays holding the accumulated bandwidth value and sample count per link direction and signal
+ * level. Updating and reading the accumulators never touches disk; the store is written to a
+ * binary file by {@link #save()}, which the estimator calls on a timer and at shutdown. Once
+ * {@link #MAX_NETWORKS} networks are tracked, the least recently used network is evicted.
+ *
+ * The estimators of all phones share one store, so the stats of a network are accumulated
+ * regardless of the SIM used on it.
+ *
+ * This class is thread safe.
+ */
+public class LinkBandwidthStatsStore {
+    private static final String TAG = LinkBandwidthStatsStore.class.getSimpleName();
+
+    private static final String FILE_NAME = "link_bandwidth_stats";
+
+    /** Bump this whenever the file format changes. */
+    private static final int FILE_VERSION = 1;
+
+    /** Maximum number of networks tracked. */
+    @VisibleForTesting
+    public static final int MAX_NETWORKS = 256;
+
+    private static final int STATS_PER_NETWORK = NUM_LINK_DIRECTION * NUM_SIGNAL_LEVEL;
+
+    // Key of a stat formerly kept in the default shared preferences, such as
+    // "Plmn310260RatLTETac1234Link1Level3Data". Stats of the placeholder network had no prefix.
+    private static final Pattern LEGACY_KEY_PATTERN = Pattern.compile(
+            "(?:Plmn(\\d*)Rat(\\w+)Tac(-?\\d+))?Link(\\d)Level(\\d)(Data|Count)");
+
+    /** Identifies a network by its PLMN, TAC and data RAT name. */
+    public static final class NetworkKey {
+        @NonNull
+        private final String mPlmn;
+        private final int mTac;
+        @NonNull
+        private final String mDataRat;
+        private final int mHashCode;
+
+        /**
+         * @param plmn The PLMN.
+         * @param tac The TAC, or {@link LinkBandwidthEstimator#UNKNOWN_TAC} for all TACs.
+         * @param dataRat The data RAT name.
+         */
+        public NetworkKey(@NonNull String plmn, int tac, @NonNull String dataRat) {
+            mPlmn = plmn;
+            mTac = tac;
+            mDataRat = dataRat;
+            mHashCode = Objects.hash(mPlmn, mDataRat, mTac);
+        }
+
+        /** @return {@code true} if this key identifies the given network. */
+        public boolean matches(@NonNull String plmn, int tac, @NonNull String dataRat) {
+            return mTac == tac && mPlmn.equals(plmn) && mDataRat.equals(dataRat);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof NetworkKey that) || mHashCode != that.mHashCode) {
+                return false;
+            }
+            return mPlmn.equals(that.mPlmn)
+                    && mTac == that.mTac
+                    && mDataRat.equals(that.mDataRat);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public String toString() {
+            return "Plmn" + mPlmn + "Rat" + mDataRat + "Tac" + mTac;
+        }
+    }
+
+    private static LinkBandwidthStatsStore sInstance;
+
+    @Nullable
+    private final AtomicFile mFile;
+
+    // Network key to id, in least recently used order.
+    private final LinkedHashMap<NetworkKey, Integer> mIds = new LinkedHashMap<>(16, 0.75f, true);
+    private final Deque<Integer> mFreeIds = new ArrayDeque<>();
+    private int mNextId;
+
+    // Indexed by id * STATS_PER_NETWORK + link * NUM_SIGNAL_LEVEL + level
+    private final long[] mValues = new long[MAX_NETWORKS * STATS_PER_NETWORK];
+    private final int[] mCounts = new int[MAX_NETWORKS * STATS_PER_NETWORK];
+
+    private boolean mDirty;
+    private boolean mInitialized;
+
+    /**
+     * @param file The file the store is persisted to, or {@code null} to keep it in memory only.
+     */
+    public LinkBandwidthStatsStore(@Nullable File file) {
+        mFile = file == null ? null : new AtomicFile(file);
+    }
+
+    /**
+     * Get the store shared by all phones.
+     *
+     * @param context The context.
+     * @return The store.
+     */
+    @NonNull
+    public static synchronized LinkBandwidthStatsStore getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new LinkBandwidthStatsStore(context.getFileStreamPath(FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /** Drop the shared store, so that the next {@link #getInstance} creates a new one. */
+    @VisibleForTesting
+    public static synchronized void resetInstance() {
+        sInstance = null;
+    }
+
+    private static int index(int id, int link, int level) {
+        return id * STATS_PER_NETWORK + link * NUM_SIGNAL_LEVEL + level;
+    }
+
+    private int getOrCreateIdLocked(@NonNull NetworkKey key) {
+        Integer id = mIds.get(key);
+        if (id != null) return id;
+        int newId = !mFreeIds.isEmpty() ? mFreeIds.pop()
+                : mNextId < MAX_NETWORKS ? mNextId++ : evictEldestLocked();
+        mIds.put(key, newId);
+        return newId;
+    }
+
+    private int evictEldestLocked() {
+        Map.Entry<NetworkKey, Integer> eldest = mIds.entrySet().iterator().next();
+        mIds.remove(eldest.getKey());
+        free(eldest.getValue());
+        return mFreeIds.pop();
+    }
+
+    private void free(int id) {
+        int from = index(id, 0, 0);
+        Arrays.fill(mValues, from, from + STATS_PER_NETWORK, 0);
+        Arrays.fill(mCounts, from, from + STATS_PER_NETWORK, 0);
+        mFreeIds.push(id);
+    }
+
+    /**
+     * Accumulate a bandwidth sample.
+     *
+     * @param key The network.
+     * @param value The bandwidth in kbps.
+     * @param link The link direction, {@link LinkBandwidthEstimator#LINK_TX} or
+     * {@link LinkBandwidthEstimator#LINK_RX}.
+     * @param level The signal level.
+     */
+    public synchronized void update(@NonNull NetworkKey key, long value, int link, int level) {
+        int index = index(getOrCreateIdLocked(key), link, level);
+        mValues[index] += value;
+        mCounts[index]++;
+        mDirty = true;
+    }
+
+    /** @return The accumulated bandwidth value, or 0 if the network is not tracked. */
+    public synchronized long getValue(@NonNull NetworkKey key, int link, int level) {
+        Integer id = mIds.get(key);
+        return id == null ? 0 : mValues[index(id, link, level)];
+    }
+
+    /** @return The accumulated sample count, or 0 if the network is not tracked. */
+    public synchronized int getCount(@NonNull NetworkKey key, int link, int level) {
+        Integer id = mIds.get(key);
+        return id == null ? 0 : mCounts[index(id, link, level)];
+    }
+
+    /** @return The tracked networks, least recently used first. */
+    @NonNull
+    public synchronized List<NetworkKey> getNetworks() {
+        return new ArrayList<>(mIds.keySet());
+    }
+
+    /** @return {@code true} if the store changed since it was last loaded or saved. */
+    public synchronized boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * Load the file and migrate the stats formerly kept in shared preferences. Only the first call
+     * does anything, so each phone can call it before processing samples.
+     *
+     * @param legacyPrefs The shared preferences holding the legacy stats.
+     */
+    public synchronized void initialize(@NonNull SharedPreferences legacyPrefs) {
+        if (mInitialized) return;
+        mInitialized = true;
+        load();
+        migrateLegacyStats(legacyPrefs);
+    }
+
+    /** Replace the content of the store with the content of the file. */
+    public synchronized void load() {
+        if (mFile == null) return;
+        clearLocked();
+        mDirty = false;
+        try (DataInputStream in = new DataInputStream(mFile.openRead())) {
+            if (in.readInt() != FILE_VERSION) {
+                Rlog.d(TAG, "Ignore link bandwidth stats of a different version");
+                return;
+            }
+            int networks = Math.min(in.readInt(), MAX_NETWORKS);
+            for (int i = 0; i < networks; i++) {
+                NetworkKey key = new NetworkKey(in.readUTF(), in.readInt(), in.readUTF());
+                int from = index(getOrCreateIdLocked(key), 0, 0);
+                for (int j = from; j < from + STATS_PER_NETWORK; j++) {
+                    mValues[j] = in.readLong();
+                    mCounts[j] = in.readInt();
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet
+        } catch (IOException e) {
+            Rlog.e(TAG, "Cannot load link bandwidth stats", e);
+            clearLocked();
+        }
+    }
+
+    /** Write the store to the file if it changed. */
+    public synchronized void save() {
+        if (mFile == null || !mDirty) return;
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(FILE_VERSION);
+            data.writeInt(mIds.size());
+            // Least recently used first, so loading restores the order
+            for (Map.Entry<NetworkKey, Integer> entry : mIds.entrySet()) {
+                NetworkKey key = entry.getKey();
+                data.writeUTF(key.mPlmn);
+                data.writeInt(key.mTac);
+                data.writeUTF(key.mDataRat);
+                int from = index(entry.getValue(), 0, 0);
+                for (int j = from; j < from + STATS_PER_NETWORK; j++) {
+                    data.writeLong(mValues[j]);
+                    data.writeInt(mCounts[j]);
+                }
+            }
+            data.flush();
+            mFile.finishWrite(out);
+            mDirty = false;
+        } catch (IOException e) {
+            Rlog.e(TAG, "Cannot save link bandwidth stats", e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    /**
+     * Move the stats formerly kept in shared preferences into the store. The stats are removed
+     * from the preferences, so they are imported at most once. Stats of the placeholder network
+     * are dropped.
+     *
+     * @param prefs The shared preferences holding the legacy stats.
+     * @return The number of stats imported.
+     */
+    public synchronized int migrateLegacyStats(@NonNull SharedPreferences prefs) {
+        int imported = 0;
+        SharedPreferences.Editor editor = null;
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            Matcher matcher = LEGACY_KEY_PATTERN.matcher(entry.getKey());
+            if (!matcher.matches()) continue;
+            if (editor == null) editor = prefs.edit();
+            editor.remove(entry.getKey());
+
+            int link = Integer.parseInt(matcher.group(4));
+            int level = Integer.parseInt(matcher.group(5));
+            if (matcher.group(1) == null || !(entry.getValue() instanceof Number)
+                    || link >= NUM_LINK_DIRECTION || level >= NUM_SIGNAL_LEVEL) {
+                continue;
+            }
+            NetworkKey key = new NetworkKey(matcher.group(1),
+                    Integer.parseInt(matcher.group(3)), matcher.group(2));
+            int index = index(getOrCreateIdLocked(key), link, level);
+            long value = ((Number) entry.getValue()).longValue();
+            if (matcher.group(6).equals("Data")) {
+                mValues[index] += value;
+            } else {
+                mCounts[index] += (int) value;
+            }
+            imported++;
+        }
+        if (editor != null) editor.apply();
+        if (imported > 0) {
+            mDirty = true;
+            Rlog.d(TAG, "Migrated " + imported + " legacy link bandwidth stats");
+        }
+        return imported;
+    }
+
+    private void clearLocked() {
+        mIds.clear();
+        mFreeIds.clear();
+        mNextId = 0;
+        Arrays.fill(mValues, 0);
+        Arrays.fill(mCounts, 0);
+    }
+}
@@ -52,6 +52,7 @@ import android.os.PersistableBundle;
 import android.os.Registrant;
 import android.os.RegistrantList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneStateListener;
 import android.telephony.SubscriptionInfo;
@@ -191,6 +192,11 @@ public class PhoneSwitcher extends Handler {
     protected final FeatureFlags mFlags;
     protected final Context mContext;
     private final LocalLog mLocalLog;
+    /** Trace of the switch decisions and the latency of each stage of a switch. */
+    @NonNull
+    private final DataSwitchTrace mDataSwitchTrace = new DataSwitchTrace();
+    /** The IMS registration tech of the phone in voice call at the last evaluation. */
+    private int mImsRegTechInVoiceCall = REGISTRATION_TECH_NONE;
     protected PhoneState[] mPhoneStates;
     protected int[] mPhoneSubscriptions;
     private boolean mIsRegisteredForImsRadioTechChange;
@@ -1197,6 +1203,7 @@ public class PhoneSwitcher extends Handler {
     private void cancelPendingAutoDataSwitchValidation() {
         if (mValidator.isValidating()) {
             mValidator.stopValidation();
+            mDataSwitchTrace.onValidationCancelled();
 
             removeMessages(EVENT_NETWORK_VALIDATION_DONE);
             removeMessages(EVENT_NETWORK_AVAILABLE);
@@ -1225,6 +1232,7 @@ public class PhoneSwitcher extends Handler {
             log("subscription info isn't initialized yet");
             return false;
         }
+        long evaluationStartNanos = SystemClock.elapsedRealtimeNanos();
         StringBuilder sb = new StringBuilder(reason);
 
         // If we use HAL_COMMAND_PREFERRED_DATA,
@@ -1302,6 +1310,12 @@ public class PhoneSwitcher extends Handler {
         // should be having API to query preferred data modem to detect the out-of-sync scenarios.
         if (diffDetected || EVALUATION_REASON_RADIO_ON.equals(reason)) {
             logl("evaluating due to " + sb);
+            mDataSwitchTrace.onDecision(new DataSwitchTrace.Decision(sb.toString(),
+                    oldPreferredDataPhoneId, mPreferredDataPhoneId, mPrimaryDataSubId,
+                    mAutoSelectedDataSubId, mPhoneIdInVoiceCall,
+                    mEmergencyOverride != null ? mEmergencyOverride.mPhoneId : INVALID_PHONE_INDEX,
+                    mImsRegTechInVoiceCall, switchReasonToString(mLastSwitchPreferredDataReason)),
+                    evaluationStartNanos);
             if (mHalCommandToUse == HAL_COMMAND_PREFERRED_DATA) {
                 // With HAL_COMMAND_PREFERRED_DATA, all phones are assumed to allow PS attach.
                 // So marking all phone as active, and the phone with mPreferredDataPhoneId
@@ -1461,11 +1475,13 @@ public class PhoneSwitcher extends Handler {
         if (mHalCommandToUse == HAL_COMMAND_ALLOW_DATA || mHalCommandToUse == HAL_COMMAND_UNKNOWN) {
             // Skip ALLOW_DATA for single SIM device
             if (mActiveModemCount > 1) {
+                mDataSwitchTrace.onModemCommandSent(phoneId);
                 PhoneFactory.getPhone(phoneId).mCi.setDataAllowed(isPhoneActive(phoneId), message);
             }
         } else if (phoneId == mPreferredDataPhoneId) {
             // Only setPreferredDataModem if the phoneId equals to current mPreferredDataPhoneId
             logl("sendRilCommands: setPreferredDataModem - phoneId: " + phoneId);
+            mDataSwitchTrace.onModemCommandSent(phoneId);
             mRadioConfig.setPreferredDataModem(mPreferredDataPhoneId, message);
         }
     }
@@ -1535,6 +1551,7 @@ public class PhoneSwitcher extends Handler {
             mLastSwitchPreferredDataReason = DataSwitch.Reason.DATA_SWITCH_REASON_UNKNOWN;
         } else {
             int imsRegTech = mImsRegTechProvider.get(mContext, mPhoneIdInVoiceCall);
+            mImsRegTechInVoiceCall = imsRegTech;
             if (isAnyVoiceCallActiveOnDevice() && imsRegTech != REGISTRATION_TECH_IWLAN) {
                 if (imsRegTech != REGISTRATION_TECH_CROSS_SIM) {
                     mPreferredDataPhoneId = shouldSwitchDataDueToInCall()
@@ -1755,6 +1772,7 @@ public class PhoneSwitcher extends Handler {
         mPendingSwitchNeedValidation = needValidation;
         mSetOpptSubCallback = callback;
         long validationTimeout = getValidationTimeout(subIdToValidate, needValidation);
+        mDataSwitchTrace.onValidationStarted(subIdToValidate);
         mValidator.validate(subIdToValidate, validationTimeout, false, mValidationCallback);
     }
 
@@ -1826,6 +1844,7 @@ public class PhoneSwitcher extends Handler {
 
     private void onNetworkAvailable(int subId, Network network) {
         log("onNetworkAvailable: on subId " + subId);
+        mDataSwitchTrace.onNetworkAvailable(subId);
         // Do nothing unless pending switch matches target subId and it doesn't require
         // validation pass.
         if (mPendingSwitchSubId == INVALID_SUBSCRIPTION_ID || mPendingSwitchSubId != subId
@@ -1837,6 +1856,7 @@ public class PhoneSwitcher extends Handler {
 
     private void onValidationDone(int subId, boolean passed) {
         logl("onValidationDone: " + (passed ? "passed" : "failed") + " on subId " + subId);
+        mDataSwitchTrace.onValidationDone(subId);
         if (mPendingSwitchSubId == INVALID_SUBSCRIPTION_ID || mPendingSwitchSubId != subId) return;
 
         // If validation failed and mPendingSwitch.mNeedValidation is false, we still confirm
@@ -1897,6 +1917,14 @@ public class PhoneSwitcher extends Handler {
         return mPreferredDataPhoneId;
     }
 
+    /**
+     * @return The trace of the switch decisions and the latency of each stage of a switch.
+     */
+    @NonNull
+    public DataSwitchTrace getDataSwitchTrace() {
+        return mDataSwitchTrace;
+    }
+
     /**
      * Log debug messages and also log into the local log.
      * @param l debug messages
@@ -2025,6 +2053,7 @@ public class PhoneSwitcher extends Handler {
         pw.println("mCurrentDdsSwitchFailure=" + mCurrentDdsSwitchFailure);
         pw.println("mLastSwitchPreferredDataReason="
                 + switchReasonToString(mLastSwitchPreferredDataReason));
+        mDataSwitchTrace.dump(pw);
         pw.println("Local logs:");
         pw.increaseIndent();
         mLocalLog.dump(fd, pw, args);
@@ -2042,6 +2071,7 @@ public class PhoneSwitcher extends Handler {
     protected void onDdsSwitchResponse(AsyncResult ar) {
         boolean commandSuccess = ar != null && ar.exception == null;
         int phoneId = (int) ar.userObj;
+        mDataSwitchTrace.onModemCommandDone(phoneId, commandSuccess);
         if (mEmergencyOverride != null) {
             logl("Emergency override result sent = " + commandSuccess);
             mEmergencyOverride.sendOverrideCompleteCallbackResultAndClear(commandSuccess);
@@ -18,6 +18,7 @@ package com.android.internal.telephony.data;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.net.InetAddresses;
 import android.net.LinkAddress;
 import android.net.NetworkAgent;
 import android.net.QosFilter;
@@ -37,7 +38,6 @@ import com.android.telephony.Rlog;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -53,6 +53,9 @@ public class QosCallbackTracker extends Handler {
     private static final int DEDICATED_BEARER_EVENT_STATE_MODIFIED = 2;
     private static final int DEDICATED_BEARER_EVENT_STATE_DELETED = 3;
 
+    /** The address session filters without addresses are matched with. */
+    private static final InetAddress ANY_ADDRESS = InetAddresses.parseNumericAddress("0.0.0.0");
+
     @NonNull
     private final String mLogTag;
     @NonNull
@@ -66,6 +69,14 @@ public class QosCallbackTracker extends Handler {
     @NonNull
     private final Map<Integer, IFilter> mCallbacksToFilter;
 
+    /**
+     * The matching bearer filter by callback id for each session in {@link #mQosBearerSessions},
+     * keyed by session id. Only callbacks whose filter matches the session are included. This
+     * saves matching the filters against the existing sessions again on each update.
+     */
+    @NonNull
+    private final Map<Integer, Map<Integer, QosBearerFilter>> mSessionMatches;
+
     private final int mPhoneId;
 
     /**
@@ -110,6 +121,7 @@ public class QosCallbackTracker extends Handler {
     public QosCallbackTracker(@NonNull TelephonyNetworkAgent networkAgent, @NonNull Phone phone) {
         mQosBearerSessions = new HashMap<>();
         mCallbacksToFilter = new HashMap<>();
+        mSessionMatches = new HashMap<>();
         mNetworkAgent = networkAgent;
         mPhoneId = phone.getPhoneId();
         mRcsStats = RcsStats.getInstance();
@@ -161,10 +173,17 @@ public class QosCallbackTracker extends Handler {
 
             //On first change. Check all sessions and send.
             for (final QosBearerSession session : mQosBearerSessions.values()) {
-                if (doFiltersMatch(session, filter)) {
-                    sendSessionAvailable(callbackId, session, filter);
+                final Map<Integer, QosBearerFilter> sessionMatches =
+                        mSessionMatches.get(session.getQosBearerSessionId());
+                final QosBearerFilter qosBearerFilter =
+                        getMatchingQosBearerFilter(session, filter);
+                if (qosBearerFilter != null) {
+                    sessionMatches.put(callbackId, qosBearerFilter);
+                    sendSessionAvailable(callbackId, session, qosBearerFilter);
 
                     notifyMetricDedicatedBearerListenerAdded(callbackId, session);
+                } else {
+                    sessionMatches.remove(callbackId);
                 }
             }
         });
@@ -179,6 +198,9 @@ public class QosCallbackTracker extends Handler {
         post(() -> {
             log("removeFilter: callbackId=" + callbackId);
             mCallbacksToFilter.remove(callbackId);
+            for (final Map<Integer, QosBearerFilter> sessionMatches : mSessionMatches.values()) {
+                sessionMatches.remove(callbackId);
+            }
             notifyMetricDedicatedBearerListenerRemoved(callbackId);
         });
     }
@@ -195,6 +217,7 @@ public class QosCallbackTracker extends Handler {
             int bearerState = DEDICATED_BEARER_EVENT_STATE_NONE;
 
             final List<QosBearerSession> sessionsToAdd = new ArrayList<>();
+            final List<Map<Integer, QosBearerFilter>> sessionMatchesToAdd = new ArrayList<>();
             final Map<Integer, QosBearerSession> incomingSessions = new HashMap<>();
             final HashSet<Integer> sessionsReportedToMetric = new HashSet<>();
             for (final QosBearerSession incomingSession : sessions) {
@@ -202,16 +225,24 @@ public class QosCallbackTracker extends Handler {
                 incomingSessions.put(sessionId, incomingSession);
 
                 final QosBearerSession existingSession = mQosBearerSessions.get(sessionId);
-                for (final int callbackId : mCallbacksToFilter.keySet()) {
-                    final IFilter filter = mCallbacksToFilter.get(callbackId);
-
-                    final boolean incomingSessionMatch = doFiltersMatch(incomingSession, filter);
-                    final boolean existingSessionMatch =
-                            existingSession != null && doFiltersMatch(existingSession, filter);
+                final Map<Integer, QosBearerFilter> existingSessionMatches =
+                        mSessionMatches.get(sessionId);
+                final Map<Integer, QosBearerFilter> incomingSessionMatches = new HashMap<>();
+                for (final Map.Entry<Integer, IFilter> callback : mCallbacksToFilter.entrySet()) {
+                    final int callbackId = callback.getKey();
+                    final QosBearerFilter qosBearerFilter =
+                            getMatchingQosBearerFilter(incomingSession, callback.getValue());
+
+                    final boolean incomingSessionMatch = qosBearerFilter != null;
+                    final boolean existingSessionMatch = existingSession != null
+                            && existingSessionMatches.containsKey(callbackId);
+                    if (incomingSessionMatch) {
+                        incomingSessionMatches.put(callbackId, qosBearerFilter);
+                    }
 
                     if (!existingSessionMatch && incomingSessionMatch) {
                         // The filter matches now and didn't match earlier
-                        sendSessionAvailable(callbackId, incomingSession, filter);
+                        sendSessionAvailable(callbackId, incomingSession, qosBearerFilter);
 
                         bearerState = DEDICATED_BEARER_EVENT_STATE_ADDED;
                     }
@@ -220,7 +251,7 @@ public class QosCallbackTracker extends Handler {
                         // The same sessions matches the same filter, but if the qos changed,
                         // the callback still needs to be notified
                         if (!incomingSession.getQos().equals(existingSession.getQos())) {
-                            sendSessionAvailable(callbackId, incomingSession, filter);
+                            sendSessionAvailable(callbackId, incomingSession, qosBearerFilter);
                             bearerState = DEDICATED_BEARER_EVENT_STATE_MODIFIED;
                         }
                     }
@@ -241,6 +272,7 @@ public class QosCallbackTracker extends Handler {
                     sessionsReportedToMetric.add(sessionId);
                 }
                 sessionsToAdd.add(incomingSession);
+                sessionMatchesToAdd.add(incomingSessionMatches);
             }
 
             final List<Integer> sessionsToRemove = new ArrayList<>();
@@ -250,15 +282,11 @@ public class QosCallbackTracker extends Handler {
             for (final QosBearerSession existingSession : mQosBearerSessions.values()) {
                 final int sessionId = existingSession.getQosBearerSessionId();
                 if (!incomingSessions.containsKey(sessionId)) {
-                    for (final int callbackId : mCallbacksToFilter.keySet()) {
-                        final IFilter filter = mCallbacksToFilter.get(callbackId);
-                        // The filter matches which means it was previously available, and now is
-                        // lost
-                        if (doFiltersMatch(existingSession, filter)) {
-                            sendSessionLost(callbackId, existingSession);
-                            notifyMetricDedicatedBearerEvent(existingSession, bearerState, true);
-                            sessionsReportedToMetric.add(sessionId);
-                        }
+                    // The filters which match were previously available, and now are lost
+                    for (final int callbackId : mSessionMatches.get(sessionId).keySet()) {
+                        sendSessionLost(callbackId, existingSession);
+                        notifyMetricDedicatedBearerEvent(existingSession, bearerState, true);
+                        sessionsReportedToMetric.add(sessionId);
                     }
                     sessionsToRemove.add(sessionId);
                     if (!sessionsReportedToMetric.contains(sessionId)) {
@@ -269,22 +297,20 @@ public class QosCallbackTracker extends Handler {
             }
 
             // Add in the new or existing sessions with updated information
-            for (final QosBearerSession sessionToAdd : sessionsToAdd) {
-                mQosBearerSessions.put(sessionToAdd.getQosBearerSessionId(), sessionToAdd);
+            for (int i = 0; i < sessionsToAdd.size(); i++) {
+                final int sessionId = sessionsToAdd.get(i).getQosBearerSessionId();
+                mQosBearerSessions.put(sessionId, sessionsToAdd.get(i));
+                mSessionMatches.put(sessionId, sessionMatchesToAdd.get(i));
             }
 
             // Remove any old sessions
             for (final int sessionToRemove : sessionsToRemove) {
                 mQosBearerSessions.remove(sessionToRemove);
+                mSessionMatches.remove(sessionToRemove);
             }
         });
     }
 
-    private boolean doFiltersMatch(@NonNull final QosBearerSession qosBearerSession,
-                                   @NonNull final IFilter filter) {
-        return getMatchingQosBearerFilter(qosBearerSession, filter) != null;
-    }
-
     private boolean matchesByLocalAddress(@NonNull final QosBearerFilter sessionFilter,
                                           @NonNull final IFilter filter) {
         int portStart;
@@ -299,13 +325,7 @@ public class QosCallbackTracker extends Handler {
             return false;
         }
         if (sessionFilter.getLocalAddresses().isEmpty()) {
-            InetAddress anyAddress;
-            try {
-                anyAddress = InetAddress.getByAddress(new byte[] {0, 0, 0, 0});
-            } catch (UnknownHostException e) {
-                return false;
-            }
-            return filter.matchesLocalAddress(anyAddress, portStart, portEnd);
+            return filter.matchesLocalAddress(ANY_ADDRESS, portStart, portEnd);
         } else {
             for (final LinkAddress qosAddress : sessionFilter.getLocalAddresses()) {
                 return filter.matchesLocalAddress(qosAddress.getAddress(), portStart, portEnd);
@@ -329,13 +349,7 @@ public class QosCallbackTracker extends Handler {
             return false;
         }
         if (sessionFilter.getRemoteAddresses().isEmpty()) {
-            InetAddress anyAddress;
-            try {
-                anyAddress = InetAddress.getByAddress(new byte[] {0, 0, 0, 0});
-            } catch (UnknownHostException e) {
-                return false;
-            }
-            result = filter.matchesRemoteAddress(anyAddress, portStart, portEnd);
+            result = filter.matchesRemoteAddress(ANY_ADDRESS, portStart, portEnd);
         } else {
             for (final LinkAddress qosAddress : sessionFilter.getRemoteAddresses()) {
                 result = filter.matchesRemoteAddress(qosAddress.getAddress(), portStart, portEnd);
@@ -407,10 +421,9 @@ public class QosCallbackTracker extends Handler {
     }
 
     private void sendSessionAvailable(final int callbackId, @NonNull final QosBearerSession session,
-                                      @NonNull IFilter filter) {
-        QosBearerFilter qosBearerFilter = getMatchingQosBearerFilter(session, filter);
+                                      @NonNull QosBearerFilter qosBearerFilter) {
         List<InetSocketAddress> remoteAddresses = new ArrayList<>();
-        if (qosBearerFilter != null && !qosBearerFilter.getRemoteAddresses().isEmpty()
+        if (!qosBearerFilter.getRemoteAddresses().isEmpty()
                 && qosBearerFilter.getRemotePortRange() != null) {
             remoteAddresses.add(
                     new InetSocketAddress(qosBearerFilter.getRemoteAddresses().get(0).getAddress(),
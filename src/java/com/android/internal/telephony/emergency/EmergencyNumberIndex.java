@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.telephony.emergency.EmergencyNumber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable index of an emergency number list by number, built by
+ * {@link EmergencyNumberTracker} each time the list changes.
+ *
+ * Numbers with an emergency number prefix are already expanded in the indexed lists, so a lookup
+ * is a single hash of the dialed number. Lookups do not allocate, and since the index never
+ * changes once built, they are safe without holding any lock.
+ */
+public final class EmergencyNumberIndex {
+    // Number -> entries with that number, in list order
+    @NonNull
+    private final Map<String, List<EmergencyNumber>> mNumbers;
+
+    /**
+     * @param emergencyNumbers The emergency numbers to index.
+     */
+    public EmergencyNumberIndex(@NonNull List<EmergencyNumber> emergencyNumbers) {
+        Map<String, List<EmergencyNumber>> numbers = new HashMap<>();
+        for (EmergencyNumber num : emergencyNumbers) {
+            numbers.computeIfAbsent(num.getNumber(), k -> new ArrayList<>(1)).add(num);
+        }
+        for (Map.Entry<String, List<EmergencyNumber>> entry : numbers.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        mNumbers = numbers;
+    }
+
+    /** @return {@code true} if an entry has the number. */
+    public boolean contains(@Nullable String number) {
+        return number != null && mNumbers.containsKey(number);
+    }
+
+    /** @return The first entry with the number, or {@code null} if there is none. */
+    @Nullable
+    public EmergencyNumber get(@Nullable String number) {
+        List<EmergencyNumber> found = getAll(number);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /** @return The unmodifiable list of entries with the number, in list order. */
+    @NonNull
+    public List<EmergencyNumber> getAll(@Nullable String number) {
+        List<EmergencyNumber> found = number != null ? mNumbers.get(number) : null;
+        return found != null ? found : Collections.emptyList();
+    }
+
+    /** @return The number of distinct numbers. */
+    public int size() {
+        return mNumbers.size();
+    }
+}
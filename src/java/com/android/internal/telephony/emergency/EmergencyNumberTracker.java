@@ -133,6 +133,11 @@ public class EmergencyNumberTracker extends Handler {
     private List<EmergencyNumber> mEmergencyNumberListWithPrefix = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberListFromTestMode = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberList = new ArrayList<>();
+    // Index of mEmergencyNumberList, null while the radio does not report emergency numbers
+    private volatile EmergencyNumberIndex mEmergencyNumberIndex;
+    // Index of the database numbers with and without prefix
+    private volatile EmergencyNumberIndex mDatabaseNumberIndex =
+            new EmergencyNumberIndex(Collections.emptyList());
 
     private final LocalLog mEmergencyNumberListDatabaseLocalLog = new LocalLog(16);
     private final LocalLog mEmergencyNumberListRadioLocalLog = new LocalLog(16);
@@ -585,6 +590,7 @@ public class EmergencyNumberTracker extends Handler {
             logd("Using Asset Emergency database. Version: " + assetsDatabaseVersion);
             mCurrentDatabaseVersion = assetsDatabaseVersion;
             mEmergencyNumberListFromDatabase = updatedAssetEmergencyNumberList;
+            updateDatabaseNumberIndex();
             mNormalRoutedNumbers.clear();
             mNormalRoutedNumbers = assetNormalRoutedNumbers;
         } else {
@@ -647,6 +653,7 @@ public class EmergencyNumberTracker extends Handler {
                 && mCurrentDatabaseVersion < otaDatabaseVersion) {
             mCurrentDatabaseVersion = otaDatabaseVersion;
             mEmergencyNumberListFromDatabase = updatedOtaEmergencyNumberList;
+            updateDatabaseNumberIndex();
             mNormalRoutedNumbers.clear();
             mNormalRoutedNumbers = otaNormalRoutedNumbers;
         }
@@ -788,6 +795,7 @@ public class EmergencyNumberTracker extends Handler {
             mEmergencyNumberListWithPrefix.addAll(getEmergencyNumberListWithPrefix(
                     mEmergencyNumberListFromDatabase));
         }
+        updateDatabaseNumberIndex();
         if (!DBG) {
             mEmergencyNumberListPrefixLocalLog.log("updateEmergencyNumberList:"
                     + mEmergencyNumberListWithPrefix);
@@ -800,6 +808,21 @@ public class EmergencyNumberTracker extends Handler {
             EmergencyNumber.mergeSameNumbersInEmergencyNumberList(mergedEmergencyNumberList, true);
         }
         mEmergencyNumberList = mergedEmergencyNumberList;
+        mEmergencyNumberIndex = mEmergencyNumberListFromRadio.isEmpty()
+                ? null : new EmergencyNumberIndex(mergedEmergencyNumberList);
+    }
+
+    /**
+     * Rebuild the index of the database numbers with and without prefix. Must be called whenever
+     * the database numbers or the prefixes change.
+     */
+    private void updateDatabaseNumberIndex() {
+        List<EmergencyNumber> databaseNumbers = new ArrayList<>(mEmergencyNumberListFromDatabase);
+        if (mEmergencyNumberPrefix.length != 0) {
+            databaseNumbers.addAll(
+                    getEmergencyNumberListWithPrefix(mEmergencyNumberListFromDatabase));
+        }
+        mDatabaseNumberIndex = new EmergencyNumberIndex(databaseNumbers);
     }
 
     /**
@@ -914,12 +937,11 @@ public class EmergencyNumberTracker extends Handler {
         // to the list.
         number = PhoneNumberUtils.extractNetworkPortionAlt(number);
 
-        if (!mEmergencyNumberListFromRadio.isEmpty()) {
-            for (EmergencyNumber num : mEmergencyNumberList) {
-                if (num.getNumber().equals(number)) {
-                    logd("Found in mEmergencyNumberList");
-                    return true;
-                }
+        EmergencyNumberIndex index = mEmergencyNumberIndex;
+        if (index != null) {
+            if (index.contains(number)) {
+                logd("Found in mEmergencyNumberList");
+                return true;
             }
             return false;
         } else {
@@ -940,13 +962,9 @@ public class EmergencyNumberTracker extends Handler {
      * @return the {@link EmergencyNumber} for the corresponding emergency number address.
      */
     public EmergencyNumber getEmergencyNumber(String emergencyNumber) {
-        emergencyNumber = PhoneNumberUtils.stripSeparators(emergencyNumber);
-        for (EmergencyNumber num : getEmergencyNumberList()) {
-            if (num.getNumber().equals(emergencyNumber)) {
-                return num;
-            }
-        }
-        return null;
+        List<EmergencyNumber> found = findEmergencyNumbers(
+                PhoneNumberUtils.stripSeparators(emergencyNumber), true);
+        return found.isEmpty() ? null : found.get(0);
     }
 
     /**
@@ -960,10 +978,36 @@ public class EmergencyNumberTracker extends Handler {
      * @return the list of emergency numbers matching.
      */
     public List<EmergencyNumber> getEmergencyNumbers(String emergencyNumber) {
-        final String toFind = PhoneNumberUtils.stripSeparators(emergencyNumber);
-        return getEmergencyNumberList().stream()
-                .filter(num -> num.getNumber().equals(toFind))
-                .toList();
+        return findEmergencyNumbers(PhoneNumberUtils.stripSeparators(emergencyNumber), true);
+    }
+
+    /**
+     * Find the {@link EmergencyNumber}s in {@link #getEmergencyNumberList()} with the number.
+     *
+     * @param number the emergency number without separators.
+     * @param adjustRouting whether to adjust the routing and mnc for the current network.
+     * @return the unmodifiable list of emergency numbers matching.
+     */
+    private List<EmergencyNumber> findEmergencyNumbers(String number, boolean adjustRouting) {
+        List<EmergencyNumber> found;
+        EmergencyNumberIndex index = mEmergencyNumberIndex;
+        if (index != null) {
+            found = index.getAll(number);
+        } else {
+            // The list depends on the SIM state when the radio does not report emergency numbers,
+            // so it is not indexed.
+            found = new ArrayList<>();
+            for (EmergencyNumber num : getEmergencyNumberListFromEccListDatabaseAndTest()) {
+                if (num.getNumber().equals(number)) {
+                    found.add(num);
+                }
+            }
+            found = Collections.unmodifiableList(found);
+        }
+        if (adjustRouting && !found.isEmpty() && shouldAdjustForRouting()) {
+            return Collections.unmodifiableList(adjustRoutingForEmergencyNumbers(found));
+        }
+        return found;
     }
 
     /**
@@ -977,12 +1021,11 @@ public class EmergencyNumberTracker extends Handler {
      */
     public @EmergencyServiceCategories int getEmergencyServiceCategories(String emergencyNumber) {
         emergencyNumber = PhoneNumberUtils.stripSeparators(emergencyNumber);
-        for (EmergencyNumber num : getEmergencyNumberList()) {
-            if (num.getNumber().equals(emergencyNumber)) {
-                if (num.isFromSources(EmergencyNumber.EMERGENCY_NUMBER_SOURCE_NETWORK_SIGNALING)
-                        || num.isFromSources(EmergencyNumber.EMERGENCY_NUMBER_SOURCE_SIM)) {
-                    return num.getEmergencyServiceCategoryBitmask();
-                }
+        // Adjusting the routing does not change the categories or sources
+        for (EmergencyNumber num : findEmergencyNumbers(emergencyNumber, false)) {
+            if (num.isFromSources(EmergencyNumber.EMERGENCY_NUMBER_SOURCE_NETWORK_SIGNALING)
+                    || num.isFromSources(EmergencyNumber.EMERGENCY_NUMBER_SOURCE_SIM)) {
+                return num.getEmergencyServiceCategoryBitmask();
             }
         }
         return EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED;
@@ -997,11 +1040,9 @@ public class EmergencyNumberTracker extends Handler {
      */
     public @EmergencyCallRouting int getEmergencyCallRouting(String emergencyNumber) {
         emergencyNumber = PhoneNumberUtils.stripSeparators(emergencyNumber);
-        for (EmergencyNumber num : getEmergencyNumberList()) {
-            if (num.getNumber().equals(emergencyNumber)) {
-                if (num.isFromSources(EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DATABASE)) {
-                    return num.getEmergencyCallRouting();
-                }
+        for (EmergencyNumber num : findEmergencyNumbers(emergencyNumber, true)) {
+            if (num.isFromSources(EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DATABASE)) {
+                return num.getEmergencyCallRouting();
             }
         }
         return EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN;
@@ -1095,20 +1136,7 @@ public class EmergencyNumberTracker extends Handler {
         if (mEmergencyNumberListFromDatabase.isEmpty()) {
             return false;
         }
-        number = PhoneNumberUtils.stripSeparators(number);
-        for (EmergencyNumber num : mEmergencyNumberListFromDatabase) {
-            if (num.getNumber().equals(number)) {
-                return true;
-            }
-        }
-        List<EmergencyNumber> emergencyNumberListFromDatabaseWithPrefix =
-                getEmergencyNumberListWithPrefix(mEmergencyNumberListFromDatabase);
-        for (EmergencyNumber num : emergencyNumberListFromDatabaseWithPrefix) {
-            if (num.getNumber().equals(number)) {
-                return true;
-            }
-        }
-        return false;
+        return mDatabaseNumberIndex.contains(PhoneNumberUtils.stripSeparators(number));
     }
 
     private EmergencyNumber getLabeledEmergencyNumberForEcclist(String number) {
@@ -55,6 +55,17 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
     private ArrayList<byte[]> mIapFileRecord;
     private ArrayList<byte[]> mEmailFileRecord;
 
+    // Results of the EFs requested for each PBR record, keyed by PBR record index. A null
+    // value means the EF was requested but could not be loaded.
+    private SparseArray<ArrayList<AdnRecord>> mAdnRecordsForPbr;
+    private SparseArray<ArrayList<byte[]>> mIapRecordsForPbr;
+    private SparseArray<ArrayList<byte[]>> mEmailRecordsForPbr;
+    // Number of EF loads requested and not yet done. Guarded by mLock.
+    private int mPendingLoads;
+    // Generation of the current read, carried in arg2 of each load request. Loads of an
+    // earlier, abandoned read that are done late are ignored. Guarded by mLock.
+    private int mReadGeneration;
+
     // email list for each ADN record. The key would be
     // ADN's efid << 8 + record #
     private SparseArray<ArrayList<String>> mEmailsForAdnRec;
@@ -124,6 +135,9 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         mAdnCache = cache;
         mEmailsForAdnRec = new SparseArray<ArrayList<String>>();
         mSfiEfidTable = new SparseIntArray();
+        mAdnRecordsForPbr = new SparseArray<ArrayList<AdnRecord>>();
+        mIapRecordsForPbr = new SparseArray<ArrayList<byte[]>>();
+        mEmailRecordsForPbr = new SparseArray<ArrayList<byte[]>>();
     }
 
     @UnsupportedAppUsage
@@ -161,13 +175,8 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
             if (mPbrRecords == null)
                 return null;
 
-            int numRecs = mPbrRecords.size();
-
             log("loadEfFilesFromUsim: Loading adn and emails");
-            for (int i = 0; i < numRecs; i++) {
-                readAdnFileAndWait(i);
-                readEmailFileAndWait(i);
-            }
+            readPhoneBookFilesAndWait(true /* readEmails */);
 
             updatePhoneAdnRecord();
             // All EF files are loaded, return all the records
@@ -180,10 +189,7 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         if (mPbrRecords == null) return;
         mPhoneBookRecords.clear();
 
-        int numRecs = mPbrRecords.size();
-        for (int i = 0; i < numRecs; i++) {
-            readAdnFileAndWait(i);
-        }
+        readPhoneBookFilesAndWait(false /* readEmails */);
     }
 
     // Invalidate the phonebook cache.
@@ -193,95 +199,177 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
 
     // Read the phonebook reference file EF_PBR.
     private void readPbrFileAndWait() {
-        mFh.loadEFLinearFixedAll(EF_PBR, obtainMessage(EVENT_PBR_LOAD_DONE));
-        try {
-            mLock.wait();
-        } catch (InterruptedException e) {
-            Rlog.e(LOG_TAG, "Interrupted Exception in readAdnFileAndWait");
+        startRead();
+        mPendingLoads++;
+        mFh.loadEFLinearFixedAll(EF_PBR, obtainMessage(EVENT_PBR_LOAD_DONE, 0, mReadGeneration));
+        waitForPendingLoads();
+    }
+
+    /**
+     * Read EF_ADN and, if requested, EF_IAP and EF_EMAIL of all PBR records. The files of all
+     * PBR records are requested at once instead of waiting for each file before requesting the
+     * next one, and the results are applied in PBR record order once all of them are loaded.
+     * If the wait is interrupted, the partial results are discarded.
+     */
+    private void readPhoneBookFilesAndWait(boolean readEmails) {
+        int numRecs = mPbrRecords.size();
+        boolean[] adnRequested = new boolean[numRecs];
+        startRead();
+        for (int i = 0; i < numRecs; i++) {
+            adnRequested[i] = requestAdnFile(i);
+            if (readEmails) {
+                requestEmailFile(i);
+            }
+        }
+        if (!waitForPendingLoads()) {
+            clearLoadedFiles();
+            return;
+        }
+
+        for (int i = 0; i < numRecs; i++) {
+            int previousSize = mPhoneBookRecords.size();
+            ArrayList<AdnRecord> adnRecords = mAdnRecordsForPbr.get(i);
+            if (adnRecords != null) {
+                mPhoneBookRecords.addAll(adnRecords);
+            }
+            if (adnRequested[i]) {
+                /**
+                 * The recent added ADN record # would be the reference record size
+                 * for the rest of EFs associated within this PBR.
+                 */
+                mPbrRecords.get(i).mMainFileRecordNum = mPhoneBookRecords.size() - previousSize;
+            }
+            if (readEmails) {
+                buildEmailList(i);
+            }
+        }
+        clearLoadedFiles();
+    }
+
+    // Start a new read, dropping the loads of any earlier read. Called with mLock held.
+    private void startRead() {
+        mReadGeneration++;
+        mPendingLoads = 0;
+        clearLoadedFiles();
+    }
+
+    private void clearLoadedFiles() {
+        mAdnRecordsForPbr.clear();
+        mIapRecordsForPbr.clear();
+        mEmailRecordsForPbr.clear();
+    }
+
+    /**
+     * Wait until all requested EFs are loaded. Called with mLock held.
+     *
+     * @return false if the wait was interrupted. The read is abandoned and the interrupt
+     * status of the thread is restored.
+     */
+    private boolean waitForPendingLoads() {
+        while (mPendingLoads > 0) {
+            try {
+                mLock.wait();
+            } catch (InterruptedException e) {
+                Rlog.e(LOG_TAG, "Interrupted Exception in waitForPendingLoads");
+                Thread.currentThread().interrupt();
+                mReadGeneration++;
+                mPendingLoads = 0;
+                return false;
+            }
         }
+        return true;
     }
 
-    // Read EF_EMAIL which contains the email records.
-    private void readEmailFileAndWait(int recId) {
+    // Request EF_EMAIL, and EF_IAP if needed, of a PBR record.
+    private void requestEmailFile(int recId) {
         SparseArray<File> files;
         files = mPbrRecords.get(recId).mFileIds;
         if (files == null) return;
 
         File email = files.get(USIM_EFEMAIL_TAG);
-        if (email != null) {
+        if (email == null) return;
 
-            /**
-             * Check if the EF_EMAIL is a Type 1 file or a type 2 file.
-             * If mEmailPresentInIap is true, its a type 2 file.
-             * So we read the IAP file and then read the email records.
-             * instead of reading directly.
-             */
-            if (email.getParentTag() == USIM_TYPE2_TAG) {
-                if (files.get(USIM_EFIAP_TAG) == null) {
-                    Rlog.e(LOG_TAG, "Can't locate EF_IAP in EF_PBR.");
-                    return;
-                }
+        int emailEfid = email.getEfid();
+        log("EF_EMAIL exists in PBR. efid = 0x" +
+                Integer.toHexString(emailEfid).toUpperCase(Locale.ROOT));
 
-                log("EF_IAP exists. Loading EF_IAP to retrieve the index.");
-                readIapFileAndWait(files.get(USIM_EFIAP_TAG).getEfid());
-                if (mIapFileRecord == null) {
-                    Rlog.e(LOG_TAG, "Error: IAP file is empty");
-                    return;
+        /**
+         * Make sure this EF_EMAIL was never read earlier. Sometimes two PBR record points
+         */
+        // to the same EF_EMAIL
+        for (int i = 0; i < recId; i++) {
+            if (mPbrRecords.get(i) != null) {
+                SparseArray<File> previousFileIds = mPbrRecords.get(i).mFileIds;
+                if (previousFileIds != null) {
+                    File id = previousFileIds.get(USIM_EFEMAIL_TAG);
+                    if (id != null && id.getEfid() == emailEfid) {
+                        log("Skipped this EF_EMAIL which was loaded earlier");
+                        return;
+                    }
                 }
+            }
+        }
 
-                log("EF_EMAIL order in PBR record: " + email.getIndex());
+        /**
+         * Check if the EF_EMAIL is a Type 1 file or a type 2 file.
+         * If mEmailPresentInIap is true, its a type 2 file.
+         * So we read the IAP file and then read the email records.
+         * instead of reading directly.
+         */
+        if (email.getParentTag() == USIM_TYPE2_TAG) {
+            if (files.get(USIM_EFIAP_TAG) == null) {
+                Rlog.e(LOG_TAG, "Can't locate EF_IAP in EF_PBR.");
+                return;
             }
 
-            int emailEfid = email.getEfid();
-            log("EF_EMAIL exists in PBR. efid = 0x" +
-                    Integer.toHexString(emailEfid).toUpperCase(Locale.ROOT));
+            log("EF_IAP exists. Loading EF_IAP to retrieve the index.");
+            mPendingLoads++;
+            mFh.loadEFLinearFixedAll(files.get(USIM_EFIAP_TAG).getEfid(),
+                    obtainMessage(EVENT_IAP_LOAD_DONE, recId, mReadGeneration));
+        }
 
-            /**
-             * Make sure this EF_EMAIL was never read earlier. Sometimes two PBR record points
-             */
-            // to the same EF_EMAIL
-            for (int i = 0; i < recId; i++) {
-                if (mPbrRecords.get(i) != null) {
-                    SparseArray<File> previousFileIds = mPbrRecords.get(i).mFileIds;
-                    if (previousFileIds != null) {
-                        File id = previousFileIds.get(USIM_EFEMAIL_TAG);
-                        if (id != null && id.getEfid() == emailEfid) {
-                            log("Skipped this EF_EMAIL which was loaded earlier");
-                            return;
-                        }
-                    }
-                }
-            }
+        // Read the EFEmail file.
+        mPendingLoads++;
+        mFh.loadEFLinearFixedAll(emailEfid,
+                obtainMessage(EVENT_EMAIL_LOAD_DONE, recId, mReadGeneration));
+    }
 
-            // Read the EFEmail file.
-            mFh.loadEFLinearFixedAll(emailEfid,
-                    obtainMessage(EVENT_EMAIL_LOAD_DONE));
-            try {
-                mLock.wait();
-            } catch (InterruptedException e) {
-                Rlog.e(LOG_TAG, "Interrupted Exception in readEmailFileAndWait");
-            }
+    // Build the email list of a PBR record from the loaded EF_EMAIL and EF_IAP.
+    private void buildEmailList(int recId) {
+        // EF_EMAIL was not requested for this PBR record
+        if (mEmailRecordsForPbr.indexOfKey(recId) < 0) return;
 
-            if (mEmailFileRecord == null) {
-                Rlog.e(LOG_TAG, "Error: Email file is empty");
+        File email = mPbrRecords.get(recId).mFileIds.get(USIM_EFEMAIL_TAG);
+        mIapFileRecord = mIapRecordsForPbr.get(recId);
+        if (email.getParentTag() == USIM_TYPE2_TAG) {
+            if (mIapFileRecord == null) {
+                Rlog.e(LOG_TAG, "Error: IAP file is empty");
                 return;
             }
 
-            // Build email list
-            if (email.getParentTag() == USIM_TYPE2_TAG && mIapFileRecord != null) {
-                // If the tag is type 2 and EF_IAP exists, we need to build tpe 2 email list
-                buildType2EmailList(recId);
-            }
-            else {
-                // If one the followings is true, we build type 1 email list
-                // 1. EF_IAP does not exist or it is failed to load
-                // 2. ICC cards can be made such that they have an IAP file but all
-                //    records are empty. In that case buildType2EmailList will fail and
-                //    we need to build type 1 email list.
-
-                // Build type 1 email list
-                buildType1EmailList(recId);
-            }
+            log("EF_EMAIL order in PBR record: " + email.getIndex());
+        }
+
+        mEmailFileRecord = mEmailRecordsForPbr.get(recId);
+        if (mEmailFileRecord == null) {
+            Rlog.e(LOG_TAG, "Error: Email file is empty");
+            return;
+        }
+
+        // Build email list
+        if (email.getParentTag() == USIM_TYPE2_TAG && mIapFileRecord != null) {
+            // If the tag is type 2 and EF_IAP exists, we need to build tpe 2 email list
+            buildType2EmailList(recId);
+        }
+        else {
+            // If one the followings is true, we build type 1 email list
+            // 1. EF_IAP does not exist or it is failed to load
+            // 2. ICC cards can be made such that they have an IAP file but all
+            //    records are empty. In that case buildType2EmailList will fail and
+            //    we need to build type 1 email list.
+
+            // Build type 1 email list
+            buildType1EmailList(recId);
         }
     }
 
@@ -410,16 +498,6 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         return true;
     }
 
-    // Read Phonebook Index Admistration EF_IAP file
-    private void readIapFileAndWait(int efid) {
-        mFh.loadEFLinearFixedAll(efid, obtainMessage(EVENT_IAP_LOAD_DONE));
-        try {
-            mLock.wait();
-        } catch (InterruptedException e) {
-            Rlog.e(LOG_TAG, "Interrupted Exception in readIapFileAndWait");
-        }
-    }
-
     private void updatePhoneAdnRecord() {
 
         int numAdnRecs = mPhoneBookRecords.size();
@@ -467,11 +545,11 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         return IccUtils.adnStringFieldToString(emailRec, 0, emailRec.length - 2);
     }
 
-    // Read EF_ADN file
-    private void readAdnFileAndWait(int recId) {
+    // Request EF_ADN of a PBR record. Returns false if the PBR record has no EF_ADN.
+    private boolean requestAdnFile(int recId) {
         SparseArray<File> files;
         files = mPbrRecords.get(recId).mFileIds;
-        if (files == null || files.size() == 0) return;
+        if (files == null || files.size() == 0) return false;
 
         int extEf = 0;
         // Only call fileIds.get while EF_EXT1_TAG is available
@@ -480,22 +558,12 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         }
 
         if (files.get(USIM_EFADN_TAG) == null)
-            return;
+            return false;
 
-        int previousSize = mPhoneBookRecords.size();
+        mPendingLoads++;
         mAdnCache.requestLoadAllAdnLike(files.get(USIM_EFADN_TAG).getEfid(),
-            extEf, obtainMessage(EVENT_USIM_ADN_LOAD_DONE));
-        try {
-            mLock.wait();
-        } catch (InterruptedException e) {
-            Rlog.e(LOG_TAG, "Interrupted Exception in readAdnFileAndWait");
-        }
-
-        /**
-         * The recent added ADN record # would be the reference record size
-         * for the rest of EFs associated within this PBR.
-         */
-        mPbrRecords.get(recId).mMainFileRecordNum = mPhoneBookRecords.size() - previousSize;
+            extEf, obtainMessage(EVENT_USIM_ADN_LOAD_DONE, recId, mReadGeneration));
+        return true;
     }
 
     // Create the phonebook reference file based on EF_PBR
@@ -535,47 +603,62 @@ public class UsimPhoneBookManager extends Handler implements IccConstants {
         case EVENT_PBR_LOAD_DONE:
             log("Loading PBR records done");
             ar = (AsyncResult) msg.obj;
-            if (ar.exception == null) {
-                createPbrFile((ArrayList<byte[]>)ar.result);
-            }
             synchronized (mLock) {
-                mLock.notify();
+                if (isStaleLoad(msg)) break;
+                if (ar.exception == null) {
+                    createPbrFile((ArrayList<byte[]>)ar.result);
+                }
+                onLoadDone();
             }
             break;
         case EVENT_USIM_ADN_LOAD_DONE:
             log("Loading USIM ADN records done");
             ar = (AsyncResult) msg.obj;
-            if (ar.exception == null) {
-                mPhoneBookRecords.addAll((ArrayList<AdnRecord>)ar.result);
-            }
             synchronized (mLock) {
-                mLock.notify();
+                if (isStaleLoad(msg)) break;
+                mAdnRecordsForPbr.put(msg.arg1,
+                        ar.exception == null ? (ArrayList<AdnRecord>) ar.result : null);
+                onLoadDone();
             }
             break;
         case EVENT_IAP_LOAD_DONE:
             log("Loading USIM IAP records done");
             ar = (AsyncResult) msg.obj;
-            if (ar.exception == null) {
-                mIapFileRecord = ((ArrayList<byte[]>)ar.result);
-            }
             synchronized (mLock) {
-                mLock.notify();
+                if (isStaleLoad(msg)) break;
+                mIapRecordsForPbr.put(msg.arg1,
+                        ar.exception == null ? (ArrayList<byte[]>) ar.result : null);
+                onLoadDone();
             }
             break;
         case EVENT_EMAIL_LOAD_DONE:
             log("Loading USIM Email records done");
             ar = (AsyncResult) msg.obj;
-            if (ar.exception == null) {
-                mEmailFileRecord = ((ArrayList<byte[]>)ar.result);
-            }
-
             synchronized (mLock) {
-                mLock.notify();
+                if (isStaleLoad(msg)) break;
+                mEmailRecordsForPbr.put(msg.arg1,
+                        ar.exception == null ? (ArrayList<byte[]>) ar.result : null);
+                onLoadDone();
             }
             break;
         }
     }
 
+    // Called with mLock held. Returns true if the load belongs to an abandoned read.
+    private boolean isStaleLoad(Message msg) {
+        if (msg.arg2 == mReadGeneration) return false;
+        log("Ignoring load of an abandoned read, what=" + msg.what);
+        return true;
+    }
+
+    // Called with mLock held when a requested EF is loaded
+    private void onLoadDone() {
+        if (mPendingLoads > 0) {
+            mPendingLoads--;
+        }
+        mLock.notifyAll();
+    }
+
     // PbrRecord represents a record in EF_PBR
     private class PbrRecord {
         // TLV tags
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.metrics;
+
+import android.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.function.BiPredicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Hash index from the dimensions of an atom to its position in an atom array of
+ * {@link PersistAtomsStorage}.
+ *
+ * <p>The proto arrays stay the source of truth. The index remembers which array instance it was
+ * built from and is rebuilt whenever the storage replaces the array (insertion, pull, clear or
+ * load), so it can never go stale. Merging into an existing atom, the common case, does not
+ * replace the array and costs a single hash probe instead of a linear scan.
+ *
+ * <p>Not thread safe; callers hold the storage lock.
+ *
+ * @param <T> The atom type.
+ */
+class AtomIndex<T> {
+    private static final int EMPTY = -1;
+
+    private final ToLongFunction<T> mHasher;
+    private final BiPredicate<T, T> mMatcher;
+
+    private T[] mIndexedArray;
+    private long[] mHashes = new long[0];
+    private int[] mPositions = new int[0];
+    private int mMask;
+
+    /**
+     * @param hasher Hashes the dimensions of an atom. Atoms with the same dimensions must have the
+     * same hash; see {@link #hash(long, long)}.
+     * @param matcher Returns {@code true} if two atoms have the same dimensions.
+     */
+    AtomIndex(@NonNull ToLongFunction<T> hasher, @NonNull BiPredicate<T, T> matcher) {
+        mHasher = hasher;
+        mMatcher = matcher;
+    }
+
+    /**
+     * @param array The atom array currently held by the storage.
+     * @param key Atom with the dimensions to look up.
+     * @return The position of the first atom in {@code array} with the same dimensions as
+     * {@code key}, or -1 if there is none.
+     */
+    int indexOf(@NonNull T[] array, @NonNull T key) {
+        if (array != mIndexedArray) {
+            rebuild(array);
+        }
+        if (array.length == 0) return -1;
+        long hash = mHasher.applyAsLong(key);
+        for (int slot = spread(hash) & mMask; mPositions[slot] != EMPTY;
+                slot = (slot + 1) & mMask) {
+            int position = mPositions[slot];
+            if (mHashes[slot] == hash && mMatcher.test(array[position], key)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private void rebuild(T[] array) {
+        mIndexedArray = array;
+        int capacity = Integer.highestOneBit(Math.max(array.length, 1) * 2 - 1) << 1;
+        if (mPositions.length != capacity) {
+            mHashes = new long[capacity];
+            mPositions = new int[capacity];
+            mMask = capacity - 1;
+        }
+        Arrays.fill(mPositions, EMPTY);
+        for (int i = 0; i < array.length; i++) {
+            long hash = mHasher.applyAsLong(array[i]);
+            int slot = spread(hash) & mMask;
+            boolean duplicate = false;
+            while (mPositions[slot] != EMPTY) {
+                if (mHashes[slot] == hash && mMatcher.test(array[mPositions[slot]], array[i])) {
+                    // Keep the first atom, as the linear scan did
+                    duplicate = true;
+                    break;
+                }
+                slot = (slot + 1) & mMask;
+            }
+            if (!duplicate) {
+                mHashes[slot] = hash;
+                mPositions[slot] = i;
+            }
+        }
+    }
+
+    private static int spread(long hash) {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Mix one more dimension into a hash.
+     *
+     * @param hash The hash so far.
+     * @param value The dimension value.
+     * @return The combined hash.
+     */
+    static long hash(long hash, long value) {
+        hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 29);
+    }
+}
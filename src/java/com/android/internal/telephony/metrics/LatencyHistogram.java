@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.metrics;
+
+import android.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-memory histogram of non-negative values with bounded relative error.
+ *
+ * Values are bucketed log-linearly in the same way as an HDR histogram: each power of two is split
+ * into {@link #SUB_BUCKET_COUNT} equal buckets, so percentiles are reported with a relative error
+ * of at most 1 / {@link #SUB_BUCKET_COUNT} regardless of magnitude. Values larger than
+ * {@link #MAX_TRACKABLE_VALUE} are clamped to it. Recording never allocates.
+ *
+ * This class is thread safe.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    /** Number of buckets each power of two is split into. */
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /** Largest value tracked with full precision, around 70 minutes when recording millis. */
+    public static final long MAX_TRACKABLE_VALUE = (1L << 22) - 1;
+
+    private static final int BUCKET_COUNT = indexOf(MAX_TRACKABLE_VALUE) + 1;
+
+    private final int[] mCounts = new int[BUCKET_COUNT];
+    private long mTotalCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    /**
+     * Record a value.
+     *
+     * @param value The value. Negative values are recorded as 0.
+     */
+    public synchronized void record(long value) {
+        value = Math.max(0, Math.min(value, MAX_TRACKABLE_VALUE));
+        mCounts[indexOf(value)]++;
+        mTotalCount++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    /**
+     * @param percentile Percentile in the range [0, 100].
+     * @return The value at the given percentile, or 0 if nothing has been recorded.
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) return 0;
+        long rank = (long) Math.ceil(Math.max(0, Math.min(percentile, 100)) / 100 * mTotalCount);
+        rank = Math.max(rank, 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.max(mMin, Math.min(highestValueOf(i), mMax));
+            }
+        }
+        return mMax;
+    }
+
+    /** @return The number of recorded values. */
+    public synchronized long getCount() {
+        return mTotalCount;
+    }
+
+    /** @return The mean of the recorded values, or 0 if nothing has been recorded. */
+    public synchronized long getMean() {
+        return mTotalCount == 0 ? 0 : mSum / mTotalCount;
+    }
+
+    /** @return The smallest recorded value, or 0 if nothing has been recorded. */
+    public synchronized long getMin() {
+        return mTotalCount == 0 ? 0 : mMin;
+    }
+
+    /** @return The largest recorded value. */
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    /** Clear all recorded values. */
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+        int magnitude = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >> magnitude) - SUB_BUCKET_COUNT;
+        return SUB_BUCKET_COUNT + magnitude * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+        int magnitude = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << magnitude) - 1;
+    }
+
+    @Override
+    @NonNull
+    public synchronized String toString() {
+        return "count=" + mTotalCount + " min=" + getMin() + " mean=" + getMean()
+                + " p50=" + getValueAtPercentile(50) + " p95=" + getValueAtPercentile(95)
+                + " p99=" + getValueAtPercentile(99) + " max=" + mMax;
+    }
+}
@@ -18,12 +18,15 @@ package com.android.internal.telephony.metrics;
 
 import static android.text.format.DateUtils.DAY_IN_MILLIS;
 
+import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.telephony.TelephonyManager;
 import android.telephony.TelephonyManager.NetworkTypeBitMask;
 import android.util.SparseIntArray;
@@ -103,6 +106,12 @@ public class PersistAtomsStorage {
      */
     private static final int SAVE_TO_FILE_DELAY_FOR_GET_MILLIS = 500;
 
+    /**
+     * Number of unsaved updates after which atoms are saved without waiting for the delay, to
+     * bound how much is lost on crash or power loss during long bursts.
+     */
+    private static final int MAX_PENDING_UPDATES_BEFORE_SAVE = 200;
+
     /** Maximum number of call sessions to store between pulls. */
     private final int mMaxNumVoiceCallSessions;
 
@@ -195,8 +204,49 @@ public class PersistAtomsStorage {
     private final Context mContext;
     private final Handler mHandler;
     private final HandlerThread mHandlerThread;
+
+    /** Uptime at which the scheduled save runs, or 0 if no save is scheduled. */
+    private long mScheduledSaveUptimeMillis;
+
+    /** Number of updates since the last snapshot was taken for saving. */
+    private int mPendingUpdates;
+
+    /** Serializes file writes, which are done without holding the storage lock. */
+    private final Object mFileLock = new Object();
+
+    /** Generation of the most recent snapshot taken for saving. */
+    private long mSnapshotGeneration;
+
+    /** Generation of the snapshot currently on disk, guarded by {@link #mFileLock}. */
+    private long mWrittenGeneration;
     private static final SecureRandom sRandom = new SecureRandom();
 
+    /** Indexes for atoms that are merged by dimensions on the hot path. */
+    private final AtomIndex<DataCallSession> mDataCallSessionIndex = new AtomIndex<>(
+            s -> AtomIndex.hash(0, s.dimension),
+            (a, b) -> a.dimension == b.dimension);
+    private final AtomIndex<NetworkRequestsV2> mNetworkRequestsV2Index = new AtomIndex<>(
+            s -> AtomIndex.hash(AtomIndex.hash(0, s.carrierId), s.capability),
+            (a, b) -> a.carrierId == b.carrierId && a.capability == b.capability);
+    private final AtomIndex<ImsRegistrationFeatureTagStats> mImsRegistrationFeatureTagStatsIndex =
+            new AtomIndex<>(
+                    s -> AtomIndex.hash(AtomIndex.hash(AtomIndex.hash(AtomIndex.hash(0,
+                            s.carrierId), s.slotId), s.featureTagName), s.registrationTech),
+                    (a, b) -> a.carrierId == b.carrierId
+                            && a.slotId == b.slotId
+                            && a.featureTagName == b.featureTagName
+                            && a.registrationTech == b.registrationTech);
+    private final AtomIndex<SipMessageResponse> mSipMessageResponseIndex = new AtomIndex<>(
+            s -> AtomIndex.hash(AtomIndex.hash(AtomIndex.hash(AtomIndex.hash(AtomIndex.hash(
+                    AtomIndex.hash(0, s.carrierId), s.slotId), s.sipMessageMethod),
+                    s.sipMessageResponse), s.sipMessageDirection), s.messageError),
+            (a, b) -> a.carrierId == b.carrierId
+                    && a.slotId == b.slotId
+                    && a.sipMessageMethod == b.sipMessageMethod
+                    && a.sipMessageResponse == b.sipMessageResponse
+                    && a.sipMessageDirection == b.sipMessageDirection
+                    && a.messageError == b.messageError);
+
     private Runnable mSaveRunnable =
             new Runnable() {
                 @Override
@@ -1687,6 +1737,12 @@ public class PersistAtomsStorage {
         }
     }
 
+    /** @return The looper of the thread atoms are saved on. */
+    @VisibleForTesting
+    Looper getSaveLooper() {
+        return mHandlerThread.getLooper();
+    }
+
     /** Saves {@link PersistAtoms} to a file in private storage immediately. */
     public synchronized void flushAtoms() {
         saveAtomsToFile(0);
@@ -1943,25 +1999,87 @@ public class PersistAtomsStorage {
      * Posts message to save a copy of {@link PersistAtoms} to a file after a delay or immediately.
      *
      * <p>The delay is introduced to avoid too frequent operations to disk, which would negatively
-     * impact the power consumption.
+     * impact the power consumption. Updates arriving while a save is scheduled are coalesced into
+     * it; they never push an earlier scheduled save further out, so a steady stream of updates
+     * cannot postpone saving indefinitely. After {@link #MAX_PENDING_UPDATES_BEFORE_SAVE} unsaved
+     * updates the save is posted to the front of the handler queue, so the file is still written
+     * on the handler thread rather than by the caller adding the atom.
+     *
+     * <p>A delay of 0 requests an explicit flush, which is written on the calling thread.
      */
     private synchronized void saveAtomsToFile(int delayMillis) {
-        mHandler.removeCallbacks(mSaveRunnable);
+        if (delayMillis == SAVE_TO_FILE_DELAY_FOR_UPDATE_MILLIS
+                && ++mPendingUpdates >= MAX_PENDING_UPDATES_BEFORE_SAVE
+                && !mSaveImmediately) {
+            long nowUptimeMillis = SystemClock.uptimeMillis();
+            if (mScheduledSaveUptimeMillis != 0
+                    && mScheduledSaveUptimeMillis <= nowUptimeMillis) {
+                // Already due or posted to the front of the queue
+                return;
+            }
+            mHandler.removeCallbacks(mSaveRunnable);
+            if (mHandler.postAtFrontOfQueue(mSaveRunnable)) {
+                mScheduledSaveUptimeMillis = nowUptimeMillis;
+                return;
+            }
+        }
         if (delayMillis > 0 && !mSaveImmediately) {
-            if (mHandler.postDelayed(mSaveRunnable, delayMillis)) {
+            long saveUptimeMillis = SystemClock.uptimeMillis() + delayMillis;
+            if (mScheduledSaveUptimeMillis != 0
+                    && mScheduledSaveUptimeMillis <= saveUptimeMillis) {
+                return;
+            }
+            mHandler.removeCallbacks(mSaveRunnable);
+            if (mHandler.postAtTime(mSaveRunnable, saveUptimeMillis)) {
+                mScheduledSaveUptimeMillis = saveUptimeMillis;
                 return;
             }
         }
         // In case of error posting the event or if delay is 0, save immediately
+        mHandler.removeCallbacks(mSaveRunnable);
         saveAtomsToFileNow();
     }
 
-    /** Saves a copy of {@link PersistAtoms} to a file in private storage. */
-    private synchronized void saveAtomsToFileNow() {
-        try (FileOutputStream stream = mContext.openFileOutput(FILENAME, Context.MODE_PRIVATE)) {
-            stream.write(PersistAtoms.toByteArray(mAtoms));
-        } catch (IOException e) {
-            Rlog.e(TAG, "cannot save PersistAtoms", e);
+    /**
+     * Saves a copy of {@link PersistAtoms} to a file in private storage.
+     *
+     * <p>When run from the handler, only serialization happens under the storage lock and the
+     * file is written without blocking callers adding atoms. Explicit flushes reach this from
+     * {@link #saveAtomsToFile} with the storage lock already held, so they write while holding
+     * it, as before.
+     */
+    private void saveAtomsToFileNow() {
+        final byte[] bytes;
+        final long generation;
+        synchronized (this) {
+            mScheduledSaveUptimeMillis = 0;
+            mPendingUpdates = 0;
+            bytes = PersistAtoms.toByteArray(mAtoms);
+            generation = ++mSnapshotGeneration;
+        }
+        writeSnapshot(bytes, generation);
+    }
+
+    /**
+     * Writes a serialized snapshot to the file, unless a newer snapshot has already been written.
+     *
+     * @param bytes The serialized {@link PersistAtoms}.
+     * @param generation The generation of the snapshot.
+     */
+    @VisibleForTesting
+    void writeSnapshot(@NonNull byte[] bytes, long generation) {
+        synchronized (mFileLock) {
+            if (generation < mWrittenGeneration) {
+                // A newer snapshot has already been written
+                return;
+            }
+            try (FileOutputStream stream =
+                         mContext.openFileOutput(FILENAME, Context.MODE_PRIVATE)) {
+                stream.write(bytes);
+                mWrittenGeneration = generation;
+            } catch (IOException e) {
+                Rlog.e(TAG, "cannot save PersistAtoms", e);
+            }
         }
     }
 
@@ -2066,12 +2184,8 @@ public class PersistAtomsStorage {
      * one, or {@code null} if it does not exist.
      */
     private @Nullable NetworkRequestsV2 find(NetworkRequestsV2 key) {
-        for (NetworkRequestsV2 item : mAtoms.networkRequestsV2) {
-            if (item.carrierId == key.carrierId && item.capability == key.capability) {
-                return item;
-            }
-        }
-        return null;
+        int index = mNetworkRequestsV2Index.indexOf(mAtoms.networkRequestsV2, key);
+        return index >= 0 ? mAtoms.networkRequestsV2[index] : null;
     }
 
     /**
@@ -2079,13 +2193,9 @@ public class PersistAtomsStorage {
      * or -1 if it does not exist.
      */
     private int findIndex(DataCallSession key) {
-        for (int i = 0; i < mAtoms.dataCallSession.length; i++) {
-            if (mAtoms.dataCallSession[i].dimension == key.dimension) {
-                return i;
-            }
-        }
-        return -1;
+        return mDataCallSessionIndex.indexOf(mAtoms.dataCallSession, key);
     }
+
     /**
      * Returns the Dedicated Bearer Listener event that has the same carrier id, slot id, rat, qci
      * and established state as the given one, or {@code null} if it does not exist.
@@ -2130,15 +2240,9 @@ public class PersistAtomsStorage {
      * or {@code null} if it does not exist.
      */
     private @Nullable ImsRegistrationFeatureTagStats find(ImsRegistrationFeatureTagStats key) {
-        for (ImsRegistrationFeatureTagStats stats : mAtoms.imsRegistrationFeatureTagStats) {
-            if (stats.carrierId == key.carrierId
-                    && stats.slotId == key.slotId
-                    && stats.featureTagName == key.featureTagName
-                    && stats.registrationTech == key.registrationTech) {
-                return stats;
-            }
-        }
-        return null;
+        int index = mImsRegistrationFeatureTagStatsIndex.indexOf(
+                mAtoms.imsRegistrationFeatureTagStats, key);
+        return index >= 0 ? mAtoms.imsRegistrationFeatureTagStats[index] : null;
     }
 
     /**
@@ -2178,17 +2282,8 @@ public class PersistAtomsStorage {
      * direction and error as the given one, or {@code null} if it does not exist.
      */
     private @Nullable SipMessageResponse find(SipMessageResponse key) {
-        for (SipMessageResponse stats : mAtoms.sipMessageResponse) {
-            if (stats.carrierId == key.carrierId
-                    && stats.slotId == key.slotId
-                    && stats.sipMessageMethod == key.sipMessageMethod
-                    && stats.sipMessageResponse == key.sipMessageResponse
-                    && stats.sipMessageDirection == key.sipMessageDirection
-                    && stats.messageError == key.messageError) {
-                return stats;
-            }
-        }
-        return null;
+        int index = mSipMessageResponseIndex.indexOf(mAtoms.sipMessageResponse, key);
+        return index >= 0 ? mAtoms.sipMessageResponse[index] : null;
     }
 
     /**
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.metrics;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.IndentingPrintWriter;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.RILUtils;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Round trip latency, queue depth and timeout statistics for RIL requests, broken out by radio HAL
+ * service and {@code RIL_REQUEST_*}.
+ *
+ * One instance is shared by all RIL instances in the process so the statistics survive radio and
+ * HAL service restarts. All histograms have fixed memory, see {@link LatencyHistogram}.
+ */
+public class RilLatencyStats {
+    private static final RilLatencyStats sInstance = new RilLatencyStats();
+
+    /** Statistics for one (HAL service, request) pair. */
+    public static final class Entry {
+        private final int mService;
+        private final int mRequest;
+        private final LatencyHistogram mLatencyMs = new LatencyHistogram();
+        private final LatencyHistogram mQueueDepth = new LatencyHistogram();
+        private long mTimeoutCount;
+
+        private Entry(int service, int request) {
+            mService = service;
+            mRequest = request;
+        }
+
+        /** @return The {@code HAL_SERVICE_*} the request was sent to. */
+        public int getService() {
+            return mService;
+        }
+
+        /** @return The {@code RIL_REQUEST_*}. */
+        public int getRequest() {
+            return mRequest;
+        }
+
+        /** @return Latency from request to response, in milliseconds. */
+        @NonNull
+        public LatencyHistogram getLatencyMs() {
+            return mLatencyMs;
+        }
+
+        /** @return Number of requests already outstanding when this request was sent. */
+        @NonNull
+        public LatencyHistogram getQueueDepth() {
+            return mQueueDepth;
+        }
+
+        /** @return Number of requests that did not get a response in time. */
+        public synchronized long getTimeoutCount() {
+            return mTimeoutCount;
+        }
+
+        private synchronized void onTimeout() {
+            mTimeoutCount++;
+        }
+
+        @Override
+        public String toString() {
+            return RILUtils.requestToString(mRequest) + " service=" + mService
+                    + " latencyMs={" + mLatencyMs + "}"
+                    + " queueDepth={p50=" + mQueueDepth.getValueAtPercentile(50)
+                    + " p99=" + mQueueDepth.getValueAtPercentile(99)
+                    + " max=" + mQueueDepth.getMax() + "}"
+                    + " timeouts=" + getTimeoutCount();
+        }
+    }
+
+    // Keyed by makeKey(service, request)
+    private final SparseArray<Entry> mEntries = new SparseArray<>();
+
+    @VisibleForTesting
+    public RilLatencyStats() {
+    }
+
+    /** @return The process wide instance. */
+    @NonNull
+    public static RilLatencyStats getInstance() {
+        return sInstance;
+    }
+
+    private static int makeKey(int service, int request) {
+        return (service << 16) | (request & 0xFFFF);
+    }
+
+    @NonNull
+    private Entry getOrCreateEntry(int service, int request) {
+        int key = makeKey(service, request);
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new Entry(service, request);
+                mEntries.put(key, entry);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Called when a request is handed to the radio HAL.
+     *
+     * @param service The {@code HAL_SERVICE_*} the request is sent to.
+     * @param request The {@code RIL_REQUEST_*}.
+     * @param queueDepth Number of requests outstanding, including this one.
+     */
+    public void onRequestSent(int service, int request, int queueDepth) {
+        getOrCreateEntry(service, request).mQueueDepth.record(queueDepth);
+    }
+
+    /**
+     * Called when a solicited response arrives.
+     *
+     * @param service The {@code HAL_SERVICE_*} the request was sent to.
+     * @param request The {@code RIL_REQUEST_*}.
+     * @param latencyMs Time from request to response in milliseconds.
+     */
+    public void onResponse(int service, int request, long latencyMs) {
+        getOrCreateEntry(service, request).mLatencyMs.record(latencyMs);
+    }
+
+    /**
+     * Called when a request times out without a response.
+     *
+     * @param service The {@code HAL_SERVICE_*} the request was sent to.
+     * @param request The {@code RIL_REQUEST_*}.
+     */
+    public void onTimeout(int service, int request) {
+        getOrCreateEntry(service, request).onTimeout();
+    }
+
+    /**
+     * @param service The {@code HAL_SERVICE_*}.
+     * @param request The {@code RIL_REQUEST_*}.
+     * @return The statistics for the pair, or {@code null} if the request was never sent.
+     */
+    @Nullable
+    public Entry getEntry(int service, int request) {
+        synchronized (mEntries) {
+            return mEntries.get(makeKey(service, request));
+        }
+    }
+
+    /** @return All tracked entries. */
+    @NonNull
+    public List<Entry> getEntries() {
+        synchronized (mEntries) {
+            List<Entry> list = new ArrayList<>(mEntries.size());
+            for (int i = 0; i < mEntries.size(); i++) {
+                list.add(mEntries.valueAt(i));
+            }
+            return list;
+        }
+    }
+
+    /** Clear all statistics. */
+    @VisibleForTesting
+    public void reset() {
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * Dump the statistics.
+     *
+     * @param printWriter Print writer.
+     */
+    public void dump(@NonNull PrintWriter printWriter) {
+        IndentingPrintWriter pw = new IndentingPrintWriter(printWriter, "  ");
+        pw.println("RilLatencyStats:");
+        pw.increaseIndent();
+        for (Entry entry : getEntries()) {
+            pw.println(entry);
+        }
+        pw.decreaseIndent();
+    }
+}
@@ -21,13 +21,16 @@ import android.annotation.ColorInt;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.UserIdInt;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.RemoteException;
 import android.provider.Telephony;
 import android.provider.Telephony.SimInfo;
 import android.telephony.SubscriptionInfo;
@@ -59,6 +62,8 @@ import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -619,6 +624,33 @@ public class SubscriptionDatabaseManager extends Handler {
     private final Map<Integer, SubscriptionInfoInternal> mAllSubscriptionInfoInternalCache =
             new HashMap<>(16);
 
+    /**
+     * Incremented whenever {@link #mAllSubscriptionInfoInternalCache} changes. Must be updated
+     * together with {@link #mSnapshot} through {@link #invalidateSnapshotLocked()}.
+     */
+    @GuardedBy("mReadWriteLock")
+    private long mGeneration = 0;
+
+    /**
+     * Immutable snapshot of {@link #mAllSubscriptionInfoInternalCache}, or {@code null} if the
+     * cache changed since it was last built. Read without holding {@link #mReadWriteLock}.
+     */
+    @Nullable
+    private volatile SubscriptionSnapshot mSnapshot;
+
+    /**
+     * Database changes collected by {@link #batchUpdate(Runnable)}, keyed by subscription id, or
+     * {@code null} if no batch is in progress.
+     */
+    @GuardedBy("mReadWriteLock")
+    @Nullable
+    private Map<Integer, ContentValues> mBatchedContentValues;
+
+    /** Subscriptions changed by the batch in progress, notified when the batch completes. */
+    @GuardedBy("mReadWriteLock")
+    @Nullable
+    private Set<Integer> mBatchedChangedSubIds;
+
     /** Whether database has been initialized after boot up. */
     @GuardedBy("this")
     private boolean mDatabaseInitialized = false;
@@ -888,6 +920,7 @@ public class SubscriptionDatabaseManager extends Handler {
                 mAllSubscriptionInfoInternalCache.put(subId, new SubscriptionInfoInternal
                         .Builder(subInfo)
                         .setId(subId).build());
+                invalidateSnapshotLocked();
             } else {
                 logel("insertSubscriptionInfo: Failed to insert a new subscription. subInfo="
                         + subInfo);
@@ -918,6 +951,7 @@ public class SubscriptionDatabaseManager extends Handler {
                     SimInfo.COLUMN_UNIQUE_KEY_SUBSCRIPTION_ID + "=?",
                     new String[]{Integer.toString(subId)}) > 0) {
                 mAllSubscriptionInfoInternalCache.remove(subId);
+                invalidateSnapshotLocked();
             } else {
                 logel("Failed to remove subscription with subId=" + subId);
             }
@@ -935,7 +969,8 @@ public class SubscriptionDatabaseManager extends Handler {
      * @param contentValues The fields to be update.
      *
      * @return The number of rows updated. Note if the database is configured as asynchronously
-     * update, then this will be always 1.
+     * update, or the update is collected by {@link #batchUpdate(Runnable)}, then this will be
+     * always 1, since the write happens later.
      */
     private int updateDatabase(int subId, @NonNull ContentValues contentValues) {
         logv("updateDatabase: prepare to update sub " + subId);
@@ -948,6 +983,13 @@ public class SubscriptionDatabaseManager extends Handler {
             }
         }
 
+        if (mBatchedContentValues != null) {
+            // Only the thread running the batch can get here, since it holds the write lock.
+            mBatchedContentValues.computeIfAbsent(subId, k -> new ContentValues())
+                    .putAll(contentValues);
+            return 1;
+        }
+
         if (mAsyncMode) {
             // Perform the update in the handler thread asynchronously.
             post(() -> {
@@ -966,6 +1008,114 @@ public class SubscriptionDatabaseManager extends Handler {
         }
     }
 
+    /**
+     * Apply the changes collected by a batch to the database as a single provider operation
+     * (synchronously or asynchronously).
+     *
+     * @param batch The fields to be updated, keyed by subscription id.
+     */
+    private void updateDatabaseBatch(@NonNull Map<Integer, ContentValues> batch) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(batch.size());
+        batch.forEach((subId, contentValues) -> operations.add(ContentProviderOperation
+                .newUpdate(Uri.withAppendedPath(SimInfo.CONTENT_URI, String.valueOf(subId)))
+                .withValues(contentValues)
+                .build()));
+
+        if (mAsyncMode) {
+            // Perform the update in the handler thread asynchronously.
+            post(() -> applyBatch(operations));
+        } else {
+            applyBatch(operations);
+        }
+    }
+
+    /**
+     * Apply the operations to the subscription database.
+     *
+     * @param operations The update operations.
+     */
+    private void applyBatch(@NonNull ArrayList<ContentProviderOperation> operations) {
+        try {
+            mContext.getContentResolver().applyBatch(SimInfo.CONTENT_URI.getAuthority(),
+                    operations);
+            logv("applyBatch: updated " + operations.size() + " subscriptions in the database.");
+        } catch (RemoteException | OperationApplicationException e) {
+            logel("applyBatch: Failed to update the database. e=" + e);
+        }
+    }
+
+    /**
+     * Run a group of updates as one transaction. All the setters and
+     * {@link #updateSubscription(SubscriptionInfoInternal)} called from {@code updates} on the
+     * calling thread update the cache immediately, but other threads only see the changes once
+     * {@code updates} returns. The database writes are then merged into one provider operation,
+     * and {@link SubscriptionDatabaseManagerCallback#onSubscriptionChanged(int)} is invoked once
+     * for each changed subscription.
+     *
+     * Nested batches are merged into the outermost one. Inserting, removing or reloading
+     * subscriptions is not part of the batch and should not be done from {@code updates}.
+     *
+     * The database write is best-effort, the same as for asynchronous updates: the setters
+     * report success as soon as the cache is updated, and a failure to apply the batch to the
+     * database is only logged. The cache keeps the new values, and the database catches up on
+     * the next write of the same fields.
+     *
+     * Other threads cannot read the cache until {@code updates} returns, so {@code updates}
+     * should only call the setters and must not call into other services.
+     *
+     * @param updates The updates to run.
+     */
+    public void batchUpdate(@NonNull Runnable updates) {
+        Objects.requireNonNull(updates);
+        Set<Integer> changedSubIds = null;
+
+        // Grab the write lock so no other threads can read or write the cache.
+        mReadWriteLock.writeLock().lock();
+        try {
+            if (mBatchedContentValues != null) {
+                updates.run();
+                return;
+            }
+
+            mBatchedContentValues = new LinkedHashMap<>();
+            mBatchedChangedSubIds = new LinkedHashSet<>();
+            try {
+                updates.run();
+            } finally {
+                Map<Integer, ContentValues> batch = mBatchedContentValues;
+                changedSubIds = mBatchedChangedSubIds;
+                mBatchedContentValues = null;
+                mBatchedChangedSubIds = null;
+                // The cache already has the changes, so write them even if an update failed.
+                if (!batch.isEmpty()) {
+                    updateDatabaseBatch(batch);
+                }
+            }
+        } finally {
+            mReadWriteLock.writeLock().unlock();
+            if (changedSubIds != null) {
+                for (int subId : changedSubIds) {
+                    mCallback.invokeFromExecutor(() -> mCallback.onSubscriptionChanged(subId));
+                }
+            }
+        }
+    }
+
+    /**
+     * Notify the subscription changed, or defer the notification to the end of the batch in
+     * progress.
+     *
+     * @param subId The subscription id.
+     */
+    @GuardedBy("mReadWriteLock")
+    private void notifySubscriptionChangedLocked(int subId) {
+        if (mBatchedChangedSubIds != null) {
+            mBatchedChangedSubIds.add(subId);
+        } else {
+            mCallback.invokeFromExecutor(() -> mCallback.onSubscriptionChanged(subId));
+        }
+    }
+
     /**
      * Update a certain field of subscription in the database. Also update the subscription cache
      * {@link #mAllSubscriptionInfoInternalCache}.
@@ -1025,8 +1175,8 @@ public class SubscriptionDatabaseManager extends Handler {
                         if (updateDatabase(id, contentValues) > 0) {
                             // Update the subscription database cache.
                             mAllSubscriptionInfoInternalCache.put(id, builder.build());
-                            mCallback.invokeFromExecutor(()
-                                    -> mCallback.onSubscriptionChanged(subId));
+                            invalidateSnapshotLocked();
+                            notifySubscriptionChangedLocked(subId);
                         }
                     }
                 }
@@ -1060,7 +1210,8 @@ public class SubscriptionDatabaseManager extends Handler {
 
             if (updateDatabase(subId, createDeltaContentValues(oldSubInfo, newSubInfo)) > 0) {
                 mAllSubscriptionInfoInternalCache.put(subId, newSubInfo);
-                mCallback.invokeFromExecutor(() -> mCallback.onSubscriptionChanged(subId));
+                invalidateSnapshotLocked();
+                notifySubscriptionChangedLocked(subId);
             }
         } finally {
             mReadWriteLock.writeLock().unlock();
@@ -1335,6 +1486,7 @@ public class SubscriptionDatabaseManager extends Handler {
             mAllSubscriptionInfoInternalCache.put(subId,
                     new SubscriptionInfoInternal.Builder(subInfoCache)
                             .setCardId(cardId).build());
+            invalidateSnapshotLocked();
         } finally {
             mReadWriteLock.writeLock().unlock();
         }
@@ -2105,6 +2257,7 @@ public class SubscriptionDatabaseManager extends Handler {
             mAllSubscriptionInfoInternalCache.put(subId,
                     new SubscriptionInfoInternal.Builder(subInfoCache)
                             .setGroupDisabled(isGroupDisabled).build());
+            invalidateSnapshotLocked();
         } finally {
             mReadWriteLock.writeLock().unlock();
         }
@@ -2245,6 +2398,7 @@ public class SubscriptionDatabaseManager extends Handler {
                 if (changed) {
                     mAllSubscriptionInfoInternalCache.clear();
                     mAllSubscriptionInfoInternalCache.putAll(newAllSubscriptionInfoInternalCache);
+                    invalidateSnapshotLocked();
 
                     logl("Loaded " + mAllSubscriptionInfoInternalCache.size()
                             + " records from the subscription database.");
@@ -2504,18 +2658,48 @@ public class SubscriptionDatabaseManager extends Handler {
     }
 
     /**
-     * @return All subscription infos in the database.
+     * @return All subscription infos in the database, ordered by subscription id. The list is
+     * immutable.
      */
     @NonNull
     public List<SubscriptionInfoInternal> getAllSubscriptions() {
+        return getSnapshot().getAllSubscriptions();
+    }
+
+    /**
+     * Get an immutable snapshot of the database. The snapshot is shared by all callers until the
+     * database changes, so this is a single volatile read in the common case.
+     *
+     * @return The snapshot.
+     */
+    @NonNull
+    public SubscriptionSnapshot getSnapshot() {
+        SubscriptionSnapshot snapshot = mSnapshot;
+        if (snapshot != null) return snapshot;
+
         mReadWriteLock.readLock().lock();
         try {
-            return new ArrayList<>(mAllSubscriptionInfoInternalCache.values());
+            snapshot = mSnapshot;
+            if (snapshot == null) {
+                // Concurrent readers may both build one; they are identical since writers are
+                // excluded by the read lock.
+                snapshot = new SubscriptionSnapshot(mGeneration,
+                        mAllSubscriptionInfoInternalCache.values());
+                mSnapshot = snapshot;
+            }
+            return snapshot;
         } finally {
             mReadWriteLock.readLock().unlock();
         }
     }
 
+    /** Drop the snapshot after {@link #mAllSubscriptionInfoInternalCache} changed. */
+    @GuardedBy("mReadWriteLock")
+    private void invalidateSnapshotLocked() {
+        mGeneration++;
+        mSnapshot = null;
+    }
+
     /**
      * Get subscription info by ICCID.
      *
@@ -1543,45 +1543,28 @@ public class SubscriptionManagerService extends ISub.Stub {
                         if (subId == getDefaultSubId()) {
                             MccTable.updateMccMncConfiguration(mContext, mccMnc);
                         }
-                        setMccMnc(subId, mccMnc);
-                        if (isSatelliteSpn(subInfo.getDisplayName()) || isSatellitePlmn(mccMnc)) {
-                            setNtn(subId, true);
-                        }
                     } else {
                         loge("updateSubscription: mcc/mnc is empty");
                     }
 
                     String iso = TelephonyManager.getSimCountryIsoForPhone(phoneId);
-
-                    if (!TextUtils.isEmpty(iso)) {
-                        setCountryIso(subId, iso);
-                    } else {
+                    if (TextUtils.isEmpty(iso)) {
                         loge("updateSubscription: sim country iso is null");
                     }
 
                     String msisdn = PhoneFactory.getPhone(phoneId).getLine1Number();
-                    if (!TextUtils.isEmpty(msisdn)) {
-                        setDisplayNumber(msisdn, subId);
-                    }
 
                     String imsi = mTelephonyManager.createForSubscriptionId(
                             subId).getSubscriberId();
-                    if (imsi != null) {
-                        mSubscriptionDatabaseManager.setImsi(subId, imsi);
-                    }
 
+                    String[] ehplmns = null;
+                    String[] hplmns = null;
                     IccCard iccCard = PhoneFactory.getPhone(phoneId).getIccCard();
                     if (iccCard != null) {
                         IccRecords records = iccCard.getIccRecords();
                         if (records != null) {
-                            String[] ehplmns = records.getEhplmns();
-                            if (ehplmns != null) {
-                                mSubscriptionDatabaseManager.setEhplmns(subId, ehplmns);
-                            }
-                            String[] hplmns = records.getPlmnsFromHplmnActRecord();
-                            if (hplmns != null) {
-                                mSubscriptionDatabaseManager.setHplmns(subId, hplmns);
-                            }
+                            ehplmns = records.getEhplmns();
+                            hplmns = records.getPlmnsFromHplmnActRecord();
                         } else {
                             loge("updateSubscription: ICC records are not available.");
                         }
@@ -1589,6 +1572,36 @@ public class SubscriptionManagerService extends ISub.Stub {
                         loge("updateSubscription: ICC card is not available.");
                     }
 
+                    // Write all the SIM records to the database at once.
+                    final int loadedSubId = subId;
+                    final SubscriptionInfoInternal loadedSubInfo = subInfo;
+                    final String[] loadedEhplmns = ehplmns;
+                    final String[] loadedHplmns = hplmns;
+                    mSubscriptionDatabaseManager.batchUpdate(() -> {
+                        if (!TextUtils.isEmpty(mccMnc)) {
+                            setMccMnc(loadedSubId, mccMnc);
+                            if (isSatelliteSpn(loadedSubInfo.getDisplayName())
+                                    || isSatellitePlmn(mccMnc)) {
+                                setNtn(loadedSubId, true);
+                            }
+                        }
+                        if (!TextUtils.isEmpty(iso)) {
+                            setCountryIso(loadedSubId, iso);
+                        }
+                        if (!TextUtils.isEmpty(msisdn)) {
+                            setDisplayNumber(msisdn, loadedSubId);
+                        }
+                        if (imsi != null) {
+                            mSubscriptionDatabaseManager.setImsi(loadedSubId, imsi);
+                        }
+                        if (loadedEhplmns != null) {
+                            mSubscriptionDatabaseManager.setEhplmns(loadedSubId, loadedEhplmns);
+                        }
+                        if (loadedHplmns != null) {
+                            mSubscriptionDatabaseManager.setHplmns(loadedSubId, loadedHplmns);
+                        }
+                    });
+
                     // Attempt to restore SIM specific settings when SIM is loaded.
                     Bundle result = mContext.getContentResolver().call(
                             SubscriptionManager.SIM_INFO_BACKUP_AND_RESTORE_CONTENT_URI,
@@ -1762,7 +1775,9 @@ public class SubscriptionManagerService extends ISub.Stub {
             return;
         }
 
-        ParcelUuid groupUuid;
+        // Work out all the changes first. Checking whether the config package can manage the
+        // group calls into other services, which must not happen while the batch below holds the
+        // database write lock.
 
         // carrier certificates are not subscription-specific, so we want to load them even if
         // this current package is not a CarrierServicePackage
@@ -1770,29 +1785,29 @@ public class SubscriptionManagerService extends ISub.Stub {
                 CarrierConfigManager.KEY_CARRIER_CERTIFICATE_STRING_ARRAY);
         UiccAccessRule[] carrierConfigAccessRules = UiccAccessRule.decodeRulesFromCarrierConfig(
                 certs);
-        if (carrierConfigAccessRules != null) {
-            mSubscriptionDatabaseManager.setCarrierConfigAccessRules(
-                    subId, carrierConfigAccessRules);
-        }
 
         boolean isOpportunistic = config.getBoolean(
                 CarrierConfigManager.KEY_IS_OPPORTUNISTIC_SUBSCRIPTION_BOOL,
                 subInfo.isOpportunistic());
-        mSubscriptionDatabaseManager.setOpportunistic(subId, isOpportunistic);
 
         String groupUuidString = config.getString(
                 CarrierConfigManager.KEY_SUBSCRIPTION_GROUP_UUID_STRING, "");
         String oldGroupUuidString = subInfo.getGroupUuid();
+        // The group UUID to set, or null to keep the current one
+        String newGroupUuidString = null;
+        boolean setGroupOwner = false;
+        // The group to notify MultiSimSettingController about, if it changed
+        ParcelUuid changedGroupUuid = null;
         if (!TextUtils.isEmpty(groupUuidString)) {
             try {
                 // Update via a UUID Structure to ensure consistent formatting
-                groupUuid = ParcelUuid.fromString(groupUuidString);
+                ParcelUuid groupUuid = ParcelUuid.fromString(groupUuidString);
                 if (groupUuidString.equals(CarrierConfigManager.REMOVE_GROUP_UUID_STRING)) {
                     // Remove the group UUID.
-                    mSubscriptionDatabaseManager.setGroupUuid(subId, "");
+                    newGroupUuidString = "";
                 } else if (canPackageManageGroup(groupUuid, configPackageName)) {
-                    mSubscriptionDatabaseManager.setGroupUuid(subId, groupUuidString);
-                    mSubscriptionDatabaseManager.setGroupOwner(subId, configPackageName);
+                    newGroupUuidString = groupUuidString;
+                    setGroupOwner = true;
                     log("updateSubscriptionByCarrierConfig: Group added for sub " + subId);
                 } else {
                     loge("updateSubscriptionByCarrierConfig: configPackageName "
@@ -1800,8 +1815,7 @@ public class SubscriptionManagerService extends ISub.Stub {
                 }
 
                 if (!groupUuidString.equals(oldGroupUuidString)) {
-                    MultiSimSettingController.getInstance()
-                            .notifySubscriptionGroupChanged(groupUuid);
+                    changedGroupUuid = groupUuid;
                 }
             } catch (IllegalArgumentException e) {
                 loge("updateSubscriptionByCarrierConfig: Invalid Group UUID="
@@ -1809,8 +1823,6 @@ public class SubscriptionManagerService extends ISub.Stub {
             }
         }
 
-        updateGroupDisabled();
-
         final int preferredUsageSetting = config.getInt(
                 CarrierConfigManager.KEY_CELLULAR_USAGE_SETTING_INT,
                 SubscriptionManager.USAGE_SETTING_UNKNOWN);
@@ -1819,7 +1831,6 @@ public class SubscriptionManagerService extends ISub.Stub {
                 subInfo.getUsageSetting(), preferredUsageSetting);
 
         if (newUsageSetting != subInfo.getUsageSetting()) {
-            mSubscriptionDatabaseManager.setUsageSetting(subId, newUsageSetting);
             log("updateSubscriptionByCarrierConfig: UsageSetting changed,"
                     + " oldSetting=" + SubscriptionManager.usageSettingToString(
                             subInfo.getUsageSetting())
@@ -1828,11 +1839,12 @@ public class SubscriptionManagerService extends ISub.Stub {
                     + " newSetting=" + SubscriptionManager.usageSettingToString(newUsageSetting));
         }
 
+        int serviceBitmasks = subInfo.getServiceCapabilities();
         if (mFeatureFlags.dataOnlyCellularService()) {
             final int[] servicesFromCarrierConfig =
                     config.getIntArray(
                             CarrierConfigManager.KEY_CELLULAR_SERVICE_CAPABILITIES_INT_ARRAY);
-            int serviceBitmasks = 0;
+            serviceBitmasks = 0;
             boolean allServicesAreValid = true;
             // Check if all services from carrier config are valid before setting to db
             if (servicesFromCarrierConfig == null) {
@@ -1857,9 +1869,39 @@ public class SubscriptionManagerService extends ISub.Stub {
             if (serviceBitmasks != subInfo.getServiceCapabilities()) {
                 log("updateSubscriptionByCarrierConfig: serviceCapabilities updated from "
                         + subInfo.getServiceCapabilities() + " to " + serviceBitmasks);
-                mSubscriptionDatabaseManager.setServiceCapabilities(subId, serviceBitmasks);
             }
         }
+
+        // Apply all the carrier config fields to the database at once.
+        final String groupUuidToSet = newGroupUuidString;
+        final boolean groupOwnerToSet = setGroupOwner;
+        final int serviceCapabilities = serviceBitmasks;
+        mSubscriptionDatabaseManager.batchUpdate(() -> {
+            if (carrierConfigAccessRules != null) {
+                mSubscriptionDatabaseManager.setCarrierConfigAccessRules(
+                        subId, carrierConfigAccessRules);
+            }
+            mSubscriptionDatabaseManager.setOpportunistic(subId, isOpportunistic);
+            if (groupUuidToSet != null) {
+                mSubscriptionDatabaseManager.setGroupUuid(subId, groupUuidToSet);
+                if (groupOwnerToSet) {
+                    mSubscriptionDatabaseManager.setGroupOwner(subId, configPackageName);
+                }
+            }
+            if (newUsageSetting != subInfo.getUsageSetting()) {
+                mSubscriptionDatabaseManager.setUsageSetting(subId, newUsageSetting);
+            }
+            if (serviceCapabilities != subInfo.getServiceCapabilities()) {
+                mSubscriptionDatabaseManager.setServiceCapabilities(subId, serviceCapabilities);
+            }
+        });
+
+        if (changedGroupUuid != null) {
+            MultiSimSettingController.getInstance().notifySubscriptionGroupChanged(
+                    changedGroupUuid);
+        }
+
+        updateGroupDisabled();
     }
 
     /**
@@ -1907,20 +1949,27 @@ public class SubscriptionManagerService extends ISub.Stub {
 
         enforceTelephonyFeatureWithException(callingPackage, "getAllSubInfoList");
 
-        return getSubscriptionInfoStreamAsUser(BINDER_WRAPPER.getCallingUserHandle())
-                // callers have READ_PHONE_STATE or READ_PRIVILEGED_PHONE_STATE can get a full
-                // list. Carrier apps can only get the subscriptions they have privileged.
-                .filter(subInfo -> TelephonyPermissions.checkCallingOrSelfReadPhoneStateNoThrow(
-                        mContext, subInfo.getSubscriptionId(), callingPackage, callingFeatureId,
-                        "getAllSubInfoList"))
-                // Remove the identifier if the caller does not have sufficient permission.
-                // carrier apps will get full subscription info on the subscriptions associated
-                // to them.
-                .map(subInfo -> conditionallyRemoveIdentifiers(subInfo.toSubscriptionInfo(),
-                        callingPackage, callingFeatureId, "getAllSubInfoList"))
-                .sorted(Comparator.comparing(SubscriptionInfo::getSimSlotIndex)
-                        .thenComparing(SubscriptionInfo::getSubscriptionId))
-                .collect(Collectors.toList());
+        final int userId = BINDER_WRAPPER.getCallingUserHandle().getIdentifier();
+        List<SubscriptionInfo> result = new ArrayList<>();
+        // The snapshot is already sorted by slot index, then subscription id.
+        for (SubscriptionSnapshot.Entry entry
+                : mSubscriptionDatabaseManager.getSnapshot().getAllSortedBySlot()) {
+            SubscriptionInfoInternal subInfo = entry.getSubscriptionInfoInternal();
+            // callers have READ_PHONE_STATE or READ_PRIVILEGED_PHONE_STATE can get a full
+            // list. Carrier apps can only get the subscriptions they have privileged.
+            if (!isSubscriptionAssociatedWithUserInternal(subInfo, userId)
+                    || !TelephonyPermissions.checkCallingOrSelfReadPhoneStateNoThrow(
+                            mContext, subInfo.getSubscriptionId(), callingPackage,
+                            callingFeatureId, "getAllSubInfoList")) {
+                continue;
+            }
+            // Remove the identifier if the caller does not have sufficient permission.
+            // carrier apps will get full subscription info on the subscriptions associated
+            // to them.
+            result.add(conditionallyRemoveIdentifiers(entry.getSubscriptionInfo(),
+                    callingPackage, callingFeatureId, "getAllSubInfoList"));
+        }
+        return result;
     }
 
     /**
@@ -2083,17 +2132,23 @@ public class SubscriptionManagerService extends ISub.Stub {
         if (isForAllProfiles) {
             enforcePermissionAccessAllUserProfiles();
         }
-        return getSubscriptionInfoStreamAsUser(isForAllProfiles
-                ? UserHandle.ALL : BINDER_WRAPPER.getCallingUserHandle())
-                .filter(SubscriptionInfoInternal::isActive)
-                // Remove the identifier if the caller does not have sufficient permission.
-                // carrier apps will get full subscription info on the subscriptions associated
-                // to them.
-                .map(subInfo -> conditionallyRemoveIdentifiers(subInfo.toSubscriptionInfo(),
-                        callingPackage, callingFeatureId, "getActiveSubscriptionInfoList"))
-                .sorted(Comparator.comparing(SubscriptionInfo::getSimSlotIndex)
-                        .thenComparing(SubscriptionInfo::getSubscriptionId))
-                .collect(Collectors.toList());
+        final int userId = isForAllProfiles
+                ? UserHandle.USER_ALL : BINDER_WRAPPER.getCallingUserHandle().getIdentifier();
+        List<SubscriptionInfo> result = new ArrayList<>();
+        // The snapshot is already sorted by slot index, then subscription id.
+        for (SubscriptionSnapshot.Entry entry
+                : mSubscriptionDatabaseManager.getSnapshot().getActiveSortedBySlot()) {
+            if (!isSubscriptionAssociatedWithUserInternal(
+                    entry.getSubscriptionInfoInternal(), userId)) {
+                continue;
+            }
+            // Remove the identifier if the caller does not have sufficient permission.
+            // carrier apps will get full subscription info on the subscriptions associated
+            // to them.
+            result.add(conditionallyRemoveIdentifiers(entry.getSubscriptionInfo(),
+                    callingPackage, callingFeatureId, "getActiveSubscriptionInfoList"));
+        }
+        return result;
     }
 
     /**
@@ -2756,21 +2811,24 @@ public class SubscriptionManagerService extends ISub.Stub {
 
         enforceTelephonyFeatureWithException(callingPackage, "getOpportunisticSubscriptions");
 
-        return mSubscriptionDatabaseManager.getAllSubscriptions().stream()
-                // callers have READ_PHONE_STATE or READ_PRIVILEGED_PHONE_STATE can get a full
-                // list. Carrier apps can only get the subscriptions they have privileged.
-                .filter(subInfo -> subInfo.isOpportunistic()
-                        && TelephonyPermissions.checkCallingOrSelfReadPhoneStateNoThrow(
-                        mContext, subInfo.getSubscriptionId(), callingPackage,
-                        callingFeatureId, "getOpportunisticSubscriptions"))
-                // Remove the identifier if the caller does not have sufficient permission.
-                // carrier apps will get full subscription info on the subscriptions associated
-                // to them.
-                .map(subInfo -> conditionallyRemoveIdentifiers(subInfo.toSubscriptionInfo(),
-                        callingPackage, callingFeatureId, "getOpportunisticSubscriptions"))
-                .sorted(Comparator.comparing(SubscriptionInfo::getSimSlotIndex)
-                        .thenComparing(SubscriptionInfo::getSubscriptionId))
-                .collect(Collectors.toList());
+        List<SubscriptionInfo> result = new ArrayList<>();
+        // The snapshot is already sorted by slot index, then subscription id.
+        for (SubscriptionSnapshot.Entry entry
+                : mSubscriptionDatabaseManager.getSnapshot().getOpportunisticSortedBySlot()) {
+            // callers have READ_PHONE_STATE or READ_PRIVILEGED_PHONE_STATE can get a full
+            // list. Carrier apps can only get the subscriptions they have privileged.
+            if (!TelephonyPermissions.checkCallingOrSelfReadPhoneStateNoThrow(mContext,
+                    entry.getSubscriptionInfoInternal().getSubscriptionId(), callingPackage,
+                    callingFeatureId, "getOpportunisticSubscriptions")) {
+                continue;
+            }
+            // Remove the identifier if the caller does not have sufficient permission.
+            // carrier apps will get full subscription info on the subscriptions associated
+            // to them.
+            result.add(conditionallyRemoveIdentifiers(entry.getSubscriptionInfo(),
+                    callingPackage, callingFeatureId, "getOpportunisticSubscriptions"));
+        }
+        return result;
     }
 
     /**
@@ -2965,16 +3023,19 @@ public class SubscriptionManagerService extends ISub.Stub {
 
         enforceTelephonyFeatureWithException(callingPackage, "getSubscriptionsInGroup");
 
-        return mSubscriptionDatabaseManager.getAllSubscriptions().stream()
-                .map(SubscriptionInfoInternal::toSubscriptionInfo)
-                .filter(info -> groupUuid.equals(info.getGroupUuid())
-                        && (mSubscriptionManager.canManageSubscription(info, callingPackage)
-                        || TelephonyPermissions.checkCallingOrSelfReadPhoneStateNoThrow(
-                                mContext, info.getSubscriptionId(), callingPackage,
-                        callingFeatureId, "getSubscriptionsInGroup")))
-                .map(subscriptionInfo -> conditionallyRemoveIdentifiers(subscriptionInfo,
-                        callingPackage, callingFeatureId, "getSubscriptionsInGroup"))
-                .collect(Collectors.toList());
+        List<SubscriptionInfo> result = new ArrayList<>();
+        for (SubscriptionSnapshot.Entry entry : mSubscriptionDatabaseManager.getSnapshot()
+                .getSubscriptionsInGroup(groupUuid)) {
+            SubscriptionInfo info = entry.getSubscriptionInfo();
+            if (mSubscriptionManager.canManageSubscription(info, callingPackage)
+                    || TelephonyPermissions.checkCallingOrSelfReadPhoneStateNoThrow(
+                            mContext, info.getSubscriptionId(), callingPackage,
+                            callingFeatureId, "getSubscriptionsInGroup")) {
+                result.add(conditionallyRemoveIdentifiers(info, callingPackage,
+                        callingFeatureId, "getSubscriptionsInGroup"));
+            }
+        }
+        return result;
     }
 
     /**
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.subscription;
+
+import android.annotation.NonNull;
+import android.os.ParcelUuid;
+import android.telephony.SubscriptionInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable view of the subscription database cache at one point in time.
+ *
+ * The snapshot is built by {@link SubscriptionDatabaseManager} the first time it is requested
+ * after the database changes, and is shared by all readers until the next change. Besides the
+ * raw subscriptions it holds the {@link SubscriptionInfo} conversion of each subscription and the
+ * lists the most frequent binder queries need, already filtered and sorted, so those queries only
+ * have to apply the per-caller permission and user filters.
+ */
+public final class SubscriptionSnapshot {
+    /** Order of the lists returned by the public subscription list APIs. */
+    private static final Comparator<Entry> SLOT_ORDER =
+            Comparator.<Entry>comparingInt(e -> e.mInfoInternal.getSimSlotIndex())
+                    .thenComparingInt(e -> e.mInfoInternal.getSubscriptionId());
+
+    private static final Comparator<Entry> SUB_ID_ORDER =
+            Comparator.comparingInt(e -> e.mInfoInternal.getSubscriptionId());
+
+    /** A subscription together with its {@link SubscriptionInfo} conversion. */
+    public static final class Entry {
+        @NonNull
+        private final SubscriptionInfoInternal mInfoInternal;
+        @NonNull
+        private final SubscriptionInfo mInfo;
+
+        private Entry(@NonNull SubscriptionInfoInternal infoInternal) {
+            mInfoInternal = infoInternal;
+            mInfo = infoInternal.toSubscriptionInfo();
+        }
+
+        /** @return The subscription. */
+        @NonNull
+        public SubscriptionInfoInternal getSubscriptionInfoInternal() {
+            return mInfoInternal;
+        }
+
+        /** @return The subscription converted to {@link SubscriptionInfo}. */
+        @NonNull
+        public SubscriptionInfo getSubscriptionInfo() {
+            return mInfo;
+        }
+    }
+
+    private final long mGeneration;
+    @NonNull
+    private final List<SubscriptionInfoInternal> mAllSubscriptions;
+    @NonNull
+    private final List<Entry> mAllSortedBySlot;
+    @NonNull
+    private final List<Entry> mActiveSortedBySlot;
+    @NonNull
+    private final List<Entry> mOpportunisticSortedBySlot;
+    @NonNull
+    private final Map<ParcelUuid, List<Entry>> mGroups;
+
+    /**
+     * @param generation The database generation this snapshot was built from.
+     * @param subscriptions All subscriptions in the database.
+     */
+    SubscriptionSnapshot(long generation,
+            @NonNull Collection<SubscriptionInfoInternal> subscriptions) {
+        mGeneration = generation;
+        List<Entry> entries = new ArrayList<>(subscriptions.size());
+        for (SubscriptionInfoInternal subInfo : subscriptions) {
+            entries.add(new Entry(subInfo));
+        }
+
+        entries.sort(SUB_ID_ORDER);
+        List<SubscriptionInfoInternal> all = new ArrayList<>(entries.size());
+        Map<ParcelUuid, List<Entry>> groups = new HashMap<>();
+        for (Entry entry : entries) {
+            all.add(entry.mInfoInternal);
+            ParcelUuid groupUuid = entry.mInfo.getGroupUuid();
+            if (groupUuid != null) {
+                groups.computeIfAbsent(groupUuid, k -> new ArrayList<>()).add(entry);
+            }
+        }
+        groups.replaceAll((uuid, list) -> Collections.unmodifiableList(list));
+        mAllSubscriptions = Collections.unmodifiableList(all);
+        mGroups = groups;
+
+        entries.sort(SLOT_ORDER);
+        List<Entry> active = new ArrayList<>();
+        List<Entry> opportunistic = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.mInfoInternal.isActive()) active.add(entry);
+            if (entry.mInfoInternal.isOpportunistic()) opportunistic.add(entry);
+        }
+        mAllSortedBySlot = Collections.unmodifiableList(entries);
+        mActiveSortedBySlot = Collections.unmodifiableList(active);
+        mOpportunisticSortedBySlot = Collections.unmodifiableList(opportunistic);
+    }
+
+    /** @return The database generation this snapshot was built from. */
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    /** @return All subscriptions, ordered by subscription id. */
+    @NonNull
+    public List<SubscriptionInfoInternal> getAllSubscriptions() {
+        return mAllSubscriptions;
+    }
+
+    /** @return All subscriptions, ordered by slot index, then subscription id. */
+    @NonNull
+    public List<Entry> getAllSortedBySlot() {
+        return mAllSortedBySlot;
+    }
+
+    /** @return Active subscriptions, ordered by slot index, then subscription id. */
+    @NonNull
+    public List<Entry> getActiveSortedBySlot() {
+        return mActiveSortedBySlot;
+    }
+
+    /** @return Opportunistic subscriptions, ordered by slot index, then subscription id. */
+    @NonNull
+    public List<Entry> getOpportunisticSortedBySlot() {
+        return mOpportunisticSortedBySlot;
+    }
+
+    /**
+     * @param groupUuid The group UUID.
+     * @return Subscriptions in the group, ordered by subscription id.
+     */
+    @NonNull
+    public List<Entry> getSubscriptionsInGroup(@NonNull ParcelUuid groupUuid) {
+        return mGroups.getOrDefault(groupUuid, Collections.emptyList());
+    }
+}
@@ -24,6 +24,7 @@ import android.os.Message;
 import android.telephony.Rlog;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.Pair;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CommandsInterface;
@@ -33,12 +34,14 @@ import com.android.internal.telephony.uicc.IccConstants;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
 
 
@@ -85,6 +88,13 @@ public class SimPhonebookRecordCache extends Handler {
     private Object mReadLock = new Object();
     private final ConcurrentSkipListMap<Integer, AdnRecord> mSimPbRecords =
             new ConcurrentSkipListMap<Integer, AdnRecord>();
+    // Guards changes of mSimPbRecords together with the index and snapshot below
+    private final Object mRecordsLock = new Object();
+    // Record IDs of the non-empty records by alpha tag and number, in record ID order
+    private final HashMap<Pair<String, String>, TreeSet<Integer>> mRecordIdsBySearchKey =
+            new HashMap<>();
+    // Immutable list of the records in record ID order, null if it has to be built again
+    private volatile List<AdnRecord> mSimPbRecordsSnapshot;
     private final List<UpdateRequest> mUpdateRequests =
             Collections.synchronizedList(new ArrayList<UpdateRequest>());
     // If true, clear the records in the cache and re-query from modem
@@ -135,7 +145,7 @@ public class SimPhonebookRecordCache extends Handler {
 
     private void reset() {
         mAdnCapacity.set(null);
-        mSimPbRecords.clear();
+        clearSimPbRecords();
         mIsCacheInvalidated.set(false);
         mIsRecordLoading.set(false);
         mIsInRetry.set(false);
@@ -153,10 +163,9 @@ public class SimPhonebookRecordCache extends Handler {
 
     private void notifyAndClearWaiters() {
         synchronized (mReadLock) {
+            List<AdnRecord> result = getSimPbRecordsSnapshot();
             for (Message response : mAdnLoadingWaiters){
                 if (response != null) {
-                    List<AdnRecord> result =
-                            new ArrayList<AdnRecord>(mSimPbRecords.values());
                     AsyncResult.forMessage(response, result, null);
                     response.sendToTarget();
                 }
@@ -248,13 +257,100 @@ public class SimPhonebookRecordCache extends Handler {
 
     @VisibleForTesting
     public List<AdnRecord> getAdnRecords() {
-        return mSimPbRecords.values().stream().collect(Collectors.toList());
+        return getSimPbRecordsSnapshot();
     }
 
     @VisibleForTesting
     public void clear() {
         if (!ENABLE_INFLATE_WITH_EMPTY_RECORDS) {
+            clearSimPbRecords();
+        }
+    }
+
+    /**
+     * @return An immutable list of the cached records in record ID order. The same list is
+     * returned until the cache changes, so readers don't copy the records for each query.
+     */
+    private List<AdnRecord> getSimPbRecordsSnapshot() {
+        List<AdnRecord> snapshot = mSimPbRecordsSnapshot;
+        if (snapshot == null) {
+            synchronized (mRecordsLock) {
+                snapshot = mSimPbRecordsSnapshot;
+                if (snapshot == null) {
+                    snapshot = Collections.unmodifiableList(
+                            new ArrayList<AdnRecord>(mSimPbRecords.values()));
+                    mSimPbRecordsSnapshot = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private static Pair<String, String> getSearchKey(AdnRecord adn) {
+        // Same as AdnRecord#isEqual, null and empty alpha tag or number are equal
+        return new Pair<>(TextUtils.emptyIfNull(adn.getAlphaTag()),
+                TextUtils.emptyIfNull(adn.getNumber()));
+    }
+
+    /**
+     * @return The ID of the first cached record which is equal to the given record, or
+     * {@link #INVALID_RECORD_ID} if there is none.
+     */
+    private int findSimPbRecordId(AdnRecord adn) {
+        synchronized (mRecordsLock) {
+            TreeSet<Integer> recordIds = mRecordIdsBySearchKey.get(getSearchKey(adn));
+            if (recordIds != null) {
+                for (int recordId : recordIds) {
+                    AdnRecord record = mSimPbRecords.get(recordId);
+                    if (record != null && adn.isEqual(record)) {
+                        return record.getRecId();
+                    }
+                }
+            }
+        }
+        return INVALID_RECORD_ID;
+    }
+
+    /**
+     * Put a record into the cache and update the index.
+     *
+     * @param onlyIfPresent Only replace an existing record with the same ID.
+     */
+    private void putSimPbRecord(int recordId, AdnRecord record, boolean onlyIfPresent) {
+        synchronized (mRecordsLock) {
+            AdnRecord oldRecord = onlyIfPresent ? mSimPbRecords.replace(recordId, record)
+                    : mSimPbRecords.put(recordId, record);
+            if (onlyIfPresent && oldRecord == null) return;
+            removeFromIndex(recordId, oldRecord);
+            if (!record.isEmpty()) {
+                mRecordIdsBySearchKey.computeIfAbsent(getSearchKey(record), k -> new TreeSet<>())
+                        .add(recordId);
+            }
+            mSimPbRecordsSnapshot = null;
+        }
+    }
+
+    private void removeSimPbRecord(int recordId) {
+        synchronized (mRecordsLock) {
+            removeFromIndex(recordId, mSimPbRecords.remove(recordId));
+            mSimPbRecordsSnapshot = null;
+        }
+    }
+
+    private void clearSimPbRecords() {
+        synchronized (mRecordsLock) {
             mSimPbRecords.clear();
+            mRecordIdsBySearchKey.clear();
+            mSimPbRecordsSnapshot = null;
+        }
+    }
+
+    private void removeFromIndex(int recordId, AdnRecord record) {
+        if (record == null || record.isEmpty()) return;
+        Pair<String, String> key = getSearchKey(record);
+        TreeSet<Integer> recordIds = mRecordIdsBySearchKey.get(key);
+        if (recordIds != null && recordIds.remove(recordId) && recordIds.isEmpty()) {
+            mRecordIdsBySearchKey.remove(key);
         }
     }
 
@@ -287,12 +383,7 @@ public class SimPhonebookRecordCache extends Handler {
         int recordId = INVALID_RECORD_ID; // The ID isn't specified by caller
 
         if (oldAdn != null && !oldAdn.isEmpty()) {
-            for(AdnRecord adn : mSimPbRecords.values()) {
-                if (oldAdn.isEqual(adn)) {
-                    recordId = adn.getRecId();
-                    break;
-                }
-            }
+            recordId = findSimPbRecordId(oldAdn);
         }
         if (recordId == INVALID_RECORD_ID
                 && mAdnCapacity.get() != null && mAdnCapacity.get().isSimFull()) {
@@ -470,9 +561,12 @@ public class SimPhonebookRecordCache extends Handler {
         if (ENABLE_INFLATE_WITH_EMPTY_RECORDS) {
             logd("inflateWithEmptyRecords");
             if (capacity != null && mSimPbRecords.isEmpty()) {
-                for (int i = 1; i <= capacity.getMaxAdnCount(); i++) {
-                    mSimPbRecords.putIfAbsent(i,
-                            new AdnRecord(IccConstants.EF_ADN, i, null, null, null, null));
+                synchronized (mRecordsLock) {
+                    for (int i = 1; i <= capacity.getMaxAdnCount(); i++) {
+                        mSimPbRecords.putIfAbsent(i,
+                                new AdnRecord(IccConstants.EF_ADN, i, null, null, null, null));
+                    }
+                    mSimPbRecordsSnapshot = null;
                 }
             }
         }
@@ -568,7 +662,7 @@ public class SimPhonebookRecordCache extends Handler {
                     record.getEmails(),
                     record.getAdditionalNumbers());})
                     .collect(Collectors.toMap(AdnRecord::getRecId, adn -> adn));
-            mSimPbRecords.putAll(newRecords);
+            newRecords.forEach((recordId, adn) -> putSimPbRecord(recordId, adn, false));
         }
     }
 
@@ -584,23 +678,17 @@ public class SimPhonebookRecordCache extends Handler {
     private void addOrChangeSimPbRecord(AdnRecord record, int recordId) {
         logd("Record number for the added or changed ADN is " + recordId);
         record.setRecId(recordId);
-        if (ENABLE_INFLATE_WITH_EMPTY_RECORDS) {
-            mSimPbRecords.replace(recordId, record);
-        } else {
-            mSimPbRecords.put(recordId, record);
-        }
+        putSimPbRecord(recordId, record, ENABLE_INFLATE_WITH_EMPTY_RECORDS);
     }
 
 
     private void deleteSimPbRecord(int recordId) {
         logd("Record number for the deleted ADN is " + recordId);
         if (ENABLE_INFLATE_WITH_EMPTY_RECORDS) {
-            mSimPbRecords.replace(recordId,
-                    new AdnRecord(IccConstants.EF_ADN, recordId, null, null, null, null));
+            putSimPbRecord(recordId,
+                    new AdnRecord(IccConstants.EF_ADN, recordId, null, null, null, null), true);
         } else {
-            if (mSimPbRecords.containsKey(recordId)) {
-                mSimPbRecords.remove(recordId);
-            }
+            removeSimPbRecord(recordId);
         }
     }
 
@@ -608,10 +696,14 @@ public class SimPhonebookRecordCache extends Handler {
         logd("invalidateSimPbCache");
         mIsCacheInvalidated.set(true);
         if (ENABLE_INFLATE_WITH_EMPTY_RECORDS) {
-            mSimPbRecords.replaceAll((k, v) ->
-                    new AdnRecord(IccConstants.EF_ADN, k, null, null, null, null));
+            synchronized (mRecordsLock) {
+                mSimPbRecords.replaceAll((k, v) ->
+                        new AdnRecord(IccConstants.EF_ADN, k, null, null, null, null));
+                mRecordIdsBySearchKey.clear();
+                mSimPbRecordsSnapshot = null;
+            }
         } else {
-            mSimPbRecords.clear();
+            clearSimPbRecords();
         }
     }
 
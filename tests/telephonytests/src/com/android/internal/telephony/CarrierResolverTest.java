@@ -42,6 +42,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.util.Arrays;
+import java.util.List;
 
 @RunWith(AndroidTestingRunner.class)
 @TestableLooper.RunWithLooper
@@ -270,6 +271,46 @@ public class CarrierResolverTest extends TelephonyTest {
                 IccCardConstants.INTENT_VALUE_ICC_LOADED);
     }
 
+    @Test
+    @SmallTest
+    public void testCarrierMatcherSameAsRuleMatch() {
+        List<CarrierResolver.CarrierMatchingRule> rules = Arrays.asList(
+                createRule(MCCMNC, null, null, null, null, null, null, null, CID_VZW),
+                createRule(MCCMNC, "31148012xx", null, null, null, null, null, null, 10),
+                createRule(MCCMNC, null, "8914801", null, null, null, null, null, 11),
+                createRule(MCCMNC, null, null, "BA01", null, null, null, null, 12),
+                createRule(MCCMNC, null, null, "ba", "FF", null, null, null, 13),
+                createRule(MCCMNC, null, null, null, null, "Project Fi", null, null, 14),
+                createRule(MCCMNC, null, null, null, null, "", null, null, 15),
+                createRule(MCCMNC, null, null, null, null, null, "MOPERA.net", null, 16),
+                createRule(MCCMNC, null, null, null, null, null, null, "ABCDEF", 17),
+                createRule(MCCMNC, null, null, null, null, null, null, "", 18),
+                createRule(null, "xxxxxx99", "", null, null, null, null, null, 19),
+                createRule(MCCMNC_TMO, null, null, null, null, null, null, null, CID_TMO));
+        List<CarrierResolver.CarrierMatchingRule> subscriptions = Arrays.asList(
+                createRule(MCCMNC, "311480123456789", "89148010000", "ba01ff", "ff00",
+                        "PROJECT FI", "mopera.net", "abcdef", 0),
+                createRule(MCCMNC, "311480993456799", "8914", "BB", null, "", null, null, 0),
+                createRule(MCCMNC_TMO, null, null, null, null, null, null, "ABCDEF", 0),
+                createRule(null, null, null, null, null, null, null, null, 0));
+
+        CarrierResolver.CarrierMatcher matcher = new CarrierResolver.CarrierMatcher(rules);
+        for (CarrierResolver.CarrierMatchingRule subscription : subscriptions) {
+            int[] scores = matcher.match(subscription);
+            for (int i = 0; i < rules.size(); i++) {
+                rules.get(i).match(subscription);
+                assertEquals(rules.get(i).toString(), rules.get(i).getScore(), scores[i]);
+            }
+        }
+    }
+
+    private static CarrierResolver.CarrierMatchingRule createRule(String mccmnc, String imsi,
+            String iccid, String gid1, String gid2, String spn, String apn, String cert, int cid) {
+        return new CarrierResolver.CarrierMatchingRule(mccmnc, imsi, iccid, gid1, gid2, null, spn,
+                apn, cert == null ? null : Arrays.asList(cert), cid, null,
+                TelephonyManager.UNKNOWN_CARRIER_ID);
+    }
+
     private class CarrierIdContentProvider extends MockContentProvider {
         @Override
         public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
@@ -121,6 +121,22 @@ public class ImsSmsDispatcherTest extends TelephonyTest {
         verify(mImsManager).onMemoryAvailable(eq(token + 1));
     }
 
+    /**
+     * Check that the window of parts in flight over IMS comes from its own system property unless
+     * overridden
+     */
+    @Test
+    @SmallTest
+    public void testMaxPartsInFlight() throws Exception {
+        assertEquals("persist.radio.ims_sms_max_parts_in_flight",
+                mImsSmsDispatcher.getMaxPartsInFlightProperty());
+        assertEquals(0, mImsSmsDispatcher.getMaxPartsInFlight());
+        mImsSmsDispatcher.setMaxPartsInFlightOverride(2);
+        assertEquals(2, mImsSmsDispatcher.getMaxPartsInFlight());
+        mImsSmsDispatcher.setMaxPartsInFlightOverride(-1);
+        assertEquals(0, mImsSmsDispatcher.getMaxPartsInFlight());
+    }
+
     /**
      * Receive SEND_STATUS_ERROR_RETRY with onMemoryAvailableResult Api and check if
      * sending SMMA Notification is retried once
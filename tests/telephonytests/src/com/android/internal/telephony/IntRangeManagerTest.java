@@ -1162,4 +1162,41 @@ public class IntRangeManagerTest extends AndroidTestCase {
                 testManager.flags);
         assertEquals("configlist size", 0, testManager.mConfigList.size());
     }
+
+    @Test @SmallTest
+    public void testManyClients() {
+        TestIntRangeManager testManager = new TestIntRangeManager();
+        // client i enables [10 * i, 10 * i + 19], so each id is enabled by two clients
+        for (int i = 0; i < 100; i++) {
+            assertTrue("enabling range " + i,
+                    testManager.enableRange(10 * i, 10 * i + 19, "client" + i));
+        }
+        testManager.reset();
+        assertTrue("updating ranges", testManager.updateRanges());
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 0, 1009, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+
+        // ids 500 - 519 stay enabled by the neighbouring clients
+        testManager.reset();
+        assertTrue("disabling range 50", testManager.disableRange(500, 519, "client50"));
+        assertEquals("flags after test", 0, testManager.flags);
+
+        // now ids 510 - 519 are only enabled by client 51
+        testManager.reset();
+        assertTrue("disabling range 51", testManager.disableRange(510, 529, "client51"));
+        assertEquals("configlist size", 2, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 0, 509, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(1), 520, 1009, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+
+        // enabling a range across the gap only sends the gap
+        testManager.reset();
+        assertTrue("enabling range", testManager.enableRange(400, 600, "client100"));
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 510, 519, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+        assertEquals("[0-1009]", testManager.toString());
+    }
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import android.os.WorkSource;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class RILRequestTest {
+
+    @Test
+    public void testReleaseClearsReferences() {
+        RILRequest rr = RILRequest.obtain(RILConstants.RIL_REQUEST_SIGNAL_STRENGTH, null,
+                new WorkSource(1000, "com.android.phone"), "arg");
+        rr.release();
+
+        assertNull(rr.mResult);
+        assertNull(rr.mWorkSource);
+        assertNull(rr.mClientId);
+        assertNull(rr.mArguments);
+    }
+
+    @Test
+    public void testOutstandingCount() {
+        long before = RILRequest.getOutstandingCount();
+        RILRequest rr = RILRequest.obtain(RILConstants.RIL_REQUEST_SIGNAL_STRENGTH, null,
+                new WorkSource());
+        assertEquals(before + 1, RILRequest.getOutstandingCount());
+        rr.release();
+        assertEquals(before, RILRequest.getOutstandingCount());
+    }
+
+    @Test
+    public void testDoubleReleaseDoesNotCorruptPool() {
+        RILRequest rr = RILRequest.obtain(RILConstants.RIL_REQUEST_SIGNAL_STRENGTH, null,
+                new WorkSource());
+        long before = RILRequest.getOutstandingCount();
+        rr.release();
+        rr.release();
+        assertEquals(before - 1, RILRequest.getOutstandingCount());
+
+        // A doubly released request must only be handed out once.
+        RILRequest first = RILRequest.obtain(RILConstants.RIL_REQUEST_SIGNAL_STRENGTH, null,
+                new WorkSource());
+        RILRequest second = RILRequest.obtain(RILConstants.RIL_REQUEST_SIGNAL_STRENGTH, null,
+                new WorkSource());
+        assertNotSame(first, second);
+        first.release();
+        second.release();
+    }
+}
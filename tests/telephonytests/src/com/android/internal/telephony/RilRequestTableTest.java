@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.WorkSource;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class RilRequestTableTest {
+    private static RILRequest obtain() {
+        return RILRequest.obtain(RILConstants.RIL_REQUEST_SIGNAL_STRENGTH, null,
+                new WorkSource());
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        RilRequestTable table = new RilRequestTable(8);
+        RILRequest rr = obtain();
+        table.put(rr);
+        assertEquals(1, table.size());
+        assertSame(rr, table.get(rr.mSerial));
+
+        assertSame(rr, table.remove(rr.mSerial));
+        assertEquals(0, table.size());
+        assertNull(table.get(rr.mSerial));
+        assertNull(table.remove(rr.mSerial));
+    }
+
+    @Test
+    public void testOverflowWhenSlotOccupied() {
+        RilRequestTable table = new RilRequestTable(4);
+        RILRequest[] requests = new RILRequest[10];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = obtain();
+            table.put(requests[i]);
+        }
+        assertEquals(requests.length, table.size());
+        assertTrue(table.getOverflowCount() > 0);
+
+        List<RILRequest> snapshot = table.snapshot();
+        assertEquals(requests.length, snapshot.size());
+
+        for (RILRequest rr : requests) {
+            assertSame(rr, table.get(rr.mSerial));
+            assertSame(rr, table.remove(rr.mSerial));
+        }
+        assertEquals(0, table.size());
+        assertEquals(0, table.getOverflowCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityMustBePowerOfTwo() {
+        new RilRequestTable(6);
+    }
+
+    @Test
+    public void testConcurrentRemoveCompletesOnce() throws Exception {
+        RilRequestTable table = new RilRequestTable();
+        RILRequest rr = obtain();
+        table.put(rr);
+
+        AtomicInteger winners = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ignored) {
+                }
+                if (table.remove(rr.mSerial) != null) winners.incrementAndGet();
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) t.join();
+
+        assertEquals(1, winners.get());
+        assertEquals(0, table.size());
+    }
+
+    /**
+     * Several producer threads each add and complete requests the way the RIL send and response
+     * paths do, wrapping the ring many times. Every request must be found exactly once.
+     */
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        RilRequestTable table = new RilRequestTable(16);
+        runProducers(4, 20000, 16, new Store() {
+            @Override
+            public void add(RILRequest rr) {
+                table.put(rr);
+            }
+
+            @Override
+            public RILRequest remove(int serial) {
+                return table.remove(serial);
+            }
+        });
+        assertEquals(0, table.size());
+        assertEquals(0, table.getOverflowCount());
+    }
+
+    private interface Store {
+        void add(RILRequest rr);
+        RILRequest remove(int serial);
+    }
+
+    private static void runProducers(int producers, int iterations, int inFlight, Store store)
+            throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger missing = new AtomicInteger();
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(() -> {
+                RILRequest[] window = new RILRequest[inFlight];
+                for (int i = 0; i < inFlight; i++) window[i] = obtain();
+                try {
+                    start.await();
+                } catch (InterruptedException ignored) {
+                }
+                for (int i = 0; i < iterations; i += inFlight) {
+                    for (RILRequest rr : window) {
+                        rr.mSerial = RILRequest.sNextSerial.getAndIncrement() & Integer.MAX_VALUE;
+                        store.add(rr);
+                    }
+                    for (RILRequest rr : window) {
+                        if (store.remove(rr.mSerial) != rr) missing.incrementAndGet();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+        for (Thread t : threads) t.join();
+        assertEquals(0, missing.get());
+    }
+}
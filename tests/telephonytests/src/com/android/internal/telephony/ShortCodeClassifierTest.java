@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static android.telephony.SmsManager.SMS_CATEGORY_FREE_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_PREMIUM_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_STANDARD_SHORT_CODE;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.res.XmlResourceParser;
+import android.telephony.SmsManager;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.filters.SmallTest;
+
+import com.android.internal.telephony.util.XmlUtils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+public class ShortCodeClassifierTest {
+    @Test
+    @SmallTest
+    public void testCategoryPriority() {
+        ShortCodeClassifier classifier = ShortCodeClassifier.compile(
+                "\\d{3,5}", "9\\d{3}", "1(?:1[0-9]|23)", "[1-4]\\d{2}");
+
+        assertTrue(classifier.isCompiled());
+        assertEquals(SMS_CATEGORY_FREE_SHORT_CODE, classifier.getNumberCategory("115"));
+        assertEquals(SMS_CATEGORY_FREE_SHORT_CODE, classifier.getNumberCategory("123"));
+        assertEquals(SMS_CATEGORY_STANDARD_SHORT_CODE, classifier.getNumberCategory("124"));
+        assertEquals(SMS_CATEGORY_PREMIUM_SHORT_CODE, classifier.getNumberCategory("9123"));
+        assertEquals(SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE,
+                classifier.getNumberCategory("81234"));
+        assertEquals(SMS_CATEGORY_NOT_SHORT_CODE, classifier.getNumberCategory("812345"));
+        assertEquals(SMS_CATEGORY_NOT_SHORT_CODE, classifier.getNumberCategory("12"));
+        assertEquals(SMS_CATEGORY_NOT_SHORT_CODE, classifier.getNumberCategory("+1234"));
+        assertEquals(SMS_CATEGORY_NOT_SHORT_CODE, classifier.getNumberCategory(""));
+    }
+
+    @Test
+    @SmallTest
+    public void testSyntax() {
+        assertSameAsRegex("0?1+2*", "1", "012", "0", "11122", "0122221");
+        assertSameAsRegex("[^0-8]\\d{2,}", "900", "9", "+00", "0000", "99999999");
+        assertSameAsRegex("(1|22)??(?:3{2})", "133", "2233", "33", "1233");
+        assertSameAsRegex("\\D\\d|.5", "+1", "a5", "55", "+", "1+");
+        assertSameAsRegex("(|7)8", "8", "78", "778");
+    }
+
+    @Test
+    @SmallTest
+    public void testUnsupportedSyntaxFallsBack() {
+        String[] regexes = {"\\+1\\d{3}", "(1)\\1", "^123$", "1*+2", "(?=1)1"};
+        for (String regex : regexes) {
+            ShortCodeClassifier classifier = ShortCodeClassifier.compile(regex, null, null, null);
+            assertFalse(regex, classifier.isCompiled());
+        }
+        ShortCodeClassifier classifier =
+                ShortCodeClassifier.compile("\\+1\\d{3}", null, null, null);
+        assertEquals(SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE,
+                classifier.getNumberCategory("+1234"));
+    }
+
+    private static void assertSameAsRegex(String regex, String... numbers) {
+        ShortCodeClassifier classifier = ShortCodeClassifier.compile(regex, null, null, null);
+        assertTrue(regex, classifier.isCompiled());
+        Pattern pattern = Pattern.compile(regex);
+        for (String number : numbers) {
+            int expected = pattern.matcher(number).matches()
+                    ? SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE : SMS_CATEGORY_NOT_SHORT_CODE;
+            assertEquals(regex + " " + number, expected, classifier.getNumberCategory(number));
+        }
+    }
+
+    /**
+     * Compiles the short code patterns of every country in the shipped short code XML and checks
+     * that the classifiers agree with the regular expressions on random destinations.
+     */
+    @Test
+    @LargeTest
+    public void testShippedPatternsMatchRegex() throws Exception {
+        List<String[]> countries = new ArrayList<>();
+        XmlResourceParser parser = InstrumentationRegistry.getTargetContext().getResources()
+                .getXml(com.android.internal.R.xml.sms_short_codes);
+        try {
+            XmlUtils.beginDocument(parser, "shortcodes");
+            while (true) {
+                XmlUtils.nextElement(parser);
+                if (!"shortcode".equals(parser.getName())) break;
+                countries.add(new String[] {
+                        parser.getAttributeValue(null, "country"),
+                        parser.getAttributeValue(null, "pattern"),
+                        parser.getAttributeValue(null, "premium"),
+                        parser.getAttributeValue(null, "free"),
+                        parser.getAttributeValue(null, "standard")});
+            }
+        } finally {
+            parser.close();
+        }
+        assertFalse(countries.isEmpty());
+
+        Random random = new Random(0);
+        String[] numbers = new String[2000];
+        for (int i = 0; i < numbers.length; i++) {
+            StringBuilder number = new StringBuilder();
+            int length = 1 + random.nextInt(11);
+            for (int j = 0; j < length; j++) {
+                number.append((char) ('0' + random.nextInt(10)));
+            }
+            numbers[i] = number.toString();
+        }
+
+        for (String[] country : countries) {
+            ShortCodeClassifier classifier =
+                    ShortCodeClassifier.compile(country[1], country[2], country[3], country[4]);
+            Pattern[] patterns = {compile(country[3]), compile(country[4]), compile(country[2]),
+                    compile(country[1])};
+            int[] categories = {SMS_CATEGORY_FREE_SHORT_CODE, SMS_CATEGORY_STANDARD_SHORT_CODE,
+                    SMS_CATEGORY_PREMIUM_SHORT_CODE, SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE};
+
+            for (String number : numbers) {
+                int expected = SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+                for (int p = 0; p < patterns.length; p++) {
+                    if (patterns[p] != null && patterns[p].matcher(number).matches()) {
+                        expected = categories[p];
+                        break;
+                    }
+                }
+                assertEquals(country[0] + " " + number, expected,
+                        classifier.getNumberCategory(number));
+            }
+        }
+    }
+
+    private static Pattern compile(String regex) {
+        return regex != null ? Pattern.compile(regex) : null;
+    }
+}
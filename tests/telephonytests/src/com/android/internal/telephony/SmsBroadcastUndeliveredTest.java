@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.provider.Telephony;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.filters.MediumTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SmsBroadcastUndeliveredTest extends TelephonyTest {
+    private static final byte[] FAKE_PDU = new byte[]{1, 2, 3};
+    private static final String FAKE_ADDRESS = "address";
+
+    // Rows returned by each page query of the raw table
+    private final List<Integer> mPageRows = new ArrayList<>();
+    private FakeSmsContentProvider mContentProvider;
+    private InboundSmsTracker mTracker;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        mContentProvider = new FakeSmsContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, String selection,
+                    String[] selectionArgs, String sortOrder) {
+                Cursor cursor = super.query(uri, projection, selection, selectionArgs, sortOrder);
+                if (uri != null && selection != null) mPageRows.add(cursor.getCount());
+                return cursor;
+            }
+        };
+        ((MockContentResolver) mContext.getContentResolver()).addProvider(
+                Telephony.Sms.CONTENT_URI.getAuthority(), mContentProvider);
+
+        // A recent segment of a message which never completes, so rows are neither broadcast
+        // nor deleted
+        mTracker = new InboundSmsTracker(mContext, FAKE_PDU, System.currentTimeMillis(), -1,
+                false, FAKE_ADDRESS, FAKE_ADDRESS, 1 /* referenceNumber */, 1 /* sequenceNumber */,
+                255 /* messageCount */, false, "part", false /* isClass0 */, 0 /* subId */,
+                InboundSmsHandler.SOURCE_NOT_INJECTED);
+        doReturn(mTracker).when(mTelephonyComponentFactory).makeInboundSmsTracker(
+                any(Context.class), any(Cursor.class), anyBoolean());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContentProvider.shutdown();
+        mContentProvider = null;
+        mTracker = null;
+        super.tearDown();
+    }
+
+    private void insertRows(int rows) {
+        for (int i = 0; i < rows; i++) {
+            mContentProvider.insert(InboundSmsHandler.sRawUri, mTracker.getContentValues());
+        }
+    }
+
+    @Test
+    @MediumTest
+    public void testScanRawTableInPages() {
+        int rows = 2 * SmsBroadcastUndelivered.PAGE_SIZE + 1;
+        insertRows(rows);
+
+        SmsBroadcastUndelivered.scanRawTable(mContext, 0);
+
+        SmsBroadcastUndelivered.ScanProgress progress =
+                SmsBroadcastUndelivered.getLastScanProgress();
+        assertFalse(progress.isCancelled());
+        assertEquals(3, progress.getPages());
+        assertEquals(rows, progress.getRows());
+        assertEquals(0, progress.getDeletedRows());
+        // Each query is limited by the provider, not only by the reader
+        assertEquals(List.of(SmsBroadcastUndelivered.PAGE_SIZE,
+                SmsBroadcastUndelivered.PAGE_SIZE, 1), mPageRows);
+    }
+
+    @Test
+    @MediumTest
+    public void testScanRawTableCancelled() {
+        insertRows(2 * SmsBroadcastUndelivered.PAGE_SIZE + 1);
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        int[] readRows = new int[1];
+        doAnswer(invocation -> {
+            if (++readRows[0] == SmsBroadcastUndelivered.PAGE_SIZE) {
+                cancellationSignal.cancel();
+            }
+            return mTracker;
+        }).when(mTelephonyComponentFactory).makeInboundSmsTracker(
+                any(Context.class), any(Cursor.class), anyBoolean());
+
+        SmsBroadcastUndelivered.scanRawTable(mContext, 0, cancellationSignal);
+
+        SmsBroadcastUndelivered.ScanProgress progress =
+                SmsBroadcastUndelivered.getLastScanProgress();
+        assertTrue(progress.isCancelled());
+        assertEquals(1, progress.getPages());
+        assertEquals(SmsBroadcastUndelivered.PAGE_SIZE, progress.getRows());
+        assertEquals(List.of(SmsBroadcastUndelivered.PAGE_SIZE), mPageRows);
+        assertEquals(2 * SmsBroadcastUndelivered.PAGE_SIZE + 1, mContentProvider.getNumRows());
+    }
+
+    @Test
+    @MediumTest
+    public void testScanRawTableIgnoresRowsInsertedDuringScan() {
+        int rows = SmsBroadcastUndelivered.PAGE_SIZE;
+        insertRows(rows);
+        doAnswer(invocation -> {
+            // Live reception inserts a row while the scan is running
+            insertRows(1);
+            return mTracker;
+        }).when(mTelephonyComponentFactory).makeInboundSmsTracker(
+                any(Context.class), any(Cursor.class), anyBoolean());
+
+        SmsBroadcastUndelivered.scanRawTable(mContext, 0);
+
+        SmsBroadcastUndelivered.ScanProgress progress =
+                SmsBroadcastUndelivered.getLastScanProgress();
+        assertFalse(progress.isCancelled());
+        assertEquals(rows, progress.getRows());
+        assertEquals(2 * rows, mContentProvider.getNumRows());
+    }
+}
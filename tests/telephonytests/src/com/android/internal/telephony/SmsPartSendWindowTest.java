@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+import com.android.internal.telephony.metrics.LatencyHistogram;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SmsPartSendWindowTest {
+    private final List<SmsTracker> mSent = new ArrayList<>();
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+
+    private static SmsTracker[] createParts(int count) {
+        SmsTracker[] trackers = new SmsTracker[count];
+        for (int i = 0; i < count; i++) {
+            trackers[i] = new SmsTracker("1234", i);
+        }
+        return trackers;
+    }
+
+    @Test
+    public void testWindowLimitsPartsInFlight() {
+        SmsTracker[] parts = createParts(5);
+        SmsPartSendWindow window = new SmsPartSendWindow(parts, 2, Runnable::run, mSent::add,
+                mLatency);
+
+        window.start();
+        assertThat(mSent).containsExactly(parts[0], parts[1]).inOrder();
+        assertThat(window.getInFlightCount()).isEqualTo(2);
+        assertThat(window.getQueuedCount()).isEqualTo(3);
+
+        // Parts may complete out of order, but are still submitted in order
+        window.onPartDone(parts[1]);
+        window.onPartDone(parts[0]);
+        assertThat(mSent).containsExactly(parts[0], parts[1], parts[2], parts[3]).inOrder();
+
+        // A part that is done twice frees its slot only once
+        window.onPartDone(parts[0]);
+        assertThat(mSent).hasSize(4);
+
+        window.onPartDone(parts[2]);
+        window.onPartDone(parts[3]);
+        window.onPartDone(parts[4]);
+        assertThat(mSent).containsExactlyElementsIn(parts).inOrder();
+        assertThat(window.getInFlightCount()).isEqualTo(0);
+        assertThat(mLatency.getCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void testNoLimitSubmitsAllParts() {
+        SmsTracker[] parts = createParts(3);
+        SmsPartSendWindow window = new SmsPartSendWindow(parts, 0, Runnable::run, mSent::add,
+                mLatency);
+
+        window.start();
+
+        assertThat(mSent).containsExactlyElementsIn(parts).inOrder();
+        assertThat(window.getQueuedCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testPartFailingWhileStartingKeepsOrder() {
+        SmsTracker[] parts = createParts(4);
+        SmsPartSendWindow[] window = new SmsPartSendWindow[1];
+        List<Runnable> posted = new ArrayList<>();
+        window[0] = new SmsPartSendWindow(parts, 2, posted::add, tracker -> {
+            mSent.add(tracker);
+            if (tracker == parts[0]) {
+                // Fails before the transport is reached
+                window[0].onPartDone(tracker);
+            }
+        }, mLatency);
+
+        window[0].start();
+
+        assertThat(mSent).containsExactly(parts[0], parts[1], parts[2]).inOrder();
+        assertThat(posted).isEmpty();
+        assertThat(window[0].getInFlightCount()).isEqualTo(2);
+    }
+}
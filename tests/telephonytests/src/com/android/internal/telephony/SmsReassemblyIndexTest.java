@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentResolver;
+import android.provider.Telephony;
+import android.test.mock.MockContentResolver;
+import android.util.Pair;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SmsReassemblyIndexTest extends TelephonyTest {
+    private static final byte[] FAKE_PDU = new byte[]{1, 2, 3};
+    private static final long FAKE_TIMESTAMP = 123456L;
+    private static final String FAKE_ADDRESS = "address";
+    private static final int FAKE_REFERENCE_NUMBER = 345;
+
+    private FakeSmsContentProvider mContentProvider;
+    private ContentResolver mResolver;
+    private SmsReassemblyIndex mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        mContentProvider = new FakeSmsContentProvider();
+        ((MockContentResolver) mContext.getContentResolver()).addProvider(
+                Telephony.Sms.CONTENT_URI.getAuthority(), mContentProvider);
+        mResolver = mContext.getContentResolver();
+        mIndex = new SmsReassemblyIndex(mResolver);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContentProvider.shutdown();
+        mContentProvider = null;
+        mIndex = null;
+        super.tearDown();
+    }
+
+    private InboundSmsTracker createSegment(int sequenceNumber, long timestamp) {
+        return new InboundSmsTracker(mContext, FAKE_PDU, timestamp, -1, false, FAKE_ADDRESS,
+                FAKE_ADDRESS, FAKE_REFERENCE_NUMBER, sequenceNumber, 2 /* messageCount */,
+                false, "part" + sequenceNumber, false /* isClass0 */, 0 /* subId */,
+                InboundSmsHandler.SOURCE_NOT_INJECTED);
+    }
+
+    private void insert(InboundSmsTracker tracker) {
+        SmsReassemblyIndex.onRawTableWriteStarted();
+        mResolver.insert(InboundSmsHandler.sRawUri, tracker.getContentValues());
+        mIndex.onRowInserted(tracker);
+    }
+
+    @Test
+    @SmallTest
+    public void testRebuildFromRawTable() {
+        InboundSmsTracker part1 = createSegment(1, FAKE_TIMESTAMP);
+        InboundSmsTracker part2 = createSegment(2, FAKE_TIMESTAMP);
+        // Written before the index is used, e.g. before the phone process restarted
+        mResolver.insert(InboundSmsHandler.sRawUri, part1.getContentValues());
+
+        assertFalse(mIndex.mayBeComplete(part1));
+        assertTrue(mIndex.mayContainSegment(part1));
+        assertFalse(mIndex.mayContainSegment(part2));
+        assertTrue(mIndex.mayContainExactMatch(part1));
+        assertFalse(mIndex.mayContainExactMatch(createSegment(1, FAKE_TIMESTAMP + 1)));
+
+        insert(part2);
+
+        assertTrue(mIndex.mayBeComplete(part2));
+        assertTrue(mIndex.mayContainSegment(part2));
+        assertTrue(mIndex.mayContainExactMatch(part2));
+    }
+
+    @Test
+    @SmallTest
+    public void testSegmentsDeleted() {
+        InboundSmsTracker part1 = createSegment(1, FAKE_TIMESTAMP);
+        InboundSmsTracker part2 = createSegment(2, FAKE_TIMESTAMP);
+        insert(part1);
+        insert(part2);
+        assertTrue(mIndex.mayBeComplete(part1));
+
+        String[] deleteWhereArgs = {FAKE_ADDRESS, Integer.toString(FAKE_REFERENCE_NUMBER), "2"};
+        SmsReassemblyIndex.onRawTableWriteStarted();
+        mResolver.delete(InboundSmsHandler.sRawUri, part1.getQueryForSegments(),
+                deleteWhereArgs);
+        mIndex.onRowsDeleted(part1.getQueryForSegments(), deleteWhereArgs, false);
+
+        assertFalse(mIndex.mayBeComplete(part1));
+        assertFalse(mIndex.mayContainSegment(part1));
+        // Rows marked deleted are still exact duplicates
+        assertTrue(mIndex.mayContainExactMatch(part1));
+    }
+
+    @Test
+    @SmallTest
+    public void testOtherWriterInvalidatesIndex() {
+        InboundSmsTracker part1 = createSegment(1, FAKE_TIMESTAMP);
+        InboundSmsTracker part2 = createSegment(2, FAKE_TIMESTAMP);
+        insert(part1);
+        assertFalse(mIndex.mayBeComplete(part1));
+
+        // Another handler writes the second segment
+        SmsReassemblyIndex otherIndex = new SmsReassemblyIndex(mResolver);
+        SmsReassemblyIndex.onRawTableWriteStarted();
+        mResolver.insert(InboundSmsHandler.sRawUri, part2.getContentValues());
+        otherIndex.onRowInserted(part2);
+
+        assertTrue(mIndex.mayBeComplete(part1));
+        assertTrue(mIndex.mayContainSegment(part2));
+    }
+
+    @Test
+    @SmallTest
+    public void testSegmentsDeletedPermanently() {
+        InboundSmsTracker part1 = createSegment(1, FAKE_TIMESTAMP);
+        insert(part1);
+        assertTrue(mIndex.mayContainExactMatch(part1));
+
+        Pair<String, String[]> exactMatchQuery = part1.getExactMatchDupDetectQuery();
+        SmsReassemblyIndex.onRawTableWriteStarted();
+        mResolver.delete(InboundSmsHandler.sRawUriPermanentDelete, exactMatchQuery.first,
+                exactMatchQuery.second);
+        mIndex.onRowsDeleted(exactMatchQuery.first, exactMatchQuery.second, true);
+
+        // The fingerprints of the deleted rows are dropped
+        assertFalse(mIndex.mayContainExactMatch(part1));
+        assertFalse(mIndex.mayContainSegment(part1));
+    }
+
+    @Test
+    @SmallTest
+    public void testNotUsedDuringWrite() {
+        InboundSmsTracker part1 = createSegment(1, FAKE_TIMESTAMP);
+        InboundSmsTracker part2 = createSegment(2, FAKE_TIMESTAMP);
+        insert(part1);
+        assertFalse(mIndex.mayContainExactMatch(part2));
+
+        // Another writer has started but not finished its write
+        SmsReassemblyIndex.onRawTableWriteStarted();
+        mResolver.insert(InboundSmsHandler.sRawUri, part2.getContentValues());
+        assertTrue(mIndex.mayContainExactMatch(part2));
+        assertTrue(mIndex.mayBeComplete(part1));
+
+        SmsReassemblyIndex.onRawTableWriteFinished();
+        assertTrue(mIndex.mayContainExactMatch(part2));
+        assertTrue(mIndex.mayBeComplete(part1));
+        assertFalse(mIndex.mayContainExactMatch(createSegment(2, FAKE_TIMESTAMP + 1)));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class SmsSendRateLimiterTest {
+    private static final int CHECK_PERIOD = 1000;
+    private static final int MAX_ALLOWED = 5;
+
+    @Test
+    public void testLimitWithinWindow() {
+        SmsSendRateLimiter limiter = new SmsSendRateLimiter(CHECK_PERIOD, MAX_ALLOWED);
+
+        assertThat(limiter.tryAcquire("app", 3, 0)).isTrue();
+        assertThat(limiter.tryAcquire("app", 3, 100)).isFalse();
+        assertThat(limiter.tryAcquire("app", 2, 200)).isTrue();
+        assertThat(limiter.tryAcquire("app", 1, 300)).isFalse();
+        assertThat(limiter.tryAcquire("app", 0, 300)).isTrue();
+        // Other apps have their own limit
+        assertThat(limiter.tryAcquire("other", MAX_ALLOWED, 300)).isTrue();
+        assertThat(limiter.tryAcquire("other", MAX_ALLOWED + 1, 300)).isFalse();
+        assertThat(limiter.getSentCount("app", 300)).isEqualTo(5);
+    }
+
+    @Test
+    public void testSlidingWindow() {
+        SmsSendRateLimiter limiter = new SmsSendRateLimiter(CHECK_PERIOD, MAX_ALLOWED);
+        assertThat(limiter.tryAcquire("app", 3, 0)).isTrue();
+        assertThat(limiter.tryAcquire("app", 2, 500)).isTrue();
+
+        // Messages sent at 0 are still in the window
+        assertThat(limiter.tryAcquire("app", 1, CHECK_PERIOD)).isFalse();
+        // They expire once they are older than the check period
+        assertThat(limiter.tryAcquire("app", 3, CHECK_PERIOD + 1)).isTrue();
+        assertThat(limiter.getSentCount("app", CHECK_PERIOD + 1)).isEqualTo(5);
+        assertThat(limiter.getSentCount("app", 3 * CHECK_PERIOD)).isEqualTo(0);
+
+        // The ring wraps around
+        for (int i = 0; i < 20; i++) {
+            assertThat(limiter.tryAcquire("app", 1, 4 * CHECK_PERIOD + i * 300)).isTrue();
+        }
+    }
+
+    @Test
+    public void testTrackedAppsBounded() {
+        SmsSendRateLimiter limiter = new SmsSendRateLimiter(CHECK_PERIOD, MAX_ALLOWED);
+        for (int i = 0; i < SmsSendRateLimiter.MAX_TRACKED_APPS; i++) {
+            limiter.tryAcquire("app" + i, 1, 0);
+        }
+        limiter.tryAcquire("recent", MAX_ALLOWED, CHECK_PERIOD);
+        assertThat(limiter.getTrackedAppCount()).isAtMost(SmsSendRateLimiter.MAX_TRACKED_APPS);
+
+        // Expired apps were dropped first; the recent app keeps its history
+        limiter.tryAcquire("new", 1, CHECK_PERIOD + 1);
+        assertThat(limiter.getTrackedAppCount()).isAtMost(SmsSendRateLimiter.MAX_TRACKED_APPS);
+        assertThat(limiter.tryAcquire("recent", 1, CHECK_PERIOD + 2)).isFalse();
+    }
+
+    @Test
+    public void testNegativeMaximum() {
+        SmsSendRateLimiter limiter = new SmsSendRateLimiter(CHECK_PERIOD, -1);
+        assertThat(limiter.tryAcquire("app", 1, 0)).isFalse();
+        assertThat(limiter.getSentCount("app", 0)).isEqualTo(0);
+    }
+}
@@ -141,4 +141,46 @@ public class WapPushCacheTest extends TelephonyTest {
                 WapPushCache.getWapMessageSize(location1)
         );
     }
+
+    @Test
+    public void testPutWapMessageSize_sameLocation_latestSizeKept() {
+        byte[] location = "content://mms".getBytes();
+        byte[] transactionId = "123".getBytes();
+
+        WapPushCache.putWapMessageSize(location, transactionId, 100L);
+        WapPushCache.putWapMessageSize(location, transactionId, 200L);
+
+        assertEquals(2, WapPushCache.size());
+        assertEquals(200L, WapPushCache.getWapMessageSize(location));
+    }
+
+    @Test
+    public void testPutWapMessageSize_sameMessage_noExtraSlotUsed() {
+        byte[] location1 = "content://mms1".getBytes();
+        byte[] location2 = "content://mms2".getBytes();
+        byte[] transactionId = "123".getBytes();
+
+        WapPushCache.putWapMessageSize(location1, transactionId, 100L);
+        for (int i = 0; i < 250; i++) {
+            WapPushCache.putWapMessageSize(location2, transactionId, 200L + i);
+        }
+
+        assertEquals(4, WapPushCache.size());
+        assertEquals(100L, WapPushCache.getWapMessageSize(location1));
+        assertEquals(449L, WapPushCache.getWapMessageSize(location2));
+    }
+
+    @Test
+    public void testGetWapMessageSize_hitAndMissCounted() {
+        byte[] location = "content://mms".getBytes();
+        WapPushCache.putWapMessageSize(location, "123".getBytes(), 100L);
+
+        WapPushCache.getWapMessageSize(location);
+        assertThrows(NoSuchElementException.class, () ->
+                WapPushCache.getWapMessageSize("content://other".getBytes())
+        );
+
+        assertEquals(1, WapPushCache.getHitCount());
+        assertEquals(1, WapPushCache.getMissCount());
+    }
 }
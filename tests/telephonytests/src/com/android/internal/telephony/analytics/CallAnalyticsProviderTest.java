@@ -21,14 +21,16 @@ import static android.os.Build.VERSION.INCREMENTAL;
 import static com.android.internal.telephony.analytics.TelephonyAnalyticsDatabase.CallAnalyticsTable;
 import static com.android.internal.telephony.analytics.TelephonyAnalyticsDatabase.DATE_FORMAT;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 import android.content.ContentValues;
@@ -37,20 +39,19 @@ import android.database.Cursor;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 
 public class CallAnalyticsProviderTest {
 
     @Mock TelephonyAnalyticsUtil mTelephonyAnalyticsUtil;
     @Mock Cursor mCursor;
     private CallAnalyticsProvider mCallAnalyticsProvider;
-    private ContentValues mContentValues;
 
     enum CallStatus {
         SUCCESS("Success"),
@@ -72,11 +73,6 @@ public class CallAnalyticsProviderTest {
         }
     }
 
-    final String[] mCallInsertionProjection = {
-        TelephonyAnalyticsDatabase.CallAnalyticsTable._ID,
-        TelephonyAnalyticsDatabase.CallAnalyticsTable.COUNT
-    };
-
     @Before
     public void setup() {
         MockitoAnnotations.initMocks(this);
@@ -211,34 +207,11 @@ public class CallAnalyticsProviderTest {
         return values;
     }
 
-    private void whenConditionForGetCursor() {
-        when(mTelephonyAnalyticsUtil.getCursor(
-                        anyString(),
-                        any(String[].class),
-                        anyString(),
-                        any(String[].class),
-                        isNull(),
-                        isNull(),
-                        isNull(),
-                        isNull()))
-                .thenReturn(mCursor);
-    }
-
-    private void verifyForGetCursor(
-            String[] callInsertionProjection,
-            String callSuccessInsertionSelection,
-            String[] selectionArgs) {
-
-        verify(mTelephonyAnalyticsUtil)
-                .getCursor(
-                        eq(TelephonyAnalyticsDatabase.CallAnalyticsTable.TABLE_NAME),
-                        eq(callInsertionProjection),
-                        eq(callSuccessInsertionSelection),
-                        eq(selectionArgs),
-                        isNull(),
-                        isNull(),
-                        isNull(),
-                        isNull());
+    private List<AnalyticsCountBuffer> captureFlushedBuffers() {
+        ArgumentCaptor<AnalyticsCountBuffer> captor =
+                ArgumentCaptor.forClass(AnalyticsCountBuffer.class);
+        verify(mTelephonyAnalyticsUtil, times(2)).flush(captor.capture());
+        return captor.getAllValues();
     }
 
     @Test
@@ -248,29 +221,29 @@ public class CallAnalyticsProviderTest {
         String callStatus = "Success";
         String rat = "LTE";
         String failureReason = "User Disconnects";
-        int count = 5;
-
-        final String callSuccessInsertionSelection =
-                TelephonyAnalyticsDatabase.CallAnalyticsTable.CALL_TYPE
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.CallAnalyticsTable.LOG_DATE
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.CallAnalyticsTable.CALL_STATUS
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.CallAnalyticsTable.SLOT_ID
-                        + " = ? ";
         ContentValues values = getContentValues(callType, callStatus, slotId, rat, failureReason);
 
-        String[] selectionArgs =
+        mCallAnalyticsProvider.insertDataToDb(callType, callStatus, slotId, "NR", failureReason);
+        mCallAnalyticsProvider.insertDataToDb(callType, callStatus, slotId, rat, failureReason);
+        verify(mTelephonyAnalyticsUtil, never()).flush(any(AnalyticsCountBuffer.class));
+        mCallAnalyticsProvider.flush();
+
+        List<AnalyticsCountBuffer> buffers = captureFlushedBuffers();
+        List<AnalyticsCountBuffer.Row> rows = new ArrayList<>(buffers.get(0).drain());
+        assertEquals(1, rows.size());
+        assertEquals(2, rows.get(0).getCount());
+        assertArrayEquals(
                 new String[] {
-                    values.getAsString(TelephonyAnalyticsDatabase.CallAnalyticsTable.CALL_TYPE),
-                    values.getAsString(TelephonyAnalyticsDatabase.CallAnalyticsTable.LOG_DATE),
+                    callType,
+                    values.getAsString(CallAnalyticsTable.LOG_DATE),
                     callStatus,
-                    values.getAsString(TelephonyAnalyticsDatabase.CallAnalyticsTable.SLOT_ID)
-                };
-        whenConditionForGetCursor();
-        mCallAnalyticsProvider.insertDataToDb(callType, callStatus, slotId, rat, failureReason);
-        verifyForGetCursor(mCallInsertionProjection, callSuccessInsertionSelection, selectionArgs);
+                    Integer.toString(slotId)
+                },
+                rows.get(0).getKeyValues());
+        // The latest RAT is kept.
+        assertArrayEquals(
+                new String[] {rat, failureReason, INCREMENTAL}, rows.get(0).getValues());
+        assertTrue(buffers.get(1).isEmpty());
     }
 
     @Test
@@ -280,157 +253,40 @@ public class CallAnalyticsProviderTest {
         String callStatus = "Failure";
         String rat = "LTE";
         String failureReason = "Network Detach";
-        int count = 5;
-        final String callFailedInsertionSelection =
-                CallAnalyticsTable.LOG_DATE
-                        + " = ? AND "
-                        + CallAnalyticsTable.CALL_STATUS
-                        + " = ? AND "
-                        + CallAnalyticsTable.CALL_TYPE
-                        + " = ? AND "
-                        + CallAnalyticsTable.SLOT_ID
-                        + " = ? AND "
-                        + CallAnalyticsTable.RAT
-                        + " = ? AND "
-                        + CallAnalyticsTable.FAILURE_REASON
-                        + " = ? AND "
-                        + CallAnalyticsTable.RELEASE_VERSION
-                        + " = ? ";
         ContentValues values = getContentValues(callType, callStatus, slotId, rat, failureReason);
-        String[] selectionArgs = {
-            values.getAsString(CallAnalyticsTable.LOG_DATE),
-            values.getAsString(CallAnalyticsTable.CALL_STATUS),
-            values.getAsString(CallAnalyticsTable.CALL_TYPE),
-            values.getAsString(CallAnalyticsTable.SLOT_ID),
-            values.getAsString(CallAnalyticsTable.RAT),
-            values.getAsString(CallAnalyticsTable.FAILURE_REASON),
-            values.getAsString(CallAnalyticsTable.RELEASE_VERSION)
-        };
-        whenConditionForGetCursor();
-        mCallAnalyticsProvider.insertDataToDb(callType, callStatus, slotId, rat, failureReason);
-        verifyForGetCursor(mCallInsertionProjection, callFailedInsertionSelection, selectionArgs);
-    }
-
-    public void setUpTestForUpdateEntryIfExistsOrInsert() throws NoSuchMethodException {
-        Method updateEntryIfExistsOrInsert =
-                CallAnalyticsProvider.class.getDeclaredMethod(
-                        "updateEntryIfExistsOrInsert", Cursor.class, ContentValues.class);
-        updateEntryIfExistsOrInsert.setAccessible(true);
-        mContentValues = new ContentValues();
-        mContentValues.put(CallAnalyticsTable.CALL_STATUS, "Success");
-    }
-
-    @Test
-    public void testUpdateEntryIfExistsOrInsertWhenCursorNull()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert =
-                CallAnalyticsProvider.class.getDeclaredMethod(
-                        "updateEntryIfExistsOrInsert", Cursor.class, ContentValues.class);
-        updateEntryIfExistsOrInsert.setAccessible(true);
-        ContentValues values = new ContentValues();
-        values.put(CallAnalyticsTable.CALL_STATUS, "Success");
-        updateEntryIfExistsOrInsert.invoke(mCallAnalyticsProvider, null, values);
-        verify(mTelephonyAnalyticsUtil).insert(eq(CallAnalyticsTable.TABLE_NAME), eq(values));
-    }
 
-    @Test
-    public void testUpdateEntryIfExistsOrInsertWhenCursorInvalid()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert =
-                CallAnalyticsProvider.class.getDeclaredMethod(
-                        "updateEntryIfExistsOrInsert", Cursor.class, ContentValues.class);
-        updateEntryIfExistsOrInsert.setAccessible(true);
-        ContentValues values = new ContentValues();
-        values.put(CallAnalyticsTable.CALL_STATUS, "Success");
-        when(mCursor.moveToFirst()).thenReturn(false);
-        updateEntryIfExistsOrInsert.invoke(mCallAnalyticsProvider, mCursor, values);
-        verify(mTelephonyAnalyticsUtil).insert(eq(CallAnalyticsTable.TABLE_NAME), eq(values));
-    }
-
-    @Test
-    public void testUpdateEntryIfExistsOrInsertWhenCursorValidUpdateSuccess()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert =
-                CallAnalyticsProvider.class.getDeclaredMethod(
-                        "updateEntryIfExistsOrInsert", Cursor.class, ContentValues.class);
-        updateEntryIfExistsOrInsert.setAccessible(true);
-
-        ContentValues values = new ContentValues();
-        values.put(CallAnalyticsTable.CALL_STATUS, "Success");
-
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex(CallAnalyticsTable._ID)).thenReturn(0 /* idColumnIndex */);
-        when(mCursor.getColumnIndex(CallAnalyticsTable.COUNT)).thenReturn(1 /* countColumnIndex */);
-        when(mCursor.getInt(0 /* idColumnIndex */)).thenReturn(100 /* id */);
-        when(mCursor.getInt(1 /* countColumnIndex */)).thenReturn(5 /* count*/);
-
-        String updateSelection = CallAnalyticsTable._ID + " = ? ";
-        String[] updateSelectionArgs = {String.valueOf(100 /* id */)};
-
-        updateEntryIfExistsOrInsert.invoke(mCallAnalyticsProvider, mCursor, values);
-
-        values.put(CallAnalyticsTable.COUNT, 6 /* newCount */);
-        verify(mTelephonyAnalyticsUtil)
-                .update(
-                        eq(CallAnalyticsTable.TABLE_NAME),
-                        eq(values),
-                        eq(updateSelection),
-                        eq(updateSelectionArgs));
-    }
-
-    @Test
-    public void testUpdateEntryIfExistsOrInsertWhenUpdateFailedDueToInvalidIdIndex()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert =
-                CallAnalyticsProvider.class.getDeclaredMethod(
-                        "updateEntryIfExistsOrInsert", Cursor.class, ContentValues.class);
-        updateEntryIfExistsOrInsert.setAccessible(true);
-
-        ContentValues values = new ContentValues();
-        values.put(CallAnalyticsTable.CALL_STATUS, "Success");
-
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex(CallAnalyticsTable._ID)).thenReturn(-1 /* idColumnIndex */);
-        when(mCursor.getColumnIndex(CallAnalyticsTable.COUNT)).thenReturn(1 /* countColumnIndex */);
-        updateEntryIfExistsOrInsert.invoke(mCallAnalyticsProvider, mCursor, values);
-        verifyNoMoreInteractions(mTelephonyAnalyticsUtil);
-    }
-
-    @Test
-    public void testUpdateEntryIfExistsOrInsertWhenUpdateFailedDueToInvalidCountIndex()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        Method updateEntryIfExistsOrInsert =
-                CallAnalyticsProvider.class.getDeclaredMethod(
-                        "updateEntryIfExistsOrInsert", Cursor.class, ContentValues.class);
-        updateEntryIfExistsOrInsert.setAccessible(true);
-
-        ContentValues values = new ContentValues();
-        values.put(CallAnalyticsTable.CALL_STATUS, "Success");
-
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex(CallAnalyticsTable._ID)).thenReturn(0 /* idColumnIndex */);
-        when(mCursor.getColumnIndex(CallAnalyticsTable.COUNT))
-                .thenReturn(-1 /* countColumnIndex */);
-        updateEntryIfExistsOrInsert.invoke(mCallAnalyticsProvider, mCursor, values);
-        verifyNoMoreInteractions(mTelephonyAnalyticsUtil);
+        mCallAnalyticsProvider.insertDataToDb(callType, callStatus, slotId, rat, failureReason);
+        mCallAnalyticsProvider.insertDataToDb(callType, callStatus, slotId, "NR", failureReason);
+        mCallAnalyticsProvider.flush();
+
+        List<AnalyticsCountBuffer> buffers = captureFlushedBuffers();
+        assertTrue(buffers.get(0).isEmpty());
+        List<AnalyticsCountBuffer.Row> rows = new ArrayList<>(buffers.get(1).drain());
+        // Failures on different RATs are kept apart.
+        assertEquals(2, rows.size());
+        assertEquals(1, rows.get(0).getCount());
+        assertArrayEquals(
+                new String[] {
+                    values.getAsString(CallAnalyticsTable.LOG_DATE),
+                    callStatus,
+                    callType,
+                    Integer.toString(slotId),
+                    rat,
+                    failureReason,
+                    INCREMENTAL
+                },
+                rows.get(0).getKeyValues());
     }
 
     @Test
-    public void testUpdateEntryIfExistsOrInsertWhenUpdateFailedDueToInvalidColumnIndex()
-            throws NoSuchMethodException {
-        Method updateEntryIfExistsOrInsert =
-                CallAnalyticsProvider.class.getDeclaredMethod(
-                        "updateEntryIfExistsOrInsert", Cursor.class, ContentValues.class);
-        updateEntryIfExistsOrInsert.setAccessible(true);
-
-        ContentValues values = new ContentValues();
-        values.put(CallAnalyticsTable.CALL_STATUS, "Success");
+    public void testFlushWhenBufferFull() {
+        for (int i = 0; i < CallAnalyticsProvider.MAX_PENDING_CALLS - 1; i++) {
+            mCallAnalyticsProvider.insertDataToDb("Normal Call", "Success", 0, "LTE", "");
+        }
+        verify(mTelephonyAnalyticsUtil, never()).flush(any(AnalyticsCountBuffer.class));
 
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex(CallAnalyticsTable._ID)).thenReturn(-1 /* idColumnIndex */);
-        when(mCursor.getColumnIndex(CallAnalyticsTable.COUNT))
-                .thenReturn(-1 /* countColumnIndex */);
-        verifyNoMoreInteractions(mTelephonyAnalyticsUtil);
+        mCallAnalyticsProvider.insertDataToDb("SOS Call", "Failure", 0, "LTE", "Network Detach");
+        verify(mTelephonyAnalyticsUtil, times(2)).flush(any(AnalyticsCountBuffer.class));
     }
 
     @After
@@ -20,15 +20,17 @@ import static android.os.Build.VERSION.INCREMENTAL;
 
 import static com.android.internal.telephony.analytics.TelephonyAnalyticsDatabase.DATE_FORMAT;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 import android.content.ContentValues;
@@ -37,11 +39,13 @@ import android.database.Cursor;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
 public class SmsMmsAnalyticsProviderTest {
@@ -49,10 +53,6 @@ public class SmsMmsAnalyticsProviderTest {
 
     SmsMmsAnalyticsProvider mSmsMmsAnalyticsProvider;
     private TelephonyAnalyticsUtil mMockTelephonyAnalyticsUtil;
-    private static final String[] SMS_MMS_INSERTION_PROJECTION = {
-        TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable._ID,
-        TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.COUNT
-    };
 
     @Mock Cursor mCursor;
     final String mCreateTableQuery =
@@ -96,28 +96,11 @@ public class SmsMmsAnalyticsProviderTest {
         return values;
     }
 
-    private void mockAndVerifyCall(String selection, String[] selectionArgs) {
-        when(mTelephonyAnalyticsUtil.getCursor(
-                        eq(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.TABLE_NAME),
-                        any(String[].class),
-                        anyString(),
-                        any(String[].class),
-                        isNull(),
-                        isNull(),
-                        isNull(),
-                        isNull()))
-                .thenReturn(mCursor);
-
-        verify(mTelephonyAnalyticsUtil)
-                .getCursor(
-                        eq(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.TABLE_NAME),
-                        eq(SMS_MMS_INSERTION_PROJECTION),
-                        eq(selection),
-                        eq(selectionArgs),
-                        isNull(),
-                        isNull(),
-                        isNull(),
-                        isNull());
+    private List<AnalyticsCountBuffer> captureFlushedBuffers(int times) {
+        ArgumentCaptor<AnalyticsCountBuffer> captor =
+                ArgumentCaptor.forClass(AnalyticsCountBuffer.class);
+        verify(mTelephonyAnalyticsUtil, times(times)).flush(captor.capture());
+        return captor.getAllValues();
     }
 
     @Test
@@ -126,39 +109,28 @@ public class SmsMmsAnalyticsProviderTest {
         String type = "SMS Outgoing";
         String rat = "LTE";
         String failureReason = "SIM_ABSENT";
-        final String smsMmsInsertionFailureSelection =
-                TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.LOG_DATE
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_STATUS
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_TYPE
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RAT
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SLOT_ID
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.FAILURE_REASON
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RELEASE_VERSION
-                        + " = ? ";
         ContentValues values = getContentValues(status, type, rat, failureReason);
 
-        String[] selectionArgs =
+        mSmsMmsAnalyticsProvider.insertDataToDb(status, type, rat, failureReason);
+        verify(mTelephonyAnalyticsUtil, never()).flush(any(AnalyticsCountBuffer.class));
+        mSmsMmsAnalyticsProvider.flush();
+
+        List<AnalyticsCountBuffer> buffers = captureFlushedBuffers(2);
+        assertTrue(buffers.get(0).isEmpty());
+        List<AnalyticsCountBuffer.Row> rows = new ArrayList<>(buffers.get(1).drain());
+        assertEquals(1, rows.size());
+        assertEquals(1, rows.get(0).getCount());
+        assertArrayEquals(
                 new String[] {
                     values.getAsString(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.LOG_DATE),
-                    values.getAsString(
-                            TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_STATUS),
-                    values.getAsString(
-                            TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_TYPE),
-                    values.getAsString(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RAT),
-                    values.getAsString(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SLOT_ID),
-                    values.getAsString(
-                            TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.FAILURE_REASON),
-                    values.getAsString(
-                            TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RELEASE_VERSION)
-                };
-        mSmsMmsAnalyticsProvider.insertDataToDb(status, type, rat, failureReason);
-        mockAndVerifyCall(smsMmsInsertionFailureSelection, selectionArgs);
+                    status,
+                    type,
+                    rat,
+                    "0",
+                    failureReason,
+                    INCREMENTAL
+                },
+                rows.get(0).getKeyValues());
     }
 
     @Test
@@ -167,117 +139,39 @@ public class SmsMmsAnalyticsProviderTest {
         String type = "SMS Outgoing";
         String rat = "LTE";
         String failureReason = "SIM_ABSENT";
-
-        final String smsMmsInsertionSuccessSelection =
-                TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.LOG_DATE
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_TYPE
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_STATUS
-                        + " = ? AND "
-                        + TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SLOT_ID
-                        + " = ? ";
-
         ContentValues values = getContentValues(status, type, rat, failureReason);
-        String[] selectionArgs =
-                new String[] {
-                    values.getAsString(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.LOG_DATE),
-                    values.getAsString(
-                            TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_TYPE),
-                    values.getAsString(
-                            TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SMS_MMS_STATUS),
-                    values.getAsString(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.SLOT_ID)
-                };
 
+        mSmsMmsAnalyticsProvider.insertDataToDb(status, type, "NR", failureReason);
         mSmsMmsAnalyticsProvider.insertDataToDb(status, type, rat, failureReason);
+        mSmsMmsAnalyticsProvider.flush();
 
-        mockAndVerifyCall(smsMmsInsertionSuccessSelection, selectionArgs);
-    }
-
-    @Test
-    public void testUpdateIfEntryExistsOtherwiseInsertWhenEntryNotExist() {
-        ContentValues values = new ContentValues();
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.COUNT, 5);
-        when(mCursor.moveToFirst()).thenReturn(false);
-        mSmsMmsAnalyticsProvider.updateIfEntryExistsOtherwiseInsert(mCursor, values);
-        verify(mTelephonyAnalyticsUtil)
-                .insert(eq(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.TABLE_NAME), eq(values));
-    }
-
-    @Test
-    public void testUpdateIfEntryExistsOtherwiseInsertWhenCursorNull() {
-        ContentValues values = new ContentValues();
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.COUNT, 5);
-        mSmsMmsAnalyticsProvider.updateIfEntryExistsOtherwiseInsert(null, values);
-        verify(mTelephonyAnalyticsUtil)
-                .insert(eq(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.TABLE_NAME), eq(values));
-    }
-
-    @Test
-    public void testUpdateIfEntryExistsOtherwiseInsertWhenEntryExists() {
-        ContentValues values = new ContentValues();
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RAT, "LTE");
-
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex("_id")).thenReturn(0);
-        when(mCursor.getColumnIndex("Count")).thenReturn(1);
-        when(mCursor.getInt(0)).thenReturn(100);
-        when(mCursor.getInt(1)).thenReturn(2);
-
-        mSmsMmsAnalyticsProvider.updateIfEntryExistsOtherwiseInsert(mCursor, values);
-
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.COUNT, 3);
-
-        String updateSelection = TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable._ID + " = ? ";
-        String[] updateSelectionArgs = {String.valueOf(100)};
-
-        verify(mTelephonyAnalyticsUtil)
-                .update(
-                        eq(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.TABLE_NAME),
-                        eq(values),
-                        eq(updateSelection),
-                        eq(updateSelectionArgs));
-    }
-
-    @Test
-    public void testUpdateIfEntryExistsOtherwiseInsertWithInvalidIdColumnIndex() {
-        ContentValues values = new ContentValues();
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RAT, "LTE");
-
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex("_id")).thenReturn(-1);
-        when(mCursor.getColumnIndex("Count")).thenReturn(1);
-        when(mCursor.getInt(0)).thenReturn(100);
-        when(mCursor.getInt(1)).thenReturn(2);
-        mSmsMmsAnalyticsProvider.updateIfEntryExistsOtherwiseInsert(mCursor, values);
-        verifyNoMoreInteractions(mTelephonyAnalyticsUtil);
-    }
-
-    @Test
-    public void testUpdateIfEntryExistsOtherwiseInsertWithInvalidCountColumnIndex() {
-        ContentValues values = new ContentValues();
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RAT, "LTE");
-
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex("_id")).thenReturn(0);
-        when(mCursor.getColumnIndex("Count")).thenReturn(-1);
-        when(mCursor.getInt(0)).thenReturn(100);
-        when(mCursor.getInt(1)).thenReturn(2);
-        mSmsMmsAnalyticsProvider.updateIfEntryExistsOtherwiseInsert(mCursor, values);
-        verifyNoMoreInteractions(mTelephonyAnalyticsUtil);
+        List<AnalyticsCountBuffer> buffers = captureFlushedBuffers(2);
+        List<AnalyticsCountBuffer.Row> rows = new ArrayList<>(buffers.get(0).drain());
+        assertEquals(1, rows.size());
+        assertEquals(2, rows.get(0).getCount());
+        assertArrayEquals(
+                new String[] {
+                    values.getAsString(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.LOG_DATE),
+                    type,
+                    status,
+                    "0"
+                },
+                rows.get(0).getKeyValues());
+        // The latest RAT is kept.
+        assertArrayEquals(
+                new String[] {rat, failureReason, INCREMENTAL}, rows.get(0).getValues());
+        assertTrue(buffers.get(1).isEmpty());
     }
 
     @Test
-    public void testUpdateIfEntryExistsOtherwiseInsertWithInvalidColumnIndex() {
-        ContentValues values = new ContentValues();
-        values.put(TelephonyAnalyticsDatabase.SmsMmsAnalyticsTable.RAT, "LTE");
-        when(mCursor.moveToFirst()).thenReturn(true);
-        when(mCursor.getColumnIndex("_id")).thenReturn(-1);
-        when(mCursor.getColumnIndex("Count")).thenReturn(-1);
-        when(mCursor.getInt(0)).thenReturn(100);
-        when(mCursor.getInt(1)).thenReturn(2);
-        mSmsMmsAnalyticsProvider.updateIfEntryExistsOtherwiseInsert(mCursor, values);
-        verifyNoMoreInteractions(mTelephonyAnalyticsUtil);
+    public void testFlushWhenBufferFull() {
+        for (int i = 0; i < SmsMmsAnalyticsProvider.MAX_PENDING_SMS_MMS - 1; i++) {
+            mSmsMmsAnalyticsProvider.insertDataToDb("Success", "SMS Incoming", "LTE", "");
+        }
+        verify(mTelephonyAnalyticsUtil, never()).flush(any(AnalyticsCountBuffer.class));
+
+        mSmsMmsAnalyticsProvider.insertDataToDb("Failure", "SMS Incoming", "LTE", "NO_MEMORY");
+        verify(mTelephonyAnalyticsUtil, times(2)).flush(any(AnalyticsCountBuffer.class));
     }
 
     @Test
@@ -290,6 +184,7 @@ public class SmsMmsAnalyticsProviderTest {
         String dateToday = DATE_FORMAT.format(Calendar.getInstance().toInstant());
         mSmsMmsAnalyticsProvider.setDateOfDeletedRecordsSmsMmsTable(dateToday);
         mSmsMmsAnalyticsProvider.insertDataToDb(status, type, rat, failureReason);
+        mSmsMmsAnalyticsProvider.flush();
         verify(mTelephonyAnalyticsUtil, times(0))
                 .delete(anyString(), anyString(), any(String[].class));
     }
@@ -303,6 +198,7 @@ public class SmsMmsAnalyticsProviderTest {
         String dateToday = "1965-10-12";
         mSmsMmsAnalyticsProvider.setDateOfDeletedRecordsSmsMmsTable(dateToday);
         mSmsMmsAnalyticsProvider.insertDataToDb(status, type, rat, failureReason);
+        mSmsMmsAnalyticsProvider.flush();
         verify(mTelephonyAnalyticsUtil, times(1))
                 .deleteOverflowAndOldData(anyString(), anyString(), anyString());
     }
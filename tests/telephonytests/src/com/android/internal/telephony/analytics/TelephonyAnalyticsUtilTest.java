@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Runs the statements of {@link AnalyticsCountBuffer} against an in-memory database. */
+public class TelephonyAnalyticsUtilTest {
+    private static final String TABLE_NAME = "Logs";
+    private static final String DATE = "Date";
+    private static final String TYPE = "Type";
+    private static final String RAT = "Rat";
+    private static final String COUNT = "Count";
+
+    private SQLiteDatabase mDatabase;
+    private AnalyticsCountBuffer mBuffer;
+
+    @Before
+    public void setUp() {
+        mDatabase = SQLiteDatabase.create(null);
+        mDatabase.execSQL("CREATE TABLE " + TABLE_NAME + "("
+                + "_id INTEGER PRIMARY KEY,"
+                + DATE + " DATE,"
+                + TYPE + " TEXT DEFAULT '',"
+                + RAT + " TEXT DEFAULT '',"
+                + COUNT + " INTEGER DEFAULT 1);");
+        mBuffer = new AnalyticsCountBuffer(
+                TABLE_NAME, new String[] {DATE, TYPE}, new String[] {RAT}, COUNT);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    private void add(String date, String type, String rat, long count) {
+        ContentValues values = new ContentValues();
+        values.put(DATE, date);
+        values.put(TYPE, type);
+        values.put(RAT, rat);
+        mBuffer.add(values, count);
+    }
+
+    private Cursor queryAll() {
+        return mDatabase.query(TABLE_NAME, new String[] {DATE, TYPE, RAT, COUNT},
+                null, null, null, null, "_id ASC");
+    }
+
+    @Test
+    public void testFlushInsertsNewRows() {
+        add("2024-01-01", "SMS", "LTE", 1);
+        add("2024-01-01", "SMS", "NR", 1);
+        add("2024-01-01", "MMS", "LTE", 3);
+
+        TelephonyAnalyticsUtil.flush(mDatabase, mBuffer);
+
+        assertTrue(mBuffer.isEmpty());
+        try (Cursor cursor = queryAll()) {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("SMS", cursor.getString(1));
+            assertEquals("NR", cursor.getString(2));
+            assertEquals(2, cursor.getLong(3));
+            cursor.moveToNext();
+            assertEquals("MMS", cursor.getString(1));
+            assertEquals("LTE", cursor.getString(2));
+            assertEquals(3, cursor.getLong(3));
+        }
+    }
+
+    @Test
+    public void testFlushIncrementsMatchingRow() {
+        add("2024-01-01", "SMS", "LTE", 2);
+        TelephonyAnalyticsUtil.flush(mDatabase, mBuffer);
+
+        add("2024-01-01", "SMS", "NR", 5);
+        add("2024-01-02", "SMS", "LTE", 1);
+        TelephonyAnalyticsUtil.flush(mDatabase, mBuffer);
+
+        try (Cursor cursor = queryAll()) {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("2024-01-01", cursor.getString(0));
+            assertEquals("NR", cursor.getString(2));
+            assertEquals(7, cursor.getLong(3));
+            cursor.moveToNext();
+            assertEquals("2024-01-02", cursor.getString(0));
+            assertEquals(1, cursor.getLong(3));
+        }
+    }
+
+    @Test
+    public void testFlushMatchesNullKey() {
+        add("2024-01-01", null, "LTE", 1);
+        TelephonyAnalyticsUtil.flush(mDatabase, mBuffer);
+        add("2024-01-01", null, "LTE", 1);
+        TelephonyAnalyticsUtil.flush(mDatabase, mBuffer);
+
+        try (Cursor cursor = queryAll()) {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertNull(cursor.getString(1));
+            assertEquals(2, cursor.getLong(3));
+        }
+    }
+
+    @Test
+    public void testFlushFailureWritesNothing() {
+        AnalyticsCountBuffer buffer = new AnalyticsCountBuffer(
+                TABLE_NAME, new String[] {DATE, TYPE}, new String[] {"Missing"}, COUNT);
+        ContentValues values = new ContentValues();
+        values.put(DATE, "2024-01-01");
+        values.put(TYPE, "SMS");
+        values.putNull("Missing");
+        buffer.add(values, 1);
+
+        assertThrows(SQLException.class, () -> TelephonyAnalyticsUtil.flush(mDatabase, buffer));
+
+        assertTrue(buffer.isEmpty());
+        try (Cursor cursor = queryAll()) {
+            assertEquals(0, cursor.getCount());
+        }
+    }
+}
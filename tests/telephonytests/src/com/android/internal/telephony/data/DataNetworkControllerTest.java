@@ -5475,4 +5475,93 @@ public class DataNetworkControllerTest extends TelephonyTest {
         assertThat(mDataNetworkControllerUT.getInternetEvaluation(true/*ignoreExistingNetworks*/)
                 .containsDisallowedReasons()).isTrue();
     }
+
+    @Test
+    public void testReevaluationTriggersCoalesced() throws Exception {
+        // PS restricted, so the internet request stays unsatisfied.
+        mDataNetworkControllerUT.obtainMessage(6/*EVENT_PS_RESTRICT_ENABLED*/).sendToTarget();
+        mDataNetworkControllerUT.addNetworkRequest(
+                createNetworkRequest(NetworkCapabilities.NET_CAPABILITY_INTERNET));
+        processAllMessages();
+        verifyAllDataDisconnected();
+
+        long evaluated = getPrivateField(mDataNetworkControllerUT, "mDeviceRulesEvaluatedCount",
+                Long.class);
+        long coalesced = getPrivateField(mDataNetworkControllerUT, "mCoalescedReevaluationCount",
+                Long.class);
+
+        // A burst of triggers with the same reason results in one re-evaluation.
+        for (int i = 0; i < 3; i++) {
+            mDataNetworkControllerUT.onDataEnabledChanged(true,
+                    TelephonyManager.DATA_ENABLED_REASON_USER);
+        }
+        processAllMessages();
+        assertThat(getPrivateField(mDataNetworkControllerUT, "mCoalescedReevaluationCount",
+                Long.class)).isEqualTo(coalesced + 2);
+        assertThat(getPrivateField(mDataNetworkControllerUT, "mDeviceRulesEvaluatedCount",
+                Long.class)).isEqualTo(evaluated + 1);
+
+        // Once the re-evaluation ran, the next trigger queues a new one.
+        mDataNetworkControllerUT.onDataEnabledChanged(true,
+                TelephonyManager.DATA_ENABLED_REASON_USER);
+        processAllMessages();
+        assertThat(getPrivateField(mDataNetworkControllerUT, "mCoalescedReevaluationCount",
+                Long.class)).isEqualTo(coalesced + 2);
+        assertThat(getPrivateField(mDataNetworkControllerUT, "mDeviceRulesEvaluatedCount",
+                Long.class)).isEqualTo(evaluated + 2);
+    }
+
+    @Test
+    public void testReevaluationTriggersWithDifferentReasonsNotCoalesced() throws Exception {
+        mDataNetworkControllerUT.obtainMessage(6/*EVENT_PS_RESTRICT_ENABLED*/).sendToTarget();
+        mDataNetworkControllerUT.addNetworkRequest(
+                createNetworkRequest(NetworkCapabilities.NET_CAPABILITY_INTERNET));
+        processAllMessages();
+
+        long evaluated = getPrivateField(mDataNetworkControllerUT, "mDeviceRulesEvaluatedCount",
+                Long.class);
+        long coalesced = getPrivateField(mDataNetworkControllerUT, "mCoalescedReevaluationCount",
+                Long.class);
+
+        mDataNetworkControllerUT.onDataEnabledChanged(true,
+                TelephonyManager.DATA_ENABLED_REASON_USER);
+        mDataNetworkControllerUT.onDataRoamingEnabledChanged(true);
+        mDataNetworkControllerUT.obtainMessage(24/*EVENT_SLICE_CONFIG_CHANGED*/).sendToTarget();
+        processAllMessages();
+
+        assertThat(getPrivateField(mDataNetworkControllerUT, "mCoalescedReevaluationCount",
+                Long.class)).isEqualTo(coalesced);
+        assertThat(getPrivateField(mDataNetworkControllerUT, "mDeviceRulesEvaluatedCount",
+                Long.class)).isEqualTo(evaluated + 3);
+    }
+
+    @Test
+    public void testDeviceRulesNotCachedAcrossReevaluations() throws Exception {
+        mDataNetworkControllerUT.obtainMessage(6/*EVENT_PS_RESTRICT_ENABLED*/).sendToTarget();
+        mDataNetworkControllerUT.addNetworkRequest(
+                createNetworkRequest(NetworkCapabilities.NET_CAPABILITY_INTERNET));
+        processAllMessages();
+
+        long evaluated = getPrivateField(mDataNetworkControllerUT, "mDeviceRulesEvaluatedCount",
+                Long.class);
+
+        // First re-evaluation sees PS restricted.
+        mDataNetworkControllerUT.onDataEnabledChanged(true,
+                TelephonyManager.DATA_ENABLED_REASON_USER);
+        processAllMessages();
+        verifyAllDataDisconnected();
+        assertThat(getPrivateField(mDataNetworkControllerUT, "mDeviceRulesEvaluatedCount",
+                Long.class)).isEqualTo(evaluated + 1);
+        assertThat(getPrivateField(mDataNetworkControllerUT, "mCachedDeviceDisallowedReasons",
+                SparseArray.class)).isNull();
+
+        // The second re-evaluation evaluates the device rules again and sees PS unrestricted.
+        mDataNetworkControllerUT.obtainMessage(7/*EVENT_PS_RESTRICT_DISABLED*/).sendToTarget();
+        processAllMessages();
+        verifyInternetConnected();
+        assertThat(getPrivateField(mDataNetworkControllerUT, "mDeviceRulesEvaluatedCount",
+                Long.class)).isAtLeast(evaluated + 2);
+        assertThat(getPrivateField(mDataNetworkControllerUT, "mCachedDeviceDisallowedReasons",
+                SparseArray.class)).isNull();
+    }
 }
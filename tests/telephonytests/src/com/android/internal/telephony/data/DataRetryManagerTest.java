@@ -64,6 +64,7 @@ import org.mockito.Mockito;
 import java.lang.reflect.Field;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 @RunWith(AndroidTestingRunner.class)
 @TestableLooper.RunWithLooper
@@ -994,4 +995,113 @@ public class DataRetryManagerTest extends TelephonyTest {
                 .isEqualTo(AccessNetworkConstants.TRANSPORT_TYPE_WWAN);
         verify(mDataProfileManager).clearAllDataProfilePermanentFailures();
     }
+
+    @Test
+    public void testSimilarNetworkRequestRetryEvictedFromHistory() throws Exception {
+        DataSetupRetryRule retryRule = new DataSetupRetryRule(
+                "capabilities=internet, retry_interval=2000, maximum_retries=2");
+        doReturn(Collections.singletonList(retryRule)).when(mDataConfigManager)
+                .getDataSetupRetryRules();
+        mDataConfigManagerCallback.onCarrierConfigChanged();
+        processAllMessages();
+
+        TelephonyNetworkRequest tnr = new TelephonyNetworkRequest(new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build(), mPhone, mFeatureFlags);
+        DataNetworkController.NetworkRequestList
+                networkRequestList = new DataNetworkController.NetworkRequestList(tnr);
+        mDataRetryManagerUT.evaluateDataSetupRetry(mDataProfile1,
+                AccessNetworkConstants.TRANSPORT_TYPE_WWAN, networkRequestList, 123,
+                DataCallResponse.RETRY_DURATION_UNDEFINED);
+        processAllMessages();
+        assertThat(mDataRetryManagerUT.isSimilarNetworkRequestRetryScheduled(tnr,
+                AccessNetworkConstants.TRANSPORT_TYPE_WWAN)).isTrue();
+
+        // Fill the history with network suggested retries until the internet retry is discarded.
+        TelephonyNetworkRequest imsTnr = new TelephonyNetworkRequest(new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_IMS)
+                .build(), mPhone, mFeatureFlags);
+        for (int i = 0; i < 99/*MAXIMUM_HISTORICAL_ENTRIES - 1*/; i++) {
+            mDataRetryManagerUT.evaluateDataSetupRetry(mDataProfile3,
+                    AccessNetworkConstants.TRANSPORT_TYPE_WLAN,
+                    new DataNetworkController.NetworkRequestList(imsTnr), 123, 10000);
+        }
+        processAllMessages();
+
+        Map<?, ?> pendingRetries = getPrivateField(mDataRetryManagerUT,
+                "mPendingNetworkRequestRetryEntries", Map.class);
+        assertThat(pendingRetries).isEmpty();
+        assertThat(mDataRetryManagerUT.isSimilarNetworkRequestRetryScheduled(tnr,
+                AccessNetworkConstants.TRANSPORT_TYPE_WWAN)).isFalse();
+    }
+
+    @Test
+    public void testSimilarNetworkRequestRetryAfterReset() throws Exception {
+        testIsSimilarNetworkRequestRetryScheduled();
+
+        mDataRetryManagerUT.obtainMessage(8/*EVENT_RADIO_ON*/).sendToTarget();
+        processAllMessages();
+
+        Map<?, ?> pendingRetries = getPrivateField(mDataRetryManagerUT,
+                "mPendingNetworkRequestRetryEntries", Map.class);
+        assertThat(pendingRetries).isEmpty();
+        TelephonyNetworkRequest tnr = new TelephonyNetworkRequest(new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build(), mPhone, mFeatureFlags);
+        assertThat(mDataRetryManagerUT.isSimilarNetworkRequestRetryScheduled(tnr,
+                AccessNetworkConstants.TRANSPORT_TYPE_WWAN)).isFalse();
+    }
+
+    @Test
+    public void testDataProfileThrottledAfterUnthrottling() throws Exception {
+        TelephonyNetworkRequest tnr = new TelephonyNetworkRequest(new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_IMS)
+                .build(), mPhone, mFeatureFlags);
+        mDataRetryManagerUT.evaluateDataSetupRetry(mDataProfile3,
+                AccessNetworkConstants.TRANSPORT_TYPE_WWAN,
+                new DataNetworkController.NetworkRequestList(tnr), 123, Long.MAX_VALUE);
+        processAllMessages();
+        assertThat(mDataRetryManagerUT.isDataProfileThrottled(mDataProfile3,
+                AccessNetworkConstants.TRANSPORT_TYPE_WWAN)).isTrue();
+        assertThat(mDataRetryManagerUT.isDataProfileThrottled(mDataProfile3,
+                AccessNetworkConstants.TRANSPORT_TYPE_WLAN)).isFalse();
+
+        mDataRetryManagerUT.obtainMessage(6/*EVENT_DATA_PROFILE_UNTHROTTLED*/,
+                new AsyncResult(AccessNetworkConstants.TRANSPORT_TYPE_WWAN, mDataProfile3, null))
+                .sendToTarget();
+        processAllMessages();
+
+        Map<?, ?> throttlingEntries = getPrivateField(mDataRetryManagerUT,
+                "mDataThrottlingEntriesByProfile", Map.class);
+        assertThat(throttlingEntries).isEmpty();
+        assertThat(mDataRetryManagerUT.isDataProfileThrottled(mDataProfile3,
+                AccessNetworkConstants.TRANSPORT_TYPE_WWAN)).isFalse();
+    }
+
+    @Test
+    public void testDataProfileThrottledAfterHandoverRetryCancelled() throws Exception {
+        DataNetwork mockDn = Mockito.mock(DataNetwork.class);
+        TelephonyNetworkRequest tnr = new TelephonyNetworkRequest(new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_IMS)
+                .build(), mPhone, mFeatureFlags);
+        doReturn(new DataNetworkController.NetworkRequestList(tnr)).when(mockDn)
+                .getAttachedNetworkRequestList();
+        doReturn(AccessNetworkConstants.TRANSPORT_TYPE_WWAN).when(mockDn).getTransport();
+        doReturn(mDataProfile3).when(mockDn).getDataProfile();
+
+        // Handover to IWLAN is throttled.
+        mDataRetryManagerUT.evaluateDataHandoverRetry(mockDn, 123, Long.MAX_VALUE);
+        processAllMessages();
+        assertThat(mDataRetryManagerUT.isDataProfileThrottled(mDataProfile3,
+                AccessNetworkConstants.TRANSPORT_TYPE_WLAN)).isTrue();
+
+        mDataRetryManagerUT.cancelPendingHandoverRetry(mockDn);
+        processAllMessages();
+
+        Map<?, ?> throttlingEntries = getPrivateField(mDataRetryManagerUT,
+                "mDataThrottlingEntriesByProfile", Map.class);
+        assertThat(throttlingEntries).isEmpty();
+        assertThat(mDataRetryManagerUT.isDataProfileThrottled(mDataProfile3,
+                AccessNetworkConstants.TRANSPORT_TYPE_WLAN)).isFalse();
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.data;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+import android.telephony.SubscriptionManager;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class DataSwitchTraceTest {
+    private final DataSwitchTrace mTrace = new DataSwitchTrace();
+
+    private static DataSwitchTrace.Decision createDecision(int fromPhoneId, int toPhoneId) {
+        return new DataSwitchTrace.Decision("test", fromPhoneId, toPhoneId, 1, 2,
+                SubscriptionManager.INVALID_PHONE_INDEX, SubscriptionManager.INVALID_PHONE_INDEX,
+                0, "MANUAL");
+    }
+
+    @Test
+    public void testSwitchCompletesOnModemResponseForTargetPhone() {
+        DataSwitchTrace.Decision decision = createDecision(0, 1);
+        mTrace.onDecision(decision, SystemClock.elapsedRealtimeNanos());
+        mTrace.onModemCommandSent(0);
+        mTrace.onModemCommandSent(1);
+
+        mTrace.onModemCommandDone(0, true);
+        assertThat(decision.getSwitchTimeMs()).isEqualTo(-1);
+
+        // A failed command is retried, so the switch is still pending
+        mTrace.onModemCommandDone(1, false);
+        assertThat(decision.getSwitchTimeMs()).isEqualTo(-1);
+
+        mTrace.onModemCommandSent(1);
+        mTrace.onModemCommandDone(1, true);
+        assertThat(decision.getSwitchTimeMs()).isAtLeast(0);
+        assertThat(mTrace.getLatency(DataSwitchTrace.STAGE_DECISION).getCount()).isEqualTo(1);
+        assertThat(mTrace.getLatency(DataSwitchTrace.STAGE_MODEM_COMMAND).getCount())
+                .isEqualTo(3);
+        assertThat(mTrace.getLatency(DataSwitchTrace.STAGE_SWITCH).getCount()).isEqualTo(1);
+
+        // A response without an outstanding command is not recorded
+        mTrace.onModemCommandDone(1, true);
+        assertThat(mTrace.getLatency(DataSwitchTrace.STAGE_MODEM_COMMAND).getCount())
+                .isEqualTo(3);
+        assertThat(mTrace.getLatency(DataSwitchTrace.STAGE_SWITCH).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testDecisionWithoutPhoneChangeIsNotPending() {
+        DataSwitchTrace.Decision decision = createDecision(0, 0);
+        mTrace.onDecision(decision, SystemClock.elapsedRealtimeNanos());
+        mTrace.onModemCommandSent(0);
+        mTrace.onModemCommandDone(0, true);
+
+        assertThat(decision.getSwitchTimeMs()).isEqualTo(-1);
+        assertThat(mTrace.getLatency(DataSwitchTrace.STAGE_SWITCH).getCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testDecisionLogIsBounded() {
+        for (int i = 0; i < DataSwitchTrace.MAX_DECISIONS + 5; i++) {
+            mTrace.onDecision(createDecision(i, i + 1), SystemClock.elapsedRealtimeNanos());
+        }
+
+        assertThat(mTrace.getDecisions()).hasSize(DataSwitchTrace.MAX_DECISIONS);
+        assertThat(mTrace.getDecisions().get(0).getFromPhoneId()).isEqualTo(5);
+
+        StringWriter sw = new StringWriter();
+        mTrace.dump(new PrintWriter(sw));
+        assertThat(sw.toString()).contains("phone 5->6");
+    }
+
+    @Test
+    public void testValidation() {
+        mTrace.onValidationStarted(2);
+        mTrace.onNetworkAvailable(3);
+        mTrace.onNetworkAvailable(2);
+        mTrace.onNetworkAvailable(2);
+        mTrace.onValidationDone(2);
+        mTrace.onValidationDone(2);
+
+        assertThat(mTrace.getLatency(DataSwitchTrace.STAGE_NETWORK_AVAILABLE).getCount())
+                .isEqualTo(1);
+        assertThat(mTrace.getLatency(DataSwitchTrace.STAGE_VALIDATION).getCount()).isEqualTo(1);
+
+        // A cancelled validation is not recorded
+        mTrace.onValidationStarted(2);
+        mTrace.onValidationCancelled();
+        mTrace.onValidationDone(2);
+        assertThat(mTrace.getLatency(DataSwitchTrace.STAGE_VALIDATION).getCount()).isEqualTo(1);
+    }
+}
@@ -147,7 +147,9 @@ public class LinkBandwidthEstimatorTest extends TelephonyTest {
 
     @After
     public void tearDown() throws Exception {
+        mLBE.dispose();
         mLBE = null;
+        LinkBandwidthStatsStore.resetInstance();
         mNri = null;
         mNetworkCapabilities = null;
         mCellIdentity = null;
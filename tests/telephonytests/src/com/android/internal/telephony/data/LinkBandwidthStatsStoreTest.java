@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.data;
+
+import static com.android.internal.telephony.data.LinkBandwidthEstimator.LINK_RX;
+import static com.android.internal.telephony.data.LinkBandwidthEstimator.LINK_TX;
+import static com.android.internal.telephony.data.LinkBandwidthEstimator.UNKNOWN_TAC;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.android.internal.telephony.data.LinkBandwidthStatsStore.NetworkKey;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+public class LinkBandwidthStatsStoreTest {
+    private static final NetworkKey LTE_TAC = new NetworkKey("310260", 366, "LTE");
+    private static final NetworkKey LTE_ALL_TAC = new NetworkKey("310260", UNKNOWN_TAC, "LTE");
+
+    @Rule public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testUpdate() {
+        LinkBandwidthStatsStore store = new LinkBandwidthStatsStore(null);
+        assertThat(store.isDirty()).isFalse();
+
+        store.update(LTE_TAC, 1000, LINK_RX, 2);
+        store.update(new NetworkKey("310260", 366, "LTE"), 3000, LINK_RX, 2);
+        store.update(LTE_ALL_TAC, 500, LINK_TX, 4);
+
+        assertThat(store.isDirty()).isTrue();
+        assertThat(store.getValue(LTE_TAC, LINK_RX, 2)).isEqualTo(4000);
+        assertThat(store.getCount(LTE_TAC, LINK_RX, 2)).isEqualTo(2);
+        assertThat(store.getCount(LTE_TAC, LINK_TX, 2)).isEqualTo(0);
+        assertThat(store.getValue(LTE_ALL_TAC, LINK_TX, 4)).isEqualTo(500);
+        assertThat(store.getCount(LTE_ALL_TAC, LINK_TX, 4)).isEqualTo(1);
+        assertThat(store.getCount(new NetworkKey("310260", 366, "NR"), LINK_RX, 2)).isEqualTo(0);
+        assertThat(store.getNetworks()).containsExactly(LTE_TAC, LTE_ALL_TAC);
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        LinkBandwidthStatsStore store = new LinkBandwidthStatsStore(null);
+        for (int tac = 0; tac < LinkBandwidthStatsStore.MAX_NETWORKS; tac++) {
+            store.update(new NetworkKey("310260", tac, "LTE"), 100, LINK_RX, 1);
+        }
+        // Touch the first network so that the second one becomes the eldest
+        assertThat(store.getCount(new NetworkKey("310260", 0, "LTE"), LINK_RX, 1)).isEqualTo(1);
+
+        store.update(LTE_ALL_TAC, 200, LINK_RX, 1);
+
+        assertThat(store.getNetworks()).hasSize(LinkBandwidthStatsStore.MAX_NETWORKS);
+        assertThat(store.getCount(new NetworkKey("310260", 1, "LTE"), LINK_RX, 1)).isEqualTo(0);
+        assertThat(store.getCount(new NetworkKey("310260", 0, "LTE"), LINK_RX, 1)).isEqualTo(1);
+        // The evicted slot is reused without stale stats
+        assertThat(store.getValue(LTE_ALL_TAC, LINK_RX, 1)).isEqualTo(200);
+        assertThat(store.getCount(LTE_ALL_TAC, LINK_RX, 1)).isEqualTo(1);
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File file = new File(mFolder.getRoot(), "link_bandwidth_stats");
+        LinkBandwidthStatsStore store = new LinkBandwidthStatsStore(file);
+        store.update(LTE_TAC, 1000, LINK_RX, 2);
+        store.update(LTE_ALL_TAC, 500, LINK_TX, 4);
+        store.save();
+        assertThat(store.isDirty()).isFalse();
+        assertThat(file.exists()).isTrue();
+
+        LinkBandwidthStatsStore loaded = new LinkBandwidthStatsStore(file);
+        loaded.load();
+
+        assertThat(loaded.isDirty()).isFalse();
+        assertThat(loaded.getNetworks()).containsExactly(LTE_TAC, LTE_ALL_TAC).inOrder();
+        assertThat(loaded.getValue(LTE_TAC, LINK_RX, 2)).isEqualTo(1000);
+        assertThat(loaded.getCount(LTE_TAC, LINK_RX, 2)).isEqualTo(1);
+        assertThat(loaded.getValue(LTE_ALL_TAC, LINK_TX, 4)).isEqualTo(500);
+    }
+
+    @Test
+    public void testLoadMissingFile() {
+        LinkBandwidthStatsStore store =
+                new LinkBandwidthStatsStore(new File(mFolder.getRoot(), "missing"));
+        store.load();
+        assertThat(store.getNetworks()).isEmpty();
+    }
+
+    @Test
+    public void testMigrateLegacyStats() {
+        Map<String, Object> legacy = new HashMap<>();
+        legacy.put("Plmn310260RatLTETac366Link1Level2Data", 4000L);
+        legacy.put("Plmn310260RatLTETac366Link1Level2Count", 2);
+        legacy.put("Plmn310260RatNR_NSATac2147483647Link0Level4Data", 500L);
+        legacy.put("Link1Level2Data", 100L);
+        legacy.put("unrelated_key", 7);
+        SharedPreferences prefs = mock(SharedPreferences.class);
+        SharedPreferences.Editor editor = mock(SharedPreferences.Editor.class);
+        doReturn(legacy).when(prefs).getAll();
+        doReturn(editor).when(prefs).edit();
+
+        LinkBandwidthStatsStore store = new LinkBandwidthStatsStore(null);
+        store.update(LTE_TAC, 1000, LINK_RX, 2);
+        assertThat(store.migrateLegacyStats(prefs)).isEqualTo(3);
+
+        assertThat(store.isDirty()).isTrue();
+        assertThat(store.getValue(LTE_TAC, LINK_RX, 2)).isEqualTo(5000);
+        assertThat(store.getCount(LTE_TAC, LINK_RX, 2)).isEqualTo(3);
+        assertThat(store.getValue(new NetworkKey("310260", UNKNOWN_TAC, "NR_NSA"), LINK_TX, 4))
+                .isEqualTo(500);
+        assertThat(store.getNetworks()).hasSize(2);
+        verify(editor).remove("Plmn310260RatLTETac366Link1Level2Data");
+        verify(editor).remove("Plmn310260RatLTETac366Link1Level2Count");
+        verify(editor).remove("Plmn310260RatNR_NSATac2147483647Link0Level4Data");
+        verify(editor).remove("Link1Level2Data");
+        verify(editor, never()).remove("unrelated_key");
+        verify(editor).apply();
+    }
+
+    @Test
+    public void testSharedInstance() {
+        File file = new File(mFolder.getRoot(), "link_bandwidth_stats");
+        Context context = mock(Context.class);
+        doReturn(file).when(context).getFileStreamPath("link_bandwidth_stats");
+        Map<String, Object> legacy = new HashMap<>();
+        legacy.put("Plmn310260RatLTETac366Link1Level2Data", 4000L);
+        SharedPreferences prefs = mock(SharedPreferences.class);
+        doReturn(legacy).when(prefs).getAll();
+        doReturn(mock(SharedPreferences.Editor.class)).when(prefs).edit();
+
+        LinkBandwidthStatsStore.resetInstance();
+        try {
+            // The stores of all phones are the same, and migrate the legacy stats once
+            LinkBandwidthStatsStore store = LinkBandwidthStatsStore.getInstance(context);
+            assertThat(LinkBandwidthStatsStore.getInstance(context)).isSameInstanceAs(store);
+            store.initialize(prefs);
+            store.update(LTE_TAC, 1000, LINK_RX, 2);
+            store.initialize(prefs);
+
+            assertThat(store.getValue(LTE_TAC, LINK_RX, 2)).isEqualTo(5000);
+            verify(prefs, times(1)).getAll();
+        } finally {
+            LinkBandwidthStatsStore.resetInstance();
+        }
+    }
+}
@@ -318,6 +318,40 @@ public class QosCallbackTrackerTest extends TelephonyTest {
         verify(mINetworkAgentRegistry, times(1)).sendQosSessionLost(eq(1), any(QosSession.class));
     }
 
+    @Test
+    public void testSessionLostAfterRemoveFilter() throws Exception {
+        ArrayList<QosBearerFilter> qosFilters = new ArrayList<>();
+        qosFilters.add(createIpv4QosFilter("122.22.22.22", "144.44.44.44",
+                new QosBearerFilter.PortRange(2222, 2222),
+                new QosBearerFilter.PortRange(2223, 2223), 45));
+
+        ArrayList<QosBearerSession> qosSessions = new ArrayList<>();
+        qosSessions.add(new QosBearerSession(1234, createEpsQos(5, 6, 7, 8), qosFilters));
+
+        mQosCallbackTracker.updateSessions(qosSessions);
+        processAllMessages();
+
+        Filter filter = new Filter(new InetSocketAddress(
+                InetAddresses.parseNumericAddress("122.22.22.22"), 2222),
+                new InetSocketAddress(InetAddresses.parseNumericAddress("144.44.44.44"), 2223));
+        mQosCallbackTracker.addFilter(1, filter);
+        mQosCallbackTracker.addFilter(2, filter);
+        processAllMessages();
+
+        verify(mINetworkAgentRegistry, times(1)).sendEpsQosSessionAvailable(eq(1),
+                any(QosSession.class), any(EpsBearerQosSessionAttributes.class));
+        verify(mINetworkAgentRegistry, times(1)).sendEpsQosSessionAvailable(eq(2),
+                any(QosSession.class), any(EpsBearerQosSessionAttributes.class));
+
+        // The removed filter is not notified about the lost session
+        mQosCallbackTracker.removeFilter(1);
+        mQosCallbackTracker.updateSessions(new ArrayList<>());
+        processAllMessages();
+
+        verify(mINetworkAgentRegistry, never()).sendQosSessionLost(eq(1), any(QosSession.class));
+        verify(mINetworkAgentRegistry, times(1)).sendQosSessionLost(eq(2), any(QosSession.class));
+    }
+
     @Test
     public void testModifiedQos() throws Exception {
         // Non-matching QosBearerFilter
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.telephony.emergency.EmergencyNumber;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class EmergencyNumberIndexTest {
+    private static EmergencyNumber createNumber(String number, String mnc, int sources) {
+        return new EmergencyNumber(number, "us", mnc,
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED, new ArrayList<String>(),
+                sources, EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN);
+    }
+
+    @Test
+    public void testLookup() {
+        EmergencyNumber network = createNumber("911", "30",
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_NETWORK_SIGNALING);
+        EmergencyNumber database = createNumber("911", "",
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DATABASE);
+        EmergencyNumber withPrefix = createNumber("*31#911", "",
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DATABASE);
+        EmergencyNumberIndex index = new EmergencyNumberIndex(
+                List.of(network, withPrefix, database));
+
+        assertThat(index.size()).isEqualTo(2);
+        assertThat(index.contains("911")).isTrue();
+        assertThat(index.contains("*31#911")).isTrue();
+        assertThat(index.contains("91")).isFalse();
+        assertThat(index.contains(null)).isFalse();
+        assertThat(index.get("911")).isSameInstanceAs(network);
+        assertThat(index.get("112")).isNull();
+        assertThat(index.getAll("911")).containsExactly(network, database).inOrder();
+        assertThat(index.getAll("112")).isEmpty();
+    }
+
+    @Test
+    public void testEmptyIndex() {
+        EmergencyNumberIndex index = new EmergencyNumberIndex(Collections.emptyList());
+
+        assertThat(index.size()).isEqualTo(0);
+        assertThat(index.contains("911")).isFalse();
+        assertThat(index.getAll(null)).isEmpty();
+    }
+}
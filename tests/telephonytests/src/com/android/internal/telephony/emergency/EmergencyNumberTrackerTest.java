@@ -614,6 +614,22 @@ public class EmergencyNumberTrackerTest extends TelephonyTest {
                 emergencyNumberTrackerMock.getEmergencyNumberList()));
     }
 
+    @Test
+    public void testIsEmergencyNumberFromDatabaseWithoutRadioList() {
+        doReturn(mMockContext).when(mPhone).getContext();
+        doReturn(mContext.getAssets()).when(mMockContext).getAssets();
+        doReturn(mResources).when(mMockContext).getResources();
+        doReturn(mLocaleTracker).when(mSST).getLocaleTracker();
+        doReturn(CONFIG_EMERGENCY_NUMBER_COUNTRY).when(mLocaleTracker).getCurrentCountry();
+
+        // The database is cached when the tracker is created and the radio has not reported
+        // emergency numbers yet
+        EmergencyNumberTracker emergencyNumberTrackerMock = new EmergencyNumberTracker(
+                mPhone, mSimulatedCommands, mFeatureFlags);
+
+        assertTrue(emergencyNumberTrackerMock.isEmergencyNumber(CONFIG_EMERGENCY_NUMBER_ADDRESS));
+    }
+
     @Test
     public void testUsingEmergencyNumberDatabaseWithRouting() {
         doReturn(mMockContext).when(mPhone).getContext();
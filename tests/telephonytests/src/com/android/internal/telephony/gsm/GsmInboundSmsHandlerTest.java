@@ -1206,6 +1206,47 @@ public class GsmInboundSmsHandlerTest extends TelephonyTest {
         verifySmsFiltersInvoked(times(1));
     }
 
+    @Test
+    @MediumTest
+    public void testBroadcastUndeliveredOldPartDeleted() throws Exception {
+        replaceInstance(SmsBroadcastUndelivered.class, "instance", null, null);
+
+        // one part of a multi-part message received long ago
+        InboundSmsTracker oldPart = new InboundSmsTracker(
+                mContext,
+                mSmsPdu, /* pdu */
+                0, /* timestamp */
+                -1, /* destPort */
+                false, /* is3gpp2 */
+                "1234567890", /* address */
+                "1234567890", /* displayAddress */
+                1, /* referenceNumber */
+                1, /* sequenceNumber */
+                2, /* messageCount */
+                false, /* is3gpp2WapPdu */
+                mMessageBodyPart1, /* messageBody */
+                false, /* isClass0 */
+                mSubId0,
+                InboundSmsHandler.SOURCE_NOT_INJECTED);
+        mContentProvider.insert(sRawUri, oldPart.getContentValues());
+        doReturn(oldPart).when(mTelephonyComponentFactory).makeInboundSmsTracker(
+                any(Context.class), any(Cursor.class), anyBoolean());
+
+        SmsBroadcastUndelivered.initialize(mContext, mGsmInboundSmsHandler, mCdmaInboundSmsHandler);
+        // wait for ScanRawTableThread
+        waitForMs(100);
+        processAllMessages();
+
+        assertEquals(0, mContentProvider.getNumRows());
+        SmsBroadcastUndelivered.ScanProgress progress =
+                SmsBroadcastUndelivered.getLastScanProgress();
+        assertEquals(1, progress.getRows());
+        assertEquals(1, progress.getDeletedRows());
+        assertEquals(0, progress.getBroadcastMessages());
+        assertFalse(progress.isCancelled());
+        verifySmsFiltersInvoked(never());
+    }
+
     @Test
     @MediumTest
     public void testBroadcastUndeliveredMultiSim() throws Exception {
@@ -30,6 +30,7 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -45,6 +46,7 @@ import android.content.IntentFilter;
 import android.content.pm.ServiceInfo;
 import android.location.Country;
 import android.location.CountryDetector;
+import android.os.AsyncResult;
 import android.os.Binder;
 import android.os.HandlerThread;
 import android.os.Message;
@@ -63,6 +65,7 @@ import androidx.test.filters.FlakyTest;
 import androidx.test.filters.MediumTest;
 import androidx.test.filters.SmallTest;
 
+import com.android.internal.telephony.CommandException;
 import com.android.internal.telephony.ContextFixture;
 import com.android.internal.telephony.ISub;
 import com.android.internal.telephony.SMSDispatcher;
@@ -562,6 +565,48 @@ public class GsmSmsDispatcherTest extends TelephonyTest {
         assertEquals(messageRef, pdu[1]);
     }
 
+    @Test
+    public void testSendMultipartWithPartsInFlightLimit() throws Exception {
+        mGsmSmsDispatcher.setMaxPartsInFlightOverride(1);
+        ArrayList<String> parts = new ArrayList<>();
+        parts.add("segment1");
+        parts.add("segment2");
+        parts.add("segment3");
+
+        mSimulatedCommands.pauseResponses();
+        mGsmSmsDispatcher.sendMultipartText("6501002000" /*destAddr*/, "222" /*scAddr*/, parts,
+                null, null, null, null, mCallingUserId, false, -1, false, -1, 0L, 0L);
+        waitForMs(150);
+        processAllMessages();
+
+        // Only the first part is submitted until it is done
+        ArgumentCaptor<Message> responseCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(mSimulatedCommandsVerifier).sendSMSExpectMore(anyString(), anyString(),
+                responseCaptor.capture());
+        verify(mSimulatedCommandsVerifier, never()).sendSMS(anyString(), anyString(),
+                any(Message.class));
+
+        // The first part fails without retry; onFailed releases its slot
+        ((AsyncResult) responseCaptor.getValue().obj).exception =
+                new CommandException(CommandException.Error.GENERIC_FAILURE);
+        mSimulatedCommands.resumeResponses();
+        mSimulatedCommands.pauseResponses();
+        processAllMessages();
+
+        verify(mSimulatedCommandsVerifier, times(2)).sendSMSExpectMore(anyString(), anyString(),
+                any(Message.class));
+        verify(mSimulatedCommandsVerifier, never()).sendSMS(anyString(), anyString(),
+                any(Message.class));
+
+        // The second part is sent; onSent releases its slot
+        mSimulatedCommands.resumeResponses();
+        processAllMessages();
+
+        verify(mSimulatedCommandsVerifier, times(2)).sendSMSExpectMore(anyString(), anyString(),
+                any(Message.class));
+        verify(mSimulatedCommandsVerifier).sendSMS(anyString(), anyString(), any(Message.class));
+    }
+
     @Test
     public void testSendTextWithMessageRefNegativeBoundaryCondition() throws Exception {
         mIsimUiccRecords = new IsimUiccRecords(mUiccCardApplication3gpp, mContext,
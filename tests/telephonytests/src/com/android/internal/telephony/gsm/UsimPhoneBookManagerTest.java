@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.gsm;
+
+import static com.android.internal.telephony.uicc.IccConstants.EF_PBR;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import android.os.AsyncResult;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import com.android.internal.telephony.CommandException;
+import com.android.internal.telephony.TelephonyTest;
+import com.android.internal.telephony.uicc.AdnRecord;
+import com.android.internal.telephony.uicc.AdnRecordCache;
+import com.android.internal.telephony.uicc.IccFileHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class UsimPhoneBookManagerTest extends TelephonyTest {
+    private static final int EF_ADN_1 = 0x4F3A;
+    private static final int EF_ADN_2 = 0x4F3B;
+    private static final int EF_IAP_1 = 0x4F25;
+    private static final int EF_EMAIL_1 = 0x4F50;
+    private static final int EF_EMAIL_2 = 0x4F51;
+    private static final int SFI_ADN_2 = 0x02;
+    private static final int EMAIL_LENGTH = 16;
+    private static final int TIMEOUT_MS = 1000;
+
+    // PBR record 1: EF_ADN and EF_IAP as type 1 files, EF_EMAIL as a type 2 file
+    private static final byte[] PBR_RECORD_1 = new byte[] {
+            (byte) 0xA8, 0x0A,
+            (byte) 0xC0, 0x03, 0x4F, 0x3A, 0x01,
+            (byte) 0xC1, 0x03, 0x4F, 0x25, 0x05,
+            (byte) 0xA9, 0x04,
+            (byte) 0xCA, 0x02, 0x4F, 0x50};
+    // PBR record 2: EF_ADN and EF_EMAIL as type 1 files
+    private static final byte[] PBR_RECORD_2 = new byte[] {
+            (byte) 0xA8, 0x0A,
+            (byte) 0xC0, 0x03, 0x4F, 0x3B, SFI_ADN_2,
+            (byte) 0xCA, 0x03, 0x4F, 0x51, 0x06};
+
+    // Mocked classes
+    private IccFileHandler mFhMock;
+    private AdnRecordCache mAdnCacheMock;
+
+    private UsimPhoneBookManager mUsimPhoneBookManager;
+    private UsimPhoneBookManagerTestHandler mUsimPhoneBookManagerTestHandler;
+
+    // Result of each EF, keyed by EF id. An exception fails the load of the EF.
+    private final Map<Integer, Object> mEfResults = new HashMap<>();
+    // Delay of the load of each EF, keyed by EF id
+    private final Map<Integer, Integer> mEfDelaysMs = new HashMap<>();
+    // EFs whose load interrupts the caller and is not done until sent by the test
+    private final Set<Integer> mInterruptingEfs = new HashSet<>();
+    private final List<Message> mHeldResponses = new ArrayList<>();
+
+    private class UsimPhoneBookManagerTestHandler extends HandlerThread {
+
+        private UsimPhoneBookManagerTestHandler(String name) {
+            super(name);
+        }
+
+        @Override
+        public void onLooperPrepared() {
+            mUsimPhoneBookManager = new UsimPhoneBookManager(mFhMock, mAdnCacheMock);
+            setReady(true);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        mFhMock = mock(IccFileHandler.class);
+        mAdnCacheMock = mock(AdnRecordCache.class);
+
+        doAnswer(invocation -> {
+            respond(invocation.getArgument(0), invocation.getArgument(1));
+            return null;
+        }).when(mFhMock).loadEFLinearFixedAll(anyInt(), any(Message.class));
+        doAnswer(invocation -> {
+            respond(invocation.getArgument(0), invocation.getArgument(2));
+            return null;
+        }).when(mAdnCacheMock).requestLoadAllAdnLike(anyInt(), anyInt(), any(Message.class));
+
+        mEfResults.put(EF_PBR, records(PBR_RECORD_1, PBR_RECORD_2));
+        mEfResults.put(EF_ADN_1, new ArrayList<>(Arrays.asList(
+                new AdnRecord(EF_ADN_1, 1, "A1", "111"),
+                new AdnRecord(EF_ADN_1, 2, "A2", "112"))));
+        mEfResults.put(EF_ADN_2, new ArrayList<>(Arrays.asList(
+                new AdnRecord(EF_ADN_2, 1, "B1", "221"))));
+        // ADN record 1 points to EF_EMAIL record 2, ADN record 2 has no email
+        mEfResults.put(EF_IAP_1, records(new byte[] {0x02}, new byte[] {(byte) 0xFF}));
+        mEfResults.put(EF_EMAIL_1, records(
+                emailRecord("first@a.com", 0xFF, 0xFF),
+                emailRecord("second@a.com", 0xFF, 0xFF)));
+        mEfResults.put(EF_EMAIL_2, records(emailRecord("b1@b.com", SFI_ADN_2, 1)));
+
+        mUsimPhoneBookManagerTestHandler = new UsimPhoneBookManagerTestHandler(TAG);
+        mUsimPhoneBookManagerTestHandler.start();
+        waitUntilReady();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mUsimPhoneBookManagerTestHandler.quit();
+        mUsimPhoneBookManagerTestHandler.join();
+        mUsimPhoneBookManagerTestHandler = null;
+        mUsimPhoneBookManager = null;
+        mHeldResponses.clear();
+        super.tearDown();
+    }
+
+    private void respond(int efid, Message response) {
+        Object result = mEfResults.get(efid);
+        if (result instanceof Throwable) {
+            AsyncResult.forMessage(response, null, (Throwable) result);
+        } else {
+            AsyncResult.forMessage(response, result, null);
+        }
+        if (mInterruptingEfs.contains(efid)) {
+            mHeldResponses.add(response);
+            Thread.currentThread().interrupt();
+            return;
+        }
+        response.getTarget().sendMessageDelayed(response, mEfDelaysMs.getOrDefault(efid, 0));
+    }
+
+    private static ArrayList<byte[]> records(byte[]... records) {
+        return new ArrayList<>(Arrays.asList(records));
+    }
+
+    private static byte[] emailRecord(String email, int sfi, int adnRecId) {
+        byte[] record = new byte[EMAIL_LENGTH + 2];
+        Arrays.fill(record, (byte) 0xFF);
+        byte[] bytes = email.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, record, 0, bytes.length);
+        record[EMAIL_LENGTH] = (byte) sfi;
+        record[EMAIL_LENGTH + 1] = (byte) adnRecId;
+        return record;
+    }
+
+    private void waitForHandlerThread() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        mUsimPhoneBookManager.post(latch::countDown);
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private static void assertRecord(AdnRecord record, int efid, int recId, String[] emails) {
+        assertEquals(efid, record.getEfid());
+        assertEquals(recId, record.getRecId());
+        if (emails == null) {
+            assertNull(record.getEmails());
+        } else {
+            assertArrayEquals(emails, record.getEmails());
+        }
+    }
+
+    @Test
+    public void testLoadEfFilesFromUsim_twoPbrRecords() {
+        ArrayList<AdnRecord> records = mUsimPhoneBookManager.loadEfFilesFromUsim();
+
+        assertEquals(3, records.size());
+        assertRecord(records.get(0), EF_ADN_1, 1, new String[] {"second@a.com"});
+        assertRecord(records.get(1), EF_ADN_1, 2, null);
+        assertRecord(records.get(2), EF_ADN_2, 1, new String[] {"b1@b.com"});
+    }
+
+    @Test
+    public void testLoadEfFilesFromUsim_outOfOrderCompletion() {
+        // The files of the first PBR record are done after the ones of the second PBR record,
+        // and EF_EMAIL is done before the EF_IAP it is mapped through.
+        mEfDelaysMs.put(EF_ADN_1, 150);
+        mEfDelaysMs.put(EF_IAP_1, 100);
+        mEfDelaysMs.put(EF_EMAIL_1, 50);
+
+        ArrayList<AdnRecord> records = mUsimPhoneBookManager.loadEfFilesFromUsim();
+
+        assertEquals(3, records.size());
+        assertRecord(records.get(0), EF_ADN_1, 1, new String[] {"second@a.com"});
+        assertRecord(records.get(1), EF_ADN_1, 2, null);
+        assertRecord(records.get(2), EF_ADN_2, 1, new String[] {"b1@b.com"});
+    }
+
+    @Test
+    public void testLoadEfFilesFromUsim_type2EmailMappedThroughIap() {
+        // Both ADN records point to EF_EMAIL record 1
+        mEfResults.put(EF_IAP_1, records(new byte[] {0x01}, new byte[] {0x01}));
+
+        ArrayList<AdnRecord> records = mUsimPhoneBookManager.loadEfFilesFromUsim();
+
+        assertEquals(3, records.size());
+        assertRecord(records.get(0), EF_ADN_1, 1, new String[] {"first@a.com"});
+        assertRecord(records.get(1), EF_ADN_1, 2, new String[] {"first@a.com"});
+    }
+
+    @Test
+    public void testLoadEfFilesFromUsim_iapLoadFailed() {
+        mEfResults.put(EF_IAP_1, new CommandException(CommandException.Error.GENERIC_FAILURE));
+
+        ArrayList<AdnRecord> records = mUsimPhoneBookManager.loadEfFilesFromUsim();
+
+        // Type 2 emails cannot be mapped without EF_IAP, the other PBR record is not affected
+        assertEquals(3, records.size());
+        assertRecord(records.get(0), EF_ADN_1, 1, null);
+        assertRecord(records.get(1), EF_ADN_1, 2, null);
+        assertRecord(records.get(2), EF_ADN_2, 1, new String[] {"b1@b.com"});
+    }
+
+    @Test
+    public void testLoadEfFilesFromUsim_interrupted() throws Exception {
+        mInterruptingEfs.add(EF_ADN_2);
+
+        ArrayList<AdnRecord> records = mUsimPhoneBookManager.loadEfFilesFromUsim();
+
+        // The partial result is discarded and the interrupt status is kept
+        assertTrue(Thread.interrupted());
+        assertTrue(records.isEmpty());
+
+        // The load of the abandoned read is done late and must not count for the next read
+        mInterruptingEfs.clear();
+        for (Message response : mHeldResponses) {
+            response.sendToTarget();
+        }
+        mHeldResponses.clear();
+        waitForHandlerThread();
+
+        records = mUsimPhoneBookManager.loadEfFilesFromUsim();
+
+        assertEquals(3, records.size());
+        assertRecord(records.get(0), EF_ADN_1, 1, new String[] {"second@a.com"});
+        assertRecord(records.get(1), EF_ADN_1, 2, null);
+        assertRecord(records.get(2), EF_ADN_2, 1, new String[] {"b1@b.com"});
+    }
+}
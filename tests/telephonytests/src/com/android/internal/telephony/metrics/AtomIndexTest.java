@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.internal.telephony.nano.PersistAtomsProto.SipMessageResponse;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class AtomIndexTest {
+    /** Ten times the default cap of PersistAtomsStorage for SIP message responses. */
+    private static final int LARGE_CAP = 250;
+
+    private static AtomIndex<SipMessageResponse> createIndex() {
+        return new AtomIndex<>(
+                s -> AtomIndex.hash(AtomIndex.hash(AtomIndex.hash(0, s.carrierId), s.slotId),
+                        s.sipMessageResponse),
+                (a, b) -> a.carrierId == b.carrierId
+                        && a.slotId == b.slotId
+                        && a.sipMessageResponse == b.sipMessageResponse);
+    }
+
+    private static SipMessageResponse createAtom(int carrierId, int slotId, int response) {
+        SipMessageResponse atom = new SipMessageResponse();
+        atom.carrierId = carrierId;
+        atom.slotId = slotId;
+        atom.sipMessageResponse = response;
+        return atom;
+    }
+
+    private static SipMessageResponse[] createAtoms(int count) {
+        SipMessageResponse[] atoms = new SipMessageResponse[count];
+        for (int i = 0; i < count; i++) {
+            atoms[i] = createAtom(1000 + i / 2, i % 2, 200 + i);
+        }
+        return atoms;
+    }
+
+    @Test
+    @SmallTest
+    public void testIndexOf() {
+        AtomIndex<SipMessageResponse> index = createIndex();
+        SipMessageResponse[] atoms = createAtoms(10);
+
+        for (int i = 0; i < atoms.length; i++) {
+            SipMessageResponse key = createAtom(atoms[i].carrierId, atoms[i].slotId,
+                    atoms[i].sipMessageResponse);
+            assertEquals(i, index.indexOf(atoms, key));
+        }
+        assertEquals(-1, index.indexOf(atoms, createAtom(1, 0, 200)));
+        assertEquals(-1, index.indexOf(new SipMessageResponse[0], atoms[0]));
+    }
+
+    @Test
+    @SmallTest
+    public void testRebuildsWhenArrayReplaced() {
+        AtomIndex<SipMessageResponse> index = createIndex();
+        SipMessageResponse[] atoms = createAtoms(4);
+        SipMessageResponse key = createAtom(2000, 0, 404);
+        assertEquals(-1, index.indexOf(atoms, key));
+
+        SipMessageResponse[] grown = Arrays.copyOf(atoms, atoms.length + 1);
+        grown[grown.length - 1] = grown[1];
+        grown[1] = createAtom(2000, 0, 404);
+        assertEquals(1, index.indexOf(grown, key));
+        assertEquals(grown.length - 1, index.indexOf(grown, atoms[1]));
+    }
+
+    @Test
+    @SmallTest
+    public void testDuplicateDimensionsReturnFirst() {
+        AtomIndex<SipMessageResponse> index = createIndex();
+        SipMessageResponse[] atoms = new SipMessageResponse[] {
+                createAtom(1, 0, 200), createAtom(1, 0, 200)};
+        assertEquals(0, index.indexOf(atoms, createAtom(1, 0, 200)));
+    }
+
+    @Test
+    @SmallTest
+    public void testHashCollisionsResolvedByMatcher() {
+        AtomIndex<SipMessageResponse> index = new AtomIndex<>(
+                s -> 0L, (a, b) -> a.carrierId == b.carrierId);
+        SipMessageResponse[] atoms = createAtoms(8);
+        assertEquals(6, index.indexOf(atoms, createAtom(1003, 0, 0)));
+        assertEquals(-1, index.indexOf(atoms, createAtom(1, 0, 0)));
+    }
+
+    @Test
+    @SmallTest
+    public void testIndexOfAtLargeCap() {
+        AtomIndex<SipMessageResponse> index = createIndex();
+        SipMessageResponse[] atoms = createAtoms(LARGE_CAP);
+        SipMessageResponse[] keys = createAtoms(LARGE_CAP);
+
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(i, index.indexOf(atoms, keys[i]));
+        }
+        assertEquals(-1, index.indexOf(atoms, createAtom(1000, 0, 199)));
+    }
+}
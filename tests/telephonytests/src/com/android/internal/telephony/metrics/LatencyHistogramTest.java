@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.metrics;
+
+import static android.telephony.TelephonyManager.HAL_SERVICE_NETWORK;
+import static android.telephony.TelephonyManager.HAL_SERVICE_SIM;
+
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_SIGNAL_STRENGTH;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    @SmallTest
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    @SmallTest
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+        assertEquals(10, histogram.getCount());
+        assertEquals(5, histogram.getValueAtPercentile(50));
+        assertEquals(10, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        assertEquals(5, histogram.getMean());
+    }
+
+    @Test
+    @SmallTest
+    public void testPercentilesWithinRelativeError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        assertWithinError(5000, histogram.getValueAtPercentile(50));
+        assertWithinError(9500, histogram.getValueAtPercentile(95));
+        assertWithinError(9900, histogram.getValueAtPercentile(99));
+        assertEquals(10000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    @SmallTest
+    public void testClampsOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getMin());
+        assertEquals(LatencyHistogram.MAX_TRACKABLE_VALUE, histogram.getMax());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testRilLatencyStats() {
+        RilLatencyStats stats = new RilLatencyStats();
+        assertNull(stats.getEntry(HAL_SERVICE_NETWORK, RIL_REQUEST_SIGNAL_STRENGTH));
+
+        stats.onRequestSent(HAL_SERVICE_NETWORK, RIL_REQUEST_SIGNAL_STRENGTH, 3);
+        stats.onResponse(HAL_SERVICE_NETWORK, RIL_REQUEST_SIGNAL_STRENGTH, 40);
+        stats.onTimeout(HAL_SERVICE_NETWORK, RIL_REQUEST_SIGNAL_STRENGTH);
+
+        RilLatencyStats.Entry entry =
+                stats.getEntry(HAL_SERVICE_NETWORK, RIL_REQUEST_SIGNAL_STRENGTH);
+        assertEquals(1, entry.getLatencyMs().getCount());
+        assertEquals(40, entry.getLatencyMs().getValueAtPercentile(99));
+        assertEquals(3, entry.getQueueDepth().getMax());
+        assertEquals(1, entry.getTimeoutCount());
+
+        // The same request on another service is tracked separately.
+        assertNull(stats.getEntry(HAL_SERVICE_SIM, RIL_REQUEST_SIGNAL_STRENGTH));
+        assertEquals(1, stats.getEntries().size());
+    }
+
+    private static void assertWithinError(long expected, long actual) {
+        double error = Math.abs(actual - expected) / (double) expected;
+        assertTrue("expected " + expected + " got " + actual,
+                error <= 1.0 / LatencyHistogram.SUB_BUCKET_COUNT);
+    }
+}
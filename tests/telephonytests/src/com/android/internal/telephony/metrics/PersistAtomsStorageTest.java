@@ -54,18 +54,24 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import android.annotation.Nullable;
 import android.content.Context;
 import android.os.Build;
+import android.os.Handler;
 import android.telephony.DisconnectCause;
 import android.telephony.PreciseDataConnectionState;
 import android.telephony.SatelliteProtoEnums;
@@ -135,6 +141,7 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 public class PersistAtomsStorageTest extends TelephonyTest {
@@ -5397,6 +5404,67 @@ public class PersistAtomsStorageTest extends TelephonyTest {
         assertTrue(output.length <= maxNumDataNetworkValidation);
     }
 
+    @Test
+    @SmallTest
+    public void saveAtoms_updatesCoalescedIntoDelayedSave() throws Exception {
+        createEmptyTestFile();
+        mPersistAtomsStorage = new TestablePersistAtomsStorage(mContext);
+        mPersistAtomsStorage.mSaveImmediately = false;
+
+        for (int i = 0; i < 5; i++) {
+            mPersistAtomsStorage.addIncomingSms(mIncomingSms1);
+        }
+        waitForSaveThreadIdle();
+
+        // The save is delayed, nothing should be written yet
+        verify(mTestFileOutputStream, never()).write(any(byte[].class));
+
+        // All updates are written at once, and the delayed save is dropped
+        mPersistAtomsStorage.flushAtoms();
+        waitForSaveThreadIdle();
+        verifyCurrentStateSavedToFileOnce();
+    }
+
+    @Test
+    @SmallTest
+    public void saveAtoms_manyUpdatesSavedOnSaveThread() throws Exception {
+        createEmptyTestFile();
+        mPersistAtomsStorage = new TestablePersistAtomsStorage(mContext);
+        mPersistAtomsStorage.mSaveImmediately = false;
+        Thread[] writer = new Thread[1];
+        doAnswer(invocation -> {
+            writer[0] = Thread.currentThread();
+            return mTestFileOutputStream;
+        }).when(mContext).openFileOutput(anyString(), anyInt());
+
+        for (int i = 0; i < 199; i++) {
+            mPersistAtomsStorage.addIncomingSms(mIncomingSms1);
+        }
+        waitForSaveThreadIdle();
+        verify(mTestFileOutputStream, never()).write(any(byte[].class));
+
+        // The 200th update triggers a save without waiting for the delay, on the save thread
+        mPersistAtomsStorage.addIncomingSms(mIncomingSms1);
+        waitForSaveThreadIdle();
+        verifyCurrentStateSavedToFileOnce();
+        assertSame(mPersistAtomsStorage.getSaveLooper().getThread(), writer[0]);
+    }
+
+    @Test
+    @SmallTest
+    public void writeSnapshot_olderSnapshotNotWritten() throws Exception {
+        createEmptyTestFile();
+        mPersistAtomsStorage = new TestablePersistAtomsStorage(mContext);
+        byte[] newer = new byte[] {2};
+        byte[] older = new byte[] {1};
+
+        mPersistAtomsStorage.writeSnapshot(newer, 2L);
+        mPersistAtomsStorage.writeSnapshot(older, 1L);
+
+        verify(mTestFileOutputStream, times(1)).write(eq(newer));
+        verify(mTestFileOutputStream, never()).write(eq(older));
+    }
+
     @Test
     @SmallTest
     public void clearAtoms() throws Exception {
@@ -5747,6 +5815,12 @@ public class PersistAtomsStorageTest extends TelephonyTest {
         assertEquals(expectedCount, actualCount);
     }
 
+    private void waitForSaveThreadIdle() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        new Handler(mPersistAtomsStorage.getSaveLooper()).post(latch::countDown);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
     private void verifyCurrentStateSavedToFileOnce() throws Exception {
         InOrder inOrder = inOrder(mTestFileOutputStream);
         inOrder.verify(mTestFileOutputStream, times(1))
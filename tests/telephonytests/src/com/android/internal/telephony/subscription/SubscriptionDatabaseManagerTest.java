@@ -33,6 +33,8 @@ import static org.mockito.Mockito.when;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -40,6 +42,7 @@ import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Looper;
+import android.os.ParcelUuid;
 import android.provider.Telephony;
 import android.provider.Telephony.SimInfo;
 import android.telephony.SubscriptionManager;
@@ -314,6 +317,8 @@ public class SubscriptionDatabaseManagerTest extends TelephonyTest {
 
         private boolean mDatabaseChanged;
 
+        private int mBatchCount;
+
         SubscriptionProvider() {
             mAllColumns = SimInfo.getAllColumns();
         }
@@ -374,6 +379,27 @@ public class SubscriptionDatabaseManagerTest extends TelephonyTest {
             return 1;
         }
 
+        @Override
+        public ContentProviderResult[] applyBatch(String authority,
+                ArrayList<ContentProviderOperation> operations) {
+            logd("applyBatch: authority=" + authority + ", operations=" + operations.size());
+            mBatchCount++;
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < operations.size(); i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (!operation.isUpdate()) {
+                    throw new UnsupportedOperationException("Only support batched update.");
+                }
+                results[i] = new ContentProviderResult(update(operation.getUri(),
+                        operation.resolveValueBackReferences(results, i), null, null));
+            }
+            return results;
+        }
+
+        public int getBatchCount() {
+            return mBatchCount;
+        }
+
         @Override
         public int delete(Uri uri, String selection, String[] selectionArgs) {
             if (!uri.isPathPrefixMatch(SimInfo.CONTENT_URI)) {
@@ -585,6 +611,94 @@ public class SubscriptionDatabaseManagerTest extends TelephonyTest {
         verify(mSubscriptionDatabaseManagerCallback, never()).onSubscriptionChanged(anyInt());
     }
 
+    @Test
+    public void testSnapshot() throws Exception {
+        SubscriptionSnapshot snapshot = mDatabaseManagerUT.getSnapshot();
+        assertThat(snapshot.getAllSubscriptions()).isEmpty();
+        // Unchanged database should return the same snapshot.
+        assertThat(mDatabaseManagerUT.getSnapshot()).isSameInstanceAs(snapshot);
+
+        insertSubscriptionAndVerify(FAKE_SUBSCRIPTION_INFO2);
+        insertSubscriptionAndVerify(FAKE_SUBSCRIPTION_INFO1);
+        SubscriptionSnapshot newSnapshot = mDatabaseManagerUT.getSnapshot();
+        assertThat(newSnapshot).isNotSameInstanceAs(snapshot);
+        assertThat(newSnapshot.getGeneration()).isGreaterThan(snapshot.getGeneration());
+        assertThat(newSnapshot.getAllSortedBySlot()).hasSize(2);
+        assertThat(newSnapshot.getAllSortedBySlot().get(0).getSubscriptionInfoInternal()
+                .getSimSlotIndex()).isEqualTo(0);
+        assertThrows(UnsupportedOperationException.class,
+                () -> mDatabaseManagerUT.getAllSubscriptions().clear());
+
+        assertThat(newSnapshot.getOpportunisticSortedBySlot()).hasSize(1);
+        assertThat(newSnapshot.getOpportunisticSortedBySlot().get(0)
+                .getSubscriptionInfoInternal().getIccId()).isEqualTo(FAKE_ICCID2);
+        assertThat(newSnapshot.getSubscriptionsInGroup(ParcelUuid.fromString(FAKE_UUID1)))
+                .hasSize(1);
+        assertThat(newSnapshot.getSubscriptionsInGroup(ParcelUuid.fromString(FAKE_UUID1))
+                .get(0).getSubscriptionInfo().getIccId()).isEqualTo(FAKE_ICCID1);
+
+        int subId = newSnapshot.getAllSortedBySlot().get(0).getSubscriptionInfoInternal()
+                .getSubscriptionId();
+        mDatabaseManagerUT.setDisplayName(subId, FAKE_CARRIER_NAME2);
+        assertThat(mDatabaseManagerUT.getSnapshot()).isNotSameInstanceAs(newSnapshot);
+        assertThat(mDatabaseManagerUT.getSubscriptionInfoInternal(subId).getDisplayName())
+                .isEqualTo(FAKE_CARRIER_NAME2);
+    }
+
+    @Test
+    public void testBatchUpdate() throws Exception {
+        SubscriptionInfoInternal subInfo1 = insertSubscriptionAndVerify(FAKE_SUBSCRIPTION_INFO1);
+        SubscriptionInfoInternal subInfo2 = insertSubscriptionAndVerify(FAKE_SUBSCRIPTION_INFO2);
+        int subId1 = subInfo1.getSubscriptionId();
+        int subId2 = subInfo2.getSubscriptionId();
+        processAllMessages();
+        Mockito.clearInvocations(mSubscriptionDatabaseManagerCallback);
+
+        mDatabaseManagerUT.batchUpdate(() -> {
+            mDatabaseManagerUT.setCarrierName(subId1, FAKE_CARRIER_NAME2);
+            mDatabaseManagerUT.setMcc(subId1, FAKE_MCC2);
+            mDatabaseManagerUT.setImsi(subId1, FAKE_IMSI2);
+            // Nested batch is merged into the outer one.
+            mDatabaseManagerUT.batchUpdate(
+                    () -> mDatabaseManagerUT.setCountryIso(subId1, FAKE_COUNTRY_CODE2));
+            mDatabaseManagerUT.setIconTint(subId2, FAKE_COLOR1);
+            // Changes are visible to the thread running the batch.
+            assertThat(mDatabaseManagerUT.getSubscriptionInfoInternal(subId1).getCarrierName())
+                    .isEqualTo(FAKE_CARRIER_NAME2);
+            verify(mSubscriptionDatabaseManagerCallback, never()).onSubscriptionChanged(anyInt());
+        });
+        processAllMessages();
+
+        // One provider operation and one notification per subscription.
+        assertThat(mSubscriptionProvider.getBatchCount()).isEqualTo(1);
+        verify(mSubscriptionDatabaseManagerCallback).onSubscriptionChanged(eq(subId1));
+        verify(mSubscriptionDatabaseManagerCallback).onSubscriptionChanged(eq(subId2));
+
+        verifySubscription(new SubscriptionInfoInternal.Builder(subInfo1)
+                .setCarrierName(FAKE_CARRIER_NAME2)
+                .setMcc(FAKE_MCC2)
+                .setImsi(FAKE_IMSI2)
+                .setCountryIso(FAKE_COUNTRY_CODE2)
+                .build());
+        verifySubscription(new SubscriptionInfoInternal.Builder(subInfo2)
+                .setIconTint(FAKE_COLOR1)
+                .build());
+    }
+
+    @Test
+    public void testBatchUpdateNoChange() throws Exception {
+        SubscriptionInfoInternal subInfo = insertSubscriptionAndVerify(FAKE_SUBSCRIPTION_INFO1);
+        processAllMessages();
+        Mockito.clearInvocations(mSubscriptionDatabaseManagerCallback);
+
+        mDatabaseManagerUT.batchUpdate(() -> mDatabaseManagerUT.setCarrierName(
+                subInfo.getSubscriptionId(), subInfo.getCarrierName()));
+        processAllMessages();
+
+        assertThat(mSubscriptionProvider.getBatchCount()).isEqualTo(0);
+        verify(mSubscriptionDatabaseManagerCallback, never()).onSubscriptionChanged(anyInt());
+    }
+
     @Test
     public void testUpdateIccId() throws Exception {
         // exception is expected if there is nothing in the database.
@@ -19,6 +19,8 @@ package com.android.internal.telephony.uicc;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
 import android.os.AsyncResult;
@@ -162,4 +164,39 @@ public class SimPhonebookRecordCacheTest extends TelephonyTest {
             assertEquals(adnRecords.size(), 0);
         }
     }
+
+    @Test
+    public void testUpdatePhonebookRecordBySearchWithSameNumber() {
+        mSimulatedCommands.notifySimPhonebookChanged();
+        waitForLastHandlerAction(mSimPhonebookRecordCacheUt);
+        mSimPhonebookRecordCacheUt.clear();
+
+        List<SimPhonebookRecord> records = new ArrayList<SimPhonebookRecord>();
+        records.add(new SimPhonebookRecord(1, "AB", "123", new String[]{"a@b.c"}, null));
+        records.add(new SimPhonebookRecord(2, "AB", "123", new String[]{"d@e.f"}, null));
+        records.add(new SimPhonebookRecord(3, "CD", "456", null, null));
+        AsyncResult ar = new AsyncResult(null, new ReceivedPhonebookRecords(4, records), null);
+        Message msg = Message.obtain(mSimPhonebookRecordCacheUt,
+                EVENT_PHONEBOOK_RECORDS_RECEIVED, ar);
+        mSimPhonebookRecordCacheUt.handleMessage(msg);
+
+        // Readers share the same immutable list until the cache changes
+        List<AdnRecord> adnRecords = mSimPhonebookRecordCacheUt.getAdnRecords();
+        assertEquals(3, adnRecords.size());
+        assertSame(adnRecords, mSimPhonebookRecordCacheUt.getAdnRecords());
+        assertThrows(UnsupportedOperationException.class, () -> adnRecords.remove(0));
+
+        AdnRecord oldAdn = new AdnRecord(IccConstants.EF_ADN, 0, "AB", "123",
+                new String[]{"d@e.f"}, null);
+        AdnRecord newAdn = new AdnRecord(IccConstants.EF_ADN, 0, "AB", "789", null, null);
+        mSimPhonebookRecordCacheUt.updateSimPbAdnBySearch(oldAdn, newAdn, null);
+        waitForLastHandlerAction(mSimPhonebookRecordCacheUt);
+
+        List<AdnRecord> updatedRecords = mSimPhonebookRecordCacheUt.getAdnRecords();
+        assertEquals(3, updatedRecords.size());
+        assertEquals("123", updatedRecords.get(0).getNumber());
+        assertEquals(2, updatedRecords.get(1).getRecId());
+        assertEquals("789", updatedRecords.get(1).getNumber());
+        assertEquals("456", updatedRecords.get(2).getNumber());
+    }
 }